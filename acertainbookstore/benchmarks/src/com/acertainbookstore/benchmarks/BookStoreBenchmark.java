@@ -0,0 +1,68 @@
+package com.acertainbookstore.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.acertainbookstore.business.Book;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * BookStoreBenchmark measures the calls of the BookStore interface on the
+ * catalog of a CertainBookStore, or of a ShardedBookStore with the shards
+ * parameter. The calls taking a number of books ask for isbnSetSize books.
+ * 
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BookStoreBenchmark {
+
+	@Benchmark
+	public void buyBooks(CatalogState catalog, RequestState request)
+			throws BookStoreException {
+		request.next();
+		catalog.bookStore.buyBooks(request.bookCopies());
+	}
+
+	@Benchmark
+	public List<Book> buyEditorPicks(CatalogState catalog)
+			throws BookStoreException {
+		return catalog.bookStore.buyEditorPicks(catalog.isbnSetSize, 1);
+	}
+
+	@Benchmark
+	public void rateBooks(CatalogState catalog, RequestState request)
+			throws BookStoreException {
+		request.next();
+		catalog.bookStore.rateBooks(request.bookRatings());
+	}
+
+	@Benchmark
+	public List<Book> getBooks(CatalogState catalog, RequestState request)
+			throws BookStoreException {
+		request.next();
+		return catalog.bookStore.getBooks(request.isbns());
+	}
+
+	@Benchmark
+	public List<Book> getTopRatedBooks(CatalogState catalog)
+			throws BookStoreException {
+		return catalog.bookStore.getTopRatedBooks(catalog.isbnSetSize);
+	}
+
+	@Benchmark
+	public List<Book> getEditorPicks(CatalogState catalog)
+			throws BookStoreException {
+		return catalog.bookStore.getEditorPicks(catalog.isbnSetSize);
+	}
+}
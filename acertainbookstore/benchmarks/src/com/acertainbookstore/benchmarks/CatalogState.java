@@ -0,0 +1,138 @@
+package com.acertainbookstore.benchmarks;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookStoreBackend;
+import com.acertainbookstore.business.BookStoreConcurrencyMode;
+import com.acertainbookstore.business.CertainBookStore;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.ShardedBookStore;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * CatalogState is the store shared by the threads of a benchmark, filled
+ * with catalogSize books before the trial. The books have ISBNs 1 to
+ * catalogSize and enough copies never to run out, every tenth book is an
+ * editor pick, and NUM_IN_DEMAND more books with a single copy have sale
+ * misses.
+ * 
+ * The ISBNs after the in demand books are left for the books the threads add
+ * and remove, each thread in its own range of isbnSetSize ISBNs.
+ * 
+ */
+@State(Scope.Benchmark)
+public class CatalogState {
+	static final int NUM_IN_DEMAND = 100;
+	static final int NUM_COPIES = 1000000000;
+	static final int EDITOR_PICK_INTERVAL = 10;
+
+	@Param({ "1000", "100000" })
+	public int catalogSize;
+
+	@Param({ "1", "10", "100" })
+	public int isbnSetSize;
+
+	@Param({ "TWO_LEVEL_LOCKING" })
+	public BookStoreConcurrencyMode concurrencyMode;
+
+	@Param({ "HEAP" })
+	public BookStoreBackend backend;
+
+	@Param({ "1" })
+	public int shards;
+
+	BookStore bookStore;
+	StockManager stockManager;
+	private final AtomicInteger nextThread = new AtomicInteger();
+
+	@Setup(Level.Trial)
+	public void setUp() throws BookStoreException {
+		if (shards > 1) {
+			ShardedBookStore store = new ShardedBookStore(shards,
+					concurrencyMode, backend);
+			bookStore = store;
+			stockManager = store;
+		} else {
+			CertainBookStore store = new CertainBookStore(concurrencyMode,
+					backend);
+			bookStore = store;
+			stockManager = store;
+		}
+
+		stockManager.addBooks(createBooks(1, catalogSize, NUM_COPIES));
+		Set<BookEditorPick> editorPicks = new HashSet<BookEditorPick>();
+		for (int isbn = EDITOR_PICK_INTERVAL; isbn <= catalogSize; isbn += EDITOR_PICK_INTERVAL) {
+			editorPicks.add(new BookEditorPick(isbn, true));
+		}
+		stockManager.updateEditorPicks(editorPicks);
+
+		stockManager.addBooks(createBooks(catalogSize + 1, NUM_IN_DEMAND, 1));
+		for (int isbn = catalogSize + 1; isbn <= catalogSize + NUM_IN_DEMAND; isbn++) {
+			Set<BookCopy> bookCopies = new HashSet<BookCopy>();
+			bookCopies.add(new BookCopy(isbn, 2));
+			try {
+				bookStore.buyBooks(bookCopies);
+			} catch (BookStoreException ex) {
+				// The book has one copy, so the buy records a sale miss
+			}
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws BookStoreException {
+		stockManager.removeAllBooks();
+	}
+
+	/**
+	 * Returns the first ISBN of the range of the next thread asking for one
+	 * 
+	 * @return
+	 */
+	int nextThreadISBN() {
+		return catalogSize + NUM_IN_DEMAND + 1 + nextThread.getAndIncrement()
+				* isbnSetSize;
+	}
+
+	/**
+	 * Returns whether the book with the ISBN is an editor pick of the catalog
+	 * 
+	 * @param isbn
+	 * @return
+	 */
+	static boolean isEditorPick(int isbn) {
+		return isbn % EDITOR_PICK_INTERVAL == 0;
+	}
+
+	/**
+	 * Returns numBooks books with consecutive ISBNs from firstISBN
+	 * 
+	 * @param firstISBN
+	 * @param numBooks
+	 * @param numCopies
+	 * @return
+	 */
+	static Set<StockBook> createBooks(int firstISBN, int numBooks,
+			int numCopies) {
+		Set<StockBook> books = new HashSet<StockBook>();
+		for (int isbn = firstISBN; isbn < firstISBN + numBooks; isbn++) {
+			books.add(new ImmutableStockBook(isbn, "Title " + isbn, "Author "
+					+ (isbn % 1000), 10.0f + isbn % 90, numCopies, 0, 0, 0,
+					false));
+		}
+		return books;
+	}
+}
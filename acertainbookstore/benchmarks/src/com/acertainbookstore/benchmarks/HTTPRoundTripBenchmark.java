@@ -0,0 +1,118 @@
+package com.acertainbookstore.benchmarks;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.CertainBookStore;
+import com.acertainbookstore.client.BookStoreHTTPProxy;
+import com.acertainbookstore.server.BookStoreHTTPMessageHandler;
+import com.acertainbookstore.server.BookStoreHTTPServerUtility;
+import com.acertainbookstore.utils.BookStoreBinaryCodec;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreUtility;
+import com.acertainbookstore.utils.BookStoreWireFormat;
+
+/**
+ * HTTPRoundTripBenchmark measures a buyBooks call of numBooks books on the
+ * server side, with the message handler handling a mocked request and
+ * writing its response to a mocked response, and end to end, with a
+ * BookStoreHTTPProxy sending it to a server on the loopback interface.
+ * Compared with SerializationBenchmark, this tells how much of the time of a
+ * remote buyBooks goes to reading the request, to the store, and to HTTP.
+ * 
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HTTPRoundTripBenchmark {
+	static final int SERVER_PORT = 8095;
+
+	/**
+	 * A store with the books of the buys and the handler of its messages
+	 */
+	@State(Scope.Benchmark)
+	public static class Handler {
+		@Param({ "1", "10", "100", "1000", "10000" })
+		public int numBooks;
+
+		@Param({ "XML", "BINARY" })
+		public BookStoreWireFormat wireFormat;
+
+		Set<BookCopy> bookCopies;
+		BookStoreHTTPMessageHandler handler;
+		private byte[] body;
+
+		@Setup(Level.Trial)
+		public void setUp() throws BookStoreException {
+			CertainBookStore store = new CertainBookStore();
+			store.addBooks(CatalogState.createBooks(1, numBooks,
+					CatalogState.NUM_COPIES));
+			handler = new BookStoreHTTPMessageHandler(store);
+			bookCopies = SerializationBenchmark.createBookCopies(numBooks);
+			body = (wireFormat == BookStoreWireFormat.BINARY) ? BookStoreBinaryCodec
+					.encode(bookCopies) : BookStoreUtility
+					.serializeObjectToXMLString(bookCopies).getBytes(
+							StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * A server running the handler and a client proxy sending it calls
+	 */
+	@State(Scope.Benchmark)
+	public static class LoopbackServer {
+		private Server server;
+		BookStoreHTTPProxy proxy;
+
+		@Setup(Level.Trial)
+		public void setUp(Handler handler) throws Exception {
+			server = BookStoreHTTPServerUtility.startServer(SERVER_PORT,
+					handler.handler);
+			proxy = new BookStoreHTTPProxy("http://localhost:" + SERVER_PORT,
+					handler.wireFormat);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws Exception {
+			proxy.stop();
+			server.stop();
+		}
+	}
+
+	@Benchmark
+	public void handleBuyBooks(Handler handler) throws IOException,
+			ServletException {
+		handler.handler.handle("/BUYBOOKS", new Request(), MockHttpMessages
+				.request("/BUYBOOKS", handler.wireFormat, handler.body),
+				MockHttpMessages.response());
+	}
+
+	@Benchmark
+	public void roundTripBuyBooks(Handler handler, LoopbackServer server)
+			throws BookStoreException {
+		server.proxy.buyBooks(handler.bookCopies);
+	}
+}
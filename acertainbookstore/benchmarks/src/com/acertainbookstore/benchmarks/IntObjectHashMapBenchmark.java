@@ -0,0 +1,127 @@
+package com.acertainbookstore.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.acertainbookstore.utils.IntObjectHashMap;
+
+/**
+ * IntObjectHashMapBenchmark compares the lookups of the IntObjectHashMap
+ * indexing the books of CertainBookStore with those of a HashMap of boxed
+ * ISBNs, both holding the same size random ISBNs. The lookups of a thread go
+ * through NUM_LOOKUPS random ISBNs of the maps, or not in the maps for the
+ * misses, so most of them miss the CPU caches with a million ISBNs or more.
+ * 
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class IntObjectHashMapBenchmark {
+	static final int NUM_LOOKUPS = 1 << 16;
+
+	/**
+	 * The maps, read by all threads
+	 */
+	@State(Scope.Benchmark)
+	public static class Maps {
+		@Param({ "1000000", "4000000" })
+		public int size;
+
+		private int[] isbns;
+		private int[] missingISBNs;
+		private IntObjectHashMap<Object> intObjectHashMap;
+		private Map<Integer, Object> hashMap;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			Random random = new Random(size);
+			IntObjectHashMap<Object> missing = new IntObjectHashMap<Object>();
+			intObjectHashMap = new IntObjectHashMap<Object>();
+			hashMap = new HashMap<Integer, Object>();
+			isbns = new int[size];
+			for (int i = 0; i < size; i++) {
+				int isbn;
+				do {
+					isbn = 1 + random.nextInt(Integer.MAX_VALUE);
+				} while (intObjectHashMap.containsKey(isbn));
+				isbns[i] = isbn;
+				Object book = new Object();
+				intObjectHashMap.put(isbn, book);
+				hashMap.put(isbn, book);
+			}
+
+			missingISBNs = new int[NUM_LOOKUPS];
+			for (int i = 0; i < NUM_LOOKUPS; i++) {
+				int isbn;
+				do {
+					isbn = 1 + random.nextInt(Integer.MAX_VALUE);
+				} while (intObjectHashMap.containsKey(isbn)
+						|| missing.containsKey(isbn));
+				missing.put(isbn, isbn);
+				missingISBNs[i] = isbn;
+			}
+		}
+	}
+
+	/**
+	 * The ISBNs a thread looks up, in turn
+	 */
+	@State(Scope.Thread)
+	public static class Lookups {
+		private final int[] isbns = new int[NUM_LOOKUPS];
+		private int[] missingISBNs;
+		private int next = 0;
+
+		@Setup(Level.Trial)
+		public void setUp(Maps maps) {
+			Random random = new Random(Thread.currentThread().getId());
+			for (int i = 0; i < NUM_LOOKUPS; i++) {
+				isbns[i] = maps.isbns[random.nextInt(maps.size)];
+			}
+			missingISBNs = maps.missingISBNs;
+		}
+
+		int nextIndex() {
+			next = (next + 1) & (NUM_LOOKUPS - 1);
+			return next;
+		}
+	}
+
+	@Benchmark
+	public Object intObjectHashMapGet(Maps maps, Lookups lookups) {
+		return maps.intObjectHashMap.get(lookups.isbns[lookups.nextIndex()]);
+	}
+
+	@Benchmark
+	public Object hashMapGet(Maps maps, Lookups lookups) {
+		return maps.hashMap.get(lookups.isbns[lookups.nextIndex()]);
+	}
+
+	@Benchmark
+	public Object intObjectHashMapMiss(Maps maps, Lookups lookups) {
+		return maps.intObjectHashMap.get(lookups.missingISBNs[lookups
+				.nextIndex()]);
+	}
+
+	@Benchmark
+	public Object hashMapMiss(Maps maps, Lookups lookups) {
+		return maps.hashMap.get(lookups.missingISBNs[lookups.nextIndex()]);
+	}
+}
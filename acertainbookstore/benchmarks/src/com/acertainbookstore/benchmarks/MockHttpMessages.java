@@ -0,0 +1,154 @@
+package com.acertainbookstore.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.http.HttpHeaders;
+
+import com.acertainbookstore.utils.BookStoreWireFormat;
+
+/**
+ * MockHttpMessages creates the requests and responses the benchmarks pass to
+ * the message handler without a server, as dynamic proxies answering the
+ * calls the handler makes. A request has a fixed URI and body, and a
+ * response discards what is written to it. The other calls return null,
+ * zero or false.
+ * 
+ */
+final class MockHttpMessages {
+	// Discards the bytes written to it
+	static final OutputStream DISCARD = new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	private MockHttpMessages() {
+	}
+
+	/**
+	 * Returns a request for the URI with the body, in the format, which also
+	 * asks for a response in the format
+	 * 
+	 * @param requestURI
+	 * @param format
+	 * @param body
+	 * @return
+	 */
+	static HttpServletRequest request(final String requestURI,
+			final BookStoreWireFormat format, final byte[] body) {
+		return (HttpServletRequest) Proxy.newProxyInstance(
+				HttpServletRequest.class.getClassLoader(),
+				new Class<?>[] { HttpServletRequest.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method,
+							Object[] args) throws IOException {
+						String name = method.getName();
+						if (name.equals("getRequestURI")) {
+							return requestURI;
+						} else if (name.equals("getContentType")) {
+							return format.getContentType();
+						} else if (name.equals("getHeader")) {
+							if (HttpHeaders.ACCEPT.equalsIgnoreCase((String) args[0])
+									|| HttpHeaders.CONTENT_TYPE
+											.equalsIgnoreCase((String) args[0])) {
+								return format.getContentType();
+							}
+							return null;
+						} else if (name.equals("getContentLength")) {
+							return body.length;
+						} else if (name.equals("getInputStream")) {
+							return inputStream(new ByteArrayInputStream(body));
+						} else if (name.equals("getReader")) {
+							return new BufferedReader(new InputStreamReader(
+									new ByteArrayInputStream(body),
+									StandardCharsets.UTF_8));
+						}
+						return defaultValue(method);
+					}
+				});
+	}
+
+	/**
+	 * Returns a response discarding its body
+	 * 
+	 * @return
+	 */
+	static HttpServletResponse response() {
+		return (HttpServletResponse) Proxy.newProxyInstance(
+				HttpServletResponse.class.getClassLoader(),
+				new Class<?>[] { HttpServletResponse.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						String name = method.getName();
+						if (name.equals("getOutputStream")) {
+							return outputStream(DISCARD);
+						} else if (name.equals("getWriter")) {
+							return new PrintWriter(new OutputStreamWriter(
+									DISCARD, StandardCharsets.UTF_8));
+						}
+						return defaultValue(method);
+					}
+				});
+	}
+
+	private static ServletInputStream inputStream(final InputStream in) {
+		return new ServletInputStream() {
+			@Override
+			public int read() throws IOException {
+				return in.read();
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return in.read(b, off, len);
+			}
+		};
+	}
+
+	private static ServletOutputStream outputStream(final OutputStream out) {
+		return new ServletOutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				out.write(b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+			}
+		};
+	}
+
+	private static Object defaultValue(Method method) {
+		Class<?> type = method.getReturnType();
+		if (type == boolean.class) {
+			return false;
+		} else if (type == int.class) {
+			return 0;
+		} else if (type == long.class) {
+			return 0L;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,110 @@
+package com.acertainbookstore.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.CertainBookStore;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * RequestState holds the arguments the calls of a benchmark thread send to
+ * the store, created before the trial so that the benchmarks do not measure
+ * building them. Each call takes the next of NUM_REQUESTS sets of
+ * isbnSetSize random books of the catalog.
+ * 
+ * The thread also has its own isbnSetSize books, which are not in the
+ * catalog, to add and remove, and their CSV lines to import.
+ * 
+ */
+@State(Scope.Thread)
+public class RequestState {
+	static final int NUM_REQUESTS = 256;
+
+	private final Set<Integer>[] isbnSets = newArray(NUM_REQUESTS);
+	private final Set<BookCopy>[] bookCopySets = newArray(NUM_REQUESTS);
+	private final Set<BookRating>[] bookRatingSets = newArray(NUM_REQUESTS);
+	private final Set<BookEditorPick>[] editorPickSets = newArray(NUM_REQUESTS);
+	private int next = 0;
+
+	Set<StockBook> newBooks;
+	Set<Integer> newISBNs;
+	byte[] newBooksCSV;
+
+	// Generic arrays can not be created, so the array of wildcard sets is
+	// cast, which is safe since it only ever holds sets of T
+	@SuppressWarnings("unchecked")
+	private static <T> Set<T>[] newArray(int length) {
+		return (Set<T>[]) new Set<?>[length];
+	}
+
+	@Setup(Level.Trial)
+	public void setUp(CatalogState catalog) throws BookStoreException {
+		Random random = new Random(Thread.currentThread().getId());
+		for (int i = 0; i < NUM_REQUESTS; i++) {
+			isbnSets[i] = new HashSet<Integer>();
+			while (isbnSets[i].size() < Math.min(catalog.isbnSetSize,
+					catalog.catalogSize)) {
+				isbnSets[i].add(1 + random.nextInt(catalog.catalogSize));
+			}
+
+			bookCopySets[i] = new HashSet<BookCopy>();
+			bookRatingSets[i] = new HashSet<BookRating>();
+			editorPickSets[i] = new HashSet<BookEditorPick>();
+			for (int isbn : isbnSets[i]) {
+				bookCopySets[i].add(new BookCopy(isbn, 1));
+				bookRatingSets[i].add(new BookRating(isbn, random.nextInt(6)));
+				// Keeps the editor picks of the catalog as they are
+				editorPickSets[i].add(new BookEditorPick(isbn, CatalogState
+						.isEditorPick(isbn)));
+			}
+		}
+
+		int firstISBN = catalog.nextThreadISBN();
+		newBooks = CatalogState.createBooks(firstISBN, catalog.isbnSetSize,
+				CatalogState.NUM_COPIES);
+		newISBNs = new HashSet<Integer>();
+		for (StockBook book : newBooks) {
+			newISBNs.add(book.getISBN());
+		}
+
+		CertainBookStore csvStore = new CertainBookStore();
+		csvStore.addBooks(newBooks);
+		ByteArrayOutputStream csv = new ByteArrayOutputStream();
+		csvStore.exportBooks(csv);
+		newBooksCSV = csv.toByteArray();
+	}
+
+	/**
+	 * Moves on to the arguments of the next call
+	 */
+	void next() {
+		next = (next + 1) % NUM_REQUESTS;
+	}
+
+	Set<Integer> isbns() {
+		return isbnSets[next];
+	}
+
+	Set<BookCopy> bookCopies() {
+		return bookCopySets[next];
+	}
+
+	Set<BookRating> bookRatings() {
+		return bookRatingSets[next];
+	}
+
+	Set<BookEditorPick> editorPicks() {
+		return editorPickSets[next];
+	}
+}
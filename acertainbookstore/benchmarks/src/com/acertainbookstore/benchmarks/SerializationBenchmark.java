@@ -0,0 +1,122 @@
+package com.acertainbookstore.benchmarks;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.utils.BookStoreBinaryCodec;
+import com.acertainbookstore.utils.BookStoreUtility;
+import com.acertainbookstore.utils.BookStoreWireFormat;
+
+/**
+ * SerializationBenchmark measures the stages the server goes through to read
+ * the set of book copies of a buyBooks request of numBooks books, in both
+ * wire formats: serializing the set and deserializing it from a string or
+ * bytes, reading the body of a request into a string with
+ * extractPOSTDataFromRequest, and deserializing the set from a request as it
+ * is read with deserializeObjectFromRequest, as the message handler does.
+ * 
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+	/**
+	 * The book copies of a buyBooks request and their serialized forms
+	 */
+	@State(Scope.Benchmark)
+	public static class Payload {
+		@Param({ "1", "10", "100", "1000", "10000" })
+		public int numBooks;
+
+		private Set<BookCopy> bookCopies;
+		private String xml;
+		private byte[] xmlBytes;
+		private byte[] binary;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			bookCopies = createBookCopies(numBooks);
+			xml = BookStoreUtility.serializeObjectToXMLString(bookCopies);
+			xmlBytes = xml.getBytes(StandardCharsets.UTF_8);
+			binary = BookStoreBinaryCodec.encode(bookCopies);
+		}
+	}
+
+	/**
+	 * Returns a copy of each of the books with ISBNs 1 to numBooks
+	 * 
+	 * @param numBooks
+	 * @return
+	 */
+	static Set<BookCopy> createBookCopies(int numBooks) {
+		Set<BookCopy> bookCopies = new HashSet<BookCopy>();
+		for (int isbn = 1; isbn <= numBooks; isbn++) {
+			bookCopies.add(new BookCopy(isbn, 1));
+		}
+		return bookCopies;
+	}
+
+	@Benchmark
+	public String serializeObjectToXMLString(Payload payload) {
+		return BookStoreUtility.serializeObjectToXMLString(payload.bookCopies);
+	}
+
+	@Benchmark
+	public Object deserializeXMLStringToObject(Payload payload) {
+		return BookStoreUtility.deserializeXMLStringToObject(payload.xml);
+	}
+
+	@Benchmark
+	public byte[] encodeBinary(Payload payload) {
+		return BookStoreBinaryCodec.encode(payload.bookCopies);
+	}
+
+	@Benchmark
+	public Object decodeBinary(Payload payload) throws IOException {
+		return BookStoreBinaryCodec.decode(payload.binary);
+	}
+
+	@Benchmark
+	public String extractPOSTDataFromRequest(Payload payload)
+			throws IOException {
+		return BookStoreUtility.extractPOSTDataFromRequest(MockHttpMessages
+				.request("/BUYBOOKS", BookStoreWireFormat.XML,
+						payload.xmlBytes));
+	}
+
+	@Benchmark
+	public Object deserializeXMLFromRequest(Payload payload)
+			throws IOException {
+		return BookStoreUtility.deserializeObjectFromRequest(MockHttpMessages
+				.request("/BUYBOOKS", BookStoreWireFormat.XML,
+						payload.xmlBytes));
+	}
+
+	@Benchmark
+	public Object deserializeBinaryFromRequest(Payload payload)
+			throws IOException {
+		return BookStoreUtility.deserializeObjectFromRequest(MockHttpMessages
+				.request("/BUYBOOKS", BookStoreWireFormat.BINARY,
+						payload.binary));
+	}
+}
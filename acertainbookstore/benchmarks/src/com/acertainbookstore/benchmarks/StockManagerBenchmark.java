@@ -0,0 +1,136 @@
+package com.acertainbookstore.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.acertainbookstore.business.CertainBookStore;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * StockManagerBenchmark measures the calls of the StockManager interface on
+ * the catalog of a CertainBookStore, or of a ShardedBookStore with the shards
+ * parameter.
+ * 
+ * The calls adding books are measured together with the removeBooks call
+ * taking the books out again, so the catalog keeps its size, and
+ * removeAllBooks empties a store of the thread filled again before each call.
+ * 
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StockManagerBenchmark {
+
+	/**
+	 * A store of the thread with the books of the catalog, for removeAllBooks
+	 */
+	@State(Scope.Thread)
+	public static class FilledStore {
+		private CertainBookStore store;
+		private Set<StockBook> books;
+
+		@Setup(Level.Trial)
+		public void setUpTrial(CatalogState catalog) {
+			store = new CertainBookStore(catalog.concurrencyMode,
+					catalog.backend);
+			books = CatalogState.createBooks(1, catalog.catalogSize,
+					CatalogState.NUM_COPIES);
+		}
+
+		@Setup(Level.Invocation)
+		public void setUpInvocation() throws BookStoreException {
+			store.addBooks(books);
+		}
+	}
+
+	// Discards the exported CSV
+	private static final OutputStream DISCARD = new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	@Benchmark
+	public void addBooksThenRemoveBooks(CatalogState catalog,
+			RequestState request) throws BookStoreException {
+		catalog.stockManager.addBooks(request.newBooks);
+		catalog.stockManager.removeBooks(request.newISBNs);
+	}
+
+	@Benchmark
+	public void addCopies(CatalogState catalog, RequestState request)
+			throws BookStoreException {
+		request.next();
+		catalog.stockManager.addCopies(request.bookCopies());
+	}
+
+	@Benchmark
+	public List<StockBook> getBooks(CatalogState catalog)
+			throws BookStoreException {
+		return catalog.stockManager.getBooks();
+	}
+
+	@Benchmark
+	public List<StockBook> getBooksByISBN(CatalogState catalog,
+			RequestState request) throws BookStoreException {
+		request.next();
+		return catalog.stockManager.getBooksByISBN(request.isbns());
+	}
+
+	@Benchmark
+	public List<StockBook> getBooksInDemand(CatalogState catalog)
+			throws BookStoreException {
+		return catalog.stockManager.getBooksInDemand();
+	}
+
+	@Benchmark
+	public void updateEditorPicks(CatalogState catalog, RequestState request)
+			throws BookStoreException {
+		request.next();
+		catalog.stockManager.updateEditorPicks(request.editorPicks());
+	}
+
+	@Benchmark
+	public void removeAllBooks(FilledStore filledStore)
+			throws BookStoreException {
+		filledStore.store.removeAllBooks();
+	}
+
+	@Benchmark
+	public long importBooksThenRemoveBooks(CatalogState catalog,
+			RequestState request) throws BookStoreException {
+		long numBooks = catalog.stockManager.importBooks(
+				new ByteArrayInputStream(request.newBooksCSV),
+				BookStoreConstants.DEFAULT_IMPORT_BATCH_SIZE, null);
+		catalog.stockManager.removeBooks(request.newISBNs);
+		return numBooks;
+	}
+
+	@Benchmark
+	public long exportBooks(CatalogState catalog) throws BookStoreException {
+		return catalog.stockManager.exportBooks(DISCARD);
+	}
+}
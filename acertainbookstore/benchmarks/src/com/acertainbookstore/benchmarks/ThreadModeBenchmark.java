@@ -0,0 +1,135 @@
+package com.acertainbookstore.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.server.Server;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.CertainBookStore;
+import com.acertainbookstore.client.BookStoreHTTPProxy;
+import com.acertainbookstore.client.StockManagerHTTPProxy;
+import com.acertainbookstore.client.workloads.CertainWorkload;
+import com.acertainbookstore.client.workloads.Worker;
+import com.acertainbookstore.client.workloads.WorkerRunResult;
+import com.acertainbookstore.client.workloads.WorkloadConfiguration;
+import com.acertainbookstore.server.BookStoreHTTPMessageHandler;
+import com.acertainbookstore.server.BookStoreHTTPServerUtility;
+import com.acertainbookstore.utils.BookStoreThreadMode;
+import com.acertainbookstore.utils.BookStoreWireFormat;
+
+/**
+ * ThreadModeBenchmark measures the time for clients workers, each running
+ * RUNS_PER_CLIENT customer interactions of the workload, buying editor
+ * picks, against a server on the loopback interface, to complete, with the
+ * workers running on platform or
+ * virtual threads, clientThreadMode, and the server handling the requests
+ * on platform or virtual threads, serverThreadMode. The VIRTUAL modes need
+ * the benchmarks to run on Java 21 or later, and otherwise measure platform
+ * threads again. With VIRTUAL clients the proxies keep a connection per
+ * worker, so that every worker can have its request in flight.
+ * 
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ThreadModeBenchmark {
+	static final int SERVER_PORT = 8096;
+	static final int RUNS_PER_CLIENT = 5;
+	static final int NUM_BOOKS = 1000;
+
+	/**
+	 * A server running a store of NUM_BOOKS books, every
+	 * EDITOR_PICK_INTERVAL of them an editor pick, the proxies of the workers
+	 * and the executor they run on
+	 */
+	@State(Scope.Benchmark)
+	public static class Clients {
+		@Param({ "100", "1000", "10000" })
+		public int clients;
+
+		@Param({ "PLATFORM", "VIRTUAL" })
+		public BookStoreThreadMode clientThreadMode;
+
+		@Param({ "PLATFORM", "VIRTUAL" })
+		public BookStoreThreadMode serverThreadMode;
+
+		private Server server;
+		private BookStoreHTTPProxy bookStore;
+		private StockManagerHTTPProxy stockManager;
+		private ExecutorService exec;
+
+		@Setup(Level.Trial)
+		public void setUp() throws Exception {
+			CertainBookStore store = new CertainBookStore();
+			store.addBooks(CatalogState.createBooks(1, NUM_BOOKS,
+					CatalogState.NUM_COPIES));
+			Set<BookEditorPick> editorPicks = new HashSet<BookEditorPick>();
+			for (int isbn = CatalogState.EDITOR_PICK_INTERVAL; isbn <= NUM_BOOKS; isbn += CatalogState.EDITOR_PICK_INTERVAL) {
+				editorPicks.add(new BookEditorPick(isbn, true));
+			}
+			store.updateEditorPicks(editorPicks);
+			server = BookStoreHTTPServerUtility.startServer(SERVER_PORT,
+					new BookStoreHTTPMessageHandler(store), serverThreadMode);
+			String serverAddress = "http://localhost:" + SERVER_PORT;
+			// In the VIRTUAL mode the proxies have a connection per client
+			int maxConnections = CertainWorkload.getMaxConnections(
+					clientThreadMode, clients);
+			bookStore = new BookStoreHTTPProxy(serverAddress,
+					BookStoreWireFormat.getConfiguredFormat(), clientThreadMode,
+					maxConnections);
+			stockManager = new StockManagerHTTPProxy(serverAddress + "/stock",
+					BookStoreWireFormat.getConfiguredFormat(), clientThreadMode,
+					maxConnections);
+			exec = clientThreadMode.newExecutor(clients);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws Exception {
+			exec.shutdownNow();
+			bookStore.stop();
+			stockManager.stop();
+			server.stop();
+		}
+	}
+
+	@Benchmark
+	public int runWorkers(Clients clients) throws Exception {
+		List<Future<WorkerRunResult>> runResults = new ArrayList<Future<WorkerRunResult>>();
+		for (int i = 0; i < clients.clients; i++) {
+			WorkloadConfiguration config = new WorkloadConfiguration(
+					clients.bookStore, clients.stockManager);
+			config.setWarmUpRuns(0);
+			config.setNumActualRuns(RUNS_PER_CLIENT);
+			config.setPercentRareStockManagerInteraction(0f);
+			config.setPercentFrequentStockManagerInteraction(0f);
+			runResults.add(clients.exec.submit(new Worker(config)));
+		}
+		int successfulInteractions = 0;
+		for (Future<WorkerRunResult> runResult : runResults) {
+			successfulInteractions += runResult.get()
+					.getSuccessfulInteractions();
+		}
+		return successfulInteractions;
+	}
+}
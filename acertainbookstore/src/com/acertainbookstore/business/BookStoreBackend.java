@@ -0,0 +1,34 @@
+package com.acertainbookstore.business;
+
+import com.acertainbookstore.utils.BookStoreConstants;
+
+/**
+ * BookStoreBackend selects where the CertainBookStore keeps the counters of
+ * its books.
+ * 
+ * HEAP keeps them in fields of one object per book.
+ * 
+ * OFF_HEAP keeps them in columns of direct memory indexed by a dense slot id
+ * per book, interns titles and authors and shares striped locks between the
+ * books. Each book is still one small heap object, so this cuts the number
+ * of objects the garbage collector traces per book rather than removing them.
+ * 
+ */
+public enum BookStoreBackend {
+	HEAP, OFF_HEAP;
+
+	/**
+	 * Returns the backend configured by the storage backend system property,
+	 * or HEAP if the property is not set
+	 * 
+	 * @return
+	 */
+	public static BookStoreBackend getConfiguredBackend() {
+		String backendProperty = System
+				.getProperty(BookStoreConstants.PROPERTY_KEY_STORAGE_BACKEND);
+		if (backendProperty == null || backendProperty.isEmpty()) {
+			return HEAP;
+		}
+		return BookStoreBackend.valueOf(backendProperty.toUpperCase());
+	}
+}
@@ -1,5 +1,7 @@
 package com.acertainbookstore.business;
 
+import java.util.concurrent.locks.ReadWriteLock;
+
 import com.acertainbookstore.utils.BookStoreUtility;
 
 /**
@@ -7,92 +9,71 @@ import com.acertainbookstore.utils.BookStoreUtility;
  * in the BookStoreClient and StockManager, cf. the Book interface and the
  * StockBook interface.
  * 
+ * The counters, the lock and the ImmutableBook view of the book are kept by
+ * the subclasses, cf. HeapBookStoreBook and OffHeapBookStoreBook. Subclass
+ * constructors must call publishStockBookView once the counters are
+ * initialized.
+ * 
  */
-public class BookStoreBook extends ImmutableBook {
-	private int numCopies;
-	private long totalRating;
-	private long timesRated;
-	private long saleMisses;
-	private boolean editorPick;
+public abstract class BookStoreBook extends ImmutableBook {
+	private volatile StockBook stockBookView;
+	// Position of the book in the EditorPickIndex of its store, guarded by the
+	// index
+	int editorPickPosition = -1;
+	// Entry of the book in the RatingIndex of its store, guarded by the index
+	RatingIndex.Entry ratingEntry = null;
 
 	/**
-	 * Constructor to create a book object
+	 * Constructor to create a book object with the given immutable
+	 * attributes
 	 */
-	public BookStoreBook(int ISBN, String title, String author, float price,
-			int numCopies) {
+	protected BookStoreBook(int ISBN, String title, String author, float price) {
 		super(ISBN, title, author, price);
-		this.setSaleMisses(0);
-		this.setTimesRated(0);
-		this.setNumCopies(numCopies);
-		this.setTotalRating(0);
-		this.setEditorPick(false);
-	}
-
-	/**
-	 * Constructor to create a book store book object from a stock book object
-	 * 
-	 * @param bookToCopy
-	 */
-	public BookStoreBook(StockBook bookToCopy) {
-		super(bookToCopy.getISBN(), bookToCopy.getTitle(), bookToCopy
-				.getAuthor(), bookToCopy.getPrice());
-		this.setSaleMisses(bookToCopy.getSaleMisses());
-		this.setTimesRated(bookToCopy.getTimesRated());
-		this.setNumCopies(bookToCopy.getNumCopies());
-		this.setTotalRating(bookToCopy.getTotalRating());
-		this.setEditorPick(bookToCopy.isEditorPick());
 	}
 
-	public long getTotalRating() {
-		return totalRating;
-	}
+	public abstract long getTotalRating();
 
-	public long getTimesRated() {
-		return timesRated;
-	}
+	public abstract long getTimesRated();
 
-	public int getNumCopies() {
-		return numCopies;
-	}
+	public abstract int getNumCopies();
 
-	public long getSaleMisses() {
-		return saleMisses;
-	}
+	public abstract long getSaleMisses();
 
 	public float getAverageRating() {
-		return (float) (timesRated == 0 ? -1.0 : totalRating / timesRated);
+		long timesRated = getTimesRated();
+		return (float) (timesRated == 0 ? -1.0 : getTotalRating() / timesRated);
 	}
 
-	public boolean isEditorPick() {
-		return editorPick;
-	}
+	public abstract boolean isEditorPick();
+
+	/**
+	 * Returns the lock protecting the book when the store uses two-level
+	 * locking.
+	 * 
+	 * @return
+	 */
+	public abstract ReadWriteLock getLock();
 
 	/**
 	 * Sets the total rating of the book.
 	 * 
 	 * @param totalRating
 	 */
-	private void setTotalRating(long totalRating) {
-		this.totalRating = totalRating;
-	}
+	protected abstract void setTotalRating(long totalRating);
 
 	/**
 	 * Sets the number of times that a book was rated.
 	 * 
 	 * @param timesRated
 	 */
-	private void setTimesRated(long timesRated) {
-		this.timesRated = timesRated;
-	}
+	protected abstract void setTimesRated(long timesRated);
 
 	/**
 	 * Sets the number of copies of a book, that is in stock.
 	 * 
 	 * @param numCopies
 	 */
-	private void setNumCopies(int numCopies) {
-		this.numCopies = numCopies;
-	}
+	protected abstract void setNumCopies(int numCopies);
 
 	/**
 	 * Sets the number of times that a client wanted to buy a book when it was
@@ -100,9 +81,14 @@ public class BookStoreBook extends ImmutableBook {
 	 * 
 	 * @param saleMisses
 	 */
-	private void setSaleMisses(long saleMisses) {
-		this.saleMisses = saleMisses;
-	}
+	protected abstract void setSaleMisses(long saleMisses);
+
+	/**
+	 * Stores the editor pick flag of the book.
+	 * 
+	 * @param editorPick
+	 */
+	protected abstract void setEditorPickFlag(boolean editorPick);
 
 	/**
 	 * Sets the book to be an editor pick if the boolean is true, otherwise the
@@ -111,7 +97,37 @@ public class BookStoreBook extends ImmutableBook {
 	 * @param editorPick
 	 */
 	public void setEditorPick(boolean editorPick) {
-		this.editorPick = editorPick;
+		setEditorPickFlag(editorPick);
+		publishStockBookView();
+	}
+
+	/**
+	 * Replaces the cached ImmutableStockBook view of the book, must be called
+	 * after every update of the book
+	 */
+	protected void publishStockBookView() {
+		this.stockBookView = newStockBookView();
+	}
+
+	/**
+	 * Returns a new ImmutableStockBook holding the current counters of the
+	 * book
+	 * 
+	 * @return
+	 */
+	protected final StockBook newStockBookView() {
+		return new ImmutableStockBook(this.getISBN(), this.getTitle(),
+				this.getAuthor(), this.getPrice(), this.getNumCopies(),
+				this.getSaleMisses(), this.getTimesRated(),
+				this.getTotalRating(), this.isEditorPick());
+	}
+
+	/**
+	 * Releases the resources held by the book once it is removed from the
+	 * store
+	 */
+	void release() {
+		;
 	}
 
 	/**
@@ -121,7 +137,7 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return
 	 */
 	public boolean areCopiesInStore(int numCopies) {
-		return (this.numCopies >= numCopies);
+		return (this.getNumCopies() >= numCopies);
 	}
 
 	/**
@@ -133,7 +149,8 @@ public class BookStoreBook extends ImmutableBook {
 	public boolean buyCopies(int numCopies) {
 		if (!BookStoreUtility.isInvalidNoCopies(numCopies))
 			if (areCopiesInStore(numCopies)) {
-				this.numCopies -= numCopies;
+				this.setNumCopies(this.getNumCopies() - numCopies);
+				publishStockBookView();
 				return true;
 			}
 		return false;
@@ -144,8 +161,22 @@ public class BookStoreBook extends ImmutableBook {
 	 */
 	public void addCopies(int newCopies) {
 		if (!BookStoreUtility.isInvalidNoCopies(newCopies)) {
-			this.numCopies += newCopies;
-			this.saleMisses = 0;
+			this.setNumCopies(this.getNumCopies() + newCopies);
+			this.setSaleMisses(0);
+			publishStockBookView();
+		}
+	}
+
+	/**
+	 * Gives back the copies of a buy that was aborted. Unlike addCopies, the
+	 * sale misses of the book are kept.
+	 * 
+	 * @param numCopies
+	 */
+	public void returnCopies(int numCopies) {
+		if (!BookStoreUtility.isInvalidNoCopies(numCopies)) {
+			this.setNumCopies(this.getNumCopies() + numCopies);
+			publishStockBookView();
 		}
 	}
 
@@ -153,7 +184,8 @@ public class BookStoreBook extends ImmutableBook {
 	 * Increases the amount of missed sales of the book.
 	 */
 	public void addSaleMiss() {
-		this.saleMisses++;
+		this.setSaleMisses(this.getSaleMisses() + 1);
+		publishStockBookView();
 	}
 
 	/**
@@ -163,8 +195,9 @@ public class BookStoreBook extends ImmutableBook {
 	 */
 	public void addRating(int rating) {
 		if (!BookStoreUtility.isInvalidRating(rating)) {
-			this.totalRating += rating;
-			this.timesRated++;
+			this.setTotalRating(this.getTotalRating() + rating);
+			this.setTimesRated(this.getTimesRated() + 1);
+			publishStockBookView();
 		}
 	}
 
@@ -175,7 +208,7 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return
 	 */
 	public boolean hadSaleMiss() {
-		return this.saleMisses > 0;
+		return this.getSaleMisses() > 0;
 	}
 
 	/**
@@ -189,25 +222,21 @@ public class BookStoreBook extends ImmutableBook {
 	}
 
 	/**
-	 * Returns a ImmutableBook copy of the book.
+	 * Returns a ImmutableBook view of the book.
 	 * 
 	 * @return
 	 */
-	public ImmutableBook immutableBook() {
-		return new ImmutableBook(this.getISBN(), new String(this.getTitle()),
-				new String(this.getAuthor()), this.getPrice());
-	}
+	public abstract ImmutableBook immutableBook();
 
 	/**
-	 * Returns a ImmutableStockBook copy of the book.
+	 * Returns a ImmutableStockBook view of the book as of its last update.
+	 * The view is shared and can be read without holding the lock of the
+	 * book.
 	 * 
 	 * @return
 	 */
 	public StockBook immutableStockBook() {
-		return new ImmutableStockBook(this.getISBN(), new String(
-				this.getTitle()), new String(this.getAuthor()),
-				this.getPrice(), this.numCopies, this.saleMisses,
-				this.timesRated, this.totalRating, this.editorPick);
+		return stockBookView;
 	}
 
 	/**
@@ -216,8 +245,9 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return
 	 */
 	public BookStoreBook copy() {
-		return new BookStoreBook(this.getISBN(), new String(this.getTitle()),
-				new String(this.getAuthor()), this.getPrice(), this.numCopies);
+		return new HeapBookStoreBook(this.getISBN(),
+				new String(this.getTitle()), new String(this.getAuthor()),
+				this.getPrice(), this.getNumCopies());
 	}
 
 }
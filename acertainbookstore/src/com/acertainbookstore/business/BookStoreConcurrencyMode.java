@@ -0,0 +1,34 @@
+package com.acertainbookstore.business;
+
+import com.acertainbookstore.utils.BookStoreConstants;
+
+/**
+ * BookStoreConcurrencyMode selects the locking protocol used by the
+ * CertainBookStore.
+ * 
+ * SINGLE_LOCK protects the whole store with one read/write lock, so read-only
+ * calls can run in parallel but every update is serialized.
+ * 
+ * TWO_LEVEL_LOCKING takes the store lock in shared mode for all calls that do
+ * not add or remove books, and then locks the individual books involved in
+ * ISBN order, so calls on disjoint sets of books can run in parallel.
+ * 
+ */
+public enum BookStoreConcurrencyMode {
+	SINGLE_LOCK, TWO_LEVEL_LOCKING;
+
+	/**
+	 * Returns the mode configured by the concurrency mode system property, or
+	 * TWO_LEVEL_LOCKING if the property is not set
+	 * 
+	 * @return
+	 */
+	public static BookStoreConcurrencyMode getConfiguredMode() {
+		String modeProperty = System
+				.getProperty(BookStoreConstants.PROPERTY_KEY_CONCURRENCY_MODE);
+		if (modeProperty == null || modeProperty.isEmpty()) {
+			return TWO_LEVEL_LOCKING;
+		}
+		return BookStoreConcurrencyMode.valueOf(modeProperty.toUpperCase());
+	}
+}
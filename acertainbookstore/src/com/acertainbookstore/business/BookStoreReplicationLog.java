@@ -0,0 +1,117 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.acertainbookstore.utils.BookStoreBatchOperation;
+import com.acertainbookstore.utils.BookStoreMessageTag;
+
+/**
+ * BookStoreReplicationLog keeps the last calls that changed a primary
+ * CertainBookStore in memory, numbered by sequence number, for the replicas
+ * of the store to read and apply in the same order.
+ * 
+ * The store appends the calls as it logs them to its write-ahead log, while
+ * it holds the locks of the books they change. The log keeps a fixed number
+ * of calls, so a replica falling further behind has to copy the whole store
+ * again, as does a replica of an earlier log of the store, which it tells by
+ * the random epoch of the log.
+ * 
+ */
+public final class BookStoreReplicationLog {
+	private final long epoch;
+	private final BookStoreBatchOperation[] calls;
+	// Sequence number of the next appended call, guarded by this
+	private long nextSequence = 0;
+
+	/**
+	 * Creates an empty log keeping the last capacity calls
+	 * 
+	 * @param capacity
+	 */
+	public BookStoreReplicationLog(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity " + capacity);
+		}
+		calls = new BookStoreBatchOperation[capacity];
+		// Zero is the epoch of the replicas that did not read any log yet
+		long randomEpoch;
+		do {
+			randomEpoch = ThreadLocalRandom.current().nextLong();
+		} while (randomEpoch == 0);
+		epoch = randomEpoch;
+	}
+
+	/**
+	 * Returns the random number telling this log apart from the earlier logs
+	 * of the store
+	 * 
+	 * @return
+	 */
+	public long getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * Returns the sequence number the next call appended will get
+	 * 
+	 * @return
+	 */
+	public synchronized long getNextSequence() {
+		return nextSequence;
+	}
+
+	/**
+	 * Appends a call and wakes up the replicas waiting for it. The set
+	 * argument of the call is copied, since the caller may change it once
+	 * the call returns.
+	 * 
+	 * @param tag
+	 * @param argument
+	 */
+	synchronized void append(BookStoreMessageTag tag, Object argument) {
+		if (argument instanceof Collection) {
+			argument = new HashSet<Object>((Collection<?>) argument);
+		}
+		calls[(int) (nextSequence % calls.length)] = new BookStoreBatchOperation(
+				tag, argument);
+		nextSequence++;
+		notifyAll();
+	}
+
+	/**
+	 * Returns up to maxCalls calls from the sequence number, waiting up to
+	 * waitMillis for the next call if there is none yet
+	 * 
+	 * @param fromSequence
+	 * @param maxCalls
+	 * @param waitMillis
+	 * @return the calls, or null if the log does not have the calls from the
+	 *         sequence number anymore
+	 * @throws InterruptedException
+	 */
+	synchronized List<BookStoreBatchOperation> read(long fromSequence,
+			int maxCalls, long waitMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + waitMillis;
+		long remainingMillis = waitMillis;
+		while (fromSequence == nextSequence && remainingMillis > 0) {
+			wait(remainingMillis);
+			remainingMillis = deadline - System.currentTimeMillis();
+		}
+		if (fromSequence < nextSequence - calls.length
+				|| fromSequence > nextSequence) {
+			return null;
+		}
+
+		int numCalls = (int) Math.min(maxCalls, nextSequence - fromSequence);
+		List<BookStoreBatchOperation> readCalls = new ArrayList<BookStoreBatchOperation>(
+				numCalls);
+		for (long sequence = fromSequence; sequence < fromSequence + numCalls; sequence++) {
+			readCalls.add(calls[(int) (sequence % calls.length)]);
+		}
+		return readCalls;
+	}
+}
@@ -0,0 +1,358 @@
+package com.acertainbookstore.business;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import com.acertainbookstore.utils.BookStoreUtility;
+
+/**
+ * BookStoreSnapshot is a point-in-time copy of the books of a
+ * CertainBookStore in a memory-mapped file, which a restarting store loads
+ * instead of replaying its whole write-ahead log.
+ * 
+ * The file has a fixed layout: a header with the number of books, the
+ * position of the write-ahead log the snapshot was taken at and a CRC32 of
+ * the rest of the file, then one record of RECORD_SIZE bytes per book with
+ * its price and counters, then the UTF-8 titles and authors the records point
+ * to, then the indexes of the rated records in the order of the RatingIndex,
+ * which is rebuilt in that order. The integers are big-endian.
+ * 
+ * A snapshot is filled by create while the store is locked, which only
+ * copies the counters of the books into a buffer on the heap. Mapping the
+ * file, copying the buffer into it, the titles and authors, the rating
+ * order, the checksum and the sync to disk are done by commit after the
+ * store is unlocked, and the file replaces the previous snapshot by an
+ * atomic rename.
+ * 
+ */
+final class BookStoreSnapshot implements Closeable {
+	private static final int MAGIC = 0x424B534E;
+	private static final int VERSION = 1;
+	// Magic, version, number of books, number of rated books, CRC32, unused,
+	// log position, size of the strings
+	private static final int HEADER_SIZE = 40;
+	// ISBN, price, copies, editor pick, sale misses, times rated, total
+	// rating, offset of the title and lengths of the title and the author
+	private static final int RECORD_SIZE = 56;
+	// Largest number of bytes of a string encoded in UTF-8, per char
+	private static final int MAX_BYTES_PER_CHAR = 3;
+
+	// Null until a created snapshot is committed
+	private FileChannel channel;
+	// On the heap until a created snapshot is committed, then mapped
+	private ByteBuffer records;
+	private MappedByteBuffer strings;
+	private MappedByteBuffer ratedBooks;
+	private final int numBooks;
+	private int numRatedBooks;
+	private final long logPosition;
+	private int stringsSize;
+	// The books of a snapshot being created, whose strings are not written
+	private BookStoreBook[] books;
+
+	private BookStoreSnapshot(FileChannel channel, ByteBuffer records,
+			int numBooks, long logPosition) {
+		this.channel = channel;
+		this.records = records;
+		this.numBooks = numBooks;
+		this.logPosition = logPosition;
+	}
+
+	/**
+	 * Copies the prices and counters of the books to a new snapshot on the
+	 * heap, to be written to a file by commit once the books may change
+	 * again. The caller must keep the books from changing while this runs.
+	 * The titles and authors, which never change, are written by commit.
+	 * 
+	 * @param books
+	 * @param logPosition
+	 *            the position of the write-ahead log matching the books
+	 * @return
+	 * @throws IOException
+	 */
+	static BookStoreSnapshot create(Collection<BookStoreBook> books,
+			long logPosition) throws IOException {
+		long recordsSize = HEADER_SIZE + (long) books.size() * RECORD_SIZE;
+		if (recordsSize > Integer.MAX_VALUE) {
+			throw new IOException("The catalog is too large for a snapshot");
+		}
+
+		BookStoreSnapshot snapshot = new BookStoreSnapshot(null,
+				ByteBuffer.allocate((int) recordsSize), books.size(),
+				logPosition);
+
+		snapshot.books = new BookStoreBook[books.size()];
+		int i = 0;
+		int record = HEADER_SIZE;
+		for (BookStoreBook book : books) {
+			snapshot.books[i++] = book;
+			snapshot.records.putInt(record, book.getISBN())
+					.putFloat(record + 4, book.getPrice())
+					.putInt(record + 8, book.getNumCopies())
+					.putInt(record + 12, book.isEditorPick() ? 1 : 0)
+					.putLong(record + 16, book.getSaleMisses())
+					.putLong(record + 24, book.getTimesRated())
+					.putLong(record + 32, book.getTotalRating());
+			record += RECORD_SIZE;
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Writes a snapshot made by create to the file, with the titles and
+	 * authors and the header, syncs it to disk and moves it to the target
+	 * file, replacing the previous snapshot
+	 * 
+	 * @param file
+	 *            the temporary file the snapshot is written to
+	 * @param target
+	 * @throws IOException
+	 */
+	void commit(File file, File target) throws IOException {
+		channel = new RandomAccessFile(file, "rw").getChannel();
+		try {
+			channel.truncate(0);
+			MappedByteBuffer mappedRecords = channel.map(
+					FileChannel.MapMode.READ_WRITE, 0, records.capacity());
+			ByteBuffer heapRecords = records.duplicate();
+			heapRecords.clear();
+			mappedRecords.put(heapRecords);
+			records = mappedRecords;
+
+			long maxStringsSize = 0;
+			for (BookStoreBook book : books) {
+				maxStringsSize += (long) MAX_BYTES_PER_CHAR
+						* (book.getTitle().length() + book.getAuthor().length());
+			}
+			if (maxStringsSize > Integer.MAX_VALUE) {
+				throw new IOException(
+						"The catalog is too large for a snapshot");
+			}
+			strings = channel.map(FileChannel.MapMode.READ_WRITE,
+					records.capacity(), maxStringsSize);
+			int record = HEADER_SIZE;
+			for (BookStoreBook book : books) {
+				byte[] title = book.getTitle().getBytes(StandardCharsets.UTF_8);
+				byte[] author = book.getAuthor().getBytes(
+						StandardCharsets.UTF_8);
+				records.putLong(record + 40, strings.position())
+						.putInt(record + 48, title.length)
+						.putInt(record + 52, author.length);
+				strings.put(title).put(author);
+				record += RECORD_SIZE;
+			}
+			books = null;
+			stringsSize = strings.position();
+
+			Integer[] sortedRatedBooks = sortRatedBooks();
+			numRatedBooks = sortedRatedBooks.length;
+			ratedBooks = channel.map(FileChannel.MapMode.READ_WRITE,
+					records.capacity() + stringsSize, 4L * numRatedBooks);
+			for (Integer index : sortedRatedBooks) {
+				ratedBooks.putInt(index);
+			}
+
+			records.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, numBooks)
+					.putInt(12, numRatedBooks).putInt(16, checksum())
+					.putLong(24, logPosition).putLong(32, stringsSize);
+			mappedRecords.force();
+			strings.force();
+			ratedBooks.force();
+			channel.truncate(records.capacity() + stringsSize + 4L
+					* numRatedBooks);
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+		Files.move(file.toPath(), target.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Maps the snapshot in the file and checks its header and checksum
+	 * 
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 *             if the file is not a complete snapshot
+	 */
+	static BookStoreSnapshot open(File file) throws IOException {
+		@SuppressWarnings("resource")
+		FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+		try {
+			if (channel.size() < HEADER_SIZE) {
+				throw new IOException("Invalid snapshot " + file);
+			}
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					HEADER_SIZE);
+			int magic = header.getInt();
+			int version = header.getInt();
+			int numBooks = header.getInt();
+			int numRatedBooks = header.getInt();
+			int checksum = header.getInt();
+			header.getInt();
+			long logPosition = header.getLong();
+			long stringsSize = header.getLong();
+			long recordsSize = HEADER_SIZE + (long) numBooks * RECORD_SIZE;
+			if (magic != MAGIC || version != VERSION || numBooks < 0
+					|| numRatedBooks < 0 || numRatedBooks > numBooks
+					|| stringsSize < 0 || stringsSize > Integer.MAX_VALUE
+					|| channel.size() != recordsSize + stringsSize + 4L
+							* numRatedBooks) {
+				throw new IOException("Invalid snapshot " + file);
+			}
+
+			BookStoreSnapshot snapshot = new BookStoreSnapshot(channel,
+					channel.map(FileChannel.MapMode.READ_ONLY, 0, recordsSize),
+					numBooks, logPosition);
+			snapshot.strings = channel.map(FileChannel.MapMode.READ_ONLY,
+					recordsSize, stringsSize);
+			snapshot.stringsSize = (int) stringsSize;
+			snapshot.ratedBooks = channel.map(FileChannel.MapMode.READ_ONLY,
+					recordsSize + stringsSize, 4L * numRatedBooks);
+			snapshot.numRatedBooks = numRatedBooks;
+			if (snapshot.checksum() != checksum) {
+				throw new IOException("Corrupted snapshot " + file);
+			}
+			return snapshot;
+		} catch (IOException ex) {
+			channel.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Returns the indexes of the records of the rated books, sorted in the
+	 * order of the RatingIndex
+	 * 
+	 * @return
+	 */
+	private Integer[] sortRatedBooks() {
+		List<Integer> indexes = new ArrayList<Integer>();
+		for (int i = 0; i < numBooks; i++) {
+			if (records.getLong(HEADER_SIZE + i * RECORD_SIZE + 24) > 0) {
+				indexes.add(i);
+			}
+		}
+		Integer[] sortedIndexes = indexes.toArray(new Integer[indexes.size()]);
+		Arrays.sort(sortedIndexes, new Comparator<Integer>() {
+			public int compare(Integer index1, Integer index2) {
+				int record1 = HEADER_SIZE + index1 * RECORD_SIZE;
+				int record2 = HEADER_SIZE + index2 * RECORD_SIZE;
+				return BookStoreUtility.compareRatings(records.getInt(record1),
+						records.getLong(record1 + 32),
+						records.getLong(record1 + 24),
+						records.getInt(record2),
+						records.getLong(record2 + 32),
+						records.getLong(record2 + 24));
+			}
+		});
+		return sortedIndexes;
+	}
+
+	/**
+	 * Computes the CRC32 of the records, strings and rating order of the
+	 * snapshot
+	 * 
+	 * @return
+	 */
+	private int checksum() {
+		CRC32 crc = new CRC32();
+		ByteBuffer buffer = records.duplicate();
+		buffer.position(HEADER_SIZE);
+		crc.update(buffer);
+		buffer = strings.duplicate();
+		buffer.position(0).limit(stringsSize);
+		crc.update(buffer);
+		buffer = ratedBooks.duplicate();
+		buffer.position(0).limit(4 * numRatedBooks);
+		crc.update(buffer);
+		return (int) crc.getValue();
+	}
+
+	int getNumBooks() {
+		return numBooks;
+	}
+
+	/**
+	 * Returns the position of the write-ahead log the snapshot was taken at,
+	 * from which the log is replayed after loading the snapshot
+	 * 
+	 * @return
+	 */
+	long getLogPosition() {
+		return logPosition;
+	}
+
+	int getNumRatedBooks() {
+		return numRatedBooks;
+	}
+
+	/**
+	 * Returns the index of the i-th rated book in the order of the
+	 * RatingIndex
+	 * 
+	 * @param i
+	 * @return
+	 */
+	int getRatedBook(int i) {
+		return ratedBooks.getInt(4 * i);
+	}
+
+	/**
+	 * Reads the book at the index from the mapped file
+	 * 
+	 * @param index
+	 * @return
+	 */
+	StockBook getBook(int index) {
+		int record = HEADER_SIZE + index * RECORD_SIZE;
+		int ISBN = records.getInt(record);
+		float price = records.getFloat(record + 4);
+		int numCopies = records.getInt(record + 8);
+		boolean editorPick = records.getInt(record + 12) != 0;
+		long saleMisses = records.getLong(record + 16);
+		long timesRated = records.getLong(record + 24);
+		long totalRating = records.getLong(record + 32);
+		int titleOffset = (int) records.getLong(record + 40);
+		int titleLength = records.getInt(record + 48);
+		int authorLength = records.getInt(record + 52);
+		return new ImmutableStockBook(ISBN, readString(titleOffset,
+				titleLength), readString(titleOffset + titleLength,
+				authorLength), price, numCopies, saleMisses, timesRated,
+				totalRating, editorPick);
+	}
+
+	private String readString(int offset, int length) {
+		byte[] bytes = new byte[length];
+		ByteBuffer buffer = strings.duplicate();
+		buffer.position(offset);
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Closes the file of the snapshot, if it was opened or committed. The
+	 * mapped memory is released when the snapshot is garbage collected.
+	 */
+	public void close() throws IOException {
+		if (channel != null) {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,224 @@
+package com.acertainbookstore.business;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import com.acertainbookstore.utils.BookStoreBatchOperation;
+import com.acertainbookstore.utils.BookStoreBinaryCodec;
+import com.acertainbookstore.utils.BookStoreMessageTag;
+
+/**
+ * BookStoreWriteAheadLog records the calls that change a CertainBookStore in
+ * a file, so that the store can be rebuilt after a restart by replaying them.
+ * 
+ * Every record is the call encoded as a BookStoreBatchOperation with
+ * BookStoreBinaryCodec, preceded by its length and its CRC32. A record that
+ * was only partly written when the server stopped fails its check and is cut
+ * off by the replay.
+ * 
+ * The store appends the record of a call while it holds the locks of the
+ * books the call changes, so that the calls changing the same books are
+ * logged in the order they were applied. The records are buffered in memory
+ * and the call waits for them to be on disk after releasing its locks. The
+ * first waiting call writes and syncs the records of all the calls appended
+ * so far, and the calls appending while the file is being synced are
+ * committed together by the next sync.
+ * 
+ */
+public final class BookStoreWriteAheadLog implements Closeable {
+	// The length and the CRC32 of the record
+	private static final int HEADER_SIZE = 8;
+
+	private final FileChannel channel;
+	// Records appended but not written yet, guarded by this
+	private ByteArrayOutputStream pendingRecords = new ByteArrayOutputStream();
+	// End position of the last appended record, guarded by this
+	private long appendedPosition = 0;
+	// Serializes the writes and syncs of the file
+	private final Object commitLock = new Object();
+	// End position of the last record synced to the file
+	private volatile long durablePosition = 0;
+	// The error that broke the file, written under commitLock
+	private volatile IOException failure = null;
+
+	private BookStoreWriteAheadLog(FileChannel channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * Opens the log in the file, which is created if it does not exist. The
+	 * log has to be replayed before records are appended to it.
+	 * 
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static BookStoreWriteAheadLog open(File file) throws IOException {
+		@SuppressWarnings("resource")
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		return new BookStoreWriteAheadLog(randomAccessFile.getChannel());
+	}
+
+	/**
+	 * Applies the records of the log from the given position to the store and
+	 * cuts off an incomplete last record. Appended records follow the last
+	 * complete record.
+	 * 
+	 * @param store
+	 * @param fromPosition
+	 *            the position of the first record to apply, 0 or the position
+	 *            of the snapshot the store was loaded from
+	 * @throws IOException
+	 */
+	void replay(CertainBookStore store, long fromPosition) throws IOException {
+		if (fromPosition > channel.size()) {
+			throw new IOException("The write-ahead log ends before position "
+					+ fromPosition);
+		}
+		long position = fromPosition;
+		channel.position(position);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				Channels.newInputStream(channel)));
+		CRC32 crc = new CRC32();
+		while (true) {
+			byte[] body;
+			try {
+				int length = in.readInt();
+				int checksum = in.readInt();
+				if (length < 0
+						|| position + HEADER_SIZE + length > channel.size()) {
+					break;
+				}
+				body = new byte[length];
+				in.readFully(body);
+				crc.reset();
+				crc.update(body, 0, length);
+				if ((int) crc.getValue() != checksum) {
+					break;
+				}
+			} catch (EOFException ex) {
+				break;
+			}
+			Object operation = BookStoreBinaryCodec.decode(body);
+			if (!(operation instanceof BookStoreBatchOperation)) {
+				throw new IOException("Invalid record at " + position);
+			}
+			store.replay((BookStoreBatchOperation) operation);
+			position += HEADER_SIZE + body.length;
+		}
+
+		channel.truncate(position);
+		channel.position(position);
+		synchronized (this) {
+			appendedPosition = position;
+		}
+		durablePosition = position;
+	}
+
+	/**
+	 * Appends the record of a call and returns the position to wait for with
+	 * sync before acknowledging the call
+	 * 
+	 * @param tag
+	 * @param argument
+	 * @return
+	 */
+	long append(BookStoreMessageTag tag, Object argument) {
+		byte[] body = BookStoreBinaryCodec.encode(new BookStoreBatchOperation(
+				tag, argument));
+		CRC32 crc = new CRC32();
+		crc.update(body, 0, body.length);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(body.length).putInt((int) crc.getValue());
+
+		synchronized (this) {
+			pendingRecords.write(header.array(), 0, HEADER_SIZE);
+			pendingRecords.write(body, 0, body.length);
+			appendedPosition += HEADER_SIZE + body.length;
+			return appendedPosition;
+		}
+	}
+
+	/**
+	 * Returns the end position of the last appended record
+	 * 
+	 * @return
+	 */
+	synchronized long getAppendedPosition() {
+		return appendedPosition;
+	}
+
+	/**
+	 * Returns true if a write or sync of the file failed, after which the
+	 * log can not be used anymore
+	 * 
+	 * @return
+	 */
+	boolean hasFailed() {
+		return failure != null;
+	}
+
+	/**
+	 * Waits until the records up to the position are synced to the file,
+	 * writing and syncing the pending records if no other call is doing so
+	 * 
+	 * @param position
+	 * @throws IOException
+	 *             if the records could not be written, in which case the log
+	 *             can not be used anymore
+	 */
+	void sync(long position) throws IOException {
+		if (durablePosition >= position) {
+			return;
+		}
+		synchronized (commitLock) {
+			if (failure != null) {
+				throw failure;
+			}
+			// The call that synced while we waited may have synced our record
+			if (durablePosition >= position) {
+				return;
+			}
+
+			ByteArrayOutputStream records;
+			long endPosition;
+			synchronized (this) {
+				records = pendingRecords;
+				endPosition = appendedPosition;
+				pendingRecords = new ByteArrayOutputStream();
+			}
+			try {
+				ByteBuffer buffer = ByteBuffer.wrap(records.toByteArray());
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+				channel.force(false);
+			} catch (IOException ex) {
+				failure = ex;
+				throw ex;
+			}
+			durablePosition = endPosition;
+		}
+	}
+
+	/**
+	 * Syncs the appended records and closes the file
+	 */
+	public void close() throws IOException {
+		try {
+			sync(getAppendedPosition());
+		} finally {
+			channel.close();
+		}
+	}
+}
@@ -3,316 +3,1592 @@
  */
 package com.acertainbookstore.business;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.BookStoreImportListener;
 import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreBatchOperation;
+import com.acertainbookstore.utils.BookStoreCSVReader;
+import com.acertainbookstore.utils.BookStoreCSVWriter;
 import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreMessageTag;
 import com.acertainbookstore.utils.BookStoreUtility;
+import com.acertainbookstore.utils.IntObjectHashMap;
 
 /**
  * CertainBookStore implements the bookstore and its functionality which is
  * defined in the BookStore
+ * 
+ * All calls are atomic. How they are isolated from each other depends on the
+ * BookStoreConcurrencyMode the store is created with: either one read/write
+ * lock for the whole store, or a store-level read/write lock plus one
+ * read/write lock per book, which are always acquired in ISBN order.
+ * 
+ * getBooks(Set) and getBooksByISBN first try to read the books without any
+ * lock and check against the version counters of the store that no update
+ * overlapped with the read. They only fall back to locking when it did, or
+ * when the request has to be rejected.
+ * 
+ * getEditorPicks, getTopRatedBooks and getBooksInDemand read indexes of the
+ * editor picks, of the books ordered by average rating and of the books with
+ * sale misses, which the updates keep up to date, instead of scanning the
+ * catalog.
+ * 
+ * getBooks() returns an immutable snapshot of the whole catalog, which is
+ * shared by all callers until the next update and only rebuilt when it is
+ * asked for again.
+ * 
+ * The counters of the books are kept on the heap or off the heap depending on
+ * the BookStoreBackend. Off-heap books build their stock views on demand from
+ * the shared columns, so getBooksByISBN always takes the locks with that
+ * backend.
+ * 
+ * With a BookStoreWriteAheadLog, every call that changes the store is logged
+ * before it returns, and the store can be rebuilt from the log by recover.
+ * A call is applied to the store before its record is synced, so other calls
+ * can read changes that are not durable yet. If the sync fails, the call
+ * fails but stays applied, and the store turns read-only: every later call
+ * that would change it fails, and a restart rebuilds the store from the log
+ * without the calls that were not synced.
+ * writeSnapshot saves the books to a BookStoreSnapshot file, from which
+ * recover loads the store before replaying the calls logged after it.
+ * 
+ * A buy spanning several stores is made atomic by two-phase commit:
+ * prepareBuyBooks buys the copies of the store and keeps them aside under a
+ * transaction id, and commitBuyBooks or abortBuyBooks then keeps them bought
+ * or gives them back. abortExpiredBuys gives back the copies of the prepared
+ * buys left undecided for longer than a timeout.
+ * 
+ * With a BookStoreReplicationLog, every call that changes the store is also
+ * kept in memory for the replicas of the store, which read the calls with
+ * readReplicationLog and apply them in the same order with
+ * applyReplicatedCalls.
  */
 public class CertainBookStore implements BookStore, StockManager {
-	private Map<Integer, BookStoreBook> bookMap = null;
+	// Books locked and read at a time by exportBooks
+	private static final int EXPORT_CHUNK_SIZE = 1000;
+	// Volatile since the optimistic reads only read volatile or final data
+	private volatile IntObjectHashMap<BookStoreBook> bookMap = null;
+	private final BookStoreConcurrencyMode concurrencyMode;
+	private final BookStoreBackend backend;
+	private final OffHeapInventory offHeapInventory;
+	private final ReadWriteLock storeLock = new ReentrantReadWriteLock();
+	// Bumped when books are added or removed
+	private final SeqLock catalogVersion = new SeqLock();
+	// Bumped on every update, including the ones bumping catalogVersion
+	private final SeqLock stockVersion = new SeqLock();
+	private volatile CatalogSnapshot catalogSnapshot = null;
+	private final EditorPickIndex editorPickIndex = new EditorPickIndex();
+	private final RatingIndex ratingIndex = new RatingIndex();
+	private final InDemandIndex inDemandIndex = new InDemandIndex();
+	// Records the calls changing the store, if durability is enabled
+	private volatile BookStoreWriteAheadLog writeAheadLog = null;
+	// Keeps the calls changing the store for its replicas, if any
+	private volatile BookStoreReplicationLog replicationLog = null;
+	// Serializes the snapshots of the store
+	private final Object snapshotLock = new Object();
+	// Stock version of the last snapshot written, guarded by snapshotLock
+	private long snapshotVersion = 0;
+	// The prepared buys that were neither committed nor aborted yet, by
+	// transaction id
+	private final ConcurrentMap<Long, PreparedBuy> preparedBuys = new ConcurrentHashMap<Long, PreparedBuy>();
+	// The System.nanoTime of the aborts of the recently aborted
+	// transactions, by transaction id
+	private final ConcurrentMap<Long, Long> abortedBuys = new ConcurrentHashMap<Long, Long>();
+
+	/**
+	 * The list of all stock books as of the given stockVersion stamp
+	 */
+	private static final class CatalogSnapshot {
+		private final long version;
+		private final List<StockBook> books;
+
+		private CatalogSnapshot(long version, List<StockBook> books) {
+			this.version = version;
+			this.books = books;
+		}
+	}
+
+	/**
+	 * The copies of a prepared buy and the System.nanoTime of its prepare
+	 */
+	private static final class PreparedBuy {
+		private final Set<BookCopy> bookCopies;
+		private final long preparedNanos = System.nanoTime();
+
+		private PreparedBuy(Set<BookCopy> bookCopies) {
+			this.bookCopies = bookCopies;
+		}
+	}
 
 	public CertainBookStore() {
+		this(BookStoreConcurrencyMode.TWO_LEVEL_LOCKING);
+	}
+
+	public CertainBookStore(BookStoreConcurrencyMode concurrencyMode) {
+		this(concurrencyMode, BookStoreBackend.HEAP);
+	}
+
+	public CertainBookStore(BookStoreConcurrencyMode concurrencyMode,
+			BookStoreBackend backend) {
 		// Constructors are not synchronized
-		bookMap = new HashMap<Integer, BookStoreBook>();
+		bookMap = new IntObjectHashMap<BookStoreBook>();
+		this.concurrencyMode = concurrencyMode;
+		this.backend = backend;
+		this.offHeapInventory = (backend == BookStoreBackend.OFF_HEAP) ? new OffHeapInventory()
+				: null;
 	}
 
-	public synchronized void addBooks(Set<StockBook> bookSet)
-			throws BookStoreException {
+	public BookStoreConcurrencyMode getConcurrencyMode() {
+		return concurrencyMode;
+	}
+
+	public BookStoreBackend getBackend() {
+		return backend;
+	}
+
+	/**
+	 * Creates the BookStoreBook of the configured backend for a book added to
+	 * the store
+	 * 
+	 * @param book
+	 * @return
+	 */
+	private BookStoreBook newBookStoreBook(StockBook book) {
+		if (backend == BookStoreBackend.OFF_HEAP) {
+			return new OffHeapBookStoreBook(book, offHeapInventory);
+		}
+		return new HeapBookStoreBook(book);
+	}
+
+	/**
+	 * Locks the whole store in exclusive mode, used by the calls that add or
+	 * remove books
+	 * 
+	 * @return the locks to release with unlock
+	 */
+	private List<Lock> lockStore() {
+		Lock lock = storeLock.writeLock();
+		lock.lock();
+		List<Lock> locks = new ArrayList<Lock>(1);
+		locks.add(lock);
+		return locks;
+	}
+
+	/**
+	 * Locks the books with the given ISBNs, or all the books in the store if
+	 * isbns is null. With a single lock the store lock is taken in the
+	 * requested mode. With two-level locking the store lock is taken in shared
+	 * mode and the book locks are taken in the requested mode in ascending
+	 * ISBN order, which rules out deadlocks between calls. With the OFF_HEAP
+	 * backend the books share the lock stripes of the inventory, which are
+	 * taken once each in ascending stripe order instead. ISBNs that are not
+	 * in the store are skipped, they are reported by the validation done
+	 * while holding the locks.
+	 * 
+	 * @param isbns
+	 * @param exclusive
+	 * @return the locks to release with unlock
+	 */
+	private List<Lock> lockBooks(Collection<Integer> isbns, boolean exclusive) {
+		List<Lock> locks = new ArrayList<Lock>();
+		if (concurrencyMode == BookStoreConcurrencyMode.SINGLE_LOCK) {
+			Lock lock = exclusive ? storeLock.writeLock() : storeLock
+					.readLock();
+			lock.lock();
+			locks.add(lock);
+			return locks;
+		}
+
+		Lock storeReadLock = storeLock.readLock();
+		storeReadLock.lock();
+		locks.add(storeReadLock);
+
+		// The book map can not change while we hold the store lock
+		int[] sortedISBNs;
+		int numISBNs = 0;
+		if (isbns == null) {
+			sortedISBNs = bookMap.sortedKeys();
+			numISBNs = sortedISBNs.length;
+		} else {
+			sortedISBNs = new int[isbns.size()];
+			for (Integer ISBN : isbns) {
+				if (ISBN != null && bookMap.containsKey(ISBN)) {
+					sortedISBNs[numISBNs++] = ISBN;
+				}
+			}
+			Arrays.sort(sortedISBNs, 0, numISBNs);
+		}
+
+		if (offHeapInventory != null) {
+			for (int i = 0; i < numISBNs; i++) {
+				sortedISBNs[i] = OffHeapInventory.lockStripeOf(sortedISBNs[i]);
+			}
+			Arrays.sort(sortedISBNs, 0, numISBNs);
+		}
+
+		for (int i = 0; i < numISBNs; i++) {
+			if (i > 0 && sortedISBNs[i] == sortedISBNs[i - 1]) {
+				continue;
+			}
+			ReadWriteLock bookLock = (offHeapInventory != null) ? offHeapInventory
+					.getLockStripe(sortedISBNs[i]) : bookMap.get(sortedISBNs[i])
+					.getLock();
+			Lock lock = exclusive ? bookLock.writeLock() : bookLock.readLock();
+			lock.lock();
+			locks.add(lock);
+		}
+		return locks;
+	}
+
+	/**
+	 * Releases the locks taken by lockStore or lockBooks in the reverse order
+	 * of acquisition
+	 * 
+	 * @param locks
+	 */
+	private void unlock(List<Lock> locks) {
+		for (int i = locks.size() - 1; i >= 0; i--) {
+			locks.get(i).unlock();
+		}
+	}
+
+	/**
+	 * Marks the start of an update that adds or removes books
+	 */
+	private void beginCatalogWrite() {
+		catalogVersion.beginWrite();
+		stockVersion.beginWrite();
+	}
+
+	/**
+	 * Marks the end of an update that adds or removes books
+	 */
+	private void endCatalogWrite() {
+		stockVersion.endWrite();
+		catalogVersion.endWrite();
+	}
+
+	/**
+	 * Rebuilds the store from the calls recorded in the log, then records
+	 * every call that changes the store in it. The store must be empty and
+	 * not in use yet.
+	 * 
+	 * @param log
+	 * @throws IOException
+	 */
+	public void recover(BookStoreWriteAheadLog log) throws IOException {
+		recover(null, log);
+	}
+
+	/**
+	 * Rebuilds the store from its latest snapshot, if the file exists, and
+	 * from the calls recorded in the log after the snapshot was taken, then
+	 * records every call that changes the store in the log. The file and the
+	 * log may be null. The store must be empty and not in use yet.
+	 * 
+	 * @param snapshotFile
+	 * @param log
+	 * @throws IOException
+	 */
+	public void recover(File snapshotFile, BookStoreWriteAheadLog log)
+			throws IOException {
+		long logPosition = 0;
+		if (snapshotFile != null && snapshotFile.exists()) {
+			BookStoreSnapshot snapshot = BookStoreSnapshot.open(snapshotFile);
+			try {
+				load(snapshot);
+			} finally {
+				snapshot.close();
+			}
+			logPosition = snapshot.getLogPosition();
+		}
+		if (log != null) {
+			log.replay(this, logPosition);
+			writeAheadLog = log;
+		}
+	}
+
+	/**
+	 * Fills the empty store with the books of a snapshot, which were
+	 * validated when they were added, in a single update of the indexes. The
+	 * rating index is built from the rating order saved in the snapshot.
+	 * 
+	 * @param snapshot
+	 */
+	private void load(BookStoreSnapshot snapshot) {
+		List<Lock> locks = lockStore();
+		beginCatalogWrite();
+		try {
+			int numBooks = snapshot.getNumBooks();
+			bookMap = new IntObjectHashMap<BookStoreBook>(numBooks);
+			List<BookStoreBook> loadedBooks = new ArrayList<BookStoreBook>(
+					numBooks);
+			for (int i = 0; i < numBooks; i++) {
+				BookStoreBook book = newBookStoreBook(snapshot.getBook(i));
+				bookMap.put(book.getISBN(), book);
+				loadedBooks.add(book);
+			}
+			editorPickIndex.update(loadedBooks);
+			List<BookStoreBook> ratedBooks = new ArrayList<BookStoreBook>(
+					snapshot.getNumRatedBooks());
+			for (int i = 0; i < snapshot.getNumRatedBooks(); i++) {
+				ratedBooks.add(loadedBooks.get(snapshot.getRatedBook(i)));
+			}
+			ratingIndex.load(ratedBooks);
+			inDemandIndex.update(loadedBooks);
+		} finally {
+			endCatalogWrite();
+			unlock(locks);
+		}
+	}
+
+	/**
+	 * Writes a snapshot of the books to the file, replacing the previous one,
+	 * unless the store has not changed since the last snapshot. The counters
+	 * of the books are copied into a heap buffer while the store is locked,
+	 * so updates only wait for that copy. The file is mapped and written,
+	 * with the titles and authors, and synced after the store is unlocked.
+	 * With a write-ahead log, the log is synced up to the position the
+	 * snapshot was taken at before the snapshot replaces the previous one.
+	 * 
+	 * @param file
+	 * @return true if a snapshot was written
+	 * @throws IOException
+	 */
+	public boolean writeSnapshot(File file) throws IOException {
+		synchronized (snapshotLock) {
+			File tempFile = new File(file.getPath() + ".tmp");
+			BookStoreWriteAheadLog log = writeAheadLog;
+			BookStoreSnapshot snapshot;
+			long version;
+			// Taking the store lock is much faster than taking the lock of
+			// every book, and the optimistic reads do not wait for it
+			List<Lock> locks = lockStore();
+			try {
+				// The version is zero while an update without locks runs
+				version = stockVersion.tryOptimisticRead();
+				if (version != 0 && version == snapshotVersion) {
+					return false;
+				}
+				// The updates log while holding their locks, so the log has
+				// the records of exactly the updates seen by the snapshot
+				snapshot = BookStoreSnapshot.create(bookMap.values(),
+						(log == null) ? 0 : log.getAppendedPosition());
+			} finally {
+				unlock(locks);
+			}
+
+			try {
+				if (log != null) {
+					log.sync(snapshot.getLogPosition());
+				}
+				snapshot.commit(tempFile, file);
+			} catch (IOException ex) {
+				snapshot.close();
+				tempFile.delete();
+				throw ex;
+			}
+			snapshotVersion = version;
+			return true;
+		}
+	}
+
+	/**
+	 * Keeps every call that changes the store from now on in the log, for
+	 * the replicas of the store to read with readReplicationLog
+	 * 
+	 * @param log
+	 */
+	public void setReplicationLog(BookStoreReplicationLog log) {
+		replicationLog = log;
+	}
+
+	/**
+	 * Returns the calls of the replication log from the sequence number,
+	 * waiting up to waitMillis for a call if there is none yet. A replica
+	 * that does not follow the current log, because it has just started,
+	 * fell behind the calls kept in the log or followed an earlier log of
+	 * the store, gets a REMOVEALLBOOKS followed by an ADDBOOKS of all the
+	 * books instead, copied while the store is locked.
+	 * 
+	 * @param epoch
+	 *            the epoch of the log the replica follows, or 0
+	 * @param fromSequence
+	 *            the sequence number of the next call the replica needs
+	 * @param maxCalls
+	 * @param waitMillis
+	 * @return the epoch of the log, the sequence number following the calls
+	 *         returned, the sequence number following the last call logged,
+	 *         then the calls
+	 * @throws BookStoreException
+	 *             if the store has no replication log
+	 */
+	public List<Object> readReplicationLog(long epoch, long fromSequence,
+			int maxCalls, long waitMillis) throws BookStoreException {
+		BookStoreReplicationLog log = replicationLog;
+		if (log == null) {
+			throw new BookStoreException("The replication log"
+					+ BookStoreConstants.NOT_AVAILABLE);
+		}
+
+		List<BookStoreBatchOperation> calls = null;
+		long nextSequence = fromSequence;
+		if (epoch == log.getEpoch()) {
+			try {
+				calls = log.read(fromSequence, maxCalls, waitMillis);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new BookStoreException("The replication log"
+						+ BookStoreConstants.NOT_AVAILABLE, ex);
+			}
+		}
+		if (calls != null) {
+			nextSequence += calls.size();
+		} else {
+			// The calls are logged while the store is locked, so the copy
+			// has the changes of exactly the calls before nextSequence
+			Set<StockBook> books = new HashSet<StockBook>();
+			List<Lock> locks = lockStore();
+			try {
+				for (BookStoreBook book : bookMap.values()) {
+					books.add(book.immutableStockBook());
+				}
+				nextSequence = log.getNextSequence();
+			} finally {
+				unlock(locks);
+			}
+			calls = new ArrayList<BookStoreBatchOperation>(2);
+			calls.add(new BookStoreBatchOperation(
+					BookStoreMessageTag.REMOVEALLBOOKS, null));
+			calls.add(new BookStoreBatchOperation(BookStoreMessageTag.ADDBOOKS,
+					books));
+		}
+
+		List<Object> result = new ArrayList<Object>(calls.size() + 3);
+		result.add(log.getEpoch());
+		result.add(nextSequence);
+		result.add(log.getNextSequence());
+		result.addAll(calls);
+		return result;
+	}
+
+	/**
+	 * Applies the calls read from the replication log of the primary store,
+	 * in order. A REMOVEALLBOOKS followed by an ADDBOOKS replaces the books
+	 * of the store in one update, so that readers never see the store empty
+	 * in between. Calls that failed on the primary fail again here.
+	 * 
+	 * @param calls
+	 * @throws IOException
+	 *             if a call does not change the store
+	 */
+	@SuppressWarnings("unchecked")
+	public void applyReplicatedCalls(List<BookStoreBatchOperation> calls)
+			throws IOException {
+		for (int i = 0; i < calls.size(); i++) {
+			BookStoreBatchOperation call = calls.get(i);
+			if (call.getTag() == BookStoreMessageTag.REMOVEALLBOOKS
+					&& i + 1 < calls.size()
+					&& calls.get(i + 1).getTag() == BookStoreMessageTag.ADDBOOKS) {
+				i++;
+				try {
+					replaceBooks((Set<StockBook>) calls.get(i).getArgument());
+				} catch (BookStoreException ex) {
+					;
+				} catch (ClassCastException ex) {
+					throw new IOException("Invalid record "
+							+ BookStoreMessageTag.ADDBOOKS, ex);
+				}
+			} else {
+				replay(call);
+			}
+		}
+	}
+
+	/**
+	 * Applies a call recorded in the write-ahead log. Failed buys are logged
+	 * for the sale misses they record, and fail again when replayed. Prepared
+	 * buys are logged as buys and aborted ones as the copies given back, so
+	 * a buy still prepared when the server stopped stays bought.
+	 * 
+	 * @param operation
+	 * @throws IOException
+	 *             if the record is not a call changing the store
+	 */
+	@SuppressWarnings("unchecked")
+	void replay(BookStoreBatchOperation operation) throws IOException {
+		if (operation.getTag() == null) {
+			throw new IOException("Record without a message tag");
+		}
+		Object argument = operation.getArgument();
+		try {
+			switch (operation.getTag()) {
+			case ADDBOOKS:
+				addBooks((Set<StockBook>) argument);
+				break;
+			case ADDCOPIES:
+				addCopies((Set<BookCopy>) argument);
+				break;
+			case BUYBOOKS:
+				buyBooks((Set<BookCopy>) argument);
+				break;
+			case UPDATEEDITORPICKS:
+				updateEditorPicks((Set<BookEditorPick>) argument);
+				break;
+			case RATEBOOKS:
+				rateBooks((Set<BookRating>) argument);
+				break;
+			case REMOVEBOOKS:
+				removeBooks((Set<Integer>) argument);
+				break;
+			case REMOVEALLBOOKS:
+				removeAllBooks();
+				break;
+			case ABORTBUYBOOKS:
+				returnCopies((Set<BookCopy>) argument);
+				break;
+			default:
+				throw new IOException("Unexpected record "
+						+ operation.getTag());
+			}
+		} catch (BookStoreException ex) {
+			// The store is in the state it was in when the call was logged,
+			// so the call fails as it did then
+		} catch (ClassCastException ex) {
+			throw new IOException("Invalid record " + operation.getTag(), ex);
+		}
+	}
+
+	/**
+	 * Appends a call that changed the store to the write-ahead log, while the
+	 * locks of the books it changed are held
+	 * 
+	 * @param tag
+	 * @param argument
+	 * @return the position to pass to awaitDurable, -1 if nothing was logged
+	 */
+	private long log(BookStoreMessageTag tag, Object argument) {
+		// A call with an empty set changes nothing, so it is not logged
+		if (argument instanceof Collection
+				&& ((Collection<?>) argument).isEmpty()) {
+			return -1;
+		}
+		BookStoreReplicationLog replication = replicationLog;
+		if (replication != null) {
+			replication.append(tag, argument);
+		}
+		BookStoreWriteAheadLog log = writeAheadLog;
+		if (log == null) {
+			return -1;
+		}
+		return log.append(tag, argument);
+	}
+
+	/**
+	 * Logs the sale misses of a failed buy as a buy of the missed copies,
+	 * which records the same misses when replayed. The record is synced with
+	 * the next call that waits for the log.
+	 * 
+	 * @param missedCopies
+	 */
+	private void logMisses(Set<BookCopy> missedCopies) {
+		log(BookStoreMessageTag.BUYBOOKS, missedCopies);
+	}
+
+	/**
+	 * Fails a call that would change the store if the write-ahead log can
+	 * not be written anymore, so that the store does not drift further from
+	 * the log, which is what the store is rebuilt from after a restart
+	 * 
+	 * @throws BookStoreException
+	 */
+	private void checkWritable() throws BookStoreException {
+		BookStoreWriteAheadLog log = writeAheadLog;
+		if (log != null && log.hasFailed()) {
+			throw new BookStoreException("The write-ahead log"
+					+ BookStoreConstants.NOT_AVAILABLE
+					+ ", the store is read-only");
+		}
+	}
+
+	/**
+	 * Waits until the write-ahead log is synced up to the position returned
+	 * by log, after the locks of the call are released
+	 * 
+	 * @param logPosition
+	 * @throws BookStoreException
+	 */
+	private void awaitDurable(long logPosition) throws BookStoreException {
+		if (logPosition < 0) {
+			return;
+		}
+		try {
+			writeAheadLog.sync(logPosition);
+		} catch (IOException ex) {
+			throw new BookStoreException("The write-ahead log"
+					+ BookStoreConstants.NOT_AVAILABLE, ex);
+		}
+	}
+
+	/**
+	 * Returns the ISBNs of the book copies in the set
+	 * 
+	 * @param bookCopies
+	 * @return
+	 */
+	private static List<Integer> isbnsOfBookCopies(Set<BookCopy> bookCopies) {
+		List<Integer> isbns = new ArrayList<Integer>(bookCopies.size());
+		for (BookCopy bookCopy : bookCopies) {
+			isbns.add(bookCopy.getISBN());
+		}
+		return isbns;
+	}
+
+	/**
+	 * Checks that a book to add has a valid ISBN, title, author, number of
+	 * copies and price
+	 * 
+	 * @param book
+	 * @throws BookStoreException
+	 */
+	static void validateBook(StockBook book) throws BookStoreException {
+		if (BookStoreUtility.isInvalidISBN(book.getISBN())
+				|| BookStoreUtility.isEmpty(book.getTitle())
+				|| BookStoreUtility.isEmpty(book.getAuthor())
+				|| BookStoreUtility.isInvalidNoCopies(book.getNumCopies())
+				|| book.getPrice() < 0.0) {
+			throw new BookStoreException(BookStoreConstants.BOOK
+					+ book.toString() + BookStoreConstants.INVALID);
+		}
+	}
+
+	/**
+	 * Returns true if a book with the ISBN is in the store
+	 * 
+	 * @param ISBN
+	 * @return
+	 */
+	boolean containsBook(int ISBN) {
+		List<Lock> locks = lockBooks(Collections.<Integer> emptySet(), false);
+		try {
+			return bookMap.containsKey(ISBN);
+		} finally {
+			unlock(locks);
+		}
+	}
+
+	public void addBooks(Set<StockBook> bookSet) throws BookStoreException {
+		checkWritable();
 
 		if (bookSet == null) {
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
-		// Check if all are there
-		for (StockBook book : bookSet) {
-			int ISBN = book.getISBN();
-			String bookTitle = book.getTitle();
-			String bookAuthor = book.getAuthor();
-			int noCopies = book.getNumCopies();
-			float bookPrice = book.getPrice();
-			if (BookStoreUtility.isInvalidISBN(ISBN)
-					|| BookStoreUtility.isEmpty(bookTitle)
-					|| BookStoreUtility.isEmpty(bookAuthor)
-					|| BookStoreUtility.isInvalidNoCopies(noCopies)
-					|| bookPrice < 0.0) {
-				throw new BookStoreException(BookStoreConstants.BOOK
-						+ book.toString() + BookStoreConstants.INVALID);
-			} else if (bookMap.containsKey(ISBN)) {
-				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
-						+ BookStoreConstants.DUPLICATED);
+
+		List<Lock> locks = lockStore();
+		beginCatalogWrite();
+		long logPosition;
+		try {
+			// Check if all are there
+			for (StockBook book : bookSet) {
+				int ISBN = book.getISBN();
+				validateBook(book);
+				if (bookMap.containsKey(ISBN)) {
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.DUPLICATED);
+				}
 			}
+
+			putBooks(bookSet);
+			logPosition = log(BookStoreMessageTag.ADDBOOKS, bookSet);
+		} finally {
+			endCatalogWrite();
+			unlock(locks);
 		}
+		awaitDurable(logPosition);
+	}
 
+	/**
+	 * Adds the validated books to the map and the indexes, while the store
+	 * is locked
+	 * 
+	 * @param bookSet
+	 */
+	private void putBooks(Set<StockBook> bookSet) {
+		List<BookStoreBook> addedBooks = new ArrayList<BookStoreBook>(
+				bookSet.size());
 		for (StockBook book : bookSet) {
 			int ISBN = book.getISBN();
-			bookMap.put(ISBN, new BookStoreBook(book));
+			BookStoreBook addedBook = newBookStoreBook(book);
+			bookMap.put(ISBN, addedBook);
+			addedBooks.add(addedBook);
 		}
-		return;
+		editorPickIndex.update(addedBooks);
+		ratingIndex.update(addedBooks);
+		inDemandIndex.update(addedBooks);
 	}
 
-	public synchronized void addCopies(Set<BookCopy> bookCopiesSet)
+	/**
+	 * Removes all the books and adds the books of the set in a single update,
+	 * logged as a REMOVEALLBOOKS followed by an ADDBOOKS
+	 * 
+	 * @param bookSet
+	 * @throws BookStoreException
+	 */
+	private void replaceBooks(Set<StockBook> bookSet) throws BookStoreException {
+		checkWritable();
+		if (bookSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+		Set<Integer> isbns = new HashSet<Integer>();
+		for (StockBook book : bookSet) {
+			validateBook(book);
+			if (!isbns.add(book.getISBN())) {
+				throw new BookStoreException(BookStoreConstants.ISBN
+						+ book.getISBN() + BookStoreConstants.DUPLICATED);
+			}
+		}
+
+		List<Lock> locks = lockStore();
+		beginCatalogWrite();
+		long logPosition;
+		try {
+			clearBooks();
+			log(BookStoreMessageTag.REMOVEALLBOOKS, null);
+			putBooks(bookSet);
+			logPosition = log(BookStoreMessageTag.ADDBOOKS, bookSet);
+		} finally {
+			endCatalogWrite();
+			unlock(locks);
+		}
+		awaitDurable(logPosition);
+	}
+
+	public void addCopies(Set<BookCopy> bookCopiesSet)
 			throws BookStoreException {
+		checkWritable();
 		int ISBN, numCopies;
 
 		if (bookCopiesSet == null) {
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
 
-		for (BookCopy bookCopy : bookCopiesSet) {
-			ISBN = bookCopy.getISBN();
-			numCopies = bookCopy.getNumCopies();
-			if (BookStoreUtility.isInvalidISBN(ISBN))
-				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
-						+ BookStoreConstants.INVALID);
-			if (!bookMap.containsKey(ISBN))
-				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
-						+ BookStoreConstants.NOT_AVAILABLE);
-			if (BookStoreUtility.isInvalidNoCopies(numCopies))
-				throw new BookStoreException(BookStoreConstants.NUM_COPIES
-						+ numCopies + BookStoreConstants.INVALID);
+		List<Lock> locks = lockBooks(isbnsOfBookCopies(bookCopiesSet), true);
+		stockVersion.beginWrite();
+		long logPosition;
+		try {
+			BookStoreBook book;
+			// Remember the books in the order of the set for the update
+			List<BookStoreBook> books = new ArrayList<BookStoreBook>(
+					bookCopiesSet.size());
+			for (BookCopy bookCopy : bookCopiesSet) {
+				ISBN = bookCopy.getISBN();
+				numCopies = bookCopy.getNumCopies();
+				if (BookStoreUtility.isInvalidISBN(ISBN))
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.INVALID);
+				book = bookMap.get(ISBN);
+				if (book == null)
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.NOT_AVAILABLE);
+				if (BookStoreUtility.isInvalidNoCopies(numCopies))
+					throw new BookStoreException(BookStoreConstants.NUM_COPIES
+							+ numCopies + BookStoreConstants.INVALID);
+				books.add(book);
+			}
 
+			// Update the number of copies
+			int i = 0;
+			for (BookCopy bookCopy : bookCopiesSet) {
+				books.get(i++).addCopies(bookCopy.getNumCopies());
+			}
+			// Adding copies resets the sale misses
+			inDemandIndex.update(books);
+			logPosition = log(BookStoreMessageTag.ADDCOPIES, bookCopiesSet);
+		} finally {
+			stockVersion.endWrite();
+			unlock(locks);
 		}
+		awaitDurable(logPosition);
+	}
 
-		BookStoreBook book;
-		// Update the number of copies
-		for (BookCopy bookCopy : bookCopiesSet) {
-			ISBN = bookCopy.getISBN();
-			numCopies = bookCopy.getNumCopies();
-			book = bookMap.get(ISBN);
-			book.addCopies(numCopies);
+	/**
+	 * Returns an unmodifiable list of all the books in the store. The same
+	 * list instance is returned until the store is updated.
+	 */
+	public List<StockBook> getBooks() {
+		CatalogSnapshot snapshot = catalogSnapshot;
+		if (snapshot != null && stockVersion.validate(snapshot.version)) {
+			return snapshot.books;
 		}
-	}
 
-	public synchronized List<StockBook> getBooks() {
-		List<StockBook> listBooks = new ArrayList<StockBook>();
-		Collection<BookStoreBook> bookMapValues = bookMap.values();
-		for (BookStoreBook book : bookMapValues) {
-			listBooks.add(book.immutableStockBook());
+		List<Lock> locks = lockBooks(null, false);
+		try {
+			// No update of the books can be in progress while we hold the
+			// locks, but an update rejected before touching any book can
+			// still bump the stamp, in which case we do not publish
+			long stamp = stockVersion.tryOptimisticRead();
+			List<StockBook> listBooks = new ArrayList<StockBook>(bookMap.size());
+			Collection<BookStoreBook> bookMapValues = bookMap.values();
+			for (BookStoreBook book : bookMapValues) {
+				listBooks.add(book.immutableStockBook());
+			}
+			listBooks = Collections.unmodifiableList(listBooks);
+			if (stockVersion.validate(stamp)) {
+				catalogSnapshot = new CatalogSnapshot(stamp, listBooks);
+			}
+			return listBooks;
+		} finally {
+			unlock(locks);
 		}
-		return listBooks;
 	}
 
-	public synchronized void updateEditorPicks(Set<BookEditorPick> editorPicks)
+	public void updateEditorPicks(Set<BookEditorPick> editorPicks)
 			throws BookStoreException {
+		checkWritable();
 		// Check that all ISBNs that we add/remove are there first.
 		if (editorPicks == null) {
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
 
 		int ISBNVal;
-
+		List<Integer> isbns = new ArrayList<Integer>(editorPicks.size());
 		for (BookEditorPick editorPickArg : editorPicks) {
-			ISBNVal = editorPickArg.getISBN();
-			if (BookStoreUtility.isInvalidISBN(ISBNVal))
-				throw new BookStoreException(BookStoreConstants.ISBN + ISBNVal
-						+ BookStoreConstants.INVALID);
-			if (!bookMap.containsKey(ISBNVal))
-				throw new BookStoreException(BookStoreConstants.ISBN + ISBNVal
-						+ BookStoreConstants.NOT_AVAILABLE);
+			isbns.add(editorPickArg.getISBN());
 		}
 
-		for (BookEditorPick editorPickArg : editorPicks) {
-			bookMap.get(editorPickArg.getISBN()).setEditorPick(
-					editorPickArg.isEditorPick());
+		List<Lock> locks = lockBooks(isbns, true);
+		stockVersion.beginWrite();
+		long logPosition;
+		try {
+			BookStoreBook book;
+			List<BookStoreBook> books = new ArrayList<BookStoreBook>(
+					editorPicks.size());
+			for (BookEditorPick editorPickArg : editorPicks) {
+				ISBNVal = editorPickArg.getISBN();
+				if (BookStoreUtility.isInvalidISBN(ISBNVal))
+					throw new BookStoreException(BookStoreConstants.ISBN
+							+ ISBNVal + BookStoreConstants.INVALID);
+				book = bookMap.get(ISBNVal);
+				if (book == null)
+					throw new BookStoreException(BookStoreConstants.ISBN
+							+ ISBNVal + BookStoreConstants.NOT_AVAILABLE);
+				books.add(book);
+			}
+
+			int i = 0;
+			for (BookEditorPick editorPickArg : editorPicks) {
+				books.get(i++).setEditorPick(editorPickArg.isEditorPick());
+			}
+			editorPickIndex.update(books);
+			logPosition = log(BookStoreMessageTag.UPDATEEDITORPICKS,
+					editorPicks);
+		} finally {
+			stockVersion.endWrite();
+			unlock(locks);
 		}
-		return;
+		awaitDurable(logPosition);
 	}
 
-	public synchronized void buyBooks(Set<BookCopy> bookCopiesToBuy)
+	public void buyBooks(Set<BookCopy> bookCopiesToBuy)
 			throws BookStoreException {
+		checkWritable();
 		if (bookCopiesToBuy == null) {
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
 
-		// Check that all ISBNs that we buy are there first.
-		int ISBN;
-		BookStoreBook book;
-		Boolean saleMiss = false;
-		for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
-			ISBN = bookCopyToBuy.getISBN();
-			if (bookCopyToBuy.getNumCopies() < 0)
-				throw new BookStoreException(BookStoreConstants.NUM_COPIES
-						+ bookCopyToBuy.getNumCopies()
-						+ BookStoreConstants.INVALID);
-			if (BookStoreUtility.isInvalidISBN(ISBN))
-				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
-						+ BookStoreConstants.INVALID);
-			if (!bookMap.containsKey(ISBN))
-				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+		List<Lock> locks = lockBooks(isbnsOfBookCopies(bookCopiesToBuy), true);
+		stockVersion.beginWrite();
+		List<BookStoreBook> missedBooks = new ArrayList<BookStoreBook>();
+		Set<BookCopy> missedCopies = new HashSet<BookCopy>();
+		long logPosition;
+		try {
+			// Check that all ISBNs that we buy are there first.
+			int ISBN;
+			BookStoreBook book;
+			List<BookStoreBook> books = new ArrayList<BookStoreBook>(
+					bookCopiesToBuy.size());
+			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+				ISBN = bookCopyToBuy.getISBN();
+				if (bookCopyToBuy.getNumCopies() < 0)
+					throw new BookStoreException(BookStoreConstants.NUM_COPIES
+							+ bookCopyToBuy.getNumCopies()
+							+ BookStoreConstants.INVALID);
+				if (BookStoreUtility.isInvalidISBN(ISBN))
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.INVALID);
+				book = bookMap.get(ISBN);
+				if (book == null)
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.NOT_AVAILABLE);
+				if (!book.areCopiesInStore(bookCopyToBuy.getNumCopies())) {
+					book.addSaleMiss(); // If we cannot sell the copies of the
+										// book its a miss
+					missedBooks.add(book);
+					missedCopies.add(bookCopyToBuy);
+				}
+				books.add(book);
+			}
+
+			// We throw exception now since we want to see how many books in
+			// the order incurred misses which is used by books in demand
+			if (!missedBooks.isEmpty())
+				throw new BookStoreException(BookStoreConstants.BOOK
 						+ BookStoreConstants.NOT_AVAILABLE);
-			book = bookMap.get(ISBN);
-			if (!book.areCopiesInStore(bookCopyToBuy.getNumCopies())) {
-				book.addSaleMiss(); // If we cannot sell the copies of the book
-									// its a miss
-				saleMiss = true;
+
+			// Then make purchase
+			int i = 0;
+			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+				books.get(i++).buyCopies(bookCopyToBuy.getNumCopies());
 			}
+			logPosition = log(BookStoreMessageTag.BUYBOOKS, bookCopiesToBuy);
+		} finally {
+			// The misses are recorded even if a later book of the set turned
+			// out to be invalid
+			if (!missedBooks.isEmpty()) {
+				inDemandIndex.update(missedBooks);
+				logMisses(missedCopies);
+			}
+			stockVersion.endWrite();
+			unlock(locks);
 		}
+		awaitDurable(logPosition);
+	}
 
-		// We throw exception now since we want to see how many books in the
-		// order incurred misses which is used by books in demand
-		if (saleMiss)
-			throw new BookStoreException(BookStoreConstants.BOOK
-					+ BookStoreConstants.NOT_AVAILABLE);
+	/**
+	 * Prepares the part of this store of a buy spanning several stores. The
+	 * copies are bought as buyBooks does, including the sale misses recorded
+	 * when it fails, and kept aside until the transaction is committed or
+	 * aborted, so a prepared buy can always be committed. A transaction
+	 * aborted before its prepare arrives cannot be prepared any more.
+	 * 
+	 * @param transactionId
+	 * @param bookCopiesToBuy
+	 * @throws BookStoreException
+	 */
+	public void prepareBuyBooks(long transactionId,
+			Set<BookCopy> bookCopiesToBuy) throws BookStoreException {
+		if (abortedBuys.containsKey(transactionId)) {
+			throw new BookStoreException("Transaction " + transactionId
+					+ BookStoreConstants.ABORTED);
+		}
+		if (preparedBuys.containsKey(transactionId)) {
+			throw new BookStoreException("Transaction " + transactionId
+					+ BookStoreConstants.DUPLICATED);
+		}
+		buyBooks(bookCopiesToBuy);
+		PreparedBuy preparedBuy = new PreparedBuy(bookCopiesToBuy);
+		if (preparedBuys.putIfAbsent(transactionId, preparedBuy) != null) {
+			returnCopies(bookCopiesToBuy);
+			throw new BookStoreException("Transaction " + transactionId
+					+ BookStoreConstants.DUPLICATED);
+		}
+		// An abort arriving while the copies were bought found nothing to
+		// give back, since abortBuyBooks records the id before removing
+		if (abortedBuys.containsKey(transactionId)) {
+			if (preparedBuys.remove(transactionId, preparedBuy)) {
+				returnCopies(bookCopiesToBuy);
+			}
+			throw new BookStoreException("Transaction " + transactionId
+					+ BookStoreConstants.ABORTED);
+		}
+	}
+
+	/**
+	 * Commits a prepared buy, whose copies stay bought. Committing an
+	 * unknown transaction does nothing, so a commit can be retried.
+	 * 
+	 * @param transactionId
+	 */
+	public void commitBuyBooks(long transactionId) {
+		preparedBuys.remove(transactionId);
+	}
+
+	/**
+	 * Aborts a prepared buy, giving its copies back to the store. Aborting
+	 * an unknown transaction does nothing, so an abort can be retried, and
+	 * an abort sent before a late prepare makes the prepare fail.
+	 * 
+	 * @param transactionId
+	 * @throws BookStoreException
+	 */
+	public void abortBuyBooks(long transactionId) throws BookStoreException {
+		checkWritable();
+		abortedBuys.put(transactionId, System.nanoTime());
+		PreparedBuy preparedBuy = preparedBuys.remove(transactionId);
+		if (preparedBuy != null) {
+			returnCopies(preparedBuy.bookCopies);
+		}
+	}
+
+	/**
+	 * Aborts the prepared buys older than the timeout, whose coordinator
+	 * may never decide them, and forgets the transactions aborted before
+	 * the timeout. A prepare arriving later than the timeout is then
+	 * accepted and aborted by a later call.
+	 * 
+	 * @param timeoutMillis
+	 * @return the number of prepared buys aborted
+	 * @throws BookStoreException
+	 */
+	public int abortExpiredBuys(long timeoutMillis) throws BookStoreException {
+		long now = System.nanoTime();
+		long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		for (Map.Entry<Long, Long> abortedBuy : abortedBuys.entrySet()) {
+			if (now - abortedBuy.getValue() > timeoutNanos) {
+				abortedBuys.remove(abortedBuy.getKey(), abortedBuy.getValue());
+			}
+		}
+		int numAborted = 0;
+		for (Map.Entry<Long, PreparedBuy> preparedBuy : preparedBuys
+				.entrySet()) {
+			if (now - preparedBuy.getValue().preparedNanos > timeoutNanos) {
+				checkWritable();
+				abortedBuys.put(preparedBuy.getKey(), now);
+				if (preparedBuys.remove(preparedBuy.getKey(),
+						preparedBuy.getValue())) {
+					returnCopies(preparedBuy.getValue().bookCopies);
+					numAborted++;
+				}
+			}
+		}
+		return numAborted;
+	}
 
-		// Then make purchase
-		for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
-			book = bookMap.get(bookCopyToBuy.getISBN());
-			book.buyCopies(bookCopyToBuy.getNumCopies());
+	/**
+	 * Gives back the copies of an aborted buy, keeping the sale misses of the
+	 * books. Books removed since the buy are skipped.
+	 * 
+	 * @param bookCopies
+	 * @throws BookStoreException
+	 */
+	private void returnCopies(Set<BookCopy> bookCopies)
+			throws BookStoreException {
+		List<Lock> locks = lockBooks(isbnsOfBookCopies(bookCopies), true);
+		stockVersion.beginWrite();
+		long logPosition;
+		try {
+			for (BookCopy bookCopy : bookCopies) {
+				BookStoreBook book = bookMap.get(bookCopy.getISBN());
+				if (book != null) {
+					book.returnCopies(bookCopy.getNumCopies());
+				}
+			}
+			logPosition = log(BookStoreMessageTag.ABORTBUYBOOKS, bookCopies);
+		} finally {
+			stockVersion.endWrite();
+			unlock(locks);
+		}
+		awaitDurable(logPosition);
+	}
+
+	public List<Book> buyEditorPicks(int numBooks, int numCopies)
+			throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks
+					+ ", but it must be positive");
+		}
+		if (numCopies < 0) {
+			throw new BookStoreException(BookStoreConstants.NUM_COPIES
+					+ numCopies + BookStoreConstants.INVALID);
+		}
+
+		checkWritable();
+		while (true) {
+			List<Book> picks = editorPickIndex.sample(numBooks);
+			List<Integer> isbns = new ArrayList<Integer>(picks.size());
+			for (Book pick : picks) {
+				isbns.add(pick.getISBN());
+			}
+
+			List<Lock> locks = lockBooks(isbns, true);
+			long logPosition;
+			try {
+				// The picks may have been removed or unpicked before we got
+				// their locks, in which case we sample again
+				List<BookStoreBook> books = new ArrayList<BookStoreBook>(
+						isbns.size());
+				for (Integer ISBN : isbns) {
+					BookStoreBook book = bookMap.get(ISBN);
+					if (book == null || !book.isEditorPick()) {
+						break;
+					}
+					books.add(book);
+				}
+				if (books.size() < isbns.size()) {
+					continue;
+				}
+
+				logPosition = buyLockedBooks(books, numCopies);
+			} finally {
+				unlock(locks);
+			}
+			awaitDurable(logPosition);
+			return picks;
+		}
+	}
+
+	/**
+	 * Buys numCopies copies of each of the books, whose write locks are held
+	 * by the caller, or none of them if one of the books has too few copies
+	 * 
+	 * @param books
+	 * @param numCopies
+	 * @return the position of the purchase in the write-ahead log
+	 * @throws BookStoreException
+	 */
+	private long buyLockedBooks(List<BookStoreBook> books, int numCopies)
+			throws BookStoreException {
+		stockVersion.beginWrite();
+		List<BookStoreBook> missedBooks = new ArrayList<BookStoreBook>();
+		Set<BookCopy> missedCopies = new HashSet<BookCopy>();
+		try {
+			for (BookStoreBook book : books) {
+				if (!book.areCopiesInStore(numCopies)) {
+					book.addSaleMiss();
+					missedBooks.add(book);
+					missedCopies.add(new BookCopy(book.getISBN(), numCopies));
+				}
+			}
+			if (!missedBooks.isEmpty())
+				throw new BookStoreException(BookStoreConstants.BOOK
+						+ BookStoreConstants.NOT_AVAILABLE);
+
+			// The purchase is logged as the buyBooks call it amounts to
+			Set<BookCopy> boughtCopies = new HashSet<BookCopy>();
+			for (BookStoreBook book : books) {
+				book.buyCopies(numCopies);
+				boughtCopies.add(new BookCopy(book.getISBN(), numCopies));
+			}
+			return log(BookStoreMessageTag.BUYBOOKS, boughtCopies);
+		} finally {
+			if (!missedBooks.isEmpty()) {
+				inDemandIndex.update(missedBooks);
+				logMisses(missedCopies);
+			}
+			stockVersion.endWrite();
 		}
-		return;
 	}
 
-	public synchronized List<StockBook> getBooksByISBN(Set<Integer> isbnSet)
+	public List<StockBook> getBooksByISBN(Set<Integer> isbnSet)
 			throws BookStoreException {
 		if (isbnSet == null) {
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
-		for (Integer ISBN : isbnSet) {
-			if (BookStoreUtility.isInvalidISBN(ISBN))
-				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
-						+ BookStoreConstants.INVALID);
-			if (!bookMap.containsKey(ISBN))
-				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
-						+ BookStoreConstants.NOT_AVAILABLE);
+
+		List<StockBook> optimisticListBooks = getStockBooksOptimistically(isbnSet);
+		if (optimisticListBooks != null) {
+			return optimisticListBooks;
 		}
 
-		List<StockBook> listBooks = new ArrayList<StockBook>();
+		List<Lock> locks = lockBooks(isbnSet, false);
+		try {
+			List<StockBook> listBooks = new ArrayList<StockBook>(
+					isbnSet.size());
+			for (Integer ISBN : isbnSet) {
+				if (BookStoreUtility.isInvalidISBN(ISBN))
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.INVALID);
+				BookStoreBook book = bookMap.get(ISBN);
+				if (book == null)
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.NOT_AVAILABLE);
+				listBooks.add(book.immutableStockBook());
+			}
+
+			return listBooks;
+		} finally {
+			unlock(locks);
+		}
+	}
 
+	/**
+	 * Returns the books with the given ISBNs without taking any lock, or null
+	 * if a concurrent update interfered or if an ISBN is not in the store.
+	 * Titles, authors and prices never change, so only additions and removals
+	 * of books invalidate the read.
+	 * 
+	 * @param isbnSet
+	 * @return
+	 */
+	private List<Book> getBooksOptimistically(Set<Integer> isbnSet) {
+		long stamp = catalogVersion.tryOptimisticRead();
+		if (stamp == 0) {
+			return null;
+		}
+		List<Book> listBooks = new ArrayList<Book>(isbnSet.size());
 		for (Integer ISBN : isbnSet) {
-			listBooks.add(bookMap.get(ISBN).immutableStockBook());
+			BookStoreBook book = (ISBN == null) ? null : bookMap.get(ISBN);
+			// A lookup racing with an update may return another book
+			if (book == null || book.getISBN() != ISBN) {
+				return null;
+			}
+			listBooks.add(book.immutableBook());
 		}
+		return catalogVersion.validate(stamp) ? listBooks : null;
+	}
 
-		return listBooks;
+	/**
+	 * Returns the stock books with the given ISBNs without taking any lock,
+	 * or null if a concurrent update interfered or if an ISBN is not in the
+	 * store.
+	 * 
+	 * @param isbnSet
+	 * @return
+	 */
+	private List<StockBook> getStockBooksOptimistically(Set<Integer> isbnSet) {
+		if (backend == BookStoreBackend.OFF_HEAP) {
+			return null;
+		}
+		long stamp = stockVersion.tryOptimisticRead();
+		if (stamp == 0) {
+			return null;
+		}
+		List<StockBook> listBooks = new ArrayList<StockBook>(isbnSet.size());
+		for (Integer ISBN : isbnSet) {
+			BookStoreBook book = (ISBN == null) ? null : bookMap.get(ISBN);
+			// A lookup racing with an update may return another book
+			if (book == null || book.getISBN() != ISBN) {
+				return null;
+			}
+			listBooks.add(book.immutableStockBook());
+		}
+		return stockVersion.validate(stamp) ? listBooks : null;
 	}
 
-	public synchronized List<Book> getBooks(Set<Integer> isbnSet)
-			throws BookStoreException {
+	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
 		if (isbnSet == null) {
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
-		// Check that all ISBNs that we rate are there first.
-		for (Integer ISBN : isbnSet) {
-			if (BookStoreUtility.isInvalidISBN(ISBN))
-				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
-						+ BookStoreConstants.INVALID);
-			if (!bookMap.containsKey(ISBN))
-				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
-						+ BookStoreConstants.NOT_AVAILABLE);
+
+		List<Book> optimisticListBooks = getBooksOptimistically(isbnSet);
+		if (optimisticListBooks != null) {
+			return optimisticListBooks;
 		}
 
-		List<Book> listBooks = new ArrayList<Book>();
+		List<Lock> locks = lockBooks(isbnSet, false);
+		try {
+			// Check that all ISBNs are there while getting the books
+			List<Book> listBooks = new ArrayList<Book>(isbnSet.size());
+			for (Integer ISBN : isbnSet) {
+				if (BookStoreUtility.isInvalidISBN(ISBN))
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.INVALID);
+				BookStoreBook book = bookMap.get(ISBN);
+				if (book == null)
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.NOT_AVAILABLE);
+				listBooks.add(book.immutableBook());
+			}
+			return listBooks;
+		} finally {
+			unlock(locks);
+		}
+	}
 
-		// Get the books
-		for (Integer ISBN : isbnSet) {
-			listBooks.add(bookMap.get(ISBN).immutableBook());
+	public List<Book> getEditorPicks(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks
+					+ ", but it must be positive");
 		}
-		return listBooks;
+
+		// The index is updated atomically by every call changing the editor
+		// picks, so it can be sampled without the locks of the books
+		return editorPickIndex.sample(numBooks);
 	}
 
-	public synchronized List<Book> getEditorPicks(int numBooks)
-			throws BookStoreException {
+	/**
+	 * Returns the number of editor picks in the store
+	 * 
+	 * @return
+	 */
+	int getNumEditorPicks() {
+		return editorPickIndex.size();
+	}
+
+	/**
+	 * Returns the rating index entries of the numBooks books with the highest
+	 * average rating, in the order of the index
+	 * 
+	 * @param numBooks
+	 * @return
+	 */
+	List<RatingIndex.Entry> getTopRatedEntries(int numBooks) {
+		return ratingIndex.topEntries(numBooks);
+	}
+
+	public List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
 		if (numBooks < 0) {
 			throw new BookStoreException("numBooks = " + numBooks
 					+ ", but it must be positive");
 		}
 
-		List<BookStoreBook> listAllEditorPicks = new ArrayList<BookStoreBook>();
-		List<Book> listEditorPicks = new ArrayList<Book>();
-		Iterator<Entry<Integer, BookStoreBook>> it = bookMap.entrySet()
-				.iterator();
-		BookStoreBook book;
+		// The index is updated atomically by every call rating books, so it
+		// can be read without the locks of the books
+		return ratingIndex.top(numBooks);
+	}
 
-		// Get all books that are editor picks
-		while (it.hasNext()) {
-			Entry<Integer, BookStoreBook> pair = (Entry<Integer, BookStoreBook>) it
-					.next();
-			book = (BookStoreBook) pair.getValue();
-			if (book.isEditorPick()) {
-				listAllEditorPicks.add(book);
+	public List<StockBook> getBooksInDemand() throws BookStoreException {
+		while (true) {
+			int[] isbns = inDemandIndex.sortedISBNs();
+			List<Integer> isbnList = new ArrayList<Integer>(isbns.length);
+			for (int ISBN : isbns) {
+				isbnList.add(ISBN);
+			}
+
+			List<Lock> locks = lockBooks(isbnList, false);
+			try {
+				// Books only enter the index under their write lock, so if no
+				// other book entered it before we got the locks, the books in
+				// the index can not change until we release them
+				int[] lockedISBNs = inDemandIndex.sortedISBNs();
+				if (isSubsetOf(lockedISBNs, isbns)) {
+					List<StockBook> listBooks = new ArrayList<StockBook>(
+							lockedISBNs.length);
+					for (int ISBN : lockedISBNs) {
+						listBooks.add(bookMap.get(ISBN).immutableStockBook());
+					}
+					return listBooks;
+				}
+			} finally {
+				unlock(locks);
 			}
 		}
+	}
 
-		// Find numBooks random indices of books that will be picked
-		Random rand = new Random();
-		Set<Integer> tobePicked = new HashSet<Integer>();
-		int rangePicks = listAllEditorPicks.size();
-		if (rangePicks <= numBooks) {
-			// We need to add all the books
-			for (int i = 0; i < listAllEditorPicks.size(); i++) {
-				tobePicked.add(i);
+	/**
+	 * Returns true if all the elements of the sorted array subset are in the
+	 * sorted array set
+	 * 
+	 * @param subset
+	 * @param set
+	 * @return
+	 */
+	private static boolean isSubsetOf(int[] subset, int[] set) {
+		int j = 0;
+		for (int element : subset) {
+			while (j < set.length && set[j] < element) {
+				j++;
 			}
-		} else {
-			// We need to pick randomly the books that need to be returned
-			int randNum;
-			while (tobePicked.size() < numBooks) {
-				randNum = rand.nextInt(rangePicks);
-				tobePicked.add(randNum);
+			if (j == set.length || set[j] != element) {
+				return false;
 			}
 		}
+		return true;
+	}
 
-		// Get the numBooks random books
-		for (Integer index : tobePicked) {
-			book = listAllEditorPicks.get(index);
-			listEditorPicks.add(book.immutableBook());
+	public void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
+		checkWritable();
+		if (bookRating == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
-		return listEditorPicks;
 
-	}
+		List<Integer> isbns = new ArrayList<Integer>(bookRating.size());
+		for (BookRating rating : bookRating) {
+			isbns.add(rating.getISBN());
+		}
 
-	@Override
-	public synchronized List<Book> getTopRatedBooks(int numBooks)
-			throws BookStoreException {
-		throw new BookStoreException("Not implemented");
-	}
+		List<Lock> locks = lockBooks(isbns, true);
+		stockVersion.beginWrite();
+		long logPosition;
+		try {
+			// Check that all ISBNs and ratings are valid first
+			int ISBN;
+			BookStoreBook book;
+			List<BookStoreBook> books = new ArrayList<BookStoreBook>(
+					bookRating.size());
+			for (BookRating rating : bookRating) {
+				ISBN = rating.getISBN();
+				if (BookStoreUtility.isInvalidISBN(ISBN))
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.INVALID);
+				book = bookMap.get(ISBN);
+				if (book == null)
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.NOT_AVAILABLE);
+				if (BookStoreUtility.isInvalidRating(rating.getRating()))
+					throw new BookStoreException(BookStoreConstants.RATING
+							+ rating.getRating() + BookStoreConstants.INVALID);
+				books.add(book);
+			}
 
-	@Override
-	public synchronized List<StockBook> getBooksInDemand()
-			throws BookStoreException {
-		throw new BookStoreException("Not implemented");
+			// Then rate the books
+			int i = 0;
+			for (BookRating rating : bookRating) {
+				books.get(i++).addRating(rating.getRating());
+			}
+			ratingIndex.update(books);
+			logPosition = log(BookStoreMessageTag.RATEBOOKS, bookRating);
+		} finally {
+			stockVersion.endWrite();
+			unlock(locks);
+		}
+		awaitDurable(logPosition);
 	}
 
-	@Override
-	public synchronized void rateBooks(Set<BookRating> bookRating)
-			throws BookStoreException {
-		throw new BookStoreException("Not implemented");
+	public void removeAllBooks() throws BookStoreException {
+		checkWritable();
+		List<Lock> locks = lockStore();
+		beginCatalogWrite();
+		long logPosition;
+		try {
+			clearBooks();
+			logPosition = log(BookStoreMessageTag.REMOVEALLBOOKS, null);
+		} finally {
+			endCatalogWrite();
+			unlock(locks);
+		}
+		awaitDurable(logPosition);
 	}
 
-	public synchronized void removeAllBooks() throws BookStoreException {
+	/**
+	 * Removes all the books from the map and the indexes, while the store is
+	 * locked
+	 */
+	private void clearBooks() {
 		bookMap.clear();
+		editorPickIndex.clear();
+		ratingIndex.clear();
+		inDemandIndex.clear();
+		if (offHeapInventory != null) {
+			offHeapInventory.clear();
+		}
 	}
 
-	public synchronized void removeBooks(Set<Integer> isbnSet)
-			throws BookStoreException {
+	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
+		checkWritable();
 
 		if (isbnSet == null) {
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
-		for (Integer ISBN : isbnSet) {
-			if (BookStoreUtility.isInvalidISBN(ISBN))
-				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
-						+ BookStoreConstants.INVALID);
-			if (!bookMap.containsKey(ISBN))
-				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
-						+ BookStoreConstants.NOT_AVAILABLE);
+
+		List<Lock> locks = lockStore();
+		beginCatalogWrite();
+		long logPosition;
+		try {
+			for (Integer ISBN : isbnSet) {
+				if (BookStoreUtility.isInvalidISBN(ISBN))
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.INVALID);
+				if (!bookMap.containsKey(ISBN))
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.NOT_AVAILABLE);
+			}
+
+			List<BookStoreBook> removedBooks = new ArrayList<BookStoreBook>(
+					isbnSet.size());
+			for (int isbn : isbnSet) {
+				BookStoreBook book = bookMap.remove(isbn);
+				if (book != null) {
+					removedBooks.add(book);
+				}
+			}
+			editorPickIndex.removeAll(removedBooks);
+			ratingIndex.removeAll(removedBooks);
+			inDemandIndex.removeAll(removedBooks);
+			for (BookStoreBook book : removedBooks) {
+				book.release();
+			}
+			logPosition = log(BookStoreMessageTag.REMOVEBOOKS, isbnSet);
+		} finally {
+			endCatalogWrite();
+			unlock(locks);
+		}
+		awaitDurable(logPosition);
+	}
+
+	public long importBooks(InputStream in, int batchSize,
+			BookStoreImportListener listener) throws BookStoreException {
+		if (in == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+		return new BookStoreCSVReader(in).addBooksTo(this, batchSize,
+				listener);
+	}
+
+	/**
+	 * Writes the books to the stream, locking EXPORT_CHUNK_SIZE books at a
+	 * time and writing them after releasing their locks. Only the ISBNs of
+	 * the books are kept for the whole export. Books removed during the
+	 * export are skipped and books added during the export are left out.
+	 */
+	public long exportBooks(OutputStream out) throws BookStoreException {
+		if (out == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
 
-		for (int isbn : isbnSet) {
-			bookMap.remove(isbn);
+		try {
+			BookStoreCSVWriter writer = new BookStoreCSVWriter(out);
+			writer.writeHeader();
+			long numBooks = exportBooks(writer);
+			writer.flush();
+			return numBooks;
+		} catch (IOException ex) {
+			throw new BookStoreException("The export stream"
+					+ BookStoreConstants.NOT_AVAILABLE, ex);
+		}
+	}
+
+	/**
+	 * Writes the books to the writer as exportBooks does, without the header
+	 * 
+	 * @param writer
+	 * @return the number of books written
+	 * @throws IOException
+	 */
+	long exportBooks(BookStoreCSVWriter writer) throws IOException {
+		int[] isbns;
+		List<Lock> locks = lockBooks(Collections.<Integer> emptySet(), false);
+		try {
+			isbns = bookMap.sortedKeys();
+		} finally {
+			unlock(locks);
+		}
+
+		long numBooks = 0;
+		List<StockBook> chunk = new ArrayList<StockBook>(EXPORT_CHUNK_SIZE);
+		for (int from = 0; from < isbns.length; from += EXPORT_CHUNK_SIZE) {
+			int to = Math.min(from + EXPORT_CHUNK_SIZE, isbns.length);
+			List<Integer> chunkISBNs = new ArrayList<Integer>(to - from);
+			for (int i = from; i < to; i++) {
+				chunkISBNs.add(isbns[i]);
+			}
+			locks = lockBooks(chunkISBNs, false);
+			try {
+				for (int i = from; i < to; i++) {
+					BookStoreBook book = bookMap.get(isbns[i]);
+					if (book != null) {
+						chunk.add(book.immutableStockBook());
+					}
+				}
+			} finally {
+				unlock(locks);
+			}
+			for (StockBook book : chunk) {
+				writer.writeBook(book);
+			}
+			numBooks += chunk.size();
+			chunk.clear();
 		}
+		return numBooks;
 	}
 }
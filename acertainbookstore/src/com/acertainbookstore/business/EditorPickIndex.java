@@ -0,0 +1,150 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * EditorPickIndex keeps the books of the store that are editor picks in a
+ * dense array, so that a uniform random sample of k picks costs O(k) whatever
+ * the size of the catalog. Every book remembers its position in the array,
+ * which makes adding and removing a book O(1): a removed book is replaced by
+ * the last book of the array.
+ * 
+ * The index is updated under the write lock of its own read/write lock and
+ * sampled under its read lock, so samples run in parallel and never change
+ * the array. Every call of the store updates it with a single call, so a
+ * sample never observes a partly applied update.
+ * 
+ */
+final class EditorPickIndex {
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private BookStoreBook[] picks = new BookStoreBook[16];
+	private int numPicks = 0;
+
+	/**
+	 * Adds the books flagged as editor picks to the index and removes the
+	 * others from it
+	 * 
+	 * @param books
+	 */
+	void update(List<BookStoreBook> books) {
+		lock.writeLock().lock();
+		try {
+			for (BookStoreBook book : books) {
+				if (book.isEditorPick()) {
+					add(book);
+				} else {
+					remove(book);
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes the books, which are being removed from the store, from the
+	 * index
+	 * 
+	 * @param books
+	 */
+	void removeAll(List<BookStoreBook> books) {
+		lock.writeLock().lock();
+		try {
+			for (BookStoreBook book : books) {
+				remove(book);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of editor picks
+	 * 
+	 * @return
+	 */
+	int size() {
+		lock.readLock().lock();
+		try {
+			return numPicks;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes all the books from the index
+	 */
+	void clear() {
+		lock.writeLock().lock();
+		try {
+			for (int i = 0; i < numPicks; i++) {
+				picks[i].editorPickPosition = -1;
+			}
+			picks = new BookStoreBook[16];
+			numPicks = 0;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns numBooks distinct editor picks chosen uniformly at random, or all
+	 * of them if there are not that many
+	 * 
+	 * @param numBooks
+	 * @return
+	 */
+	List<Book> sample(int numBooks) {
+		lock.readLock().lock();
+		try {
+			int numSampled = Math.min(numBooks, numPicks);
+			List<Book> sampledBooks = new ArrayList<Book>(numSampled);
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			// Partial Fisher-Yates shuffle of the positions of the array,
+			// keeping only the positions it swapped, so the array is shared
+			// by the samples and each costs O(numSampled)
+			Map<Integer, Integer> swapped = new HashMap<Integer, Integer>();
+			for (int i = 0; i < numSampled; i++) {
+				int j = i + random.nextInt(numPicks - i);
+				Integer atJ = swapped.get(j);
+				Integer atI = swapped.get(i);
+				swapped.put(j, (atI == null) ? i : atI);
+				sampledBooks.add(picks[(atJ == null) ? j : atJ].immutableBook());
+			}
+			return sampledBooks;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private void add(BookStoreBook book) {
+		if (book.editorPickPosition >= 0) {
+			return;
+		}
+		if (numPicks == picks.length) {
+			picks = Arrays.copyOf(picks, picks.length * 2);
+		}
+		book.editorPickPosition = numPicks;
+		picks[numPicks++] = book;
+	}
+
+	private void remove(BookStoreBook book) {
+		int position = book.editorPickPosition;
+		if (position < 0) {
+			return;
+		}
+		BookStoreBook last = picks[--numPicks];
+		picks[position] = last;
+		last.editorPickPosition = position;
+		picks[numPicks] = null;
+		book.editorPickPosition = -1;
+	}
+}
@@ -0,0 +1,100 @@
+package com.acertainbookstore.business;
+
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * BookStoreBook which keeps its counters in fields of the object, used by the
+ * HEAP storage backend. Every book has its own lock, and its ImmutableBook
+ * view is created once and shared, which is safe since it can not be
+ * changed.
+ * 
+ */
+public class HeapBookStoreBook extends BookStoreBook {
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private final ImmutableBook bookView = new ImmutableBook(getISBN(),
+			getTitle(), getAuthor(), getPrice());
+	private int numCopies;
+	private long totalRating;
+	private long timesRated;
+	private long saleMisses;
+	private boolean editorPick;
+
+	/**
+	 * Constructor to create a book object
+	 */
+	public HeapBookStoreBook(int ISBN, String title, String author,
+			float price, int numCopies) {
+		super(ISBN, title, author, price);
+		this.setSaleMisses(0);
+		this.setTimesRated(0);
+		this.setNumCopies(numCopies);
+		this.setTotalRating(0);
+		this.setEditorPickFlag(false);
+		this.publishStockBookView();
+	}
+
+	/**
+	 * Constructor to create a book store book object from a stock book object
+	 * 
+	 * @param bookToCopy
+	 */
+	public HeapBookStoreBook(StockBook bookToCopy) {
+		super(bookToCopy.getISBN(), bookToCopy.getTitle(), bookToCopy
+				.getAuthor(), bookToCopy.getPrice());
+		this.setSaleMisses(bookToCopy.getSaleMisses());
+		this.setTimesRated(bookToCopy.getTimesRated());
+		this.setNumCopies(bookToCopy.getNumCopies());
+		this.setTotalRating(bookToCopy.getTotalRating());
+		this.setEditorPickFlag(bookToCopy.isEditorPick());
+		this.publishStockBookView();
+	}
+
+	public ReadWriteLock getLock() {
+		return lock;
+	}
+
+	public ImmutableBook immutableBook() {
+		return bookView;
+	}
+
+	public long getTotalRating() {
+		return totalRating;
+	}
+
+	public long getTimesRated() {
+		return timesRated;
+	}
+
+	public int getNumCopies() {
+		return numCopies;
+	}
+
+	public long getSaleMisses() {
+		return saleMisses;
+	}
+
+	public boolean isEditorPick() {
+		return editorPick;
+	}
+
+	protected void setTotalRating(long totalRating) {
+		this.totalRating = totalRating;
+	}
+
+	protected void setTimesRated(long timesRated) {
+		this.timesRated = timesRated;
+	}
+
+	protected void setNumCopies(int numCopies) {
+		this.numCopies = numCopies;
+	}
+
+	protected void setSaleMisses(long saleMisses) {
+		this.saleMisses = saleMisses;
+	}
+
+	protected void setEditorPickFlag(boolean editorPick) {
+		this.editorPick = editorPick;
+	}
+}
@@ -0,0 +1,62 @@
+package com.acertainbookstore.business;
+
+import java.util.List;
+
+import com.acertainbookstore.utils.IntObjectHashMap;
+
+/**
+ * InDemandIndex keeps the books of the store that had a sale miss since
+ * copies were last added to them, so getBooksInDemand never scans the
+ * catalog.
+ * 
+ * The index is updated and read under its own monitor. The calls of the store
+ * update it while holding the locks of the books they change.
+ * 
+ */
+final class InDemandIndex {
+	private final IntObjectHashMap<BookStoreBook> books = new IntObjectHashMap<BookStoreBook>();
+
+	/**
+	 * Adds the books that had a sale miss to the index and removes the others
+	 * from it
+	 * 
+	 * @param updatedBooks
+	 */
+	synchronized void update(List<BookStoreBook> updatedBooks) {
+		for (BookStoreBook book : updatedBooks) {
+			if (book.hadSaleMiss()) {
+				books.put(book.getISBN(), book);
+			} else {
+				books.remove(book.getISBN());
+			}
+		}
+	}
+
+	/**
+	 * Removes the books, which are being removed from the store, from the
+	 * index
+	 * 
+	 * @param removedBooks
+	 */
+	synchronized void removeAll(List<BookStoreBook> removedBooks) {
+		for (BookStoreBook book : removedBooks) {
+			books.remove(book.getISBN());
+		}
+	}
+
+	/**
+	 * Removes all the books from the index
+	 */
+	synchronized void clear() {
+		books.clear();
+	}
+
+	/**
+	 * Returns the ISBNs of the books in demand in ascending order
+	 * 
+	 * @return
+	 */
+	synchronized int[] sortedISBNs() {
+		return books.sortedKeys();
+	}
+}
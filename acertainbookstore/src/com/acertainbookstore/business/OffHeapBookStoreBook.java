@@ -0,0 +1,105 @@
+package com.acertainbookstore.business;
+
+import java.util.concurrent.locks.ReadWriteLock;
+
+/**
+ * BookStoreBook which keeps its counters in a slot of an OffHeapInventory,
+ * used by the OFF_HEAP storage backend.
+ * 
+ * The book does not cache its ImmutableBook and ImmutableStockBook views,
+ * which would copy the counters back onto the heap, but builds them each
+ * time they are asked for, and it shares a lock stripe of the inventory with
+ * other books instead of having its own lock. The book itself, with its
+ * interned title and author, is the only object it keeps on the heap.
+ * 
+ */
+final class OffHeapBookStoreBook extends BookStoreBook {
+	private final OffHeapInventory inventory;
+	private final int slot;
+
+	/**
+	 * Constructor to create a book store book object from a stock book object
+	 * in a newly allocated slot of the inventory
+	 * 
+	 * @param bookToCopy
+	 * @param inventory
+	 */
+	OffHeapBookStoreBook(StockBook bookToCopy, OffHeapInventory inventory) {
+		super(bookToCopy.getISBN(), inventory.intern(bookToCopy.getTitle()),
+				inventory.intern(bookToCopy.getAuthor()), bookToCopy
+						.getPrice());
+		this.inventory = inventory;
+		this.slot = inventory.allocateSlot();
+		this.setSaleMisses(bookToCopy.getSaleMisses());
+		this.setTimesRated(bookToCopy.getTimesRated());
+		this.setNumCopies(bookToCopy.getNumCopies());
+		this.setTotalRating(bookToCopy.getTotalRating());
+		this.setEditorPickFlag(bookToCopy.isEditorPick());
+	}
+
+	public ReadWriteLock getLock() {
+		return inventory.getLockStripe(OffHeapInventory.lockStripeOf(getISBN()));
+	}
+
+	public ImmutableBook immutableBook() {
+		return new ImmutableBook(getISBN(), getTitle(), getAuthor(), getPrice());
+	}
+
+	public long getTotalRating() {
+		return inventory.getTotalRating(slot);
+	}
+
+	public long getTimesRated() {
+		return inventory.getTimesRated(slot);
+	}
+
+	public int getNumCopies() {
+		return inventory.getNumCopies(slot);
+	}
+
+	public long getSaleMisses() {
+		return inventory.getSaleMisses(slot);
+	}
+
+	public boolean isEditorPick() {
+		return inventory.isEditorPick(slot);
+	}
+
+	protected void setTotalRating(long totalRating) {
+		inventory.setTotalRating(slot, totalRating);
+	}
+
+	protected void setTimesRated(long timesRated) {
+		inventory.setTimesRated(slot, timesRated);
+	}
+
+	protected void setNumCopies(int numCopies) {
+		inventory.setNumCopies(slot, numCopies);
+	}
+
+	protected void setSaleMisses(long saleMisses) {
+		inventory.setSaleMisses(slot, saleMisses);
+	}
+
+	protected void setEditorPickFlag(boolean editorPick) {
+		inventory.setEditorPick(slot, editorPick);
+	}
+
+	protected void publishStockBookView() {
+		; // Views are built on demand
+	}
+
+	/**
+	 * Returns a new ImmutableStockBook copy of the book, the caller must hold
+	 * the lock of the book.
+	 */
+	public StockBook immutableStockBook() {
+		return newStockBookView();
+	}
+
+	void release() {
+		inventory.freeSlot(slot);
+		inventory.release(getTitle());
+		inventory.release(getAuthor());
+	}
+}
@@ -0,0 +1,211 @@
+package com.acertainbookstore.business;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * OffHeapInventory stores the counters of the books of the OFF_HEAP storage
+ * backend in direct byte buffers, one column per counter. Every book owns a
+ * dense slot id which indexes all the columns. The columns are allocated in
+ * chunks so growing the inventory never copies or moves existing counters.
+ * 
+ * Titles and authors are interned, so books sharing an author share one
+ * String. The interned strings count the books using them, and are dropped
+ * with the last of those books, so that a catalog with churn does not keep
+ * the titles of every book it ever had.
+ * 
+ * Instead of a lock per book, the books share NUM_LOCK_STRIPES locks, the
+ * stripe of a book picked by its ISBN, so that tens of millions of books do
+ * not keep tens of millions of locks on the heap. Books in the same stripe
+ * are locked together.
+ * 
+ * Slots are allocated and freed while the store is locked exclusively, the
+ * counters of a slot are read and written under the lock of its book.
+ * 
+ */
+final class OffHeapInventory {
+	private static final int CHUNK_SHIFT = 16;
+	private static final int SLOTS_PER_CHUNK = 1 << CHUNK_SHIFT;
+	private static final int SLOT_MASK = SLOTS_PER_CHUNK - 1;
+	static final int NUM_LOCK_STRIPES = 4096;
+
+	/**
+	 * The columns of SLOTS_PER_CHUNK consecutive slots
+	 */
+	private static final class Chunk {
+		private final ByteBuffer numCopies = allocateColumn(4);
+		private final ByteBuffer totalRating = allocateColumn(8);
+		private final ByteBuffer timesRated = allocateColumn(8);
+		private final ByteBuffer saleMisses = allocateColumn(8);
+		private final ByteBuffer editorPick = allocateColumn(1);
+
+		private static ByteBuffer allocateColumn(int valueSize) {
+			return ByteBuffer.allocateDirect(SLOTS_PER_CHUNK * valueSize)
+					.order(ByteOrder.nativeOrder());
+		}
+	}
+
+	private final ReadWriteLock[] lockStripes = new ReadWriteLock[NUM_LOCK_STRIPES];
+	private volatile Chunk[] chunks = new Chunk[0];
+	private int numAllocatedSlots = 0;
+	private int[] freeSlots = new int[16];
+	private int numFreeSlots = 0;
+	private final Map<String, InternedString> internedStrings = new HashMap<String, InternedString>();
+
+	/**
+	 * A shared string and the number of books using it
+	 */
+	private static final class InternedString {
+		private final String string;
+		private int numUses = 0;
+
+		private InternedString(String string) {
+			this.string = string;
+		}
+	}
+
+	OffHeapInventory() {
+		for (int i = 0; i < NUM_LOCK_STRIPES; i++) {
+			lockStripes[i] = new ReentrantReadWriteLock();
+		}
+	}
+
+	/**
+	 * Returns the lock stripe of the book with the ISBN
+	 * 
+	 * @param ISBN
+	 * @return
+	 */
+	static int lockStripeOf(int ISBN) {
+		return (ISBN & Integer.MAX_VALUE) % NUM_LOCK_STRIPES;
+	}
+
+	ReadWriteLock getLockStripe(int stripe) {
+		return lockStripes[stripe];
+	}
+
+	/**
+	 * Returns a free slot, growing the columns if all slots are in use
+	 * 
+	 * @return
+	 */
+	synchronized int allocateSlot() {
+		if (numFreeSlots > 0) {
+			return freeSlots[--numFreeSlots];
+		}
+		int slot = numAllocatedSlots++;
+		if ((slot >>> CHUNK_SHIFT) >= chunks.length) {
+			Chunk[] newChunks = Arrays.copyOf(chunks, chunks.length + 1);
+			newChunks[chunks.length] = new Chunk();
+			chunks = newChunks;
+		}
+		return slot;
+	}
+
+	/**
+	 * Returns the slot of a removed book to the free list
+	 * 
+	 * @param slot
+	 */
+	synchronized void freeSlot(int slot) {
+		if (numFreeSlots == freeSlots.length) {
+			freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2);
+		}
+		freeSlots[numFreeSlots++] = slot;
+	}
+
+	/**
+	 * Frees all slots and the interned strings, the columns are kept for
+	 * reuse
+	 */
+	synchronized void clear() {
+		numAllocatedSlots = 0;
+		numFreeSlots = 0;
+		internedStrings.clear();
+	}
+
+	/**
+	 * Returns the shared instance of the string, counting one more use of it
+	 * to be released with release
+	 * 
+	 * @param string
+	 * @return
+	 */
+	synchronized String intern(String string) {
+		if (string == null) {
+			return null;
+		}
+		InternedString interned = internedStrings.get(string);
+		if (interned == null) {
+			interned = new InternedString(string);
+			internedStrings.put(string, interned);
+		}
+		interned.numUses++;
+		return interned.string;
+	}
+
+	/**
+	 * Releases one use of the interned string, dropping it with the last one
+	 * 
+	 * @param string
+	 */
+	synchronized void release(String string) {
+		if (string == null) {
+			return;
+		}
+		InternedString interned = internedStrings.get(string);
+		if (interned != null && --interned.numUses == 0) {
+			internedStrings.remove(string);
+		}
+	}
+
+	private Chunk chunkOf(int slot) {
+		return chunks[slot >>> CHUNK_SHIFT];
+	}
+
+	int getNumCopies(int slot) {
+		return chunkOf(slot).numCopies.getInt((slot & SLOT_MASK) << 2);
+	}
+
+	void setNumCopies(int slot, int numCopies) {
+		chunkOf(slot).numCopies.putInt((slot & SLOT_MASK) << 2, numCopies);
+	}
+
+	long getTotalRating(int slot) {
+		return chunkOf(slot).totalRating.getLong((slot & SLOT_MASK) << 3);
+	}
+
+	void setTotalRating(int slot, long totalRating) {
+		chunkOf(slot).totalRating.putLong((slot & SLOT_MASK) << 3, totalRating);
+	}
+
+	long getTimesRated(int slot) {
+		return chunkOf(slot).timesRated.getLong((slot & SLOT_MASK) << 3);
+	}
+
+	void setTimesRated(int slot, long timesRated) {
+		chunkOf(slot).timesRated.putLong((slot & SLOT_MASK) << 3, timesRated);
+	}
+
+	long getSaleMisses(int slot) {
+		return chunkOf(slot).saleMisses.getLong((slot & SLOT_MASK) << 3);
+	}
+
+	void setSaleMisses(int slot, long saleMisses) {
+		chunkOf(slot).saleMisses.putLong((slot & SLOT_MASK) << 3, saleMisses);
+	}
+
+	boolean isEditorPick(int slot) {
+		return chunkOf(slot).editorPick.get(slot & SLOT_MASK) != 0;
+	}
+
+	void setEditorPick(int slot, boolean editorPick) {
+		chunkOf(slot).editorPick.put(slot & SLOT_MASK,
+				(byte) (editorPick ? 1 : 0));
+	}
+}
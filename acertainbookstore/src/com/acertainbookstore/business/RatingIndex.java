@@ -0,0 +1,153 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+
+import com.acertainbookstore.utils.BookStoreUtility;
+
+/**
+ * RatingIndex keeps the rated books of the store ordered by decreasing
+ * average rating, ties being broken by ascending ISBN. Rating a book moves it
+ * in the index in O(log n) and the top k books are read in O(k + log n), so
+ * getTopRatedBooks never sorts the catalog.
+ * 
+ * Books that were never rated are not in the index. The index is updated and
+ * read under its own monitor, and every call of the store updates it with a
+ * single call, so a reader never observes a partly applied rateBooks.
+ * 
+ */
+final class RatingIndex {
+
+	/**
+	 * The position of a book in the index, i.e. its ratings when it was last
+	 * indexed. Entries are immutable so that the order of the set never
+	 * changes under it.
+	 */
+	static final class Entry {
+		private final BookStoreBook book;
+		// Copied from the book so that comparisons stay within the entries
+		private final int ISBN;
+		private final long totalRating;
+		private final long timesRated;
+
+		private Entry(BookStoreBook book) {
+			this.book = book;
+			this.ISBN = book.getISBN();
+			this.totalRating = book.getTotalRating();
+			this.timesRated = book.getTimesRated();
+		}
+
+		Book immutableBook() {
+			return book.immutableBook();
+		}
+	}
+
+	static final Comparator<Entry> BY_AVERAGE_RATING = new Comparator<Entry>() {
+		public int compare(Entry e1, Entry e2) {
+			return BookStoreUtility.compareRatings(e1.ISBN, e1.totalRating,
+					e1.timesRated, e2.ISBN, e2.totalRating, e2.timesRated);
+		}
+	};
+
+	private final TreeSet<Entry> entries = new TreeSet<Entry>(
+			BY_AVERAGE_RATING);
+
+	/**
+	 * Moves the books to the position of their current ratings, the caller
+	 * must hold the locks of the books
+	 * 
+	 * @param books
+	 */
+	synchronized void update(List<BookStoreBook> books) {
+		for (BookStoreBook book : books) {
+			remove(book);
+			if (book.getTimesRated() > 0) {
+				Entry entry = new Entry(book);
+				entries.add(entry);
+				book.ratingEntry = entry;
+			}
+		}
+	}
+
+	/**
+	 * Fills the empty index with the books of a store being loaded, in
+	 * O(n log n) like adding them one by one, but under a single acquisition
+	 * of the monitor
+	 * 
+	 * @param books
+	 */
+	synchronized void load(List<BookStoreBook> books) {
+		for (BookStoreBook book : books) {
+			if (book.getTimesRated() > 0) {
+				Entry entry = new Entry(book);
+				entries.add(entry);
+				book.ratingEntry = entry;
+			}
+		}
+	}
+
+	/**
+	 * Removes the books, which are being removed from the store, from the
+	 * index
+	 * 
+	 * @param books
+	 */
+	synchronized void removeAll(List<BookStoreBook> books) {
+		for (BookStoreBook book : books) {
+			remove(book);
+		}
+	}
+
+	/**
+	 * Removes all the books from the index
+	 */
+	synchronized void clear() {
+		for (Entry entry : entries) {
+			entry.book.ratingEntry = null;
+		}
+		entries.clear();
+	}
+
+	/**
+	 * Returns the numBooks books with the highest average rating, or all the
+	 * rated books if there are not that many
+	 * 
+	 * @param numBooks
+	 * @return
+	 */
+	List<Book> top(int numBooks) {
+		List<Entry> topEntries = topEntries(numBooks);
+		List<Book> topBooks = new ArrayList<Book>(topEntries.size());
+		for (Entry entry : topEntries) {
+			topBooks.add(entry.immutableBook());
+		}
+		return topBooks;
+	}
+
+	/**
+	 * Returns the entries of the numBooks books with the highest average
+	 * rating, in the order of the index
+	 * 
+	 * @param numBooks
+	 * @return
+	 */
+	synchronized List<Entry> topEntries(int numBooks) {
+		List<Entry> topEntries = new ArrayList<Entry>(Math.min(numBooks,
+				entries.size()));
+		Iterator<Entry> it = entries.iterator();
+		while (topEntries.size() < numBooks && it.hasNext()) {
+			topEntries.add(it.next());
+		}
+		return topEntries;
+	}
+
+	private void remove(BookStoreBook book) {
+		if (book.ratingEntry != null) {
+			entries.remove(book.ratingEntry);
+			book.ratingEntry = null;
+		}
+	}
+}
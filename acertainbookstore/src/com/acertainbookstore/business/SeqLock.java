@@ -0,0 +1,59 @@
+package com.acertainbookstore.business;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SeqLock lets readers run without taking any lock and check afterwards that
+ * no write overlapped with their read, in the style of the optimistic reads
+ * of java.util.concurrent.locks.StampedLock. Unlike a StampedLock it does not
+ * exclude writers from each other, several writers may be active at the same
+ * time as long as they are isolated by other locks.
+ *
+ * Readers must only read volatile or final data between tryOptimisticRead and
+ * validate so that their reads are not reordered after the validation.
+ *
+ */
+final class SeqLock {
+	private final AtomicInteger activeWriters = new AtomicInteger(0);
+	private final AtomicLong version = new AtomicLong(1);
+
+	/**
+	 * Returns a stamp to validate once the read is done, or zero if a writer
+	 * is active and the read should not be attempted
+	 *
+	 * @return
+	 */
+	long tryOptimisticRead() {
+		long stamp = version.get();
+		return (activeWriters.get() == 0) ? stamp : 0;
+	}
+
+	/**
+	 * Returns true if no write started or completed since the stamp was
+	 * obtained
+	 *
+	 * @param stamp
+	 * @return
+	 */
+	boolean validate(long stamp) {
+		return stamp != 0 && activeWriters.get() == 0
+				&& version.get() == stamp;
+	}
+
+	/**
+	 * Marks the start of a write, must be followed by endWrite
+	 */
+	void beginWrite() {
+		activeWriters.incrementAndGet();
+	}
+
+	/**
+	 * Marks the end of a write and invalidates the stamps of all reads that
+	 * overlapped with it
+	 */
+	void endWrite() {
+		version.incrementAndGet();
+		activeWriters.decrementAndGet();
+	}
+}
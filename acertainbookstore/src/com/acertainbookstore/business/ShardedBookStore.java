@@ -0,0 +1,778 @@
+package com.acertainbookstore.business;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.BookStoreImportListener;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreCSVReader;
+import com.acertainbookstore.utils.BookStoreCSVWriter;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreUtility;
+
+/**
+ * ShardedBookStore implements the bookstore on top of several independent
+ * CertainBookStore shards, each holding the books whose ISBNs hash to it, so
+ * that the calls on books of different shards run in parallel.
+ * 
+ * Every shard has a read/write lock, which is taken before the locks of the
+ * shard itself. A call whose books are all in one shard takes the lock of
+ * that shard in shared mode and is left to the shard, which makes it atomic.
+ * A call changing the books of several shards takes their locks in exclusive
+ * mode, always in ascending shard order so that such calls can not deadlock,
+ * and runs in two passes: the first pass checks the part of every shard and
+ * fails the whole call if one of them is invalid, the second pass applies
+ * the parts. A buy lacking copies of some books records their sale misses
+ * after the first pass and buys nothing.
+ * 
+ * The calls reading several shards take their locks in shared mode, so they
+ * never observe half of a call changing several shards.
+ * 
+ * The shards have no write-ahead log, so a sharded store is not durable.
+ */
+public class ShardedBookStore implements BookStore, StockManager {
+	private final CertainBookStore[] shards;
+	private final ReadWriteLock[] shardLocks;
+
+	/**
+	 * A call changing books, whose elements are split between the shards of
+	 * their books
+	 */
+	private abstract static class ShardedUpdate<T> {
+
+		/**
+		 * Returns the ISBN of the book an element of the call is about
+		 * 
+		 * @param element
+		 * @return
+		 */
+		abstract int getISBN(T element);
+
+		/**
+		 * Checks the part of the call for a shard, which is locked
+		 * exclusively, before any part is applied
+		 * 
+		 * @param shard
+		 * @param part
+		 * @throws BookStoreException
+		 */
+		abstract void check(CertainBookStore shard, Set<T> part)
+				throws BookStoreException;
+
+		/**
+		 * Called once all the parts were checked, before any part is applied
+		 * 
+		 * @throws BookStoreException
+		 */
+		void checked() throws BookStoreException {
+		}
+
+		/**
+		 * Applies the part of the call for a shard
+		 * 
+		 * @param shard
+		 * @param part
+		 * @throws BookStoreException
+		 */
+		abstract void apply(CertainBookStore shard, Set<T> part)
+				throws BookStoreException;
+	}
+
+	/**
+	 * A call reading books by ISBN from the shards
+	 */
+	private abstract static class ShardedRead<B extends Book> {
+
+		/**
+		 * Reads the books of the part of the call for a shard
+		 * 
+		 * @param shard
+		 * @param part
+		 * @return
+		 * @throws BookStoreException
+		 */
+		abstract List<B> read(CertainBookStore shard, Set<Integer> part)
+				throws BookStoreException;
+	}
+
+	/**
+	 * Buys book copies, recording the sale misses of the books lacking copies
+	 * in all the shards before failing
+	 */
+	private static final class BuyCopies extends ShardedUpdate<BookCopy> {
+		private final Map<CertainBookStore, Set<BookCopy>> missedCopies = new HashMap<CertainBookStore, Set<BookCopy>>();
+
+		int getISBN(BookCopy bookCopy) {
+			return bookCopy.getISBN();
+		}
+
+		void check(CertainBookStore shard, Set<BookCopy> part)
+				throws BookStoreException {
+			Set<Integer> isbns = new HashSet<Integer>(part.size());
+			for (BookCopy bookCopy : part) {
+				if (bookCopy.getNumCopies() < 0)
+					throw new BookStoreException(BookStoreConstants.NUM_COPIES
+							+ bookCopy.getNumCopies()
+							+ BookStoreConstants.INVALID);
+				isbns.add(bookCopy.getISBN());
+			}
+			Map<Integer, StockBook> books = new HashMap<Integer, StockBook>();
+			for (StockBook book : shard.getBooksByISBN(isbns)) {
+				books.put(book.getISBN(), book);
+			}
+			Set<BookCopy> missed = new HashSet<BookCopy>();
+			for (BookCopy bookCopy : part) {
+				if (books.get(bookCopy.getISBN()).getNumCopies() < bookCopy
+						.getNumCopies()) {
+					missed.add(bookCopy);
+				}
+			}
+			if (!missed.isEmpty()) {
+				missedCopies.put(shard, missed);
+			}
+		}
+
+		void checked() throws BookStoreException {
+			if (missedCopies.isEmpty()) {
+				return;
+			}
+			// Buying the missed copies from their shards records the misses
+			for (Map.Entry<CertainBookStore, Set<BookCopy>> missed : missedCopies
+					.entrySet()) {
+				try {
+					missed.getKey().buyBooks(missed.getValue());
+				} catch (BookStoreException ex) {
+					;
+				}
+			}
+			throw new BookStoreException(BookStoreConstants.BOOK
+					+ BookStoreConstants.NOT_AVAILABLE);
+		}
+
+		void apply(CertainBookStore shard, Set<BookCopy> part)
+				throws BookStoreException {
+			shard.buyBooks(part);
+		}
+	}
+
+	public ShardedBookStore(int numShards) {
+		this(numShards, BookStoreConcurrencyMode.TWO_LEVEL_LOCKING,
+				BookStoreBackend.HEAP);
+	}
+
+	public ShardedBookStore(int numShards,
+			BookStoreConcurrencyMode concurrencyMode, BookStoreBackend backend) {
+		if (numShards < 1) {
+			throw new IllegalArgumentException("numShards = " + numShards
+					+ ", but it must be positive");
+		}
+		shards = new CertainBookStore[numShards];
+		shardLocks = new ReadWriteLock[numShards];
+		for (int i = 0; i < numShards; i++) {
+			shards[i] = new CertainBookStore(concurrencyMode, backend);
+			shardLocks[i] = new ReentrantReadWriteLock();
+		}
+	}
+
+	/**
+	 * Returns the number of shards configured by the shards system property,
+	 * or 1 if the property is not set
+	 * 
+	 * @return
+	 */
+	public static int getConfiguredNumShards() {
+		String numShardsProperty = System
+				.getProperty(BookStoreConstants.PROPERTY_KEY_NUM_SHARDS);
+		if (numShardsProperty == null || numShardsProperty.isEmpty()) {
+			return 1;
+		}
+		return Integer.parseInt(numShardsProperty);
+	}
+
+	public int getNumShards() {
+		return shards.length;
+	}
+
+	/**
+	 * Returns the index of the shard holding the book with the ISBN
+	 * 
+	 * @param ISBN
+	 * @return
+	 */
+	private int shardOf(int ISBN) {
+		return BookStoreUtility.partitionOf(ISBN, shards.length);
+	}
+
+	/**
+	 * Splits the elements of a call by the shard of their books
+	 * 
+	 * @param elements
+	 * @param update
+	 * @return the parts of the call by ascending shard index
+	 */
+	private <T> SortedMap<Integer, Set<T>> partition(Set<T> elements,
+			ShardedUpdate<T> update) {
+		SortedMap<Integer, Set<T>> parts = new TreeMap<Integer, Set<T>>();
+		for (T element : elements) {
+			int shard = shardOf(update.getISBN(element));
+			Set<T> part = parts.get(shard);
+			if (part == null) {
+				part = new HashSet<T>();
+				parts.put(shard, part);
+			}
+			part.add(element);
+		}
+		return parts;
+	}
+
+	/**
+	 * Splits a set of ISBNs by shard
+	 * 
+	 * @param isbns
+	 * @return the parts of the set by ascending shard index
+	 */
+	private SortedMap<Integer, Set<Integer>> partitionISBNs(Set<Integer> isbns) {
+		SortedMap<Integer, Set<Integer>> parts = new TreeMap<Integer, Set<Integer>>();
+		for (Integer ISBN : isbns) {
+			// A null ISBN is rejected by the shard it is sent to
+			int shard = (ISBN == null) ? 0 : shardOf(ISBN);
+			Set<Integer> part = parts.get(shard);
+			if (part == null) {
+				part = new HashSet<Integer>();
+				parts.put(shard, part);
+			}
+			part.add(ISBN);
+		}
+		return parts;
+	}
+
+	/**
+	 * Locks the shards with the given indexes, or all the shards if
+	 * shardIndexes is null, in ascending order
+	 * 
+	 * @param shardIndexes
+	 *            in ascending order
+	 * @param exclusive
+	 * @return the locks to release with unlock
+	 */
+	private List<Lock> lockShards(Collection<Integer> shardIndexes,
+			boolean exclusive) {
+		List<Lock> locks = new ArrayList<Lock>();
+		if (shardIndexes == null) {
+			for (ReadWriteLock shardLock : shardLocks) {
+				locks.add(exclusive ? shardLock.writeLock() : shardLock
+						.readLock());
+			}
+		} else {
+			for (int shard : shardIndexes) {
+				locks.add(exclusive ? shardLocks[shard].writeLock()
+						: shardLocks[shard].readLock());
+			}
+		}
+		for (Lock lock : locks) {
+			lock.lock();
+		}
+		return locks;
+	}
+
+	/**
+	 * Releases the locks taken by lockShards in the reverse order of
+	 * acquisition
+	 * 
+	 * @param locks
+	 */
+	private void unlock(List<Lock> locks) {
+		for (int i = locks.size() - 1; i >= 0; i--) {
+			locks.get(i).unlock();
+		}
+	}
+
+	/**
+	 * Runs a call changing books, either in the single shard of its books or
+	 * in two passes over the shards of its books
+	 * 
+	 * @param elements
+	 * @param update
+	 * @throws BookStoreException
+	 */
+	private <T> void update(Set<T> elements, ShardedUpdate<T> update)
+			throws BookStoreException {
+		if (elements == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		SortedMap<Integer, Set<T>> parts = partition(elements, update);
+		if (parts.size() <= 1) {
+			int shard = parts.isEmpty() ? 0 : parts.firstKey();
+			List<Lock> locks = lockShards(Collections.singleton(shard), false);
+			try {
+				update.apply(shards[shard], elements);
+			} finally {
+				unlock(locks);
+			}
+			return;
+		}
+
+		List<Lock> locks = lockShards(parts.keySet(), true);
+		try {
+			updateLockedShards(parts, update);
+		} finally {
+			unlock(locks);
+		}
+	}
+
+	/**
+	 * Checks and then applies the parts of a call, whose shards are locked
+	 * exclusively by the caller
+	 * 
+	 * @param parts
+	 * @param update
+	 * @throws BookStoreException
+	 */
+	private <T> void updateLockedShards(SortedMap<Integer, Set<T>> parts,
+			ShardedUpdate<T> update) throws BookStoreException {
+		for (Map.Entry<Integer, Set<T>> part : parts.entrySet()) {
+			update.check(shards[part.getKey()], part.getValue());
+		}
+		update.checked();
+		for (Map.Entry<Integer, Set<T>> part : parts.entrySet()) {
+			update.apply(shards[part.getKey()], part.getValue());
+		}
+	}
+
+	/**
+	 * Runs a call reading books by ISBN and returns the books in the order of
+	 * the set
+	 * 
+	 * @param isbnSet
+	 * @param read
+	 * @return
+	 * @throws BookStoreException
+	 */
+	private <B extends Book> List<B> read(Set<Integer> isbnSet,
+			ShardedRead<B> read) throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		SortedMap<Integer, Set<Integer>> parts = partitionISBNs(isbnSet);
+		if (parts.size() <= 1) {
+			int shard = parts.isEmpty() ? 0 : parts.firstKey();
+			List<Lock> locks = lockShards(Collections.singleton(shard), false);
+			try {
+				return read.read(shards[shard], isbnSet);
+			} finally {
+				unlock(locks);
+			}
+		}
+
+		Map<Integer, B> books = new HashMap<Integer, B>(isbnSet.size());
+		List<Lock> locks = lockShards(parts.keySet(), false);
+		try {
+			for (Map.Entry<Integer, Set<Integer>> part : parts.entrySet()) {
+				for (B book : read.read(shards[part.getKey()], part.getValue())) {
+					books.put(book.getISBN(), book);
+				}
+			}
+		} finally {
+			unlock(locks);
+		}
+		List<B> listBooks = new ArrayList<B>(isbnSet.size());
+		for (Integer ISBN : isbnSet) {
+			listBooks.add(books.get(ISBN));
+		}
+		return listBooks;
+	}
+
+	/**
+	 * Draws how many of numBooks editor picks sampled uniformly from the
+	 * whole store fall in each shard
+	 * 
+	 * @param numBooks
+	 * @return the number of picks to sample from each shard
+	 */
+	private int[] sampleEditorPickCounts(int numBooks) {
+		int[] numPicks = new int[shards.length];
+		int totalPicks = 0;
+		for (int i = 0; i < shards.length; i++) {
+			numPicks[i] = shards[i].getNumEditorPicks();
+			totalPicks += numPicks[i];
+		}
+
+		// Draws the picks one at a time without replacement, only keeping
+		// track of the shard each pick is in
+		int[] numSampled = new int[shards.length];
+		Random random = ThreadLocalRandom.current();
+		for (int n = Math.min(numBooks, totalPicks); n > 0; n--, totalPicks--) {
+			int pick = random.nextInt(totalPicks);
+			int shard = 0;
+			while (pick >= numPicks[shard]) {
+				pick -= numPicks[shard++];
+			}
+			numPicks[shard]--;
+			numSampled[shard]++;
+		}
+		return numSampled;
+	}
+
+	/**
+	 * Returns the indexes of the shards with a positive count, in ascending
+	 * order
+	 * 
+	 * @param counts
+	 * @return
+	 */
+	private static List<Integer> shardsWithCounts(int[] counts) {
+		List<Integer> shardIndexes = new ArrayList<Integer>();
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] > 0) {
+				shardIndexes.add(i);
+			}
+		}
+		return shardIndexes;
+	}
+
+	public void addBooks(Set<StockBook> bookSet) throws BookStoreException {
+		update(bookSet, new ShardedUpdate<StockBook>() {
+			int getISBN(StockBook book) {
+				return book.getISBN();
+			}
+
+			void check(CertainBookStore shard, Set<StockBook> part)
+					throws BookStoreException {
+				for (StockBook book : part) {
+					CertainBookStore.validateBook(book);
+					if (shard.containsBook(book.getISBN())) {
+						throw new BookStoreException(BookStoreConstants.ISBN
+								+ book.getISBN()
+								+ BookStoreConstants.DUPLICATED);
+					}
+				}
+			}
+
+			void apply(CertainBookStore shard, Set<StockBook> part)
+					throws BookStoreException {
+				shard.addBooks(part);
+			}
+		});
+	}
+
+	public void addCopies(Set<BookCopy> bookCopiesSet)
+			throws BookStoreException {
+		update(bookCopiesSet, new ShardedUpdate<BookCopy>() {
+			int getISBN(BookCopy bookCopy) {
+				return bookCopy.getISBN();
+			}
+
+			void check(CertainBookStore shard, Set<BookCopy> part)
+					throws BookStoreException {
+				Set<Integer> isbns = new HashSet<Integer>(part.size());
+				for (BookCopy bookCopy : part) {
+					if (BookStoreUtility.isInvalidNoCopies(bookCopy
+							.getNumCopies()))
+						throw new BookStoreException(
+								BookStoreConstants.NUM_COPIES
+										+ bookCopy.getNumCopies()
+										+ BookStoreConstants.INVALID);
+					isbns.add(bookCopy.getISBN());
+				}
+				// Fails if a book is not in the shard
+				shard.getBooksByISBN(isbns);
+			}
+
+			void apply(CertainBookStore shard, Set<BookCopy> part)
+					throws BookStoreException {
+				shard.addCopies(part);
+			}
+		});
+	}
+
+	public List<StockBook> getBooks() throws BookStoreException {
+		List<StockBook> listBooks = new ArrayList<StockBook>();
+		List<Lock> locks = lockShards(null, false);
+		try {
+			for (CertainBookStore shard : shards) {
+				listBooks.addAll(shard.getBooks());
+			}
+		} finally {
+			unlock(locks);
+		}
+		return Collections.unmodifiableList(listBooks);
+	}
+
+	public void updateEditorPicks(Set<BookEditorPick> editorPicks)
+			throws BookStoreException {
+		update(editorPicks, new ShardedUpdate<BookEditorPick>() {
+			int getISBN(BookEditorPick editorPick) {
+				return editorPick.getISBN();
+			}
+
+			void check(CertainBookStore shard, Set<BookEditorPick> part)
+					throws BookStoreException {
+				Set<Integer> isbns = new HashSet<Integer>(part.size());
+				for (BookEditorPick editorPick : part) {
+					isbns.add(editorPick.getISBN());
+				}
+				shard.getBooksByISBN(isbns);
+			}
+
+			void apply(CertainBookStore shard, Set<BookEditorPick> part)
+					throws BookStoreException {
+				shard.updateEditorPicks(part);
+			}
+		});
+	}
+
+	public void buyBooks(Set<BookCopy> bookCopiesToBuy)
+			throws BookStoreException {
+		update(bookCopiesToBuy, new BuyCopies());
+	}
+
+	public List<Book> buyEditorPicks(int numBooks, int numCopies)
+			throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks
+					+ ", but it must be positive");
+		}
+		if (numCopies < 0) {
+			throw new BookStoreException(BookStoreConstants.NUM_COPIES
+					+ numCopies + BookStoreConstants.INVALID);
+		}
+
+		while (true) {
+			int[] numSampled = sampleEditorPickCounts(numBooks);
+			List<Integer> sampledShards = shardsWithCounts(numSampled);
+			if (sampledShards.size() <= 1) {
+				int shard = sampledShards.isEmpty() ? 0 : sampledShards.get(0);
+				List<Lock> locks = lockShards(Collections.singleton(shard),
+						false);
+				try {
+					return shards[shard].buyEditorPicks(numSampled[shard],
+							numCopies);
+				} finally {
+					unlock(locks);
+				}
+			}
+
+			List<Lock> locks = lockShards(sampledShards, true);
+			try {
+				// The shards can not change while we hold their locks, but
+				// they may have lost picks before we got the locks, in which
+				// case we sample again
+				List<Book> picks = new ArrayList<Book>();
+				SortedMap<Integer, Set<BookCopy>> parts = new TreeMap<Integer, Set<BookCopy>>();
+				for (int shard : sampledShards) {
+					List<Book> shardPicks = shards[shard]
+							.getEditorPicks(numSampled[shard]);
+					if (shardPicks.size() < numSampled[shard]) {
+						break;
+					}
+					Set<BookCopy> part = new HashSet<BookCopy>();
+					for (Book pick : shardPicks) {
+						part.add(new BookCopy(pick.getISBN(), numCopies));
+					}
+					picks.addAll(shardPicks);
+					parts.put(shard, part);
+				}
+				if (parts.size() < sampledShards.size()) {
+					continue;
+				}
+
+				updateLockedShards(parts, new BuyCopies());
+				Collections.shuffle(picks, ThreadLocalRandom.current());
+				return picks;
+			} finally {
+				unlock(locks);
+			}
+		}
+	}
+
+	public List<StockBook> getBooksByISBN(Set<Integer> isbnSet)
+			throws BookStoreException {
+		return read(isbnSet, new ShardedRead<StockBook>() {
+			List<StockBook> read(CertainBookStore shard, Set<Integer> part)
+					throws BookStoreException {
+				return shard.getBooksByISBN(part);
+			}
+		});
+	}
+
+	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
+		return read(isbnSet, new ShardedRead<Book>() {
+			List<Book> read(CertainBookStore shard, Set<Integer> part)
+					throws BookStoreException {
+				return shard.getBooks(part);
+			}
+		});
+	}
+
+	public List<Book> getEditorPicks(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks
+					+ ", but it must be positive");
+		}
+
+		int[] numSampled = sampleEditorPickCounts(numBooks);
+		List<Integer> sampledShards = shardsWithCounts(numSampled);
+		List<Book> picks = new ArrayList<Book>();
+		List<Lock> locks = lockShards(sampledShards, false);
+		try {
+			for (int shard : sampledShards) {
+				picks.addAll(shards[shard].getEditorPicks(numSampled[shard]));
+			}
+		} finally {
+			unlock(locks);
+		}
+		Collections.shuffle(picks, ThreadLocalRandom.current());
+		return picks;
+	}
+
+	public List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks
+					+ ", but it must be positive");
+		}
+
+		// The top books of the store are among the top books of each shard
+		List<RatingIndex.Entry> entries = new ArrayList<RatingIndex.Entry>();
+		List<Lock> locks = lockShards(null, false);
+		try {
+			for (CertainBookStore shard : shards) {
+				entries.addAll(shard.getTopRatedEntries(numBooks));
+			}
+		} finally {
+			unlock(locks);
+		}
+		Collections.sort(entries, RatingIndex.BY_AVERAGE_RATING);
+
+		List<Book> topBooks = new ArrayList<Book>(Math.min(numBooks,
+				entries.size()));
+		for (RatingIndex.Entry entry : entries) {
+			if (topBooks.size() == numBooks) {
+				break;
+			}
+			topBooks.add(entry.immutableBook());
+		}
+		return topBooks;
+	}
+
+	public List<StockBook> getBooksInDemand() throws BookStoreException {
+		List<StockBook> listBooks = new ArrayList<StockBook>();
+		List<Lock> locks = lockShards(null, false);
+		try {
+			for (CertainBookStore shard : shards) {
+				listBooks.addAll(shard.getBooksInDemand());
+			}
+		} finally {
+			unlock(locks);
+		}
+		return listBooks;
+	}
+
+	public void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
+		update(bookRating, new ShardedUpdate<BookRating>() {
+			int getISBN(BookRating rating) {
+				return rating.getISBN();
+			}
+
+			void check(CertainBookStore shard, Set<BookRating> part)
+					throws BookStoreException {
+				Set<Integer> isbns = new HashSet<Integer>(part.size());
+				for (BookRating rating : part) {
+					if (BookStoreUtility.isInvalidRating(rating.getRating()))
+						throw new BookStoreException(BookStoreConstants.RATING
+								+ rating.getRating()
+								+ BookStoreConstants.INVALID);
+					isbns.add(rating.getISBN());
+				}
+				shard.getBooksByISBN(isbns);
+			}
+
+			void apply(CertainBookStore shard, Set<BookRating> part)
+					throws BookStoreException {
+				shard.rateBooks(part);
+			}
+		});
+	}
+
+	public void removeAllBooks() throws BookStoreException {
+		List<Lock> locks = lockShards(null, true);
+		try {
+			for (CertainBookStore shard : shards) {
+				shard.removeAllBooks();
+			}
+		} finally {
+			unlock(locks);
+		}
+	}
+
+	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
+		update(isbnSet, new ShardedUpdate<Integer>() {
+			int getISBN(Integer ISBN) {
+				// A null ISBN is rejected by the shard it is sent to
+				return (ISBN == null) ? 0 : ISBN;
+			}
+
+			void check(CertainBookStore shard, Set<Integer> part)
+					throws BookStoreException {
+				shard.getBooksByISBN(part);
+			}
+
+			void apply(CertainBookStore shard, Set<Integer> part)
+					throws BookStoreException {
+				shard.removeBooks(part);
+			}
+		});
+	}
+
+	public long importBooks(InputStream in, int batchSize,
+			BookStoreImportListener listener) throws BookStoreException {
+		if (in == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+		return new BookStoreCSVReader(in).addBooksTo(this, batchSize,
+				listener);
+	}
+
+	/**
+	 * Writes the books of the shards one shard after the other, as
+	 * CertainBookStore.exportBooks does
+	 */
+	public long exportBooks(OutputStream out) throws BookStoreException {
+		if (out == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		try {
+			BookStoreCSVWriter writer = new BookStoreCSVWriter(out);
+			writer.writeHeader();
+			long numBooks = 0;
+			for (CertainBookStore shard : shards) {
+				numBooks += shard.exportBooks(writer);
+			}
+			writer.flush();
+			return numBooks;
+		} catch (IOException ex) {
+			throw new BookStoreException("The export stream"
+					+ BookStoreConstants.NOT_AVAILABLE, ex);
+		}
+	}
+}
@@ -0,0 +1,276 @@
+package com.acertainbookstore.client;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.util.thread.ExecutorThreadPool;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import com.acertainbookstore.business.Book;
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.interfaces.AsyncBookStore;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreMessageTag;
+import com.acertainbookstore.utils.BookStoreResponse;
+import com.acertainbookstore.utils.BookStoreThreadMode;
+import com.acertainbookstore.utils.BookStoreWireFormat;
+
+/**
+ * AsyncBookStoreHTTPProxy implements the client level asynchronous
+ * CertainBookStore API declared in the AsyncBookStore class
+ * 
+ * The requests are sent without waiting for their responses, so a single
+ * thread can have as many requests in flight as the client has connections
+ * to the server, further requests being queued by the client. The number of
+ * connections is set by the client connections system property unless given
+ * to the constructor, and the client handles the responses on a pool of
+ * platform threads or, in the VIRTUAL thread mode, on virtual threads.
+ * 
+ */
+public class AsyncBookStoreHTTPProxy implements AsyncBookStore {
+	protected HttpClient client;
+	protected String serverAddress;
+	protected BookStoreWireFormat wireFormat;
+
+	/**
+	 * Initialize the client object, using the wire format configured by the
+	 * wire format system property
+	 */
+	public AsyncBookStoreHTTPProxy(String serverAddress) throws Exception {
+		this(serverAddress, BookStoreWireFormat.getConfiguredFormat());
+	}
+
+	/**
+	 * Initialize the client object, using the given wire format for the
+	 * messages
+	 */
+	public AsyncBookStoreHTTPProxy(String serverAddress,
+			BookStoreWireFormat wireFormat) throws Exception {
+		this(serverAddress, wireFormat, BookStoreThreadMode
+				.getConfiguredMode(), getConfiguredMaxConnections());
+	}
+
+	/**
+	 * Initialize the client object, using the given wire format for the
+	 * messages and keeping up to maxConnections requests in flight, whose
+	 * responses are handled on threads of the given mode
+	 */
+	public AsyncBookStoreHTTPProxy(String serverAddress,
+			BookStoreWireFormat wireFormat, BookStoreThreadMode threadMode,
+			int maxConnections) throws Exception {
+		setServerAddress(serverAddress);
+		this.wireFormat = wireFormat;
+		client = newHttpClient(threadMode, maxConnections);
+	}
+
+	/**
+	 * Returns a started client keeping up to maxConnections connections to
+	 * every address. In the PLATFORM mode the pool of the client grows with
+	 * the connections, keeping the default of CLIENT_MAX_THREADSPOOL_THREADS
+	 * threads for CLIENT_MAX_CONNECTION_ADDRESS connections.
+	 * 
+	 * @param threadMode
+	 * @param maxConnections
+	 * @return
+	 * @throws Exception
+	 */
+	static HttpClient newHttpClient(BookStoreThreadMode threadMode,
+			int maxConnections) throws Exception {
+		HttpClient client = new HttpClient();
+		client.setConnectorType(HttpClient.CONNECTOR_SELECT_CHANNEL);
+		// max concurrent connections to every address
+		client.setMaxConnectionsPerAddress(maxConnections);
+		// max threads
+		int numPlatformThreads = maxConnections
+				+ BookStoreClientConstants.CLIENT_MAX_THREADSPOOL_THREADS
+				- BookStoreClientConstants.CLIENT_MAX_CONNECTION_ADDRESS;
+		if (threadMode == BookStoreThreadMode.VIRTUAL) {
+			client.setThreadPool(new ExecutorThreadPool(threadMode
+					.newExecutor(numPlatformThreads)));
+		} else {
+			client.setThreadPool(new QueuedThreadPool(numPlatformThreads));
+		}
+		// if no server reply within the timeout, the request expires
+		client.setTimeout(BookStoreClientConstants.CLIENT_MAX_TIMEOUT_MILLISECS);
+		client.start();
+		return client;
+	}
+
+	/**
+	 * Returns the number of connections configured by the client connections
+	 * system property, or CLIENT_MAX_CONNECTION_ADDRESS if the property is
+	 * not set
+	 * 
+	 * @return
+	 */
+	public static int getConfiguredMaxConnections() {
+		String connectionsProperty = System
+				.getProperty(BookStoreConstants.PROPERTY_KEY_CLIENT_CONNECTIONS);
+		if (connectionsProperty == null || connectionsProperty.isEmpty()) {
+			return BookStoreClientConstants.CLIENT_MAX_CONNECTION_ADDRESS;
+		}
+		return Integer.parseInt(connectionsProperty);
+	}
+
+	public String getServerAddress() {
+		return serverAddress;
+	}
+
+	public void setServerAddress(String serverAddress) {
+		this.serverAddress = serverAddress;
+	}
+
+	public BookStoreWireFormat getWireFormat() {
+		return wireFormat;
+	}
+
+	public CompletableFuture<Void> buyBooks(Set<BookCopy> isbnSet) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.BUYBOOKS;
+
+		return new BookStoreExchange<Void>(urlString, wireFormat)
+				.setRequestObject(isbnSet).send(client);
+	}
+
+	public CompletableFuture<List<Book>> buyEditorPicks(int numBooks,
+			int numCopies) {
+		String urlString = serverAddress + "/"
+				+ BookStoreMessageTag.BUYEDITORPICKS + "?"
+				+ BookStoreConstants.BOOK_NUM_PARAM + "=" + numBooks + "&"
+				+ BookStoreConstants.COPIES_NUM_PARAM + "=" + numCopies;
+
+		// The call changes the store, so it is a POST without content
+		BookStoreExchange<List<Book>> exchange = new BookStoreExchange<List<Book>>(
+				urlString, wireFormat);
+		exchange.setMethod("POST");
+		return exchange.send(client);
+	}
+
+	/**
+	 * Prepares the part of this server of a buy spanning several servers,
+	 * which then has to be committed or aborted with the same transaction id
+	 * 
+	 * @param transactionId
+	 * @param isbnSet
+	 * @return
+	 */
+	public CompletableFuture<Void> prepareBuyBooks(long transactionId,
+			Set<BookCopy> isbnSet) {
+		String urlString = serverAddress + "/"
+				+ BookStoreMessageTag.PREPAREBUYBOOKS + "?"
+				+ BookStoreConstants.TRANSACTION_ID_PARAM + "=" + transactionId;
+
+		return new BookStoreExchange<Void>(urlString, wireFormat)
+				.setRequestObject(isbnSet).send(client);
+	}
+
+	/**
+	 * Commits a buy prepared with prepareBuyBooks
+	 * 
+	 * @param transactionId
+	 * @return
+	 */
+	public CompletableFuture<Void> commitBuyBooks(long transactionId) {
+		return sendTransactionDecision(BookStoreMessageTag.COMMITBUYBOOKS,
+				transactionId);
+	}
+
+	/**
+	 * Aborts a buy prepared with prepareBuyBooks
+	 * 
+	 * @param transactionId
+	 * @return
+	 */
+	public CompletableFuture<Void> abortBuyBooks(long transactionId) {
+		return sendTransactionDecision(BookStoreMessageTag.ABORTBUYBOOKS,
+				transactionId);
+	}
+
+	private CompletableFuture<Void> sendTransactionDecision(
+			BookStoreMessageTag tag, long transactionId) {
+		String urlString = serverAddress + "/" + tag + "?"
+				+ BookStoreConstants.TRANSACTION_ID_PARAM + "=" + transactionId;
+
+		// The call changes the store, so it is a POST without content
+		BookStoreExchange<Void> exchange = new BookStoreExchange<Void>(
+				urlString, wireFormat);
+		exchange.setMethod("POST");
+		return exchange.send(client);
+	}
+
+	public CompletableFuture<List<Book>> getBooks(Set<Integer> isbnSet) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.GETBOOKS;
+
+		return new BookStoreExchange<List<Book>>(urlString, wireFormat)
+				.setRequestObject(isbnSet).send(client);
+	}
+
+	public CompletableFuture<List<Book>> getEditorPicks(int numBooks) {
+		// The decimal form of an int needs no URL encoding
+		String urlString = serverAddress + "/"
+				+ BookStoreMessageTag.EDITORPICKS + "?"
+				+ BookStoreConstants.BOOK_NUM_PARAM + "=" + numBooks;
+
+		return new BookStoreExchange<List<Book>>(urlString, wireFormat)
+				.send(client);
+	}
+
+	public CompletableFuture<Void> rateBooks(Set<BookRating> bookRating) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.RATEBOOKS;
+
+		return new BookStoreExchange<Void>(urlString, wireFormat)
+				.setRequestObject(bookRating).send(client);
+	}
+
+	public CompletableFuture<List<Book>> getTopRatedBooks(int numBooks) {
+		String urlString = serverAddress + "/"
+				+ BookStoreMessageTag.TOPRATEDBOOKS + "?"
+				+ BookStoreConstants.BOOK_NUM_PARAM + "=" + numBooks;
+
+		return new BookStoreExchange<List<Book>>(urlString, wireFormat)
+				.send(client);
+	}
+
+	/**
+	 * Sends the calls of the batch in a single BATCH message. The future
+	 * gives one response per call that was run, and fails only if the batch
+	 * could not be run at all.
+	 * 
+	 * @param batch
+	 * @return
+	 */
+	public CompletableFuture<List<BookStoreResponse>> executeBatch(
+			BookStoreBatch batch) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.BATCH;
+
+		return new BookStoreExchange<List<BookStoreResponse>>(urlString,
+				wireFormat).setRequestObject(batch.getOperations()).send(
+				client);
+	}
+
+	/**
+	 * Returns the future of the replication status of the server: how many
+	 * milliseconds its books may lag behind its primary, and how many calls
+	 * of the primary it still had to apply when it last heard from it. Both
+	 * are zero for a server that is not a replica.
+	 * 
+	 * @return
+	 */
+	public CompletableFuture<List<Long>> getReplicationStatus() {
+		String urlString = serverAddress + "/"
+				+ BookStoreMessageTag.REPLICATIONSTATUS;
+
+		return new BookStoreExchange<List<Long>>(urlString, wireFormat)
+				.send(client);
+	}
+
+	public void stop() {
+		try {
+			client.stop();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+}
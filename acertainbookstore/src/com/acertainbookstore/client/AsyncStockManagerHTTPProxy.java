@@ -0,0 +1,219 @@
+package com.acertainbookstore.client;
+
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import org.eclipse.jetty.client.HttpClient;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.interfaces.AsyncStockManager;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreMessageTag;
+import com.acertainbookstore.utils.BookStoreResponse;
+import com.acertainbookstore.utils.BookStoreThreadMode;
+import com.acertainbookstore.utils.BookStoreWireFormat;
+
+/**
+ * AsyncStockManagerHTTPProxy implements the client level asynchronous
+ * CertainBookStore API declared in the AsyncStockManager class
+ * 
+ * Uses the HTTP protocol for communication with the server, without waiting
+ * for the responses, over as many connections as an AsyncBookStoreHTTPProxy
+ * 
+ */
+public class AsyncStockManagerHTTPProxy implements AsyncStockManager {
+	protected HttpClient client;
+	protected String serverAddress;
+	protected BookStoreWireFormat wireFormat;
+
+	/**
+	 * Initialize the client object, using the wire format configured by the
+	 * wire format system property
+	 */
+	public AsyncStockManagerHTTPProxy(String serverAddress) throws Exception {
+		this(serverAddress, BookStoreWireFormat.getConfiguredFormat());
+	}
+
+	/**
+	 * Initialize the client object, using the given wire format for the
+	 * messages
+	 */
+	public AsyncStockManagerHTTPProxy(String serverAddress,
+			BookStoreWireFormat wireFormat) throws Exception {
+		this(serverAddress, wireFormat, BookStoreThreadMode
+				.getConfiguredMode(), AsyncBookStoreHTTPProxy
+				.getConfiguredMaxConnections());
+	}
+
+	/**
+	 * Initialize the client object, using the given wire format for the
+	 * messages and keeping up to maxConnections requests in flight, whose
+	 * responses are handled on threads of the given mode
+	 */
+	public AsyncStockManagerHTTPProxy(String serverAddress,
+			BookStoreWireFormat wireFormat, BookStoreThreadMode threadMode,
+			int maxConnections) throws Exception {
+		setServerAddress(serverAddress);
+		this.wireFormat = wireFormat;
+		client = AsyncBookStoreHTTPProxy.newHttpClient(threadMode,
+				maxConnections);
+	}
+
+	public String getServerAddress() {
+		return serverAddress;
+	}
+
+	public void setServerAddress(String serverAddress) {
+		this.serverAddress = serverAddress;
+	}
+
+	public BookStoreWireFormat getWireFormat() {
+		return wireFormat;
+	}
+
+	public CompletableFuture<Void> addBooks(Set<StockBook> bookSet) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.ADDBOOKS;
+
+		return new BookStoreExchange<Void>(urlString, wireFormat)
+				.setRequestObject(bookSet).send(client);
+	}
+
+	public CompletableFuture<Void> addCopies(Set<BookCopy> bookCopiesSet) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.ADDCOPIES;
+
+		return new BookStoreExchange<Void>(urlString, wireFormat)
+				.setRequestObject(bookCopiesSet).send(client);
+	}
+
+	public CompletableFuture<List<StockBook>> getBooks() {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.LISTBOOKS;
+
+		return new BookStoreExchange<List<StockBook>>(urlString, wireFormat)
+				.send(client);
+	}
+
+	public CompletableFuture<Void> updateEditorPicks(
+			Set<BookEditorPick> editorPicksValues) {
+		String urlString = serverAddress + "/"
+				+ BookStoreMessageTag.UPDATEEDITORPICKS;
+
+		return new BookStoreExchange<Void>(urlString, wireFormat)
+				.setRequestObject(editorPicksValues).send(client);
+	}
+
+	public CompletableFuture<List<StockBook>> getBooksInDemand() {
+		String urlString = serverAddress + "/"
+				+ BookStoreMessageTag.GETBOOKSINDEMAND;
+
+		return new BookStoreExchange<List<StockBook>>(urlString, wireFormat)
+				.send(client);
+	}
+
+	public CompletableFuture<Void> removeAllBooks() {
+		String urlString = serverAddress + "/"
+				+ BookStoreMessageTag.REMOVEALLBOOKS;
+
+		// The server ignores the content of the request
+		return new BookStoreExchange<Void>(urlString, wireFormat)
+				.setRequestObject(null).send(client);
+	}
+
+	public CompletableFuture<Void> removeBooks(Set<Integer> isbnSet) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.REMOVEBOOKS;
+
+		return new BookStoreExchange<Void>(urlString, wireFormat)
+				.setRequestObject(isbnSet).send(client);
+	}
+
+	public CompletableFuture<List<StockBook>> getBooksByISBN(Set<Integer> isbns) {
+		String urlString = serverAddress + "/"
+				+ BookStoreMessageTag.GETSTOCKBOOKSBYISBN;
+
+		return new BookStoreExchange<List<StockBook>>(urlString, wireFormat)
+				.setRequestObject(isbns).send(client);
+	}
+
+	/**
+	 * Sends the calls of the batch in a single BATCH message. The future
+	 * gives one response per call that was run, and fails only if the batch
+	 * could not be run at all.
+	 * 
+	 * @param batch
+	 * @return
+	 */
+	public CompletableFuture<List<BookStoreResponse>> executeBatch(
+			BookStoreBatch batch) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.BATCH;
+
+		return new BookStoreExchange<List<BookStoreResponse>>(urlString,
+				wireFormat).setRequestObject(batch.getOperations()).send(
+				client);
+	}
+
+	/**
+	 * Returns the future of the calls of the replication log of the server
+	 * from the sequence number, in the format returned by
+	 * CertainBookStore.readReplicationLog. The server waits a moment for the
+	 * next call if there is none yet.
+	 * 
+	 * @param epoch
+	 * @param fromSequence
+	 * @return
+	 */
+	public CompletableFuture<List<Object>> readReplicationLog(long epoch,
+			long fromSequence) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.REPLICATE
+				+ "?" + BookStoreConstants.EPOCH_PARAM + "=" + epoch + "&"
+				+ BookStoreConstants.SEQUENCE_PARAM + "=" + fromSequence;
+
+		return new BookStoreExchange<List<Object>>(urlString, wireFormat)
+				.send(client);
+	}
+
+	/**
+	 * Adds the books of a CSV batch, all of them or none, and returns the
+	 * future of the number of books added
+	 * 
+	 * @param csv
+	 * @return
+	 */
+	public CompletableFuture<Long> importBooks(byte[] csv) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.IMPORTBOOKS
+				+ "?" + BookStoreConstants.BATCH_SIZE_PARAM + "="
+				+ Integer.MAX_VALUE;
+
+		return new BookStoreExchange<List<Long>>(urlString, wireFormat)
+				.setRequestCSV(csv).send(client)
+				.thenApply(new Function<List<Long>, Long>() {
+					public Long apply(List<Long> result) {
+						return result.get(0);
+					}
+				});
+	}
+
+	/**
+	 * Streams the CSV export of the catalog to the output stream and returns
+	 * the future of the number of books exported
+	 * 
+	 * @param out
+	 * @return
+	 */
+	public CompletableFuture<Long> exportBooks(OutputStream out) {
+		String urlString = serverAddress + "/" + BookStoreMessageTag.EXPORTBOOKS;
+
+		return new BookStoreStreamExchange(urlString, out).send(client);
+	}
+
+	public void stop() {
+		try {
+			client.stop();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+}
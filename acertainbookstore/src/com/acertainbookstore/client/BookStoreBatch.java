@@ -0,0 +1,140 @@
+package com.acertainbookstore.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.utils.BookStoreBatchOperation;
+import com.acertainbookstore.utils.BookStoreBatchReference;
+import com.acertainbookstore.utils.BookStoreMessageTag;
+
+/**
+ * BookStoreBatch builds the list of calls sent in a single BATCH message by
+ * the executeBatch methods of the HTTP proxies. Every method adds a call and
+ * returns its step, the index of its response in the result of the batch,
+ * which later calls can refer to through a BookStoreBatchReference.
+ * 
+ * The server runs the calls in order and stops at the first call that fails.
+ * 
+ */
+public class BookStoreBatch {
+	private final List<BookStoreBatchOperation> operations = new ArrayList<BookStoreBatchOperation>();
+
+	private int add(BookStoreMessageTag tag, Object argument) {
+		operations.add(new BookStoreBatchOperation(tag, argument));
+		return operations.size() - 1;
+	}
+
+	/**
+	 * Returns a copy of the calls of the batch
+	 * 
+	 * @return
+	 */
+	public List<BookStoreBatchOperation> getOperations() {
+		return new ArrayList<BookStoreBatchOperation>(operations);
+	}
+
+	/**
+	 * Returns the number of calls of the batch
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return operations.size();
+	}
+
+	public int buyBooks(Set<BookCopy> booksToBuy) {
+		return add(BookStoreMessageTag.BUYBOOKS, booksToBuy);
+	}
+
+	/**
+	 * Buys the copies referred to by the reference, which must give a number
+	 * of copies
+	 * 
+	 * @param booksToBuy
+	 * @return
+	 */
+	public int buyBooks(BookStoreBatchReference booksToBuy) {
+		return add(BookStoreMessageTag.BUYBOOKS, booksToBuy);
+	}
+
+	public int getBooks(Set<Integer> isbnSet) {
+		return add(BookStoreMessageTag.GETBOOKS, isbnSet);
+	}
+
+	public int getBooks(BookStoreBatchReference isbnSet) {
+		return add(BookStoreMessageTag.GETBOOKS, isbnSet);
+	}
+
+	public int getEditorPicks(int numBooks) {
+		return add(BookStoreMessageTag.EDITORPICKS, numBooks);
+	}
+
+	public int rateBooks(Set<BookRating> bookRating) {
+		return add(BookStoreMessageTag.RATEBOOKS, bookRating);
+	}
+
+	public int getTopRatedBooks(int numBooks) {
+		return add(BookStoreMessageTag.TOPRATEDBOOKS, numBooks);
+	}
+
+	public int addBooks(Set<StockBook> bookSet) {
+		return add(BookStoreMessageTag.ADDBOOKS, bookSet);
+	}
+
+	public int addCopies(Set<BookCopy> bookCopiesSet) {
+		return add(BookStoreMessageTag.ADDCOPIES, bookCopiesSet);
+	}
+
+	/**
+	 * Adds the copies referred to by the reference, which must give a number
+	 * of copies
+	 * 
+	 * @param bookCopiesSet
+	 * @return
+	 */
+	public int addCopies(BookStoreBatchReference bookCopiesSet) {
+		return add(BookStoreMessageTag.ADDCOPIES, bookCopiesSet);
+	}
+
+	/**
+	 * Lists the books of the store, the getBooks call of the StockManager
+	 * 
+	 * @return
+	 */
+	public int getStockBooks() {
+		return add(BookStoreMessageTag.LISTBOOKS, null);
+	}
+
+	public int getBooksByISBN(Set<Integer> isbns) {
+		return add(BookStoreMessageTag.GETSTOCKBOOKSBYISBN, isbns);
+	}
+
+	public int getBooksByISBN(BookStoreBatchReference isbns) {
+		return add(BookStoreMessageTag.GETSTOCKBOOKSBYISBN, isbns);
+	}
+
+	public int getBooksInDemand() {
+		return add(BookStoreMessageTag.GETBOOKSINDEMAND, null);
+	}
+
+	public int updateEditorPicks(Set<BookEditorPick> editorPicks) {
+		return add(BookStoreMessageTag.UPDATEEDITORPICKS, editorPicks);
+	}
+
+	public int removeBooks(Set<Integer> isbnSet) {
+		return add(BookStoreMessageTag.REMOVEBOOKS, isbnSet);
+	}
+
+	public int removeBooks(BookStoreBatchReference isbnSet) {
+		return add(BookStoreMessageTag.REMOVEBOOKS, isbnSet);
+	}
+
+	public int removeAllBooks() {
+		return add(BookStoreMessageTag.REMOVEALLBOOKS, null);
+	}
+}
@@ -0,0 +1,168 @@
+package com.acertainbookstore.client;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.eclipse.jetty.client.ContentExchange;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.http.HttpHeaders;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+
+import com.acertainbookstore.utils.BookStoreBinaryCodec;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreResponse;
+import com.acertainbookstore.utils.BookStoreUtility;
+import com.acertainbookstore.utils.BookStoreWireFormat;
+
+/**
+ * BookStoreExchange is an HTTP exchange with the server whose outcome is
+ * delivered through a CompletableFuture. The future is completed from the
+ * callbacks of the Jetty client when the response has arrived or the
+ * exchange has failed, so no thread waits for the response.
+ * 
+ * The callbacks run on the threads of the client, which also run the
+ * dependent actions that are not registered with an executor.
+ * 
+ * @param <T>
+ *            the type of the result, the list of the response or Void
+ */
+final class BookStoreExchange<T> extends ContentExchange {
+	private final BookStoreWireFormat format;
+	private final CompletableFuture<T> future = new CompletableFuture<T>();
+
+	/**
+	 * Creates a GET exchange for the URL, asking for the response in the
+	 * given wire format
+	 * 
+	 * @param url
+	 * @param format
+	 */
+	BookStoreExchange(String url, BookStoreWireFormat format) {
+		this.format = format;
+		setURL(url);
+		setRequestHeader(HttpHeaders.ACCEPT, format.getContentType());
+	}
+
+	/**
+	 * Makes the exchange a POST of the object, serialized in the wire format
+	 * of the exchange
+	 * 
+	 * @param object
+	 * @return this exchange
+	 */
+	BookStoreExchange<T> setRequestObject(Object object) {
+		setMethod("POST");
+		setRequestContentType(format.getContentType());
+		setRequestContent(BookStoreUtility.serializeObjectToBuffer(object,
+				format));
+		return this;
+	}
+
+	/**
+	 * Makes the exchange a POST of CSV content, the response still being in
+	 * the wire format of the exchange
+	 * 
+	 * @param csv
+	 * @return this exchange
+	 */
+	BookStoreExchange<T> setRequestCSV(byte[] csv) {
+		setMethod("POST");
+		setRequestContentType(BookStoreConstants.CSV_CONTENT_TYPE);
+		setRequestContent(new ByteArrayBuffer(csv));
+		return this;
+	}
+
+	/**
+	 * Sends the exchange through the client and returns the future of its
+	 * result without waiting for the response
+	 * 
+	 * @param client
+	 * @return
+	 */
+	CompletableFuture<T> send(HttpClient client) {
+		try {
+			client.send(this);
+		} catch (IOException ex) {
+			future.completeExceptionally(new BookStoreException(
+					BookStoreClientConstants.strERR_CLIENT_REQUEST_SENDING, ex));
+		}
+		return future;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	protected void onResponseComplete() throws IOException {
+		super.onResponseComplete();
+		BookStoreResponse bookStoreResponse;
+		try {
+			if (format == BookStoreWireFormat.BINARY) {
+				bookStoreResponse = (BookStoreResponse) BookStoreBinaryCodec
+						.decode(getResponseContentBytes());
+			} else {
+				bookStoreResponse = (BookStoreResponse) BookStoreUtility
+						.deserializeXMLStringToObject(getResponseContent()
+								.trim());
+			}
+		} catch (Exception ex) {
+			future.completeExceptionally(new BookStoreException(
+					BookStoreClientConstants.strERR_CLIENT_RESPONSE_DECODING,
+					ex));
+			return;
+		}
+
+		BookStoreException ex = bookStoreResponse.getException();
+		if (ex != null) {
+			future.completeExceptionally(ex);
+		} else {
+			// The list of a response is null for the calls returning nothing
+			future.complete((T) bookStoreResponse.getList());
+		}
+	}
+
+	@Override
+	protected void onConnectionFailed(Throwable x) {
+		super.onConnectionFailed(x);
+		future.completeExceptionally(new BookStoreException(
+				BookStoreClientConstants.strERR_CLIENT_REQUEST_EXCEPTION, x));
+	}
+
+	@Override
+	protected void onException(Throwable x) {
+		super.onException(x);
+		future.completeExceptionally(new BookStoreException(
+				BookStoreClientConstants.strERR_CLIENT_REQUEST_EXCEPTION, x));
+	}
+
+	@Override
+	protected void onExpire() {
+		super.onExpire();
+		future.completeExceptionally(new BookStoreException(
+				BookStoreClientConstants.strERR_CLIENT_REQUEST_TIMEOUT));
+	}
+
+	/**
+	 * Waits for the result of a future returned by the asynchronous proxies,
+	 * passing on the BookStoreException it failed with
+	 * 
+	 * @param future
+	 * @return
+	 * @throws BookStoreException
+	 */
+	static <T> T waitFor(CompletableFuture<T> future) throws BookStoreException {
+		try {
+			return future.get();
+		} catch (InterruptedException ex) {
+			throw new BookStoreException(
+					BookStoreClientConstants.strERR_CLIENT_REQUEST_SENDING, ex);
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof BookStoreException) {
+				throw (BookStoreException) cause;
+			}
+			throw new BookStoreException(
+					BookStoreClientConstants.strERR_CLIENT_UNKNOWN, cause);
+		}
+	}
+}
@@ -3,142 +3,133 @@
  */
 package com.acertainbookstore.client;
 
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
 import java.util.List;
 import java.util.Set;
 
-import org.eclipse.jetty.client.ContentExchange;
-import org.eclipse.jetty.client.HttpClient;
-import org.eclipse.jetty.io.Buffer;
-import org.eclipse.jetty.io.ByteArrayBuffer;
-import org.eclipse.jetty.util.thread.QueuedThreadPool;
-
 import com.acertainbookstore.business.Book;
 import com.acertainbookstore.business.BookCopy;
 import com.acertainbookstore.business.BookRating;
 import com.acertainbookstore.interfaces.BookStore;
-import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
-import com.acertainbookstore.utils.BookStoreMessageTag;
-import com.acertainbookstore.utils.BookStoreUtility;
+import com.acertainbookstore.utils.BookStoreResponse;
+import com.acertainbookstore.utils.BookStoreThreadMode;
+import com.acertainbookstore.utils.BookStoreWireFormat;
 
 /**
  * BookStoreHTTPProxy implements the client level synchronous CertainBookStore
  * API declared in the BookStore class
  * 
+ * Every call is sent through an AsyncBookStoreHTTPProxy and waits for its
+ * result.
+ * 
  */
 public class BookStoreHTTPProxy implements BookStore {
-	protected HttpClient client;
-	protected String serverAddress;
+	protected AsyncBookStoreHTTPProxy asyncProxy;
 
 	/**
-	 * Initialize the client object
+	 * Initialize the client object, using the wire format configured by the
+	 * wire format system property
 	 */
 	public BookStoreHTTPProxy(String serverAddress) throws Exception {
-		setServerAddress(serverAddress);
-		client = new HttpClient();
-		client.setConnectorType(HttpClient.CONNECTOR_SELECT_CHANNEL);
-		client.setMaxConnectionsPerAddress(BookStoreClientConstants.CLIENT_MAX_CONNECTION_ADDRESS); // max
-																									// concurrent
-																									// connections
-																									// to
-																									// every
-																									// address
-		client.setThreadPool(new QueuedThreadPool(
-				BookStoreClientConstants.CLIENT_MAX_THREADSPOOL_THREADS)); // max
-																			// threads
-		client.setTimeout(BookStoreClientConstants.CLIENT_MAX_TIMEOUT_MILLISECS); // seconds
-																					// timeout;
-																					// if
-																					// no
-																					// server
-																					// reply,
-																					// the
-																					// request
-																					// expires
-		client.start();
+		this(serverAddress, BookStoreWireFormat.getConfiguredFormat());
+	}
+
+	/**
+	 * Initialize the client object, using the given wire format for the
+	 * messages
+	 */
+	public BookStoreHTTPProxy(String serverAddress,
+			BookStoreWireFormat wireFormat) throws Exception {
+		asyncProxy = new AsyncBookStoreHTTPProxy(serverAddress, wireFormat);
+	}
+
+	/**
+	 * Initialize the client object, using the given wire format for the
+	 * messages and up to maxConnections connections, whose responses are
+	 * handled on threads of the given mode
+	 */
+	public BookStoreHTTPProxy(String serverAddress,
+			BookStoreWireFormat wireFormat, BookStoreThreadMode threadMode,
+			int maxConnections) throws Exception {
+		asyncProxy = new AsyncBookStoreHTTPProxy(serverAddress, wireFormat,
+				threadMode, maxConnections);
 	}
 
 	public String getServerAddress() {
-		return serverAddress;
+		return asyncProxy.getServerAddress();
 	}
 
 	public void setServerAddress(String serverAddress) {
-		this.serverAddress = serverAddress;
+		asyncProxy.setServerAddress(serverAddress);
 	}
 
-	public void buyBooks(Set<BookCopy> isbnSet) throws BookStoreException {
-		ContentExchange exchange = new ContentExchange();
-		String urlString = serverAddress + "/" + BookStoreMessageTag.BUYBOOKS;
+	public BookStoreWireFormat getWireFormat() {
+		return asyncProxy.getWireFormat();
+	}
 
-		String listISBNsxmlString = BookStoreUtility
-				.serializeObjectToXMLString(isbnSet);
-		exchange.setMethod("POST");
-		exchange.setURL(urlString);
-		Buffer requestContent = new ByteArrayBuffer(listISBNsxmlString);
-		exchange.setRequestContent(requestContent);
+	/**
+	 * Returns the asynchronous proxy the calls are sent through, which may be
+	 * used to send further calls without waiting for them
+	 * 
+	 * @return
+	 */
+	public AsyncBookStoreHTTPProxy getAsyncProxy() {
+		return asyncProxy;
+	}
 
-		BookStoreUtility.SendAndRecv(this.client, exchange);
+	public void buyBooks(Set<BookCopy> isbnSet) throws BookStoreException {
+		BookStoreExchange.waitFor(asyncProxy.buyBooks(isbnSet));
+	}
 
+	public List<Book> buyEditorPicks(int numBooks, int numCopies)
+			throws BookStoreException {
+		return BookStoreExchange.waitFor(asyncProxy.buyEditorPicks(numBooks,
+				numCopies));
 	}
 
-	@SuppressWarnings("unchecked")
 	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
-		ContentExchange exchange = new ContentExchange();
-		String urlString = serverAddress + "/" + BookStoreMessageTag.GETBOOKS;
-
-		String listISBNsxmlString = BookStoreUtility
-				.serializeObjectToXMLString(isbnSet);
-		exchange.setMethod("POST");
-		exchange.setURL(urlString);
-		Buffer requestContent = new ByteArrayBuffer(listISBNsxmlString);
-		exchange.setRequestContent(requestContent);
-
-		return (List<Book>) BookStoreUtility.SendAndRecv(this.client, exchange);
+		return BookStoreExchange.waitFor(asyncProxy.getBooks(isbnSet));
 	}
 
-	@SuppressWarnings("unchecked")
 	public List<Book> getEditorPicks(int numBooks) throws BookStoreException {
-		ContentExchange exchange = new ContentExchange();
-		String urlEncodedNumBooks = null;
-
-		try {
-			urlEncodedNumBooks = URLEncoder.encode(Integer.toString(numBooks),
-					"UTF-8");
-		} catch (UnsupportedEncodingException ex) {
-			throw new BookStoreException("unsupported encoding of numbooks", ex);
-		}
-
-		String urlString = serverAddress + "/"
-				+ BookStoreMessageTag.EDITORPICKS + "?"
-				+ BookStoreConstants.BOOK_NUM_PARAM + "=" + urlEncodedNumBooks;
+		return BookStoreExchange.waitFor(asyncProxy.getEditorPicks(numBooks));
+	}
 
-		exchange.setURL(urlString);
+	/**
+	 * Sends the calls of the batch in a single BATCH message and returns one
+	 * response per call that was run
+	 * 
+	 * @param batch
+	 * @return
+	 * @throws BookStoreException
+	 */
+	public List<BookStoreResponse> executeBatch(BookStoreBatch batch)
+			throws BookStoreException {
+		return BookStoreExchange.waitFor(asyncProxy.executeBatch(batch));
+	}
 
-		return (List<Book>) BookStoreUtility.SendAndRecv(this.client, exchange);
+	/**
+	 * Returns the replication status of the server, as described by
+	 * AsyncBookStoreHTTPProxy.getReplicationStatus
+	 * 
+	 * @return
+	 * @throws BookStoreException
+	 */
+	public List<Long> getReplicationStatus() throws BookStoreException {
+		return BookStoreExchange.waitFor(asyncProxy.getReplicationStatus());
 	}
 
 	public void stop() {
-		try {
-			client.stop();
-		} catch (Exception e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
+		asyncProxy.stop();
 	}
 
-	@Override
 	public void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
-		// TODO Auto-generated method stub
-		throw new BookStoreException("Not implemented");
-		
+		BookStoreExchange.waitFor(asyncProxy.rateBooks(bookRating));
 	}
 
-	@Override
 	public List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
-		// TODO Auto-generated method stub
-		throw new BookStoreException("Not implemented");
+		return BookStoreExchange
+				.waitFor(asyncProxy.getTopRatedBooks(numBooks));
 	}
 
 }
@@ -0,0 +1,115 @@
+package com.acertainbookstore.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpExchange;
+import org.eclipse.jetty.io.Buffer;
+
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * BookStoreStreamExchange is a GET exchange whose CSV response is written to
+ * an output stream as it arrives instead of being kept in memory. The future
+ * gives the number of books in the response, counted as the lines ending
+ * outside of quoted fields after the header line.
+ * 
+ */
+final class BookStoreStreamExchange extends HttpExchange {
+	private final OutputStream out;
+	private final CompletableFuture<Long> future = new CompletableFuture<Long>();
+	private int status = 0;
+	private long numLines = 0;
+	private boolean quoted = false;
+	private IOException failure = null;
+
+	BookStoreStreamExchange(String url, OutputStream out) {
+		this.out = out;
+		setURL(url);
+		setTimeout(BookStoreClientConstants.CLIENT_MAX_STREAM_TIMEOUT_MILLISECS);
+	}
+
+	/**
+	 * Sends the exchange through the client and returns the future of the
+	 * number of books received
+	 * 
+	 * @param client
+	 * @return
+	 */
+	CompletableFuture<Long> send(HttpClient client) {
+		try {
+			client.send(this);
+		} catch (IOException ex) {
+			future.completeExceptionally(new BookStoreException(
+					BookStoreClientConstants.strERR_CLIENT_REQUEST_SENDING, ex));
+		}
+		return future;
+	}
+
+	@Override
+	protected void onResponseStatus(Buffer version, int status, Buffer reason)
+			throws IOException {
+		super.onResponseStatus(version, status, reason);
+		this.status = status;
+	}
+
+	@Override
+	protected void onResponseContent(Buffer content) throws IOException {
+		super.onResponseContent(content);
+		if (status != 200 || failure != null) {
+			return;
+		}
+		for (int i = content.getIndex(); i < content.putIndex(); i++) {
+			byte b = content.peek(i);
+			if (b == '"') {
+				quoted = !quoted;
+			} else if (b == '\n' && !quoted) {
+				numLines++;
+			}
+		}
+		try {
+			content.writeTo(out);
+		} catch (IOException ex) {
+			// The rest of the response is skipped
+			failure = ex;
+		}
+	}
+
+	@Override
+	protected void onResponseComplete() throws IOException {
+		super.onResponseComplete();
+		if (status != 200) {
+			future.completeExceptionally(new BookStoreException(
+					BookStoreClientConstants.strERR_CLIENT_RESPONSE_DECODING));
+		} else if (failure != null) {
+			future.completeExceptionally(new BookStoreException(
+					BookStoreClientConstants.strERR_CLIENT_UNKNOWN, failure));
+		} else {
+			// The first line is the header
+			future.complete(Math.max(numLines - 1, 0));
+		}
+	}
+
+	@Override
+	protected void onConnectionFailed(Throwable x) {
+		super.onConnectionFailed(x);
+		future.completeExceptionally(new BookStoreException(
+				BookStoreClientConstants.strERR_CLIENT_REQUEST_EXCEPTION, x));
+	}
+
+	@Override
+	protected void onException(Throwable x) {
+		super.onException(x);
+		future.completeExceptionally(new BookStoreException(
+				BookStoreClientConstants.strERR_CLIENT_REQUEST_EXCEPTION, x));
+	}
+
+	@Override
+	protected void onExpire() {
+		super.onExpire();
+		future.completeExceptionally(new BookStoreException(
+				BookStoreClientConstants.strERR_CLIENT_REQUEST_TIMEOUT));
+	}
+}
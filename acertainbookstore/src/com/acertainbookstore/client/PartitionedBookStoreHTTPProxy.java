@@ -0,0 +1,575 @@
+package com.acertainbookstore.client;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.acertainbookstore.business.Book;
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.ImmutableBook;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.BookStoreImportListener;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreBatchReference;
+import com.acertainbookstore.utils.BookStoreCSVReader;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreResponse;
+import com.acertainbookstore.utils.BookStoreUtility;
+import com.acertainbookstore.utils.BookStoreWireFormat;
+
+/**
+ * PartitionedBookStoreHTTPProxy implements the CertainBookStore API on the
+ * client side over several servers, each of them owning the books whose
+ * ISBNs BookStoreUtility.partitionOf maps to it. The books of a call are
+ * split by server, the parts are sent to their servers in parallel through
+ * the asynchronous proxies and the results are merged.
+ * 
+ * A buy spanning several servers is made atomic by two-phase commit: every
+ * server first prepares its part, buying the copies and keeping them aside,
+ * then the buy is committed on all the servers if they all prepared it, and
+ * aborted on the servers that prepared it otherwise. A server that misses
+ * the abort keeps its part bought. The other updates are sent to their
+ * servers without coordination, so an update failing on one server may have
+ * been applied by the others.
+ * 
+ * getEditorPicks samples the same number of picks from every server and then
+ * samples the merged picks, which is uniform within a server but not
+ * weighted by the number of picks of the servers.
+ */
+public class PartitionedBookStoreHTTPProxy implements BookStore, StockManager {
+	private final AsyncBookStoreHTTPProxy[] bookStores;
+	private final AsyncStockManagerHTTPProxy[] stockManagers;
+
+	/**
+	 * A call about books, whose elements are split between the servers of
+	 * their books
+	 * 
+	 * @param <T>
+	 *            the type of the elements of the call
+	 * @param <R>
+	 *            the type of the result of the call on a server
+	 */
+	private abstract static class PartitionedCall<T, R> {
+
+		/**
+		 * Returns the ISBN of the book an element of the call is about
+		 * 
+		 * @param element
+		 * @return
+		 */
+		abstract int getISBN(T element);
+
+		/**
+		 * Sends the part of the call for a server
+		 * 
+		 * @param server
+		 * @param part
+		 * @return
+		 */
+		abstract CompletableFuture<R> send(int server, Set<T> part);
+	}
+
+	/**
+	 * Passes on the bytes written to it after the first line, so that the
+	 * CSV exports of the servers after the first one are written without
+	 * their header
+	 */
+	private static final class HeaderSkippingOutputStream extends
+			FilterOutputStream {
+		private boolean inHeader = true;
+
+		private HeaderSkippingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (inHeader) {
+				inHeader = (b != '\n');
+				return;
+			}
+			out.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (inHeader && len > 0) {
+				inHeader = (b[off++] != '\n');
+				len--;
+			}
+			if (len > 0) {
+				out.write(b, off, len);
+			}
+		}
+	}
+
+	/**
+	 * Orders stock books as getTopRatedBooks does
+	 */
+	private static final Comparator<StockBook> BY_AVERAGE_RATING = new Comparator<StockBook>() {
+		public int compare(StockBook book1, StockBook book2) {
+			return BookStoreUtility.compareRatings(book1.getISBN(),
+					book1.getTotalRating(), book1.getTimesRated(),
+					book2.getISBN(), book2.getTotalRating(),
+					book2.getTimesRated());
+		}
+	};
+
+	/**
+	 * Initialize the proxies of the servers, using the wire format
+	 * configured by the wire format system property
+	 */
+	public PartitionedBookStoreHTTPProxy(List<String> serverAddresses)
+			throws Exception {
+		this(serverAddresses, BookStoreWireFormat.getConfiguredFormat());
+	}
+
+	/**
+	 * Initialize the proxies of the servers, using the given wire format for
+	 * the messages. The books are partitioned in the order of the addresses,
+	 * which all the clients of the servers must use.
+	 */
+	public PartitionedBookStoreHTTPProxy(List<String> serverAddresses,
+			BookStoreWireFormat wireFormat) throws Exception {
+		if (serverAddresses.isEmpty()) {
+			throw new IllegalArgumentException("No server address");
+		}
+		bookStores = new AsyncBookStoreHTTPProxy[serverAddresses.size()];
+		stockManagers = new AsyncStockManagerHTTPProxy[serverAddresses.size()];
+		for (int i = 0; i < bookStores.length; i++) {
+			bookStores[i] = new AsyncBookStoreHTTPProxy(
+					serverAddresses.get(i), wireFormat);
+			stockManagers[i] = new AsyncStockManagerHTTPProxy(
+					serverAddresses.get(i) + "/stock", wireFormat);
+		}
+	}
+
+	public int getNumServers() {
+		return bookStores.length;
+	}
+
+	/**
+	 * Splits the elements of a call by the server of their books and sends
+	 * every part to its server
+	 * 
+	 * @param elements
+	 * @param call
+	 * @return the futures of the parts by ascending server index
+	 * @throws BookStoreException
+	 */
+	private <T, R> SortedMap<Integer, CompletableFuture<R>> sendParts(
+			Set<T> elements, PartitionedCall<T, R> call)
+			throws BookStoreException {
+		if (elements == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		SortedMap<Integer, Set<T>> parts = new TreeMap<Integer, Set<T>>();
+		for (T element : elements) {
+			int server = BookStoreUtility.partitionOf(call.getISBN(element),
+					bookStores.length);
+			Set<T> part = parts.get(server);
+			if (part == null) {
+				part = new HashSet<T>();
+				parts.put(server, part);
+			}
+			part.add(element);
+		}
+
+		SortedMap<Integer, CompletableFuture<R>> futures = new TreeMap<Integer, CompletableFuture<R>>();
+		for (Map.Entry<Integer, Set<T>> part : parts.entrySet()) {
+			futures.put(part.getKey(),
+					call.send(part.getKey(), part.getValue()));
+		}
+		return futures;
+	}
+
+	/**
+	 * Waits for all the futures, even after one of them failed, so that no
+	 * part of a call is still running when the call returns
+	 * 
+	 * @param futures
+	 * @return the results of the futures
+	 * @throws BookStoreException
+	 *             the first failure of the futures
+	 */
+	private static <R> List<R> waitForAll(
+			Collection<CompletableFuture<R>> futures)
+			throws BookStoreException {
+		List<R> results = new ArrayList<R>(futures.size());
+		BookStoreException failure = null;
+		for (CompletableFuture<R> future : futures) {
+			try {
+				results.add(BookStoreExchange.waitFor(future));
+			} catch (BookStoreException ex) {
+				if (failure == null) {
+					failure = ex;
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		return results;
+	}
+
+	/**
+	 * Reads books by ISBN from their servers and returns them in the order
+	 * of the set
+	 * 
+	 * @param isbnSet
+	 * @param read
+	 * @return
+	 * @throws BookStoreException
+	 */
+	private <B extends Book> List<B> read(Set<Integer> isbnSet,
+			PartitionedCall<Integer, List<B>> read) throws BookStoreException {
+		Map<Integer, B> books = new HashMap<Integer, B>();
+		for (List<B> serverBooks : waitForAll(sendParts(isbnSet, read)
+				.values())) {
+			for (B book : serverBooks) {
+				books.put(book.getISBN(), book);
+			}
+		}
+		List<B> listBooks = new ArrayList<B>(isbnSet.size());
+		for (Integer ISBN : isbnSet) {
+			listBooks.add(books.get(ISBN));
+		}
+		return listBooks;
+	}
+
+	public void buyBooks(Set<BookCopy> bookCopiesToBuy)
+			throws BookStoreException {
+		final long transactionId = ThreadLocalRandom.current().nextLong();
+		final boolean[] distributed = new boolean[1];
+		PartitionedCall<BookCopy, Void> prepare = new PartitionedCall<BookCopy, Void>() {
+			int getISBN(BookCopy bookCopy) {
+				return bookCopy.getISBN();
+			}
+
+			CompletableFuture<Void> send(int server, Set<BookCopy> part) {
+				if (!distributed[0]) {
+					return bookStores[server].buyBooks(part);
+				}
+				return bookStores[server].prepareBuyBooks(transactionId, part);
+			}
+		};
+
+		// A buy on a single server needs no coordination
+		Set<Integer> servers = new HashSet<Integer>();
+		if (bookCopiesToBuy != null) {
+			for (BookCopy bookCopy : bookCopiesToBuy) {
+				servers.add(BookStoreUtility.partitionOf(bookCopy.getISBN(),
+						bookStores.length));
+			}
+		}
+		distributed[0] = (servers.size() > 1);
+		SortedMap<Integer, CompletableFuture<Void>> prepared = sendParts(
+				bookCopiesToBuy, prepare);
+		if (!distributed[0]) {
+			waitForAll(prepared.values());
+			return;
+		}
+
+		List<Integer> preparedServers = new ArrayList<Integer>();
+		BookStoreException failure = null;
+		for (Map.Entry<Integer, CompletableFuture<Void>> future : prepared
+				.entrySet()) {
+			try {
+				BookStoreExchange.waitFor(future.getValue());
+				preparedServers.add(future.getKey());
+			} catch (BookStoreException ex) {
+				if (failure == null) {
+					failure = ex;
+				}
+			}
+		}
+
+		// A prepare failing for the client may still have bought the part on
+		// its server, so every server is sent the abort, which also rejects
+		// a prepare arriving after it. The copies of a committed buy are
+		// already bought, so a failed commit changes nothing, and a part
+		// whose abort fails is aborted by the prepare timeout of its server
+		List<CompletableFuture<Void>> decisions = new ArrayList<CompletableFuture<Void>>();
+		for (int server : (failure == null) ? preparedServers : prepared
+				.keySet()) {
+			decisions.add((failure == null) ? bookStores[server]
+					.commitBuyBooks(transactionId) : bookStores[server]
+					.abortBuyBooks(transactionId));
+		}
+		try {
+			waitForAll(decisions);
+		} catch (BookStoreException ex) {
+			;
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	public List<Book> buyEditorPicks(int numBooks, int numCopies)
+			throws BookStoreException {
+		if (bookStores.length == 1) {
+			return BookStoreExchange.waitFor(bookStores[0].buyEditorPicks(
+					numBooks, numCopies));
+		}
+		if (numCopies < 0) {
+			throw new BookStoreException(BookStoreConstants.NUM_COPIES
+					+ numCopies + BookStoreConstants.INVALID);
+		}
+
+		// The picks are bought atomically, but a pick removed from the
+		// picks after it was sampled is still bought
+		List<Book> picks = getEditorPicks(numBooks);
+		Set<BookCopy> bookCopiesToBuy = new HashSet<BookCopy>();
+		for (Book pick : picks) {
+			bookCopiesToBuy.add(new BookCopy(pick.getISBN(), numCopies));
+		}
+		buyBooks(bookCopiesToBuy);
+		return picks;
+	}
+
+	public void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
+		waitForAll(sendParts(bookRating,
+				new PartitionedCall<BookRating, Void>() {
+					int getISBN(BookRating rating) {
+						return rating.getISBN();
+					}
+
+					CompletableFuture<Void> send(int server,
+							Set<BookRating> part) {
+						return bookStores[server].rateBooks(part);
+					}
+				}).values());
+	}
+
+	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
+		return read(isbnSet, new PartitionedCall<Integer, List<Book>>() {
+			int getISBN(Integer ISBN) {
+				// A null ISBN is rejected by the server it is sent to
+				return (ISBN == null) ? 0 : ISBN;
+			}
+
+			CompletableFuture<List<Book>> send(int server, Set<Integer> part) {
+				return bookStores[server].getBooks(part);
+			}
+		});
+	}
+
+	public List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks
+					+ ", but it must be positive");
+		}
+
+		// The top books of the servers are read with their ratings in one
+		// round trip per server
+		BookStoreBatch batch = new BookStoreBatch();
+		int topRatedBooks = batch.getTopRatedBooks(numBooks);
+		int ratedBooks = batch.getBooksByISBN(BookStoreBatchReference
+				.isbnsOf(topRatedBooks));
+		List<CompletableFuture<List<BookStoreResponse>>> futures = new ArrayList<CompletableFuture<List<BookStoreResponse>>>();
+		for (AsyncBookStoreHTTPProxy bookStore : bookStores) {
+			futures.add(bookStore.executeBatch(batch));
+		}
+
+		List<StockBook> books = new ArrayList<StockBook>();
+		for (List<BookStoreResponse> responses : waitForAll(futures)) {
+			for (BookStoreResponse response : responses) {
+				if (response.getException() != null) {
+					throw response.getException();
+				}
+			}
+			for (Object book : responses.get(ratedBooks).getList()) {
+				books.add((StockBook) book);
+			}
+		}
+		Collections.sort(books, BY_AVERAGE_RATING);
+
+		List<Book> topBooks = new ArrayList<Book>(Math.min(numBooks,
+				books.size()));
+		for (StockBook book : books) {
+			if (topBooks.size() == numBooks) {
+				break;
+			}
+			topBooks.add(new ImmutableBook(book.getISBN(), book.getTitle(),
+					book.getAuthor(), book.getPrice()));
+		}
+		return topBooks;
+	}
+
+	public List<Book> getEditorPicks(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks
+					+ ", but it must be positive");
+		}
+
+		List<CompletableFuture<List<Book>>> futures = new ArrayList<CompletableFuture<List<Book>>>();
+		for (AsyncBookStoreHTTPProxy bookStore : bookStores) {
+			futures.add(bookStore.getEditorPicks(numBooks));
+		}
+		List<Book> picks = new ArrayList<Book>();
+		for (List<Book> serverPicks : waitForAll(futures)) {
+			picks.addAll(serverPicks);
+		}
+		Collections.shuffle(picks, ThreadLocalRandom.current());
+		return new ArrayList<Book>(picks.subList(0,
+				Math.min(numBooks, picks.size())));
+	}
+
+	public void addBooks(Set<StockBook> bookSet) throws BookStoreException {
+		waitForAll(sendParts(bookSet, new PartitionedCall<StockBook, Void>() {
+			int getISBN(StockBook book) {
+				return book.getISBN();
+			}
+
+			CompletableFuture<Void> send(int server, Set<StockBook> part) {
+				return stockManagers[server].addBooks(part);
+			}
+		}).values());
+	}
+
+	public void addCopies(Set<BookCopy> bookCopiesSet)
+			throws BookStoreException {
+		waitForAll(sendParts(bookCopiesSet,
+				new PartitionedCall<BookCopy, Void>() {
+					int getISBN(BookCopy bookCopy) {
+						return bookCopy.getISBN();
+					}
+
+					CompletableFuture<Void> send(int server,
+							Set<BookCopy> part) {
+						return stockManagers[server].addCopies(part);
+					}
+				}).values());
+	}
+
+	public List<StockBook> getBooks() throws BookStoreException {
+		List<CompletableFuture<List<StockBook>>> futures = new ArrayList<CompletableFuture<List<StockBook>>>();
+		for (AsyncStockManagerHTTPProxy stockManager : stockManagers) {
+			futures.add(stockManager.getBooks());
+		}
+		List<StockBook> listBooks = new ArrayList<StockBook>();
+		for (List<StockBook> serverBooks : waitForAll(futures)) {
+			listBooks.addAll(serverBooks);
+		}
+		return listBooks;
+	}
+
+	public List<StockBook> getBooksByISBN(Set<Integer> isbns)
+			throws BookStoreException {
+		return read(isbns, new PartitionedCall<Integer, List<StockBook>>() {
+			int getISBN(Integer ISBN) {
+				return (ISBN == null) ? 0 : ISBN;
+			}
+
+			CompletableFuture<List<StockBook>> send(int server,
+					Set<Integer> part) {
+				return stockManagers[server].getBooksByISBN(part);
+			}
+		});
+	}
+
+	public List<StockBook> getBooksInDemand() throws BookStoreException {
+		List<CompletableFuture<List<StockBook>>> futures = new ArrayList<CompletableFuture<List<StockBook>>>();
+		for (AsyncStockManagerHTTPProxy stockManager : stockManagers) {
+			futures.add(stockManager.getBooksInDemand());
+		}
+		List<StockBook> listBooks = new ArrayList<StockBook>();
+		for (List<StockBook> serverBooks : waitForAll(futures)) {
+			listBooks.addAll(serverBooks);
+		}
+		return listBooks;
+	}
+
+	public void updateEditorPicks(Set<BookEditorPick> editorPicks)
+			throws BookStoreException {
+		waitForAll(sendParts(editorPicks,
+				new PartitionedCall<BookEditorPick, Void>() {
+					int getISBN(BookEditorPick editorPick) {
+						return editorPick.getISBN();
+					}
+
+					CompletableFuture<Void> send(int server,
+							Set<BookEditorPick> part) {
+						return stockManagers[server].updateEditorPicks(part);
+					}
+				}).values());
+	}
+
+	public void removeAllBooks() throws BookStoreException {
+		List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+		for (AsyncStockManagerHTTPProxy stockManager : stockManagers) {
+			futures.add(stockManager.removeAllBooks());
+		}
+		waitForAll(futures);
+	}
+
+	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
+		waitForAll(sendParts(isbnSet, new PartitionedCall<Integer, Void>() {
+			int getISBN(Integer ISBN) {
+				return (ISBN == null) ? 0 : ISBN;
+			}
+
+			CompletableFuture<Void> send(int server, Set<Integer> part) {
+				return stockManagers[server].removeBooks(part);
+			}
+		}).values());
+	}
+
+	/**
+	 * Adds the books read from the stream in batches of batchSize books,
+	 * each batch being split between the servers
+	 */
+	public long importBooks(InputStream in, int batchSize,
+			BookStoreImportListener listener) throws BookStoreException {
+		if (in == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+		return new BookStoreCSVReader(in).addBooksTo(this, batchSize,
+				listener);
+	}
+
+	/**
+	 * Writes the exports of the servers one after the other, with a single
+	 * header
+	 */
+	public long exportBooks(OutputStream out) throws BookStoreException {
+		if (out == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		long numBooks = 0;
+		for (int i = 0; i < stockManagers.length; i++) {
+			numBooks += BookStoreExchange.waitFor(stockManagers[i]
+					.exportBooks((i == 0) ? out
+							: new HeaderSkippingOutputStream(out)));
+		}
+		return numBooks;
+	}
+
+	public void stop() {
+		for (int i = 0; i < bookStores.length; i++) {
+			bookStores[i].stop();
+			stockManagers[i].stop();
+		}
+	}
+}
@@ -0,0 +1,283 @@
+package com.acertainbookstore.client;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import com.acertainbookstore.business.Book;
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.BookStoreImportListener;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreWireFormat;
+
+/**
+ * ReplicatedBookStoreHTTPProxy implements the CertainBookStore API on the
+ * client side over a primary server and its replicas. The calls changing the
+ * store are sent to the primary, and the other calls to the replicas in turn.
+ * 
+ * With a bound on staleness, a read is only sent to a replica whose books are
+ * known to lag at most that many milliseconds behind the primary, and to the
+ * primary if there is none. The proxy estimates the staleness of a replica
+ * from the last staleness it reported plus the time since it was asked for
+ * it, and asks again once the estimate passes half the bound.
+ * 
+ * A read sent to a replica may not see the changes made by the calls the
+ * client just sent to the primary.
+ */
+public class ReplicatedBookStoreHTTPProxy implements BookStore, StockManager {
+	private final BookStoreHTTPProxy primaryBookStore;
+	private final StockManagerHTTPProxy primaryStockManager;
+	private final Replica[] replicas;
+	private final long maxStalenessMillis;
+	private final AtomicInteger nextReplica = new AtomicInteger();
+
+	/**
+	 * The staleness a replica reported, and System.nanoTime() when it was
+	 * asked for it
+	 */
+	private static final class ReplicaStatus {
+		private final long stalenessMillis;
+		private final long askedNanos;
+
+		private ReplicaStatus(long stalenessMillis, long askedNanos) {
+			this.stalenessMillis = stalenessMillis;
+			this.askedNanos = askedNanos;
+		}
+	}
+
+	/**
+	 * The proxies of a replica and its last known status
+	 */
+	private static final class Replica {
+		private final BookStoreHTTPProxy bookStore;
+		private final StockManagerHTTPProxy stockManager;
+		private volatile ReplicaStatus status = new ReplicaStatus(
+				Long.MAX_VALUE, 0);
+		// Set while the replica is being asked for its status
+		private final AtomicBoolean asking = new AtomicBoolean();
+
+		private Replica(String serverAddress, BookStoreWireFormat wireFormat)
+				throws Exception {
+			bookStore = new BookStoreHTTPProxy(serverAddress, wireFormat);
+			stockManager = new StockManagerHTTPProxy(serverAddress + "/stock",
+					wireFormat);
+		}
+	}
+
+	/**
+	 * Initialize the proxies of the servers, reading from the replicas
+	 * whatever their staleness, using the wire format configured by the wire
+	 * format system property
+	 */
+	public ReplicatedBookStoreHTTPProxy(String primaryAddress,
+			List<String> replicaAddresses) throws Exception {
+		this(primaryAddress, replicaAddresses, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Initialize the proxies of the servers, reading only from the replicas
+	 * at most maxStalenessMillis behind the primary, using the wire format
+	 * configured by the wire format system property
+	 */
+	public ReplicatedBookStoreHTTPProxy(String primaryAddress,
+			List<String> replicaAddresses, long maxStalenessMillis)
+			throws Exception {
+		this(primaryAddress, replicaAddresses, maxStalenessMillis,
+				BookStoreWireFormat.getConfiguredFormat());
+	}
+
+	/**
+	 * Initialize the proxies of the servers, reading only from the replicas
+	 * at most maxStalenessMillis behind the primary, using the given wire
+	 * format for the messages
+	 */
+	public ReplicatedBookStoreHTTPProxy(String primaryAddress,
+			List<String> replicaAddresses, long maxStalenessMillis,
+			BookStoreWireFormat wireFormat) throws Exception {
+		if (maxStalenessMillis < 0) {
+			throw new IllegalArgumentException("Staleness "
+					+ maxStalenessMillis);
+		}
+		primaryBookStore = new BookStoreHTTPProxy(primaryAddress, wireFormat);
+		primaryStockManager = new StockManagerHTTPProxy(primaryAddress
+				+ "/stock", wireFormat);
+		this.maxStalenessMillis = maxStalenessMillis;
+		replicas = new Replica[replicaAddresses.size()];
+		for (int i = 0; i < replicas.length; i++) {
+			replicas[i] = new Replica(replicaAddresses.get(i), wireFormat);
+			if (maxStalenessMillis != Long.MAX_VALUE) {
+				askStatus(replicas[i]);
+			}
+		}
+	}
+
+	public int getNumReplicas() {
+		return replicas.length;
+	}
+
+	/**
+	 * Asks the replica for its staleness, how many milliseconds its books may
+	 * lag behind the primary
+	 * 
+	 * @param replica
+	 *            the index of the replica in the addresses of the replicas
+	 * @return
+	 * @throws BookStoreException
+	 */
+	public long getReplicaStalenessMillis(int replica)
+			throws BookStoreException {
+		return replicas[replica].bookStore.getReplicationStatus().get(0);
+	}
+
+	/**
+	 * Updates the status of the replica in the background, unless it is
+	 * already being asked for it. A replica that does not answer is left
+	 * aside until it answers a later request.
+	 * 
+	 * @param replica
+	 */
+	private void askStatus(final Replica replica) {
+		if (!replica.asking.compareAndSet(false, true)) {
+			return;
+		}
+		final long askedNanos = System.nanoTime();
+		replica.bookStore.getAsyncProxy().getReplicationStatus()
+				.whenComplete(new BiConsumer<List<Long>, Throwable>() {
+					public void accept(List<Long> status, Throwable ex) {
+						replica.status = new ReplicaStatus(
+								(ex == null) ? status.get(0) : Long.MAX_VALUE,
+								askedNanos);
+						replica.asking.set(false);
+					}
+				});
+	}
+
+	/**
+	 * Returns the next replica within the bound on staleness, or null if
+	 * there is none
+	 * 
+	 * @return
+	 */
+	private Replica chooseReplica() {
+		for (int i = 0; i < replicas.length; i++) {
+			Replica replica = replicas[(nextReplica.getAndIncrement() & Integer.MAX_VALUE)
+					% replicas.length];
+			if (maxStalenessMillis == Long.MAX_VALUE) {
+				return replica;
+			}
+
+			ReplicaStatus status = replica.status;
+			long stalenessMillis = status.stalenessMillis;
+			if (stalenessMillis <= maxStalenessMillis) {
+				stalenessMillis += TimeUnit.NANOSECONDS.toMillis(System
+						.nanoTime() - status.askedNanos);
+			}
+			if (stalenessMillis > maxStalenessMillis / 2) {
+				askStatus(replica);
+			}
+			if (stalenessMillis <= maxStalenessMillis) {
+				return replica;
+			}
+		}
+		return null;
+	}
+
+	private BookStore readBookStore() {
+		Replica replica = chooseReplica();
+		return (replica == null) ? primaryBookStore : replica.bookStore;
+	}
+
+	private StockManager readStockManager() {
+		Replica replica = chooseReplica();
+		return (replica == null) ? primaryStockManager : replica.stockManager;
+	}
+
+	public void buyBooks(Set<BookCopy> bookCopiesToBuy)
+			throws BookStoreException {
+		primaryBookStore.buyBooks(bookCopiesToBuy);
+	}
+
+	public List<Book> buyEditorPicks(int numBooks, int numCopies)
+			throws BookStoreException {
+		return primaryBookStore.buyEditorPicks(numBooks, numCopies);
+	}
+
+	public void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
+		primaryBookStore.rateBooks(bookRating);
+	}
+
+	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
+		return readBookStore().getBooks(isbnSet);
+	}
+
+	public List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
+		return readBookStore().getTopRatedBooks(numBooks);
+	}
+
+	public List<Book> getEditorPicks(int numBooks) throws BookStoreException {
+		return readBookStore().getEditorPicks(numBooks);
+	}
+
+	public void addBooks(Set<StockBook> bookSet) throws BookStoreException {
+		primaryStockManager.addBooks(bookSet);
+	}
+
+	public void addCopies(Set<BookCopy> bookCopiesSet)
+			throws BookStoreException {
+		primaryStockManager.addCopies(bookCopiesSet);
+	}
+
+	public List<StockBook> getBooks() throws BookStoreException {
+		return readStockManager().getBooks();
+	}
+
+	public List<StockBook> getBooksByISBN(Set<Integer> isbns)
+			throws BookStoreException {
+		return readStockManager().getBooksByISBN(isbns);
+	}
+
+	public List<StockBook> getBooksInDemand() throws BookStoreException {
+		return readStockManager().getBooksInDemand();
+	}
+
+	public void updateEditorPicks(Set<BookEditorPick> editorPicks)
+			throws BookStoreException {
+		primaryStockManager.updateEditorPicks(editorPicks);
+	}
+
+	public void removeAllBooks() throws BookStoreException {
+		primaryStockManager.removeAllBooks();
+	}
+
+	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
+		primaryStockManager.removeBooks(isbnSet);
+	}
+
+	public long importBooks(InputStream in, int batchSize,
+			BookStoreImportListener listener) throws BookStoreException {
+		return primaryStockManager.importBooks(in, batchSize, listener);
+	}
+
+	public long exportBooks(OutputStream out) throws BookStoreException {
+		return readStockManager().exportBooks(out);
+	}
+
+	public void stop() {
+		primaryBookStore.stop();
+		primaryStockManager.stop();
+		for (Replica replica : replicas) {
+			replica.bookStore.stop();
+			replica.stockManager.stop();
+		}
+	}
+}
@@ -3,192 +3,209 @@
  */
 package com.acertainbookstore.client;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.List;
 import java.util.Set;
 
-import org.eclipse.jetty.client.ContentExchange;
-import org.eclipse.jetty.client.HttpClient;
-import org.eclipse.jetty.io.Buffer;
-import org.eclipse.jetty.io.ByteArrayBuffer;
-import org.eclipse.jetty.util.thread.QueuedThreadPool;
-
 import com.acertainbookstore.business.BookCopy;
 import com.acertainbookstore.business.BookEditorPick;
 import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.interfaces.BookStoreImportListener;
 import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreCSVReader;
+import com.acertainbookstore.utils.BookStoreCSVWriter;
+import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
-import com.acertainbookstore.utils.BookStoreMessageTag;
-import com.acertainbookstore.utils.BookStoreUtility;
+import com.acertainbookstore.utils.BookStoreResponse;
+import com.acertainbookstore.utils.BookStoreThreadMode;
+import com.acertainbookstore.utils.BookStoreWireFormat;
 
 /**
  * StockManagerHTTPProxy implements the client level synchronous
  * CertainBookStore API declared in the BookStore class
  * 
- * Uses the HTTP protocol for communication with the server
+ * Uses the HTTP protocol for communication with the server, every call being
+ * sent through an AsyncStockManagerHTTPProxy and waiting for its result
  * 
  */
 public class StockManagerHTTPProxy implements StockManager {
 
-	protected HttpClient client;
-	protected String serverAddress;
+	protected AsyncStockManagerHTTPProxy asyncProxy;
 
 	/**
-	 * Initialize the client object
+	 * Initialize the client object, using the wire format configured by the
+	 * wire format system property
 	 */
 	public StockManagerHTTPProxy(String serverAddress) throws Exception {
-		setServerAddress(serverAddress);
-		client = new HttpClient();
-		client.setConnectorType(HttpClient.CONNECTOR_SELECT_CHANNEL);
-		client.setMaxConnectionsPerAddress(BookStoreClientConstants.CLIENT_MAX_CONNECTION_ADDRESS); // max
-		// concurrent
-		// connections
-		// to
-		// every
-		// address
-		client.setThreadPool(new QueuedThreadPool(
-				BookStoreClientConstants.CLIENT_MAX_THREADSPOOL_THREADS)); // max
-		// threads
-		client.setTimeout(BookStoreClientConstants.CLIENT_MAX_TIMEOUT_MILLISECS); // seconds
-		// timeout;
-		// if
-		// no
-		// server
-		// reply,
-		// the
-		// request
-		// expires
-		client.start();
+		this(serverAddress, BookStoreWireFormat.getConfiguredFormat());
+	}
+
+	/**
+	 * Initialize the client object, using the given wire format for the
+	 * messages
+	 */
+	public StockManagerHTTPProxy(String serverAddress,
+			BookStoreWireFormat wireFormat) throws Exception {
+		asyncProxy = new AsyncStockManagerHTTPProxy(serverAddress, wireFormat);
+	}
+
+	/**
+	 * Initialize the client object, using the given wire format for the
+	 * messages and up to maxConnections connections, whose responses are
+	 * handled on threads of the given mode
+	 */
+	public StockManagerHTTPProxy(String serverAddress,
+			BookStoreWireFormat wireFormat, BookStoreThreadMode threadMode,
+			int maxConnections) throws Exception {
+		asyncProxy = new AsyncStockManagerHTTPProxy(serverAddress, wireFormat,
+				threadMode, maxConnections);
 	}
 
 	public String getServerAddress() {
-		return serverAddress;
+		return asyncProxy.getServerAddress();
 	}
 
 	public void setServerAddress(String serverAddress) {
-		this.serverAddress = serverAddress;
+		asyncProxy.setServerAddress(serverAddress);
 	}
 
-	public void addBooks(Set<StockBook> bookSet) throws BookStoreException {
-		ContentExchange exchange = new ContentExchange();
-		String urlString;
-		urlString = serverAddress + "/" + BookStoreMessageTag.ADDBOOKS;
+	public BookStoreWireFormat getWireFormat() {
+		return asyncProxy.getWireFormat();
+	}
 
-		String listBooksxmlString = BookStoreUtility
-				.serializeObjectToXMLString(bookSet);
-		exchange.setMethod("POST");
-		exchange.setURL(urlString);
-		Buffer requestContent = new ByteArrayBuffer(listBooksxmlString);
-		exchange.setRequestContent(requestContent);
+	/**
+	 * Returns the asynchronous proxy the calls are sent through, which may be
+	 * used to send further calls without waiting for them
+	 * 
+	 * @return
+	 */
+	public AsyncStockManagerHTTPProxy getAsyncProxy() {
+		return asyncProxy;
+	}
 
-		BookStoreUtility.SendAndRecv(this.client, exchange);
+	public void addBooks(Set<StockBook> bookSet) throws BookStoreException {
+		BookStoreExchange.waitFor(asyncProxy.addBooks(bookSet));
 	}
 
 	public void addCopies(Set<BookCopy> bookCopiesSet)
 			throws BookStoreException {
-		ContentExchange exchange = new ContentExchange();
-
-		String urlString;
-		urlString = serverAddress + "/" + BookStoreMessageTag.ADDCOPIES;
-
-		String listBookCopiesxmlString = BookStoreUtility
-				.serializeObjectToXMLString(bookCopiesSet);
-		exchange.setMethod("POST");
-		exchange.setURL(urlString);
-		Buffer requestContent = new ByteArrayBuffer(listBookCopiesxmlString);
-		exchange.setRequestContent(requestContent);
-
-		BookStoreUtility.SendAndRecv(this.client, exchange);
+		BookStoreExchange.waitFor(asyncProxy.addCopies(bookCopiesSet));
 	}
 
-	@SuppressWarnings("unchecked")
 	public List<StockBook> getBooks() throws BookStoreException {
-		ContentExchange exchange = new ContentExchange();
-		String urlString = serverAddress + "/" + BookStoreMessageTag.LISTBOOKS;
-
-		exchange.setURL(urlString);
-
-		return (List<StockBook>) BookStoreUtility.SendAndRecv(this.client,
-				exchange);
+		return BookStoreExchange.waitFor(asyncProxy.getBooks());
 	}
 
 	public void updateEditorPicks(Set<BookEditorPick> editorPicksValues)
 			throws BookStoreException {
-		ContentExchange exchange = new ContentExchange();
-		String urlString = serverAddress + "/"
-				+ BookStoreMessageTag.UPDATEEDITORPICKS + "?";
-
-		String xmlStringEditorPicksValues = BookStoreUtility
-				.serializeObjectToXMLString(editorPicksValues);
-
-		exchange.setMethod("POST");
-		exchange.setURL(urlString);
-		Buffer requestContent = new ByteArrayBuffer(xmlStringEditorPicksValues);
-
-		exchange.setRequestContent(requestContent);
-
-		BookStoreUtility.SendAndRecv(this.client, exchange);
-
+		BookStoreExchange.waitFor(asyncProxy
+				.updateEditorPicks(editorPicksValues));
 	}
 
-	@Override
 	public List<StockBook> getBooksInDemand() throws BookStoreException {
-		throw new BookStoreException("Not implemented");
+		return BookStoreExchange.waitFor(asyncProxy.getBooksInDemand());
 	}
 
 	public void removeAllBooks() throws BookStoreException {
-		ContentExchange exchange = new ContentExchange();
-		String urlString;
-		urlString = serverAddress + "/" + BookStoreMessageTag.REMOVEALLBOOKS;
+		BookStoreExchange.waitFor(asyncProxy.removeAllBooks());
+	}
 
-		String test = "test";
-		exchange.setMethod("POST");
-		exchange.setURL(urlString);
-		Buffer requestContent = new ByteArrayBuffer(test);
-		exchange.setRequestContent(requestContent);
+	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
+		BookStoreExchange.waitFor(asyncProxy.removeBooks(isbnSet));
+	}
 
-		BookStoreUtility.SendAndRecv(this.client, exchange);
+	/**
+	 * Sends the calls of the batch in a single BATCH message and returns one
+	 * response per call that was run
+	 * 
+	 * @param batch
+	 * @return
+	 * @throws BookStoreException
+	 */
+	public List<BookStoreResponse> executeBatch(BookStoreBatch batch)
+			throws BookStoreException {
+		return BookStoreExchange.waitFor(asyncProxy.executeBatch(batch));
 	}
 
-	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException {
-		ContentExchange exchange = new ContentExchange();
-		String urlString;
-		urlString = serverAddress + "/" + BookStoreMessageTag.REMOVEBOOKS;
+	/**
+	 * Returns the calls of the replication log of the server from the
+	 * sequence number, in the format returned by
+	 * CertainBookStore.readReplicationLog
+	 * 
+	 * @param epoch
+	 * @param fromSequence
+	 * @return
+	 * @throws BookStoreException
+	 */
+	public List<Object> readReplicationLog(long epoch, long fromSequence)
+			throws BookStoreException {
+		return BookStoreExchange.waitFor(asyncProxy.readReplicationLog(epoch,
+				fromSequence));
+	}
 
-		String listBooksxmlString = BookStoreUtility
-				.serializeObjectToXMLString(isbnSet);
-		exchange.setMethod("POST");
-		exchange.setURL(urlString);
-		Buffer requestContent = new ByteArrayBuffer(listBooksxmlString);
-		exchange.setRequestContent(requestContent);
+	/**
+	 * Sends the books read from the stream to the server in batches of
+	 * batchSize books, each batch as the CSV content of an IMPORTBOOKS
+	 * message, so that the books are neither kept in memory nor serialized
+	 * as XML
+	 */
+	public long importBooks(InputStream in, int batchSize,
+			BookStoreImportListener listener) throws BookStoreException {
+		if (in == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+		if (batchSize < 1) {
+			throw new BookStoreException("The batch size: " + batchSize
+					+ BookStoreConstants.INVALID);
+		}
 
-		BookStoreUtility.SendAndRecv(this.client, exchange);
+		BookStoreCSVReader reader = new BookStoreCSVReader(in);
+		ByteArrayOutputStream batch = new ByteArrayOutputStream();
+		BookStoreCSVWriter writer = new BookStoreCSVWriter(batch);
+		int batchBooks = 0;
+		long numBooksImported = 0;
+		StockBook book;
+		try {
+			do {
+				book = reader.readBook();
+				if (book != null) {
+					writer.writeBook(book);
+					batchBooks++;
+				}
+				if (batchBooks == batchSize || (book == null && batchBooks > 0)) {
+					writer.flush();
+					numBooksImported += BookStoreExchange.waitFor(asyncProxy
+							.importBooks(batch.toByteArray()));
+					if (listener != null) {
+						listener.booksImported(numBooksImported);
+					}
+					batch.reset();
+					batchBooks = 0;
+				}
+			} while (book != null);
+		} catch (IOException ex) {
+			throw new BookStoreException(
+					BookStoreClientConstants.strERR_CLIENT_ENCODING, ex);
+		}
+		return numBooksImported;
+	}
 
+	public long exportBooks(OutputStream out) throws BookStoreException {
+		if (out == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+		return BookStoreExchange.waitFor(asyncProxy.exportBooks(out));
 	}
 
 	public void stop() {
-		try {
-			client.stop();
-		} catch (Exception e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
+		asyncProxy.stop();
 	}
 
-	@SuppressWarnings("unchecked")
 	public List<StockBook> getBooksByISBN(Set<Integer> isbns)
 			throws BookStoreException {
-		ContentExchange exchange = new ContentExchange();
-		String urlString;
-		urlString = serverAddress + "/" + BookStoreMessageTag.GETSTOCKBOOKSBYISBN;
-
-		String listBooksxmlString = BookStoreUtility
-				.serializeObjectToXMLString(isbns);
-		exchange.setMethod("POST");
-		exchange.setURL(urlString);
-		Buffer requestContent = new ByteArrayBuffer(listBooksxmlString);
-		exchange.setRequestContent(requestContent);
-
-		return (List<StockBook>) BookStoreUtility.SendAndRecv(this.client,
-				exchange);
+		return BookStoreExchange.waitFor(asyncProxy.getBooksByISBN(isbns));
 	}
 }
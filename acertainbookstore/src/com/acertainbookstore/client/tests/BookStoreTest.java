@@ -2,27 +2,59 @@ package com.acertainbookstore.client.tests;
 
 import static org.junit.Assert.*;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
 
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
 import org.junit.After;
 import org.junit.AfterClass;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
 import com.acertainbookstore.business.Book;
 import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.BookStoreBackend;
+import com.acertainbookstore.business.BookStoreConcurrencyMode;
+import com.acertainbookstore.business.BookStoreReplicationLog;
 import com.acertainbookstore.business.CertainBookStore;
 import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.ShardedBookStore;
 import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.client.BookStoreBatch;
 import com.acertainbookstore.client.BookStoreHTTPProxy;
+import com.acertainbookstore.client.PartitionedBookStoreHTTPProxy;
+import com.acertainbookstore.client.ReplicatedBookStoreHTTPProxy;
 import com.acertainbookstore.client.StockManagerHTTPProxy;
+import com.acertainbookstore.interfaces.AsyncBookStore;
 import com.acertainbookstore.interfaces.BookStore;
 import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.server.BookStoreBatchExecutor;
+import com.acertainbookstore.server.BookStoreHTTPMessageHandler;
+import com.acertainbookstore.server.BookStoreHTTPServerUtility;
+import com.acertainbookstore.server.BookStoreReplicator;
+import com.acertainbookstore.utils.BookStoreBatchReference;
 import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreMessageTag;
+import com.acertainbookstore.utils.BookStoreResponse;
+import com.acertainbookstore.utils.BookStoreUtility;
+import com.acertainbookstore.utils.BookStoreWireFormat;
 
 /**
  * Test class to test the BookStore interface
@@ -44,9 +76,20 @@ public class BookStoreTest {
 			localTest = (localTestProperty != null) ? Boolean
 					.parseBoolean(localTestProperty) : localTest;
 			if (localTest) {
-				CertainBookStore store = new CertainBookStore();
-				storeManager = store;
-				client = store;
+				int numShards = ShardedBookStore.getConfiguredNumShards();
+				if (numShards > 1) {
+					ShardedBookStore store = new ShardedBookStore(numShards,
+							BookStoreConcurrencyMode.getConfiguredMode(),
+							BookStoreBackend.getConfiguredBackend());
+					storeManager = store;
+					client = store;
+				} else {
+					CertainBookStore store = new CertainBookStore(
+							BookStoreConcurrencyMode.getConfiguredMode(),
+							BookStoreBackend.getConfiguredBackend());
+					storeManager = store;
+					client = store;
+				}
 			} else {
 				storeManager = new StockManagerHTTPProxy(
 						"http://localhost:8081/stock");
@@ -314,6 +357,566 @@ public class BookStoreTest {
 
 	}
 
+	/**
+	 * Tests basic rateBooks() functionality
+	 */
+	@Test
+	public void testRateBooks() throws BookStoreException {
+		Set<BookRating> bookRatings = new HashSet<BookRating>();
+		bookRatings.add(new BookRating(TEST_ISBN, 4));
+		client.rateBooks(bookRatings);
+		bookRatings.clear();
+		bookRatings.add(new BookRating(TEST_ISBN, 2));
+		client.rateBooks(bookRatings);
+
+		List<StockBook> listBooks = storeManager.getBooks();
+		StockBook bookInList = listBooks.get(0);
+		assertEquals(2, bookInList.getTimesRated());
+		assertEquals(6, bookInList.getTotalRating());
+	}
+
+	/**
+	 * Tests that no book is rated if one of the ratings is invalid
+	 */
+	@Test
+	public void testRateBooksInvalidRating() throws BookStoreException {
+		addBooks(TEST_ISBN + 1, NUM_COPIES);
+		List<StockBook> booksInStorePreTest = storeManager.getBooks();
+
+		Set<BookRating> bookRatings = new HashSet<BookRating>();
+		bookRatings.add(new BookRating(TEST_ISBN, 5)); // valid
+		bookRatings.add(new BookRating(TEST_ISBN + 1, 6)); // invalid
+
+		try {
+			client.rateBooks(bookRatings);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+
+		List<StockBook> booksInStorePostTest = storeManager.getBooks();
+		for (StockBook book : booksInStorePostTest) {
+			assertEquals(0, book.getTimesRated());
+		}
+		assertEquals(booksInStorePreTest.size(), booksInStorePostTest.size());
+		assertEquals(0, client.getTopRatedBooks(2).size());
+	}
+
+	/**
+	 * Tests that getTopRatedBooks() returns the rated books by decreasing
+	 * average rating and follows later ratings
+	 */
+	@Test
+	public void testGetTopRatedBooks() throws BookStoreException {
+		addBooks(TEST_ISBN + 1, NUM_COPIES);
+		addBooks(TEST_ISBN + 2, NUM_COPIES);
+		addBooks(TEST_ISBN + 3, NUM_COPIES);
+
+		Set<BookRating> bookRatings = new HashSet<BookRating>();
+		bookRatings.add(new BookRating(TEST_ISBN, 3));
+		bookRatings.add(new BookRating(TEST_ISBN + 1, 5));
+		bookRatings.add(new BookRating(TEST_ISBN + 2, 1));
+		client.rateBooks(bookRatings);
+
+		// The unrated book is not returned
+		List<Book> topRatedBooks = client.getTopRatedBooks(4);
+		assertEquals(3, topRatedBooks.size());
+		assertEquals(TEST_ISBN + 1, topRatedBooks.get(0).getISBN());
+		assertEquals(TEST_ISBN, topRatedBooks.get(1).getISBN());
+		assertEquals(TEST_ISBN + 2, topRatedBooks.get(2).getISBN());
+
+		// Average of TEST_ISBN + 1 drops to 2.5, below TEST_ISBN
+		bookRatings.clear();
+		bookRatings.add(new BookRating(TEST_ISBN + 1, 0));
+		client.rateBooks(bookRatings);
+
+		topRatedBooks = client.getTopRatedBooks(2);
+		assertEquals(2, topRatedBooks.size());
+		assertEquals(TEST_ISBN, topRatedBooks.get(0).getISBN());
+		assertEquals(TEST_ISBN + 1, topRatedBooks.get(1).getISBN());
+
+		Set<Integer> isbnSet = new HashSet<Integer>();
+		isbnSet.add(TEST_ISBN);
+		storeManager.removeBooks(isbnSet);
+		assertEquals(TEST_ISBN + 1, client.getTopRatedBooks(1).get(0)
+				.getISBN());
+	}
+
+	/**
+	 * Tests that concurrent buys and stock replenishments of the same book do
+	 * not lose any updates
+	 */
+	@Test
+	public void testConcurrentBuyAndAddCopies() throws Exception {
+		final int isbn = TEST_ISBN + 1;
+		final int numOperations = 500;
+		addBooks(isbn, numOperations);
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+		Thread buyer = new Thread(new Runnable() {
+			public void run() {
+				Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+				booksToBuy.add(new BookCopy(isbn, 1));
+				try {
+					for (int i = 0; i < numOperations; i++) {
+						client.buyBooks(booksToBuy);
+					}
+				} catch (BookStoreException ex) {
+					failure.compareAndSet(null, ex);
+				}
+			}
+		});
+		Thread replenisher = new Thread(new Runnable() {
+			public void run() {
+				Set<BookCopy> booksToAdd = new HashSet<BookCopy>();
+				booksToAdd.add(new BookCopy(isbn, 1));
+				try {
+					for (int i = 0; i < numOperations; i++) {
+						storeManager.addCopies(booksToAdd);
+					}
+				} catch (BookStoreException ex) {
+					failure.compareAndSet(null, ex);
+				}
+			}
+		});
+		buyer.start();
+		replenisher.start();
+		buyer.join();
+		replenisher.join();
+
+		assertNull(failure.get());
+		Set<Integer> isbnSet = new HashSet<Integer>();
+		isbnSet.add(isbn);
+		List<StockBook> books = storeManager.getBooksByISBN(isbnSet);
+		assertEquals(numOperations, books.get(0).getNumCopies());
+	}
+
+	/**
+	 * Tests that readers never observe a buy or a stock replenishment of
+	 * several books half way through
+	 */
+	@Test
+	public void testConcurrentBuyIsAtomic() throws Exception {
+		final int numOperations = 200;
+		addBooks(TEST_ISBN + 1, NUM_COPIES);
+		final Set<BookCopy> allCopies = new HashSet<BookCopy>();
+		allCopies.add(new BookCopy(TEST_ISBN, NUM_COPIES));
+		allCopies.add(new BookCopy(TEST_ISBN + 1, NUM_COPIES));
+		final Set<Integer> isbnSet = new HashSet<Integer>();
+		isbnSet.add(TEST_ISBN);
+		isbnSet.add(TEST_ISBN + 1);
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+		Thread writer = new Thread(new Runnable() {
+			public void run() {
+				try {
+					for (int i = 0; i < numOperations; i++) {
+						client.buyBooks(allCopies);
+						storeManager.addCopies(allCopies);
+					}
+				} catch (BookStoreException ex) {
+					failure.compareAndSet(null, ex);
+				}
+			}
+		});
+		writer.start();
+
+		while (writer.isAlive()) {
+			List<StockBook> books = storeManager.getBooksByISBN(isbnSet);
+			int numCopies = books.get(0).getNumCopies();
+			assertTrue(numCopies == 0 || numCopies == NUM_COPIES);
+			assertEquals(numCopies, books.get(1).getNumCopies());
+		}
+		writer.join();
+		assertNull(failure.get());
+	}
+
+	/**
+	 * Tests that one thread can have many calls of the asynchronous proxy in
+	 * flight, and that failed calls complete their future exceptionally
+	 */
+	@Test
+	public void testAsyncBuyBooks() throws Exception {
+		Assume.assumeFalse(localTest);
+		final int numBuys = 100;
+		Set<BookCopy> copiesToAdd = new HashSet<BookCopy>();
+		copiesToAdd.add(new BookCopy(TEST_ISBN, numBuys));
+		storeManager.addCopies(copiesToAdd);
+
+		AsyncBookStore asyncClient = ((BookStoreHTTPProxy) client)
+				.getAsyncProxy();
+		Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+		booksToBuy.add(new BookCopy(TEST_ISBN, 1));
+		List<CompletableFuture<Void>> buys = new ArrayList<CompletableFuture<Void>>();
+		for (int i = 0; i < numBuys; i++) {
+			buys.add(asyncClient.buyBooks(booksToBuy));
+		}
+		Set<BookCopy> invalidBuy = new HashSet<BookCopy>();
+		invalidBuy.add(new BookCopy(-1, 1));
+		CompletableFuture<Void> failedBuy = asyncClient.buyBooks(invalidBuy);
+
+		for (CompletableFuture<Void> buy : buys) {
+			buy.get();
+		}
+		try {
+			failedBuy.get();
+			fail();
+		} catch (ExecutionException ex) {
+			assertTrue(ex.getCause() instanceof BookStoreException);
+		}
+		List<StockBook> books = storeManager.getBooks();
+		assertEquals(NUM_COPIES, books.get(0).getNumCopies());
+	}
+
+	/**
+	 * Tests that buyEditorPicks buys copies of the editor picks in one step,
+	 * and buys nothing when a pick has too few copies
+	 */
+	@Test
+	public void testBuyEditorPicks() throws BookStoreException {
+		addBooks(TEST_ISBN + 1, NUM_COPIES);
+		Set<BookEditorPick> editorPicks = new HashSet<BookEditorPick>();
+		editorPicks.add(new BookEditorPick(TEST_ISBN, true));
+		storeManager.updateEditorPicks(editorPicks);
+
+		List<Book> boughtBooks = client.buyEditorPicks(2, 2);
+		assertEquals(1, boughtBooks.size());
+		assertEquals(TEST_ISBN, boughtBooks.get(0).getISBN());
+
+		try {
+			client.buyEditorPicks(1, NUM_COPIES);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+
+		Set<Integer> isbns = new HashSet<Integer>();
+		isbns.add(TEST_ISBN);
+		isbns.add(TEST_ISBN + 1);
+		for (StockBook book : storeManager.getBooksByISBN(isbns)) {
+			if (book.getISBN() == TEST_ISBN) {
+				assertEquals(NUM_COPIES - 2, book.getNumCopies());
+				assertEquals(1, book.getSaleMisses());
+			} else {
+				assertEquals(NUM_COPIES, book.getNumCopies());
+			}
+		}
+	}
+
+	/**
+	 * Tests that a batch buys the editor picks it got in an earlier step
+	 */
+	@Test
+	public void testBatchBuyEditorPicks() throws BookStoreException {
+		Set<BookEditorPick> editorPicks = new HashSet<BookEditorPick>();
+		editorPicks.add(new BookEditorPick(TEST_ISBN, true));
+		storeManager.updateEditorPicks(editorPicks);
+
+		BookStoreBatch batch = new BookStoreBatch();
+		int picks = batch.getEditorPicks(1);
+		batch.buyBooks(BookStoreBatchReference.copiesOf(picks, 2));
+		List<BookStoreResponse> responses = executeBatch(batch);
+
+		assertEquals(2, responses.size());
+		assertNull(responses.get(1).getException());
+		assertEquals(TEST_ISBN, ((Book) responses.get(picks).getList().get(0))
+				.getISBN());
+		assertEquals(NUM_COPIES - 2, storeManager.getBooks().get(0)
+				.getNumCopies());
+	}
+
+	/**
+	 * Tests that buys spanning several shards of a ShardedBookStore buy all
+	 * their copies or none of them
+	 */
+	@Test
+	public void testShardedBuyBooksAllOrNothing() throws BookStoreException {
+		ShardedBookStore store = new ShardedBookStore(4);
+		Set<StockBook> booksToAdd = new HashSet<StockBook>();
+		Set<BookCopy> copiesToBuy = new HashSet<BookCopy>();
+		for (int ISBN = TEST_ISBN; ISBN < TEST_ISBN + 8; ISBN++) {
+			booksToAdd.add(new ImmutableStockBook(ISBN, "Test of Shards",
+					"George RR Testin'", (float) 10, 2, 0, 0, 0, false));
+			copiesToBuy.add(new BookCopy(ISBN, 1));
+		}
+		store.addBooks(booksToAdd);
+		store.buyBooks(copiesToBuy);
+
+		// The last book lacks a copy, so none of the books is bought
+		copiesToBuy = new HashSet<BookCopy>();
+		for (int ISBN = TEST_ISBN; ISBN < TEST_ISBN + 8; ISBN++) {
+			copiesToBuy.add(new BookCopy(ISBN, (ISBN == TEST_ISBN + 7) ? 2 : 1));
+		}
+		try {
+			store.buyBooks(copiesToBuy);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+		for (StockBook book : store.getBooks()) {
+			assertEquals(1, book.getNumCopies());
+		}
+		List<StockBook> booksInDemand = store.getBooksInDemand();
+		assertEquals(1, booksInDemand.size());
+		assertEquals(TEST_ISBN + 7, booksInDemand.get(0).getISBN());
+
+		// A book missing from one shard fails the whole call
+		Set<BookCopy> copiesToAdd = new HashSet<BookCopy>();
+		copiesToAdd.add(new BookCopy(TEST_ISBN, 1));
+		copiesToAdd.add(new BookCopy(TEST_ISBN + 1, 1));
+		copiesToAdd.add(new BookCopy(TEST_ISBN + 100, 1));
+		try {
+			store.addCopies(copiesToAdd);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+		for (StockBook book : store.getBooks()) {
+			assertEquals(1, book.getNumCopies());
+		}
+	}
+
+	/**
+	 * Tests that a buy routed to two servers is atomic across them
+	 */
+	@Test
+	public void testPartitionedBuyBooksAcrossServers() throws Exception {
+		Server server1 = BookStoreHTTPServerUtility.startServer(8091,
+				new BookStoreHTTPMessageHandler(new CertainBookStore()));
+		Server server2 = BookStoreHTTPServerUtility.startServer(8092,
+				new BookStoreHTTPMessageHandler(new CertainBookStore()));
+		// The servers are started even for local tests, so the messages use
+		// the binary format, which round-trips on every JDK
+		PartitionedBookStoreHTTPProxy store = new PartitionedBookStoreHTTPProxy(
+				Arrays.asList("http://localhost:8091", "http://localhost:8092"),
+				BookStoreWireFormat.BINARY);
+		try {
+			Set<StockBook> booksToAdd = new HashSet<StockBook>();
+			Set<Integer> servers = new HashSet<Integer>();
+			for (int ISBN = TEST_ISBN; ISBN < TEST_ISBN + 8; ISBN++) {
+				booksToAdd.add(new ImmutableStockBook(ISBN, "Test of Servers",
+						"George RR Testin'", (float) 10, 1, 0, 0, 0, false));
+				servers.add(BookStoreUtility.partitionOf(ISBN, 2));
+			}
+			assertEquals(2, servers.size());
+			store.addBooks(booksToAdd);
+
+			// The last book lacks a copy, so none of the books is bought
+			Set<BookCopy> copiesToBuy = new HashSet<BookCopy>();
+			for (int ISBN = TEST_ISBN; ISBN < TEST_ISBN + 8; ISBN++) {
+				copiesToBuy.add(new BookCopy(ISBN,
+						(ISBN == TEST_ISBN + 7) ? 2 : 1));
+			}
+			try {
+				store.buyBooks(copiesToBuy);
+				fail();
+			} catch (BookStoreException ex) {
+				;
+			}
+			for (StockBook book : store.getBooks()) {
+				assertEquals(1, book.getNumCopies());
+			}
+			List<StockBook> booksInDemand = store.getBooksInDemand();
+			assertEquals(1, booksInDemand.size());
+			assertEquals(TEST_ISBN + 7, booksInDemand.get(0).getISBN());
+
+			copiesToBuy = new HashSet<BookCopy>();
+			for (int ISBN = TEST_ISBN; ISBN < TEST_ISBN + 8; ISBN++) {
+				copiesToBuy.add(new BookCopy(ISBN, 1));
+			}
+			store.buyBooks(copiesToBuy);
+			List<StockBook> books = store.getBooks();
+			assertEquals(8, books.size());
+			for (StockBook book : books) {
+				assertEquals(0, book.getNumCopies());
+			}
+		} finally {
+			store.stop();
+			server1.stop();
+			server2.stop();
+		}
+	}
+
+	/**
+	 * Tests that a buy whose prepare took effect on a server but failed for
+	 * the client gives the copies of that server back
+	 */
+	@Test
+	public void testPartitionedBuyAbortsLostPrepare() throws Exception {
+		Server server1 = BookStoreHTTPServerUtility.startServer(8091,
+				new BookStoreHTTPMessageHandler(new CertainBookStore()));
+		// The second server prepares the buys but its responses are lost, so
+		// the client cannot decode them
+		CertainBookStore bookStore2 = new CertainBookStore();
+		Server server2 = BookStoreHTTPServerUtility.startServer(8092,
+				new BookStoreHTTPMessageHandler(bookStore2) {
+					@Override
+					public void handle(String target, Request baseRequest,
+							HttpServletRequest request,
+							HttpServletResponse response) throws IOException,
+							ServletException {
+						super.handle(target, baseRequest, request, response);
+						if (BookStoreUtility.convertURItoMessageTag(request
+								.getRequestURI()) == BookStoreMessageTag.PREPAREBUYBOOKS) {
+							response.reset();
+							response.getOutputStream().write(new byte[] { 1 });
+						}
+					}
+				});
+		PartitionedBookStoreHTTPProxy store = new PartitionedBookStoreHTTPProxy(
+				Arrays.asList("http://localhost:8091", "http://localhost:8092"),
+				BookStoreWireFormat.BINARY);
+		try {
+			Set<StockBook> booksToAdd = new HashSet<StockBook>();
+			Set<BookCopy> copiesToBuy = new HashSet<BookCopy>();
+			Set<Integer> servers = new HashSet<Integer>();
+			for (int ISBN = TEST_ISBN; ISBN < TEST_ISBN + 8; ISBN++) {
+				booksToAdd.add(new ImmutableStockBook(ISBN, "Test of Servers",
+						"George RR Testin'", (float) 10, 1, 0, 0, 0, false));
+				copiesToBuy.add(new BookCopy(ISBN, 1));
+				servers.add(BookStoreUtility.partitionOf(ISBN, 2));
+			}
+			assertEquals(2, servers.size());
+			store.addBooks(booksToAdd);
+
+			try {
+				store.buyBooks(copiesToBuy);
+				fail();
+			} catch (BookStoreException ex) {
+				;
+			}
+			List<StockBook> books2 = bookStore2.getBooks();
+			assertFalse(books2.isEmpty());
+			for (StockBook book : books2) {
+				assertEquals(1, book.getNumCopies());
+			}
+			for (StockBook book : store.getBooks()) {
+				assertEquals(1, book.getNumCopies());
+			}
+		} finally {
+			store.stop();
+			server1.stop();
+			server2.stop();
+		}
+	}
+
+	/**
+	 * Tests that a prepare arriving after the abort of its transaction is
+	 * rejected, and that an undecided prepared buy is aborted once it expires
+	 */
+	@Test
+	public void testPreparedBuyAbortedOrExpired() throws Exception {
+		CertainBookStore bookStore = new CertainBookStore();
+		Set<StockBook> booksToAdd = new HashSet<StockBook>();
+		booksToAdd.add(new ImmutableStockBook(TEST_ISBN, "Test of Prepares",
+				"George RR Testin'", (float) 10, 1, 0, 0, 0, false));
+		bookStore.addBooks(booksToAdd);
+		Set<BookCopy> copiesToBuy = new HashSet<BookCopy>();
+		copiesToBuy.add(new BookCopy(TEST_ISBN, 1));
+
+		bookStore.abortBuyBooks(1);
+		try {
+			bookStore.prepareBuyBooks(1, copiesToBuy);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+		assertEquals(1, bookStore.getBooks().get(0).getNumCopies());
+
+		bookStore.prepareBuyBooks(2, copiesToBuy);
+		assertEquals(0, bookStore.getBooks().get(0).getNumCopies());
+		assertEquals(0, bookStore.abortExpiredBuys(60000));
+		assertEquals(0, bookStore.getBooks().get(0).getNumCopies());
+		Thread.sleep(2);
+		assertEquals(1, bookStore.abortExpiredBuys(1));
+		assertEquals(1, bookStore.getBooks().get(0).getNumCopies());
+		// A late commit of the expired buy does not buy the copies again
+		bookStore.commitBuyBooks(2);
+		assertEquals(1, bookStore.getBooks().get(0).getNumCopies());
+	}
+
+	/**
+	 * Tests that a replica follows the calls of its primary, copying the
+	 * books the primary had before the replica started, and rejects updates
+	 */
+	@Test
+	public void testReplicaFollowsPrimary() throws Exception {
+		CertainBookStore primaryStore = new CertainBookStore();
+		primaryStore.setReplicationLog(new BookStoreReplicationLog(100));
+		Set<StockBook> booksToAdd = new HashSet<StockBook>();
+		booksToAdd.add(getDefaultBook());
+		primaryStore.addBooks(booksToAdd);
+		Server primaryServer = BookStoreHTTPServerUtility.startServer(8093,
+				new BookStoreHTTPMessageHandler(primaryStore));
+		CertainBookStore replicaStore = new CertainBookStore();
+		// The servers are started even for local tests, so the messages use
+		// the binary format, which round-trips on every JDK
+		BookStoreReplicator replicator = new BookStoreReplicator(
+				replicaStore, "http://localhost:8093",
+				BookStoreWireFormat.BINARY);
+		Server replicaServer = BookStoreHTTPServerUtility.startServer(8094,
+				new BookStoreHTTPMessageHandler(replicaStore, replicator));
+		replicator.start();
+		ReplicatedBookStoreHTTPProxy store = new ReplicatedBookStoreHTTPProxy(
+				"http://localhost:8093",
+				Arrays.asList("http://localhost:8094"), 60000,
+				BookStoreWireFormat.BINARY);
+		try {
+			Set<BookCopy> copiesToBuy = new HashSet<BookCopy>();
+			copiesToBuy.add(new BookCopy(TEST_ISBN, 2));
+			store.buyBooks(copiesToBuy);
+
+			// The replica catches up with the buy shortly after it was made
+			Set<Integer> isbns = new HashSet<Integer>();
+			isbns.add(TEST_ISBN);
+			long deadline = System.currentTimeMillis() + 10000;
+			while (true) {
+				try {
+					if (replicaStore.getBooksByISBN(isbns).get(0)
+							.getNumCopies() == NUM_COPIES - 2) {
+						break;
+					}
+				} catch (BookStoreException ex) {
+					// The replica has not copied the books of the primary yet
+				}
+				assertTrue(System.currentTimeMillis() < deadline);
+				Thread.sleep(10);
+			}
+			assertTrue(store.getReplicaStalenessMillis(0) < 60000);
+			assertEquals(TEST_ISBN, store.getBooks(isbns).get(0).getISBN());
+
+			BookStoreHTTPProxy replicaClient = new BookStoreHTTPProxy(
+					"http://localhost:8094", BookStoreWireFormat.BINARY);
+			try {
+				replicaClient.buyBooks(copiesToBuy);
+				fail();
+			} catch (BookStoreException ex) {
+				;
+			} finally {
+				replicaClient.stop();
+			}
+			assertEquals(NUM_COPIES - 2, replicaStore.getBooksByISBN(isbns)
+					.get(0).getNumCopies());
+		} finally {
+			store.stop();
+			replicator.stop();
+			replicaServer.stop();
+			primaryServer.stop();
+		}
+	}
+
+	/**
+	 * Runs a batch against the store, through the proxy when testing remotely
+	 */
+	private List<BookStoreResponse> executeBatch(BookStoreBatch batch)
+			throws BookStoreException {
+		if (localTest) {
+			return new BookStoreBatchExecutor(client, storeManager)
+					.execute(batch.getOperations());
+		}
+		return ((BookStoreHTTPProxy) client).executeBatch(batch);
+	}
+
 	@AfterClass
 	public static void tearDownAfterClass() throws BookStoreException {
 		storeManager.removeAllBooks();
@@ -0,0 +1,158 @@
+package com.acertainbookstore.client.tests;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.acertainbookstore.utils.IntObjectHashMap;
+
+/**
+ * Test class to test the IntObjectHashMap used as the book map of the store
+ * 
+ */
+public class IntObjectHashMapTest {
+
+	/**
+	 * Tests that the entries stay reachable while the table grows many times
+	 * from its minimum size
+	 */
+	@Test
+	public void testResize() {
+		IntObjectHashMap<String> map = new IntObjectHashMap<String>();
+		int numKeys = 100000;
+		for (int key = 1; key <= numKeys; key++) {
+			assertNull(map.put(key, "v" + key));
+		}
+		assertEquals(numKeys, map.size());
+		for (int key = 1; key <= numKeys; key++) {
+			assertEquals("v" + key, map.get(key));
+		}
+		assertNull(map.get(numKeys + 1));
+
+		int[] sortedKeys = map.sortedKeys();
+		assertEquals(numKeys, sortedKeys.length);
+		for (int i = 0; i < numKeys; i++) {
+			assertEquals(i + 1, sortedKeys[i]);
+		}
+		int numValues = 0;
+		for (String value : map.values()) {
+			assertNotNull(value);
+			numValues++;
+		}
+		assertEquals(numKeys, numValues);
+	}
+
+	/**
+	 * Tests that replacing the value of a key neither adds an entry nor
+	 * resizes the table
+	 */
+	@Test
+	public void testReplace() {
+		IntObjectHashMap<String> map = new IntObjectHashMap<String>();
+		assertNull(map.put(42, "a"));
+		assertEquals("a", map.put(42, "b"));
+		assertEquals("b", map.get(42));
+		assertEquals(1, map.size());
+	}
+
+	/**
+	 * Tests that removals, which shift the following entries of the probe
+	 * sequences back, keep every other entry reachable, against a HashMap.
+	 * The keys are drawn from a small range of a small table so that the
+	 * probe sequences are long and wrap around the end of the table.
+	 */
+	@Test
+	public void testBackwardShiftRemoval() {
+		Random random = new Random(4711);
+		IntObjectHashMap<Integer> map = new IntObjectHashMap<Integer>();
+		Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+		for (int i = 0; i < 200000; i++) {
+			int key = random.nextInt(64) - 32;
+			if (random.nextBoolean()) {
+				assertEquals(expected.put(key, i), map.put(key, i));
+			} else {
+				assertEquals(expected.remove(key), map.remove(key));
+			}
+			assertEquals(expected.size(), map.size());
+		}
+		for (int key = -32; key < 32; key++) {
+			assertEquals(expected.get(key), map.get(key));
+			assertEquals(expected.containsKey(key), map.containsKey(key));
+		}
+	}
+
+	/**
+	 * Tests that removing the entries of a table filled up to its resize
+	 * threshold one by one keeps the remaining entries reachable
+	 */
+	@Test
+	public void testRemoveAll() {
+		IntObjectHashMap<Integer> map = new IntObjectHashMap<Integer>(8);
+		for (int key = 1; key <= 8; key++) {
+			map.put(key, key);
+		}
+		for (int removed = 1; removed <= 8; removed++) {
+			assertEquals(Integer.valueOf(removed), map.remove(removed));
+			assertNull(map.remove(removed));
+			assertNull(map.get(removed));
+			for (int key = removed + 1; key <= 8; key++) {
+				assertEquals(Integer.valueOf(key), map.get(key));
+			}
+		}
+		assertTrue(map.isEmpty());
+		assertEquals(0, map.sortedKeys().length);
+		assertFalse(map.values().iterator().hasNext());
+	}
+
+	/**
+	 * Tests key 0, which marks the free slots of the table and is kept
+	 * outside of it
+	 */
+	@Test
+	public void testFreeKey() {
+		IntObjectHashMap<String> map = new IntObjectHashMap<String>();
+		assertNull(map.get(0));
+		assertFalse(map.containsKey(0));
+		assertNull(map.remove(0));
+
+		assertNull(map.put(0, "zero"));
+		map.put(-1, "minus one");
+		map.put(1, "one");
+		assertEquals(3, map.size());
+		assertEquals("zero", map.get(0));
+		assertTrue(map.containsKey(0));
+		assertEquals("zero", map.put(0, "zero again"));
+		assertEquals(3, map.size());
+		assertTrue(Arrays.equals(new int[] { -1, 0, 1 }, map.sortedKeys()));
+		List<String> values = new ArrayList<String>(map.values());
+		assertEquals(3, values.size());
+		assertTrue(values.contains("zero again"));
+
+		assertEquals("zero again", map.remove(0));
+		assertNull(map.get(0));
+		assertEquals(2, map.size());
+		assertEquals("one", map.get(1));
+		assertEquals("minus one", map.get(-1));
+
+		map.put(0, "zero");
+		map.clear();
+		assertTrue(map.isEmpty());
+		assertNull(map.get(0));
+		assertNull(map.get(1));
+	}
+
+	/**
+	 * Tests that null values are rejected, since null means no entry
+	 */
+	@Test(expected = NullPointerException.class)
+	public void testNullValue() {
+		new IntObjectHashMap<String>().put(1, null);
+	}
+}
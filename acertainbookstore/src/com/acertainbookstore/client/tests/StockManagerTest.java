@@ -2,9 +2,18 @@ package com.acertainbookstore.client.tests;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.junit.After;
@@ -16,15 +25,25 @@ import org.junit.Test;
 import com.acertainbookstore.business.Book;
 import com.acertainbookstore.business.BookCopy;
 import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.BookStoreBackend;
+import com.acertainbookstore.business.BookStoreConcurrencyMode;
+import com.acertainbookstore.business.BookStoreWriteAheadLog;
 import com.acertainbookstore.business.CertainBookStore;
 import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.ShardedBookStore;
 import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.client.BookStoreBatch;
 import com.acertainbookstore.client.BookStoreHTTPProxy;
 import com.acertainbookstore.client.StockManagerHTTPProxy;
 import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.BookStoreImportListener;
 import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.server.BookStoreBatchExecutor;
+import com.acertainbookstore.utils.BookStoreBatchReference;
 import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreResponse;
 
 /**
  * Test class to test the StockManager interface
@@ -52,9 +71,20 @@ public class StockManagerTest {
 			localTest = (localTestProperty != null) ? Boolean
 					.parseBoolean(localTestProperty) : localTest;
 			if (localTest) {
-				CertainBookStore store = new CertainBookStore();
-				storeManager = store;
-				client = store;
+				int numShards = ShardedBookStore.getConfiguredNumShards();
+				if (numShards > 1) {
+					ShardedBookStore store = new ShardedBookStore(numShards,
+							BookStoreConcurrencyMode.getConfiguredMode(),
+							BookStoreBackend.getConfiguredBackend());
+					storeManager = store;
+					client = store;
+				} else {
+					CertainBookStore store = new CertainBookStore(
+							BookStoreConcurrencyMode.getConfiguredMode(),
+							BookStoreBackend.getConfiguredBackend());
+					storeManager = store;
+					client = store;
+				}
 			} else {
 				storeManager = new StockManagerHTTPProxy(
 						"http://localhost:8081/stock");
@@ -344,6 +374,45 @@ public class StockManagerTest {
 
 	}
 
+	/**
+	 * Tests that the editor picks follow the books added as picks, the picks
+	 * that are revoked and the books that are removed, and that a sample holds
+	 * distinct books
+	 */
+	@Test
+	public void testEditorPicksFollowUpdates() throws BookStoreException {
+		Set<StockBook> booksToAdd = new HashSet<StockBook>();
+		for (int i = 1; i <= 10; i++) {
+			booksToAdd.add(new ImmutableStockBook(TEST_ISBN + i,
+					"The Art of Computer Programming Vol " + i,
+					"Donald Knuth", (float) 300, NUM_COPIES, 0, 0, 0, true));
+		}
+		storeManager.addBooks(booksToAdd);
+
+		List<Book> editorPicks = client.getEditorPicks(5);
+		assertEquals(5, editorPicks.size());
+		assertEquals(5, new HashSet<Book>(editorPicks).size());
+		assertEquals(10, client.getEditorPicks(20).size());
+
+		// Revoke one pick, remove another book and make the default book a
+		// pick
+		addEditorPick(TEST_ISBN + 1, false);
+		Set<Integer> isbnSet = new HashSet<Integer>();
+		isbnSet.add(TEST_ISBN + 2);
+		storeManager.removeBooks(isbnSet);
+		addEditorPick(TEST_ISBN, true);
+
+		editorPicks = client.getEditorPicks(20);
+		assertEquals(9, editorPicks.size());
+		for (Book book : editorPicks) {
+			assertTrue(book.getISBN() != TEST_ISBN + 1
+					&& book.getISBN() != TEST_ISBN + 2);
+		}
+
+		storeManager.removeAllBooks();
+		assertEquals(0, client.getEditorPicks(20).size());
+	}
+
 	/**
 	 * Checks that a book can be removed
 	 */
@@ -414,6 +483,33 @@ public class StockManagerTest {
 				&& booksToAdd.size() == listBooks.size());
 	}
 
+	/**
+	 * Tests that books are in demand after a sale miss until copies are added
+	 */
+	@Test
+	public void testGetBooksInDemand() throws BookStoreException {
+		assertEquals(0, storeManager.getBooksInDemand().size());
+
+		Set<BookCopy> booksToBuy = new HashSet<BookCopy>();
+		booksToBuy.add(new BookCopy(TEST_ISBN, NUM_COPIES + 1));
+		try {
+			client.buyBooks(booksToBuy);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+
+		List<StockBook> booksInDemand = storeManager.getBooksInDemand();
+		assertEquals(1, booksInDemand.size());
+		assertEquals((int) TEST_ISBN, booksInDemand.get(0).getISBN());
+		assertEquals(1, booksInDemand.get(0).getSaleMisses());
+
+		Set<BookCopy> bookCopiesSet = new HashSet<BookCopy>();
+		bookCopiesSet.add(new BookCopy(TEST_ISBN, 1));
+		storeManager.addCopies(bookCopiesSet);
+		assertEquals(0, storeManager.getBooksInDemand().size());
+	}
+
 	/**
 	 * Tests basic removeAllBooks functionality
 	 */
@@ -438,6 +534,251 @@ public class StockManagerTest {
 		assertTrue(booksInStoreList.size() == 0);
 	}
 
+	/**
+	 * Tests that a batch adds copies to the books with the fewest copies and
+	 * stops at the first failing step
+	 */
+	@Test
+	public void testBatchAddCopiesToFewest() throws BookStoreException {
+		Set<StockBook> booksToAdd = new HashSet<StockBook>();
+		booksToAdd.add(new ImmutableStockBook(TEST_ISBN + 1,
+				"The Art of Batching", "Bat Cher", (float) 10, NUM_COPIES + 1,
+				0, 0, 0, false));
+		storeManager.addBooks(booksToAdd);
+
+		BookStoreBatch batch = new BookStoreBatch();
+		int books = batch.getStockBooks();
+		batch.addCopies(new BookStoreBatchReference(books,
+				BookStoreBatchReference.Selection.FEWEST_COPIES, 1, 3));
+		Set<BookCopy> invalidCopies = new HashSet<BookCopy>();
+		invalidCopies.add(new BookCopy(-1, 1));
+		batch.addCopies(invalidCopies);
+		batch.getStockBooks();
+		List<BookStoreResponse> responses = executeBatch(batch);
+
+		assertEquals(3, responses.size());
+		assertNull(responses.get(1).getException());
+		assertNotNull(responses.get(2).getException());
+
+		Set<Integer> isbns = new HashSet<Integer>();
+		isbns.add(TEST_ISBN);
+		isbns.add(TEST_ISBN + 1);
+		for (StockBook book : storeManager.getBooksByISBN(isbns)) {
+			assertEquals(book.getISBN() == TEST_ISBN ? NUM_COPIES + 3
+					: NUM_COPIES + 1, book.getNumCopies());
+		}
+	}
+
+	/**
+	 * Tests that a store recovered from the write-ahead log of another store
+	 * has the same books, copies, sale misses, ratings and editor picks
+	 */
+	@Test
+	public void testWriteAheadLogRecovery() throws Exception {
+		File walFile = File.createTempFile("bookstore", ".wal");
+		walFile.deleteOnExit();
+		CertainBookStore store = new CertainBookStore(
+				BookStoreConcurrencyMode.getConfiguredMode(),
+				BookStoreBackend.getConfiguredBackend());
+		BookStoreWriteAheadLog log = BookStoreWriteAheadLog.open(walFile);
+		store.recover(log);
+
+		Set<StockBook> booksToAdd = new HashSet<StockBook>();
+		booksToAdd.add(getDefaultBook());
+		booksToAdd.add(new ImmutableStockBook(TEST_ISBN + 1, "Logged",
+				"Ahead Writer", (float) 20, NUM_COPIES, 0, 0, 0, true));
+		booksToAdd.add(new ImmutableStockBook(TEST_ISBN + 2, "Removed",
+				"Ahead Writer", (float) 30, NUM_COPIES, 0, 0, 0, false));
+		store.addBooks(booksToAdd);
+		Set<BookCopy> copies = new HashSet<BookCopy>();
+		copies.add(new BookCopy(TEST_ISBN, 2));
+		store.addCopies(copies);
+		store.buyBooks(copies);
+		Set<BookCopy> tooManyCopies = new HashSet<BookCopy>();
+		tooManyCopies.add(new BookCopy(TEST_ISBN + 1, NUM_COPIES + 1));
+		try {
+			store.buyBooks(tooManyCopies);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+		Set<BookEditorPick> editorPicks = new HashSet<BookEditorPick>();
+		editorPicks.add(new BookEditorPick(TEST_ISBN, true));
+		store.updateEditorPicks(editorPicks);
+		Set<BookRating> ratings = new HashSet<BookRating>();
+		ratings.add(new BookRating(TEST_ISBN + 1, 4));
+		store.rateBooks(ratings);
+		store.buyEditorPicks(1, 1);
+		Set<Integer> removedISBNs = new HashSet<Integer>();
+		removedISBNs.add(TEST_ISBN + 2);
+		store.removeBooks(removedISBNs);
+		log.close();
+		// A record torn by a crash is cut off by the recovery
+		FileOutputStream tornRecord = new FileOutputStream(walFile, true);
+		tornRecord.write(new byte[] { 0, 0, 1 });
+		tornRecord.close();
+
+		CertainBookStore recoveredStore = new CertainBookStore(
+				BookStoreConcurrencyMode.getConfiguredMode(),
+				BookStoreBackend.getConfiguredBackend());
+		BookStoreWriteAheadLog recoveredLog = BookStoreWriteAheadLog
+				.open(walFile);
+		recoveredStore.recover(recoveredLog);
+		recoveredLog.close();
+
+		List<StockBook> books = store.getBooks();
+		List<StockBook> recoveredBooks = recoveredStore.getBooks();
+		assertEquals(2, recoveredBooks.size());
+		for (int i = 0; i < books.size(); i++) {
+			StockBook book = books.get(i);
+			StockBook recoveredBook = recoveredBooks.get(i);
+			assertEquals(book, recoveredBook);
+			assertEquals(book.getNumCopies(), recoveredBook.getNumCopies());
+			assertEquals(book.getSaleMisses(), recoveredBook.getSaleMisses());
+			assertEquals(book.getTotalRating(), recoveredBook.getTotalRating());
+			assertEquals(book.getTimesRated(), recoveredBook.getTimesRated());
+			assertEquals(book.isEditorPick(), recoveredBook.isEditorPick());
+		}
+	}
+
+	/**
+	 * Tests that a store recovered from a snapshot and the calls logged after
+	 * it has the same books as the store the snapshot was taken of
+	 */
+	@Test
+	public void testSnapshotRecovery() throws Exception {
+		File walFile = File.createTempFile("bookstore", ".wal");
+		walFile.deleteOnExit();
+		File snapshotFile = File.createTempFile("bookstore", ".snapshot");
+		snapshotFile.deleteOnExit();
+		snapshotFile.delete();
+		CertainBookStore store = new CertainBookStore(
+				BookStoreConcurrencyMode.getConfiguredMode(),
+				BookStoreBackend.getConfiguredBackend());
+		BookStoreWriteAheadLog log = BookStoreWriteAheadLog.open(walFile);
+		store.recover(snapshotFile, log);
+
+		Set<StockBook> booksToAdd = new HashSet<StockBook>();
+		booksToAdd.add(getDefaultBook());
+		booksToAdd.add(new ImmutableStockBook(TEST_ISBN + 1,
+				"Sn\u00e4pshot \u4e66", "Mapped Writer", (float) 20, NUM_COPIES,
+				0, 0, 0, true));
+		booksToAdd.add(new ImmutableStockBook(TEST_ISBN + 2, "Removed",
+				"Mapped Writer", (float) 30, NUM_COPIES, 0, 0, 0, false));
+		store.addBooks(booksToAdd);
+		Set<BookRating> ratings = new HashSet<BookRating>();
+		ratings.add(new BookRating(TEST_ISBN + 1, 4));
+		store.rateBooks(ratings);
+		Set<BookCopy> tooManyCopies = new HashSet<BookCopy>();
+		tooManyCopies.add(new BookCopy(TEST_ISBN, NUM_COPIES + 1));
+		try {
+			store.buyBooks(tooManyCopies);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+		assertTrue(store.writeSnapshot(snapshotFile));
+		// Nothing changed since the last snapshot
+		assertFalse(store.writeSnapshot(snapshotFile));
+
+		// The calls after the snapshot are replayed from the log
+		Set<BookCopy> copies = new HashSet<BookCopy>();
+		copies.add(new BookCopy(TEST_ISBN + 1, 2));
+		store.addCopies(copies);
+		Set<Integer> removedISBNs = new HashSet<Integer>();
+		removedISBNs.add(TEST_ISBN + 2);
+		store.removeBooks(removedISBNs);
+		log.close();
+
+		CertainBookStore recoveredStore = new CertainBookStore(
+				BookStoreConcurrencyMode.getConfiguredMode(),
+				BookStoreBackend.getConfiguredBackend());
+		BookStoreWriteAheadLog recoveredLog = BookStoreWriteAheadLog
+				.open(walFile);
+		recoveredStore.recover(snapshotFile, recoveredLog);
+		recoveredLog.close();
+
+		// The snapshot does not keep the order of the books
+		Map<Integer, StockBook> recoveredBooks = new HashMap<Integer, StockBook>();
+		for (StockBook book : recoveredStore.getBooks()) {
+			recoveredBooks.put(book.getISBN(), book);
+		}
+		assertEquals(2, recoveredBooks.size());
+		for (StockBook book : store.getBooks()) {
+			StockBook recoveredBook = recoveredBooks.get(book.getISBN());
+			assertEquals(book, recoveredBook);
+			assertEquals(book.getTitle(), recoveredBook.getTitle());
+			assertEquals(book.getAuthor(), recoveredBook.getAuthor());
+			assertEquals(book.getNumCopies(), recoveredBook.getNumCopies());
+			assertEquals(book.getSaleMisses(), recoveredBook.getSaleMisses());
+			assertEquals(book.getTotalRating(), recoveredBook.getTotalRating());
+			assertEquals(book.getTimesRated(), recoveredBook.getTimesRated());
+			assertEquals(book.isEditorPick(), recoveredBook.isEditorPick());
+		}
+	}
+
+	/**
+	 * Tests that the books imported from a CSV stream in batches are exported
+	 * again with the same attributes
+	 */
+	@Test
+	public void testImportExportBooks() throws Exception {
+		String csv = "ISBN,title,author,price,numCopies\n"
+				+ (TEST_ISBN + 1) + ",\"Commas, \"\"quotes\"\"\nand lines\",A,5.5,3\n"
+				+ (TEST_ISBN + 2) + ",Second,B,7,1\n\n"
+				+ (TEST_ISBN + 3) + ",Third,C,2,4\n";
+		final List<Long> progress = new ArrayList<Long>();
+		long numBooksImported = storeManager.importBooks(
+				new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8)),
+				2, new BookStoreImportListener() {
+					public void booksImported(long numBooksImported) {
+						progress.add(numBooksImported);
+					}
+				});
+		assertEquals(3, numBooksImported);
+		assertEquals(Arrays.asList(2L, 3L), progress);
+
+		Set<Integer> isbns = new HashSet<Integer>();
+		isbns.add(TEST_ISBN + 1);
+		StockBook book = storeManager.getBooksByISBN(isbns).get(0);
+		assertEquals("Commas, \"quotes\"\nand lines", book.getTitle());
+		assertEquals(5.5f, book.getPrice(), 0);
+		assertEquals(3, book.getNumCopies());
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(4, storeManager.exportBooks(out));
+		storeManager.removeAllBooks();
+		assertEquals(4,
+				storeManager.importBooks(
+						new ByteArrayInputStream(out.toByteArray()), 10, null));
+		assertEquals(4, storeManager.getBooks().size());
+		assertEquals(getDefaultBook(), storeManager.getBooksByISBN(
+				Collections.singleton(TEST_ISBN)).get(0));
+
+		// A line that is not a book stops the import
+		try {
+			storeManager.importBooks(new ByteArrayInputStream(
+					"1,Title,Author,notaprice,1\n".getBytes(StandardCharsets.UTF_8)),
+					10, null);
+			fail();
+		} catch (BookStoreException ex) {
+			;
+		}
+		assertEquals(4, storeManager.getBooks().size());
+	}
+
+	/**
+	 * Runs a batch against the store, through the proxy when testing remotely
+	 */
+	private List<BookStoreResponse> executeBatch(BookStoreBatch batch)
+			throws BookStoreException {
+		if (localTest) {
+			return new BookStoreBatchExecutor(client, storeManager)
+					.execute(batch.getOperations());
+		}
+		return ((StockManagerHTTPProxy) storeManager).executeBatch(batch);
+	}
+
 	@AfterClass
 	public static void tearDownAfterClass() throws BookStoreException {
 		storeManager.removeAllBooks();
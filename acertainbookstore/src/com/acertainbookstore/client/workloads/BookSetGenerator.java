@@ -3,6 +3,7 @@ package com.acertainbookstore.client.workloads;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
 
 import com.acertainbookstore.business.ImmutableStockBook;
@@ -63,10 +64,10 @@ public class BookSetGenerator {
 	public Set<ImmutableStockBook> nextSetOfStockBooks(StockManager stockManager, int num) {
 		
 		Set<ImmutableStockBook> randomStockBooks = 	new HashSet<ImmutableStockBook>();
-		ArrayList<StockBook> allStockBooks =  new ArrayList<StockBook>();
+		List<StockBook> allStockBooks =  new ArrayList<StockBook>();
 		
 		try {
-			allStockBooks = (ArrayList<StockBook>) stockManager.getBooks();
+			allStockBooks = stockManager.getBooks();
 		} catch (BookStoreException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -3,6 +3,9 @@
  */
 package com.acertainbookstore.client.workloads;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -10,17 +13,22 @@ import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
+import com.acertainbookstore.business.BookStoreBackend;
+import com.acertainbookstore.business.BookStoreConcurrencyMode;
 import com.acertainbookstore.business.CertainBookStore;
 import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.ShardedBookStore;
+import com.acertainbookstore.client.AsyncBookStoreHTTPProxy;
 import com.acertainbookstore.client.BookStoreHTTPProxy;
 import com.acertainbookstore.client.StockManagerHTTPProxy;
 import com.acertainbookstore.interfaces.BookStore;
 import com.acertainbookstore.interfaces.StockManager;
 import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreThreadMode;
+import com.acertainbookstore.utils.BookStoreWireFormat;
 import com.acertainbookstore.business.StockBook;
 
 /**
@@ -29,6 +37,15 @@ import com.acertainbookstore.business.StockBook;
  * It configures the environment for the workers using WorkloadConfiguration
  * objects and reports the metrics
  * 
+ * The metrics of the runs are printed after each run, and written as CSV and
+ * JSON to the files named by the workload report system property followed by
+ * .csv and .json, rewritten after each run.
+ * 
+ * The runs go from minclients to maxclients clients by clientstep, each
+ * client running on a thread of the mode of the thread mode system property.
+ * Virtual threads let a run simulate tens of thousands of clients blocked on
+ * the store.
+ * 
  */
 public class CertainWorkload {
 
@@ -41,16 +58,67 @@ public class CertainWorkload {
 		//if non local test you have to run this, but NOTE every time restart the server
 		// also you have to manually increase the parameter and switch the boolean to false
 		// in the configuration adjust warmup to 100, actual runs to 200
-		//execution(10);
+		//execution(10, report);
 		
 		//use this if local test
-		for(int i = 10; i<=200; i = i +10){
-			execution(i);
+		int minClients = getIntProperty(
+				BookStoreConstants.PROPERTY_KEY_MIN_CLIENTS,
+				BookStoreConstants.DEFAULT_MIN_CLIENTS);
+		int maxClients = getIntProperty(
+				BookStoreConstants.PROPERTY_KEY_MAX_CLIENTS,
+				BookStoreConstants.DEFAULT_MAX_CLIENTS);
+		int clientStep = getIntProperty(
+				BookStoreConstants.PROPERTY_KEY_CLIENT_STEP,
+				BookStoreConstants.DEFAULT_CLIENT_STEP);
+		WorkloadReport report = new WorkloadReport();
+		for(int i = minClients; i<=maxClients; i = i + clientStep){
+			execution(i, report);
+		}
+	}
+
+	/**
+	 * Returns the value of the integer system property, or the default value
+	 * if the property is not set
+	 * 
+	 * @param key
+	 * @param defaultValue
+	 * @return
+	 */
+	static int getIntProperty(String key, int defaultValue) {
+		String property = System.getProperty(key);
+		if (property == null || property.isEmpty()) {
+			return defaultValue;
+		}
+		return Integer.parseInt(property);
+	}
+
+	/**
+	 * Returns the number of connections of the proxies shared by numClients
+	 * clients. It is set by the client connections system property, or else
+	 * in the VIRTUAL mode grows with the clients, so that every client can
+	 * have its request in flight, and is the default of the proxies in the
+	 * PLATFORM mode.
+	 * 
+	 * @param threadMode
+	 * @param numClients
+	 * @return
+	 */
+	public static int getMaxConnections(BookStoreThreadMode threadMode,
+			int numClients) {
+		int maxConnections = AsyncBookStoreHTTPProxy
+				.getConfiguredMaxConnections();
+		String property = System
+				.getProperty(BookStoreConstants.PROPERTY_KEY_CLIENT_CONNECTIONS);
+		if ((property == null || property.isEmpty())
+				&& threadMode == BookStoreThreadMode.VIRTUAL) {
+			return Math.max(maxConnections, numClients);
 		}
+		return maxConnections;
 	}
 	
 
-	public static void execution(int clientNumber) throws Exception {
+	public static void execution(int clientNumber, WorkloadReport report)
+			throws Exception {
 		int numConcurrentWorkloadThreads = clientNumber;
 		String serverAddress = "http://localhost:8081";
 		boolean localTest = true;
@@ -64,22 +132,41 @@ public class CertainWorkload {
 		localTest = (localTestProperty != null) ? Boolean
 				.parseBoolean(localTestProperty) : localTest;
 
+		BookStoreThreadMode threadMode = BookStoreThreadMode
+				.getConfiguredMode();
 		BookStore bookStore = null;
 		StockManager stockManager = null;
 		if (localTest) {
-			CertainBookStore store = new CertainBookStore();
-			bookStore = store;
-			stockManager = store;
+			int numShards = ShardedBookStore.getConfiguredNumShards();
+			if (numShards > 1) {
+				ShardedBookStore store = new ShardedBookStore(numShards,
+						BookStoreConcurrencyMode.getConfiguredMode(),
+						BookStoreBackend.getConfiguredBackend());
+				stockManager = store;
+				bookStore = store;
+			} else {
+				CertainBookStore store = new CertainBookStore(
+						BookStoreConcurrencyMode.getConfiguredMode(),
+						BookStoreBackend.getConfiguredBackend());
+				stockManager = store;
+				bookStore = store;
+			}
 		} else {
-			stockManager = new StockManagerHTTPProxy(serverAddress + "/stock");
-			bookStore = new BookStoreHTTPProxy(serverAddress);
+			int maxConnections = getMaxConnections(threadMode, clientNumber);
+			stockManager = new StockManagerHTTPProxy(serverAddress + "/stock",
+					BookStoreWireFormat.getConfiguredFormat(), threadMode,
+					maxConnections);
+			bookStore = new BookStoreHTTPProxy(serverAddress,
+					BookStoreWireFormat.getConfiguredFormat(), threadMode,
+					maxConnections);
 		}
 
 		// Generate data in the bookstore before running the workload
 		initializeBookStoreData(bookStore, stockManager);
 
-		ExecutorService exec = Executors
-				.newFixedThreadPool(numConcurrentWorkloadThreads);
+		// A thread per client, a virtual one in the VIRTUAL thread mode
+		ExecutorService exec = threadMode
+				.newExecutor(numConcurrentWorkloadThreads);
 
 		for (int i = 0; i < numConcurrentWorkloadThreads; i++) {
 			WorkloadConfiguration config = new WorkloadConfiguration(bookStore,
@@ -103,32 +190,30 @@ public class CertainWorkload {
 			((StockManagerHTTPProxy) stockManager).stop();
 		}
 
-		reportMetric(workerRunResults);
+		reportMetric(clientNumber, workerRunResults, report);
 	}
 	/**
-	 * Computes the metrics and prints them
+	 * Adds the metrics of the run to the report, prints them and writes the
+	 * report of all runs so far
 	 * 
+	 * @param clientNumber
 	 * @param workerRunResults
+	 * @param report
+	 * @throws IOException
 	 */
-	public static void reportMetric(List<WorkerRunResult> workerRunResults) {
-		// TODO: You should aggregate metrics and output them for plotting here
-		
-		double totalTime = 0;
-		double totalSuccessfulInteractions = 0;
-		
-		for (WorkerRunResult workerRunResult: workerRunResults){
-			totalTime += workerRunResult.getElapsedTimeInNanoSecs();
-			totalSuccessfulInteractions += workerRunResult.getSuccessfulInteractions();
-		}
-		
-		double latency = totalTime/workerRunResults.size(); // latency = average time to generate a response
-		double throughput = totalSuccessfulInteractions/totalTime; // throughput = average successful interactions per time period
-		//System.out.println("Please notice, the time is in ns! Factor 1ns = 1,0*10^-9 s");
-		//System.out.println("total time "+totalTime);
-		//System.out.println("totalSuccessfulInteractions" + totalSuccessfulInteractions);
-		System.out.println("workerRundResults: "+workerRunResults.size());
-		System.out.println("Latency: "+latency);
-		System.out.println("Throughput: "+throughput);
+	public static void reportMetric(int clientNumber,
+			List<WorkerRunResult> workerRunResults, WorkloadReport report)
+			throws IOException {
+		report.addRun(clientNumber, workerRunResults);
+		report.printLastRun(new PrintWriter(System.out));
+
+		String reportProperty = System
+				.getProperty(BookStoreConstants.PROPERTY_KEY_WORKLOAD_REPORT);
+		String reportName = (reportProperty == null || reportProperty
+				.isEmpty()) ? BookStoreConstants.DEFAULT_WORKLOAD_REPORT
+				: reportProperty;
+		report.writeCSV(new File(reportName + ".csv"));
+		report.writeJSON(new File(reportName + ".json"));
 	}
 	
 
@@ -0,0 +1,231 @@
+package com.acertainbookstore.client.workloads;
+
+import java.util.Arrays;
+
+/**
+ * LatencyHistogram counts latencies in nanoseconds in buckets of a fixed
+ * relative width, as an HDR histogram does, so that it takes the same small
+ * space however many latencies it records and its percentiles are within
+ * 1/SUB_BUCKET_COUNT of the recorded latencies. The values below
+ * SUB_BUCKET_COUNT have a bucket each, and each power of two above it is
+ * split into SUB_BUCKET_COUNT buckets. Latencies above MAX_TRACKABLE_NANOS
+ * are counted in the last bucket, but the maximum is kept exactly.
+ * 
+ * The buckets counting latencies are kept sparse, as their sorted indexes and
+ * their counts, until there are more than MAX_SPARSE_BUCKETS of them, so that
+ * the histograms of tens of thousands of workers recording a few hundred
+ * latencies each take a few kilobytes each instead of the 35 of all buckets.
+ * 
+ * Histograms are recorded by a single thread and merged with add once the
+ * threads are done.
+ * 
+ */
+public final class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 7;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	// About 18 minutes
+	private static final int MAX_TRACKABLE_BITS = 40;
+	private static final long MAX_TRACKABLE_NANOS = (1L << MAX_TRACKABLE_BITS) - 1;
+
+	private static final int NUM_BUCKETS = indexOf(MAX_TRACKABLE_NANOS) + 1;
+	private static final int INITIAL_SPARSE_BUCKETS = 16;
+	private static final int MAX_SPARSE_BUCKETS = 512;
+
+	// Sorted indexes of the buckets counting latencies and their counts,
+	// until counts is allocated
+	private int[] sparseIndexes = new int[INITIAL_SPARSE_BUCKETS];
+	private long[] sparseCounts = new long[INITIAL_SPARSE_BUCKETS];
+	private int numSparseBuckets = 0;
+	// The counts of all buckets, null while they are sparse
+	private long[] counts = null;
+	private long totalCount = 0;
+	private long totalNanos = 0;
+	private long minNanos = Long.MAX_VALUE;
+	private long maxNanos = 0;
+
+	/**
+	 * Returns the index of the bucket of the value
+	 * 
+	 * @param value
+	 * @return
+	 */
+	private static int indexOf(long value) {
+		if (value < SUB_BUCKET_COUNT) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		// The SUB_BUCKET_BITS bits after the highest bit of the value
+		int subBucket = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+		return SUB_BUCKET_COUNT + shift * SUB_BUCKET_COUNT + subBucket;
+	}
+
+	/**
+	 * Returns the highest value counted in the bucket
+	 * 
+	 * @param index
+	 * @return
+	 */
+	private static long highestValueOf(int index) {
+		if (index < SUB_BUCKET_COUNT) {
+			return index;
+		}
+		int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT;
+		long subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+		return ((SUB_BUCKET_COUNT + subBucket + 1) << shift) - 1;
+	}
+
+	/**
+	 * Records a latency
+	 * 
+	 * @param nanos
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			throw new IllegalArgumentException("Latency " + nanos);
+		}
+		addToBucket(indexOf(Math.min(nanos, MAX_TRACKABLE_NANOS)), 1);
+		totalCount++;
+		totalNanos += nanos;
+		minNanos = Math.min(minNanos, nanos);
+		maxNanos = Math.max(maxNanos, nanos);
+	}
+
+	/**
+	 * Adds the latencies recorded by the other histogram to this one
+	 * 
+	 * @param other
+	 */
+	public void add(LatencyHistogram other) {
+		if (other.counts != null) {
+			if (counts == null) {
+				allocateCounts();
+			}
+			for (int i = 0; i < NUM_BUCKETS; i++) {
+				counts[i] += other.counts[i];
+			}
+		} else {
+			for (int i = 0; i < other.numSparseBuckets; i++) {
+				addToBucket(other.sparseIndexes[i], other.sparseCounts[i]);
+			}
+		}
+		totalCount += other.totalCount;
+		totalNanos += other.totalNanos;
+		minNanos = Math.min(minNanos, other.minNanos);
+		maxNanos = Math.max(maxNanos, other.maxNanos);
+	}
+
+	/**
+	 * Adds the count to the bucket, allocating the counts of all buckets
+	 * once there are too many sparse ones
+	 * 
+	 * @param index
+	 * @param count
+	 */
+	private void addToBucket(int index, long count) {
+		if (counts != null) {
+			counts[index] += count;
+			return;
+		}
+		int position = Arrays.binarySearch(sparseIndexes, 0,
+				numSparseBuckets, index);
+		if (position >= 0) {
+			sparseCounts[position] += count;
+			return;
+		}
+		if (numSparseBuckets == MAX_SPARSE_BUCKETS) {
+			allocateCounts();
+			counts[index] += count;
+			return;
+		}
+		if (numSparseBuckets == sparseIndexes.length) {
+			sparseIndexes = Arrays.copyOf(sparseIndexes, 2 * numSparseBuckets);
+			sparseCounts = Arrays.copyOf(sparseCounts, 2 * numSparseBuckets);
+		}
+		position = -position - 1;
+		System.arraycopy(sparseIndexes, position, sparseIndexes,
+				position + 1, numSparseBuckets - position);
+		System.arraycopy(sparseCounts, position, sparseCounts, position + 1,
+				numSparseBuckets - position);
+		sparseIndexes[position] = index;
+		sparseCounts[position] = count;
+		numSparseBuckets++;
+	}
+
+	/**
+	 * Moves the counts of the sparse buckets to the counts of all buckets
+	 */
+	private void allocateCounts() {
+		counts = new long[NUM_BUCKETS];
+		for (int i = 0; i < numSparseBuckets; i++) {
+			counts[sparseIndexes[i]] = sparseCounts[i];
+		}
+		sparseIndexes = null;
+		sparseCounts = null;
+		numSparseBuckets = 0;
+	}
+
+	public long getTotalCount() {
+		return totalCount;
+	}
+
+	/**
+	 * Returns the smallest latency recorded, 0 if there is none
+	 * 
+	 * @return
+	 */
+	public long getMinNanos() {
+		return (totalCount == 0) ? 0 : minNanos;
+	}
+
+	public long getMaxNanos() {
+		return maxNanos;
+	}
+
+	/**
+	 * Returns the mean of the latencies recorded, 0 if there is none
+	 * 
+	 * @return
+	 */
+	public double getMeanNanos() {
+		return (totalCount == 0) ? 0 : (double) totalNanos / totalCount;
+	}
+
+	/**
+	 * Returns the latency that percentile percent of the recorded latencies
+	 * do not exceed, up to the width of its bucket, 0 if there is none
+	 * 
+	 * @param percentile
+	 *            between 0 and 100
+	 * @return
+	 */
+	public long getValueAtPercentile(double percentile) {
+		if (percentile < 0 || percentile > 100) {
+			throw new IllegalArgumentException("Percentile " + percentile);
+		}
+		if (totalCount == 0) {
+			return 0;
+		}
+		long rank = Math.max(1,
+				(long) Math.ceil(percentile / 100 * totalCount));
+		long count = 0;
+		if (counts != null) {
+			for (int i = 0; i < NUM_BUCKETS; i++) {
+				count += counts[i];
+				if (count >= rank) {
+					return Math.max(minNanos,
+							Math.min(highestValueOf(i), maxNanos));
+				}
+			}
+		} else {
+			for (int i = 0; i < numSparseBuckets; i++) {
+				count += sparseCounts[i];
+				if (count >= rank) {
+					return Math.max(minNanos, Math.min(
+							highestValueOf(sparseIndexes[i]), maxNanos));
+				}
+			}
+		}
+		return maxNanos;
+	}
+}
@@ -0,0 +1,279 @@
+package com.acertainbookstore.client.workloads;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.acertainbookstore.business.BookStoreBackend;
+import com.acertainbookstore.business.BookStoreConcurrencyMode;
+import com.acertainbookstore.business.CertainBookStore;
+import com.acertainbookstore.business.ShardedBookStore;
+import com.acertainbookstore.client.BookStoreHTTPProxy;
+import com.acertainbookstore.client.StockManagerHTTPProxy;
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreThreadMode;
+
+/**
+ * OpenLoopWorkload runs the interactions of the Worker at a target rate,
+ * whether the store keeps up or not, instead of starting the next
+ * interaction of a client when the previous one returns. A scheduling
+ * thread computes the intended start time of each interaction from the
+ * arrivals, POISSON or CONSTANT, and hands it to a pool of threads running
+ * the interactions. The latency of an interaction is measured from its
+ * intended start time, so the time it waits behind slower interactions
+ * counts, which a closed loop leaves out by not starting it.
+ * 
+ * The rate starts at startrate interactions per second and goes up by
+ * ratestep each stepseconds seconds until maxrate, or until the store is
+ * saturated: the interactions of the step took more than SATURATION_SLACK
+ * times as long as the step to complete. The last rate the store kept up
+ * with is reported as the saturation knee. The metrics of each step are
+ * reported by rate as those of CertainWorkload are by number of clients.
+ * 
+ */
+public class OpenLoopWorkload {
+	private static final double SATURATION_SLACK = 1.1;
+	private static final long WARMUP_SECONDS = 2;
+
+	private final Worker worker;
+	private final WorkloadArrivals arrivals;
+	private final ExecutorService exec;
+	private final Random random = new Random();
+
+	/**
+	 * Creates a workload running the interactions of the configuration on
+	 * threads of the mode, numThreads of them for platform threads and one
+	 * per interaction for virtual threads
+	 * 
+	 * @param configuration
+	 * @param arrivals
+	 * @param threadMode
+	 * @param numThreads
+	 */
+	public OpenLoopWorkload(WorkloadConfiguration configuration,
+			WorkloadArrivals arrivals, BookStoreThreadMode threadMode,
+			int numThreads) {
+		this.worker = new Worker(configuration);
+		this.arrivals = arrivals;
+		this.exec = threadMode.newExecutor(numThreads);
+	}
+
+	public static void main(String[] args) throws Exception {
+		String serverAddress = "http://localhost:8081";
+		boolean localTest = true;
+		String localTestProperty = System
+				.getProperty(BookStoreConstants.PROPERTY_KEY_LOCAL_TEST);
+		localTest = (localTestProperty != null) ? Boolean
+				.parseBoolean(localTestProperty) : localTest;
+
+		BookStore bookStore = null;
+		StockManager stockManager = null;
+		if (localTest) {
+			int numShards = ShardedBookStore.getConfiguredNumShards();
+			if (numShards > 1) {
+				ShardedBookStore store = new ShardedBookStore(numShards,
+						BookStoreConcurrencyMode.getConfiguredMode(),
+						BookStoreBackend.getConfiguredBackend());
+				stockManager = store;
+				bookStore = store;
+			} else {
+				CertainBookStore store = new CertainBookStore(
+						BookStoreConcurrencyMode.getConfiguredMode(),
+						BookStoreBackend.getConfiguredBackend());
+				stockManager = store;
+				bookStore = store;
+			}
+		} else {
+			stockManager = new StockManagerHTTPProxy(serverAddress + "/stock");
+			bookStore = new BookStoreHTTPProxy(serverAddress);
+		}
+		CertainWorkload.initializeBookStoreData(bookStore, stockManager);
+
+		int startRate = CertainWorkload.getIntProperty(
+				BookStoreConstants.PROPERTY_KEY_START_RATE,
+				BookStoreConstants.DEFAULT_START_RATE);
+		int rateStep = CertainWorkload.getIntProperty(
+				BookStoreConstants.PROPERTY_KEY_RATE_STEP,
+				BookStoreConstants.DEFAULT_RATE_STEP);
+		int maxRate = CertainWorkload.getIntProperty(
+				BookStoreConstants.PROPERTY_KEY_MAX_RATE,
+				BookStoreConstants.DEFAULT_MAX_RATE);
+		int stepSeconds = CertainWorkload.getIntProperty(
+				BookStoreConstants.PROPERTY_KEY_STEP_SECONDS,
+				BookStoreConstants.DEFAULT_STEP_SECONDS);
+		int numThreads = CertainWorkload.getIntProperty(
+				BookStoreConstants.PROPERTY_KEY_OPEN_LOOP_THREADS,
+				BookStoreConstants.DEFAULT_OPEN_LOOP_THREADS);
+		String reportProperty = System
+				.getProperty(BookStoreConstants.PROPERTY_KEY_WORKLOAD_REPORT);
+		String reportName = (reportProperty == null || reportProperty
+				.isEmpty()) ? BookStoreConstants.DEFAULT_OPEN_LOOP_REPORT
+				: reportProperty;
+
+		OpenLoopWorkload workload = new OpenLoopWorkload(
+				new WorkloadConfiguration(bookStore, stockManager),
+				WorkloadArrivals.getConfiguredArrivals(),
+				BookStoreThreadMode.getConfiguredMode(), numThreads);
+		try {
+			workload.findSaturation(startRate, rateStep, maxRate,
+					stepSeconds, reportName);
+		} finally {
+			workload.stop();
+			if (!localTest) {
+				((BookStoreHTTPProxy) bookStore).stop();
+				((StockManagerHTTPProxy) stockManager).stop();
+			}
+		}
+	}
+
+	/**
+	 * Runs steps of increasing rates until the store is saturated or the rate
+	 * passes maxRate, printing the metrics of each step and writing them to
+	 * the CSV and JSON files of the report, and returns the saturation knee
+	 * 
+	 * @param startRate
+	 * @param rateStep
+	 * @param maxRate
+	 * @param stepSeconds
+	 * @param reportName
+	 * @return the last rate the store kept up with, 0 if none
+	 * @throws Exception
+	 */
+	public int findSaturation(int startRate, int rateStep, int maxRate,
+			int stepSeconds, String reportName) throws Exception {
+		if (startRate < 1 || rateStep < 1 || stepSeconds < 1) {
+			throw new IllegalArgumentException("Rate " + startRate
+					+ ", step " + rateStep + ", seconds " + stepSeconds);
+		}
+		PrintWriter out = new PrintWriter(System.out);
+		WorkloadReport report = new WorkloadReport("rate");
+
+		runStep(startRate, TimeUnit.SECONDS.toNanos(WARMUP_SECONDS));
+		int kneeRate = 0;
+		for (int rate = startRate; rate <= maxRate; rate += rateStep) {
+			WorkerRunResult result = runStep(rate,
+					TimeUnit.SECONDS.toNanos(stepSeconds));
+			report.addRun(rate, Collections.singletonList(result));
+			report.printLastRun(out);
+			report.writeCSV(new File(reportName + ".csv"));
+			report.writeJSON(new File(reportName + ".json"));
+
+			if (result.getElapsedTimeInNanoSecs() > SATURATION_SLACK
+					* TimeUnit.SECONDS.toNanos(stepSeconds)) {
+				out.println("Saturated at " + rate + " interactions/s");
+				break;
+			}
+			kneeRate = rate;
+		}
+		out.println("Saturation knee: " + kneeRate + " interactions/s");
+		out.flush();
+		return kneeRate;
+	}
+
+	/**
+	 * Starts interactions at the rate for durationNanos and waits for them to
+	 * complete
+	 * 
+	 * @param rate
+	 *            interactions per second
+	 * @param durationNanos
+	 * @return the metrics of the interactions, the elapsed time being from
+	 *         the start of the step to the completion of the last interaction
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	public WorkerRunResult runStep(double rate, long durationNanos)
+			throws InterruptedException, ExecutionException {
+		final Map<WorkloadInteraction, LatencyHistogram> latencies = new EnumMap<WorkloadInteraction, LatencyHistogram>(
+				WorkloadInteraction.class);
+		for (WorkloadInteraction interaction : WorkloadInteraction.values()) {
+			latencies.put(interaction, new LatencyHistogram());
+		}
+		final AtomicIntegerArray numSuccessful = new AtomicIntegerArray(
+				WorkloadInteraction.values().length);
+		List<Future<?>> interactions = new ArrayList<Future<?>>();
+
+		long startTimeInNanoSecs = System.nanoTime();
+		final AtomicLong endTimeInNanoSecs = new AtomicLong(
+				startTimeInNanoSecs);
+		long intendedStartTime = startTimeInNanoSecs;
+		while (true) {
+			intendedStartTime += arrivals.nextInterArrivalNanos(random, rate);
+			if (intendedStartTime - startTimeInNanoSecs >= durationNanos) {
+				break;
+			}
+			long waitNanos;
+			while ((waitNanos = intendedStartTime - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(waitNanos);
+			}
+
+			final long intendedStartTimeInNanoSecs = intendedStartTime;
+			final WorkloadInteraction interaction = worker
+					.interactionOf(random.nextFloat() * 100f);
+			interactions.add(exec.submit(new Runnable() {
+				public void run() {
+					boolean successful = true;
+					try {
+						worker.runInteraction(interaction);
+					} catch (BookStoreException ex) {
+						successful = false;
+					}
+					long endTime = System.nanoTime();
+					LatencyHistogram histogram = latencies.get(interaction);
+					synchronized (histogram) {
+						histogram.record(endTime - intendedStartTimeInNanoSecs);
+					}
+					if (successful) {
+						numSuccessful.incrementAndGet(interaction.ordinal());
+					}
+					long lastEndTime;
+					while ((lastEndTime = endTimeInNanoSecs.get()) - endTime < 0
+							&& !endTimeInNanoSecs.compareAndSet(lastEndTime,
+									endTime)) {
+						// Another interaction completed meanwhile
+					}
+				}
+			}));
+		}
+		for (Future<?> interaction : interactions) {
+			interaction.get();
+		}
+
+		int[] numSuccessfulByType = new int[numSuccessful.length()];
+		int totalSuccessful = 0;
+		for (int i = 0; i < numSuccessfulByType.length; i++) {
+			numSuccessfulByType[i] = numSuccessful.get(i);
+			totalSuccessful += numSuccessfulByType[i];
+		}
+		long elapsedTimeInNanoSecs = Math.max(
+				endTimeInNanoSecs.get() - startTimeInNanoSecs, durationNanos);
+		return new WorkerRunResult(totalSuccessful, elapsedTimeInNanoSecs,
+				interactions.size(),
+				numSuccessfulByType[WorkloadInteraction.CUSTOMER.ordinal()],
+				(int) latencies.get(WorkloadInteraction.CUSTOMER)
+						.getTotalCount(), startTimeInNanoSecs, latencies,
+				numSuccessfulByType);
+	}
+
+	/**
+	 * Stops the threads running the interactions
+	 */
+	public void stop() {
+		exec.shutdownNow();
+	}
+}
@@ -3,21 +3,27 @@
  */
 package com.acertainbookstore.client.workloads;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.Callable;
 
-import com.acertainbookstore.business.Book;
 import com.acertainbookstore.business.BookCopy;
 import com.acertainbookstore.business.ImmutableStockBook;
 import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.client.BookStoreBatch;
+import com.acertainbookstore.client.StockManagerHTTPProxy;
 import com.acertainbookstore.interfaces.BookStore;
 import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreBatchReference;
 import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreResponse;
 
 
 /**
@@ -25,14 +31,29 @@ import com.acertainbookstore.utils.BookStoreException;
  * Worker represents the workload runner which runs the workloads with
  * parameters using WorkloadConfiguration and then reports the results
  * 
+ * The latency of every interaction of the actual runs, failed or not, is
+ * recorded in the histogram of its type of interaction.
+ * 
  */
 public class Worker implements Callable<WorkerRunResult> {
 	private WorkloadConfiguration configuration = null;
 	private int numSuccessfulFrequentBookStoreInteraction = 0;
 	private int numTotalFrequentBookStoreInteraction = 0;
+	private final Map<WorkloadInteraction, LatencyHistogram> latencies = new EnumMap<WorkloadInteraction, LatencyHistogram>(
+			WorkloadInteraction.class);
+	private final int[] numSuccessfulInteractions = new int[WorkloadInteraction
+			.values().length];
 
 	public Worker(WorkloadConfiguration config) {
 		configuration = config;
+		resetLatencies();
+	}
+
+	private void resetLatencies() {
+		for (WorkloadInteraction interaction : WorkloadInteraction.values()) {
+			latencies.put(interaction, new LatencyHistogram());
+			numSuccessfulInteractions[interaction.ordinal()] = 0;
+		}
 	}
 
 	/**
@@ -40,28 +61,69 @@ public class Worker implements Callable<WorkerRunResult> {
 	 * distributions
 	 * 
 	 * Updates the counts of total runs and successful runs for customer
-	 * interaction
+	 * interaction, and records the latency of the interaction
 	 * 
 	 * @param chooseInteraction
 	 * @return
 	 */
 	private boolean runInteraction(float chooseInteraction) {
+		WorkloadInteraction interaction = interactionOf(chooseInteraction);
+		boolean successful = true;
+		long startTimeInNanoSecs = System.nanoTime();
+		if (interaction == WorkloadInteraction.CUSTOMER) {
+			numTotalFrequentBookStoreInteraction++;
+		}
 		try {
-			if (chooseInteraction < configuration
-					.getPercentRareStockManagerInteraction()) {
-				runRareStockManagerInteraction();
-			} else if (chooseInteraction < configuration
-					.getPercentFrequentStockManagerInteraction()) {
-				runFrequentStockManagerInteraction(configuration.getNumBooksWithLeastCopies(), configuration.getStockManager());
-			} else {
-				numTotalFrequentBookStoreInteraction++;
-				runFrequentBookStoreInteraction(configuration.getBookStore());
+			runInteraction(interaction);
+			numSuccessfulInteractions[interaction.ordinal()]++;
+			if (interaction == WorkloadInteraction.CUSTOMER) {
 				numSuccessfulFrequentBookStoreInteraction++;
 			}
 		} catch (BookStoreException ex) {
-			return false;
+			successful = false;
+		}
+		latencies.get(interaction).record(
+				System.nanoTime() - startTimeInNanoSecs);
+		return successful;
+	}
+
+	/**
+	 * Runs an interaction of the type, without counting or timing it, which
+	 * several threads may do at once
+	 * 
+	 * @param interaction
+	 * @throws BookStoreException
+	 */
+	void runInteraction(WorkloadInteraction interaction)
+			throws BookStoreException {
+		switch (interaction) {
+		case RARE_STOCK_MANAGER:
+			runRareStockManagerInteraction();
+			break;
+		case FREQUENT_STOCK_MANAGER:
+			runFrequentStockManagerInteraction(configuration.getNumBooksWithLeastCopies(), configuration.getStockManager());
+			break;
+		default:
+			runFrequentBookStoreInteraction(configuration.getBookStore());
 		}
-		return true;
+	}
+
+	/**
+	 * Returns the type of the interaction chosen by chooseInteraction,
+	 * between 0 and 100, following the configured distributions
+	 * 
+	 * @param chooseInteraction
+	 * @return
+	 */
+	WorkloadInteraction interactionOf(float chooseInteraction) {
+		if (chooseInteraction < configuration
+				.getPercentRareStockManagerInteraction()) {
+			return WorkloadInteraction.RARE_STOCK_MANAGER;
+		} else if (chooseInteraction < configuration
+				.getPercentFrequentStockManagerInteraction()) {
+			return WorkloadInteraction.FREQUENT_STOCK_MANAGER;
+		}
+		return WorkloadInteraction.CUSTOMER;
 	}
 
 	/**
@@ -87,6 +149,7 @@ public class Worker implements Callable<WorkerRunResult> {
 		count = 1;
 		numTotalFrequentBookStoreInteraction = 0;
 		numSuccessfulFrequentBookStoreInteraction = 0;
+		resetLatencies();
 
 		// Perform the actual runs
 		startTimeInNanoSecs = System.nanoTime();
@@ -101,7 +164,8 @@ public class Worker implements Callable<WorkerRunResult> {
 		return new WorkerRunResult(successfulInteractions,
 				timeForRunsInNanoSecs, configuration.getNumActualRuns(),
 				numSuccessfulFrequentBookStoreInteraction,
-				numTotalFrequentBookStoreInteraction);
+				numTotalFrequentBookStoreInteraction, startTimeInNanoSecs,
+				latencies, numSuccessfulInteractions);
 	}
 
 	/**
@@ -143,7 +207,26 @@ n		of found in the list returned by getBooks. */
 
 	private void runFrequentStockManagerInteraction(int k, StockManager stockManager) throws BookStoreException {
 		
-		List<StockBook> allStockBooks = stockManager.getBooks();
+		// Against a server, list the books and add the copies to the k books
+		// with the fewest copies in a single round trip
+		if (stockManager instanceof StockManagerHTTPProxy) {
+			BookStoreBatch batch = new BookStoreBatch();
+			int books = batch.getStockBooks();
+			batch.addCopies(new BookStoreBatchReference(books,
+					BookStoreBatchReference.Selection.FEWEST_COPIES, k,
+					configuration.getNumAddCopies()));
+			for (BookStoreResponse response : ((StockManagerHTTPProxy) stockManager)
+					.executeBatch(batch)) {
+				if (response.getException() != null) {
+					throw response.getException();
+				}
+			}
+			return;
+		}
+
+		// The store shares the list it returns, so sort a copy
+		List<StockBook> allStockBooks = new ArrayList<StockBook>(
+				stockManager.getBooks());
 		Collections.sort(allStockBooks, new Comparator<StockBook>() {
 			
 			@Override
@@ -157,7 +240,7 @@ n		of found in the list returned by getBooks. */
 		
 		// select the k books with smallest quantities in stock, add it to the toHaveCopiesAdded list
 		
-		for (int i = 0; i < k-1; i++){
+		for (int i = 0; i < Math.min(k, allStockBooks.size()); i++){
 			toHaveCopiesAdded.add(allStockBooks.get(i));
 		}
 		
@@ -180,21 +263,9 @@ n		of found in the list returned by getBooks. */
 		
 	private void runFrequentBookStoreInteraction(BookStore bookStore) throws BookStoreException {
 		
-		Set<Integer> isbns = new HashSet<Integer>();
-		
-		for(Book b: bookStore.getEditorPicks(configuration.getNumEditorPicksToGet())){
-			
-			isbns.add(b.getISBN());
-		}
-	
-		Set<Integer> toBuyIsbn = configuration.getBookSetGenerator().sampleFromSetOfISBNs(isbns, configuration.getNumBooksToBuy()); 
-		Set<BookCopy> bookCopyToBuy = new HashSet<BookCopy>();
-		
-		for (Integer isbn: toBuyIsbn){
-			
-			bookCopyToBuy.add(new BookCopy(isbn, configuration.getNumBookCopiesToBuy()));
-		}
-		
-		bookStore.buyBooks(bookCopyToBuy);
+		// The store samples the editor picks and buys them in one step, so
+		// the stock can not change between the two
+		bookStore.buyEditorPicks(configuration.getNumBooksToBuy(),
+				configuration.getNumBookCopiesToBuy());
 	}
 }
@@ -1,5 +1,7 @@
 package com.acertainbookstore.client.workloads;
 
+import java.util.Map;
+
 /**
  * 
  * WorkerRunResult class represents the result returned by a worker class after
@@ -19,15 +21,29 @@ public class WorkerRunResult {
 	private int totalFrequentBookStoreInteractionRuns; // total number of
 														// bookstore interaction
 														// runs
+	private long startTimeInNanoSecs; // System.nanoTime() when the actual
+										// runs started
+	private Map<WorkloadInteraction, LatencyHistogram> latencies; // latencies
+																	// of the
+																	// interactions
+																	// by type
+	private int[] successfulInteractionsByType; // number of successful
+												// interactions by type ordinal
 
 	public WorkerRunResult(int successfulInteractions, long elapsedTimeInNanoSecs,
 			int totalRuns, int successfulFrequentBookStoreInteractionRuns,
-			int totalFrequentBookStoreInteractionRuns) {
+			int totalFrequentBookStoreInteractionRuns,
+			long startTimeInNanoSecs,
+			Map<WorkloadInteraction, LatencyHistogram> latencies,
+			int[] successfulInteractionsByType) {
 		this.setSuccessfulInteractions(successfulInteractions);
 		this.setElapsedTimeInNanoSecs(elapsedTimeInNanoSecs);
 		this.setTotalRuns(totalRuns);
 		this.setSuccessfulFrequentBookStoreInteractionRuns(successfulFrequentBookStoreInteractionRuns);
 		this.setTotalFrequentBookStoreInteractionRuns(totalFrequentBookStoreInteractionRuns);
+		this.setStartTimeInNanoSecs(startTimeInNanoSecs);
+		this.setLatencies(latencies);
+		this.successfulInteractionsByType = successfulInteractionsByType;
 	}
 
 	public int getTotalRuns() {
@@ -72,4 +88,25 @@ public class WorkerRunResult {
 		this.totalFrequentBookStoreInteractionRuns = totalFrequentBookStoreInteractionRuns;
 	}
 
+	public long getStartTimeInNanoSecs() {
+		return startTimeInNanoSecs;
+	}
+
+	public void setStartTimeInNanoSecs(long startTimeInNanoSecs) {
+		this.startTimeInNanoSecs = startTimeInNanoSecs;
+	}
+
+	public Map<WorkloadInteraction, LatencyHistogram> getLatencies() {
+		return latencies;
+	}
+
+	public void setLatencies(
+			Map<WorkloadInteraction, LatencyHistogram> latencies) {
+		this.latencies = latencies;
+	}
+
+	public int getSuccessfulInteractions(WorkloadInteraction interaction) {
+		return successfulInteractionsByType[interaction.ordinal()];
+	}
+
 }
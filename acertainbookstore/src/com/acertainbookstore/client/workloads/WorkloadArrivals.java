@@ -0,0 +1,56 @@
+package com.acertainbookstore.client.workloads;
+
+import java.util.Random;
+
+import com.acertainbookstore.utils.BookStoreConstants;
+
+/**
+ * WorkloadArrivals selects how OpenLoopWorkload spaces the interactions it
+ * starts at a given rate.
+ * 
+ * POISSON draws the times between interactions from an exponential
+ * distribution, so the interactions arrive as a Poisson process, in bursts
+ * as the requests of independent customers do.
+ * 
+ * CONSTANT starts them at a fixed interval.
+ * 
+ */
+public enum WorkloadArrivals {
+	POISSON {
+		@Override
+		long nextInterArrivalNanos(Random random, double ratePerSec) {
+			// 1 - nextDouble() is never 0
+			return (long) (-Math.log(1 - random.nextDouble()) * 1e9 / ratePerSec);
+		}
+	},
+	CONSTANT {
+		@Override
+		long nextInterArrivalNanos(Random random, double ratePerSec) {
+			return (long) (1e9 / ratePerSec);
+		}
+	};
+
+	/**
+	 * Returns the nanoseconds between an interaction and the next at the rate
+	 * 
+	 * @param random
+	 * @param ratePerSec
+	 * @return
+	 */
+	abstract long nextInterArrivalNanos(Random random, double ratePerSec);
+
+	/**
+	 * Returns the arrivals configured by the arrivals system property, or
+	 * POISSON if the property is not set
+	 * 
+	 * @return
+	 */
+	public static WorkloadArrivals getConfiguredArrivals() {
+		String arrivalsProperty = System
+				.getProperty(BookStoreConstants.PROPERTY_KEY_ARRIVALS);
+		if (arrivalsProperty == null || arrivalsProperty.isEmpty()) {
+			return POISSON;
+		}
+		return WorkloadArrivals.valueOf(arrivalsProperty.toUpperCase());
+	}
+}
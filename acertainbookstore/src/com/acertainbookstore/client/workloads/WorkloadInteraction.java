@@ -0,0 +1,13 @@
+package com.acertainbookstore.client.workloads;
+
+/**
+ * WorkloadInteraction names the interactions a Worker runs, for which it
+ * records latencies separately.
+ * 
+ * RARE_STOCK_MANAGER adds new books, FREQUENT_STOCK_MANAGER adds copies of
+ * the books with the fewest copies, and CUSTOMER buys editor picks.
+ * 
+ */
+public enum WorkloadInteraction {
+	RARE_STOCK_MANAGER, FREQUENT_STOCK_MANAGER, CUSTOMER;
+}
@@ -0,0 +1,211 @@
+package com.acertainbookstore.client.workloads;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * WorkloadReport aggregates the results of the workers of the workload runs,
+ * one run per number of clients or per rate, given in the first column of
+ * the rows, into one row per type of interaction and
+ * one for all of them. A row has the latency percentiles of the merged
+ * histograms of the workers, in microseconds, and the throughput of the
+ * interactions, per second of wall-clock time from the first worker starting
+ * its actual runs to the last one finishing them.
+ * 
+ * The rows are written as CSV or as a JSON array of objects with the same
+ * fields, for plotting.
+ * 
+ */
+public final class WorkloadReport {
+	private static final String ALL_INTERACTIONS = "ALL";
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+	// The first column is named by the constructor
+	private static final String[] COLUMNS = { null, "interaction",
+			"interactions", "successful", "wallClockSecs", "throughput",
+			"successfulThroughput", "meanMicros", "p50Micros", "p90Micros",
+			"p99Micros", "p999Micros", "maxMicros" };
+
+	/**
+	 * The metrics of one type of interaction in one run
+	 */
+	private static final class Row {
+		private final int run;
+		private final String interaction;
+		private final long numInteractions;
+		private final long numSuccessful;
+		private final double wallClockSecs;
+		private final LatencyHistogram latencies;
+
+		private Row(int run, String interaction, long numSuccessful,
+				double wallClockSecs, LatencyHistogram latencies) {
+			this.run = run;
+			this.interaction = interaction;
+			this.numInteractions = latencies.getTotalCount();
+			this.numSuccessful = numSuccessful;
+			this.wallClockSecs = wallClockSecs;
+			this.latencies = latencies;
+		}
+
+		/**
+		 * Returns the values of the columns, the numbers formatted the same
+		 * way for CSV and JSON
+		 * 
+		 * @return
+		 */
+		private String[] values() {
+			List<String> values = new ArrayList<String>();
+			values.add(Integer.toString(run));
+			values.add(interaction);
+			values.add(Long.toString(numInteractions));
+			values.add(Long.toString(numSuccessful));
+			values.add(format(wallClockSecs));
+			values.add(format(perSecond(numInteractions)));
+			values.add(format(perSecond(numSuccessful)));
+			values.add(format(latencies.getMeanNanos() / 1000));
+			for (double percentile : PERCENTILES) {
+				values.add(format(latencies.getValueAtPercentile(percentile) / 1000.0));
+			}
+			values.add(format(latencies.getMaxNanos() / 1000.0));
+			return values.toArray(new String[values.size()]);
+		}
+
+		private double perSecond(long count) {
+			return (wallClockSecs > 0) ? count / wallClockSecs : 0;
+		}
+	}
+
+	private final String[] columns = COLUMNS.clone();
+	private final List<Row> rows = new ArrayList<Row>();
+
+	/**
+	 * Creates a report of runs with different numbers of clients
+	 */
+	public WorkloadReport() {
+		this("clients");
+	}
+
+	/**
+	 * Creates a report of runs told apart by the value of runColumn
+	 * 
+	 * @param runColumn
+	 */
+	public WorkloadReport(String runColumn) {
+		columns[0] = runColumn;
+	}
+
+	private static String format(double value) {
+		return String.format(Locale.ROOT, "%.3f", value);
+	}
+
+	/**
+	 * Adds the rows of a run of workers, run being the number of clients or
+	 * the other value telling the run apart
+	 * 
+	 * @param run
+	 * @param workerRunResults
+	 */
+	public void addRun(int run, List<WorkerRunResult> workerRunResults) {
+		long startTimeInNanoSecs = Long.MAX_VALUE;
+		long endTimeInNanoSecs = Long.MIN_VALUE;
+		for (WorkerRunResult workerRunResult : workerRunResults) {
+			startTimeInNanoSecs = Math.min(startTimeInNanoSecs,
+					workerRunResult.getStartTimeInNanoSecs());
+			endTimeInNanoSecs = Math.max(endTimeInNanoSecs,
+					workerRunResult.getStartTimeInNanoSecs()
+							+ workerRunResult.getElapsedTimeInNanoSecs());
+		}
+		double wallClockSecs = (endTimeInNanoSecs - startTimeInNanoSecs) / 1e9;
+
+		LatencyHistogram allLatencies = new LatencyHistogram();
+		long allSuccessful = 0;
+		for (WorkloadInteraction interaction : WorkloadInteraction.values()) {
+			LatencyHistogram latencies = new LatencyHistogram();
+			long numSuccessful = 0;
+			for (WorkerRunResult workerRunResult : workerRunResults) {
+				latencies.add(workerRunResult.getLatencies().get(interaction));
+				numSuccessful += workerRunResult
+						.getSuccessfulInteractions(interaction);
+			}
+			rows.add(new Row(run, interaction.name(), numSuccessful,
+					wallClockSecs, latencies));
+			allLatencies.add(latencies);
+			allSuccessful += numSuccessful;
+		}
+		rows.add(new Row(run, ALL_INTERACTIONS, allSuccessful,
+				wallClockSecs, allLatencies));
+	}
+
+	/**
+	 * Prints the rows of the last run added as a table
+	 * 
+	 * @param out
+	 */
+	public void printLastRun(PrintWriter out) {
+		int numTypes = WorkloadInteraction.values().length + 1;
+		out.println(String.join("\t", columns));
+		for (Row row : rows.subList(rows.size() - numTypes, rows.size())) {
+			out.println(String.join("\t", row.values()));
+		}
+		out.flush();
+	}
+
+	/**
+	 * Writes the rows as CSV with a header line
+	 * 
+	 * @param file
+	 * @throws IOException
+	 */
+	public void writeCSV(File file) throws IOException {
+		PrintWriter out = newWriter(file);
+		try {
+			out.println(String.join(",", columns));
+			for (Row row : rows) {
+				out.println(String.join(",", row.values()));
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes the rows as a JSON array of objects
+	 * 
+	 * @param file
+	 * @throws IOException
+	 */
+	public void writeJSON(File file) throws IOException {
+		PrintWriter out = newWriter(file);
+		try {
+			out.println("[");
+			for (int i = 0; i < rows.size(); i++) {
+				String[] values = rows.get(i).values();
+				out.print("  {");
+				for (int column = 0; column < columns.length; column++) {
+					if (column > 0) {
+						out.print(", ");
+					}
+					out.print("\"" + columns[column] + "\": ");
+					// The interaction names are the only strings
+					out.print(column == 1 ? "\"" + values[column] + "\""
+							: values[column]);
+				}
+				out.println(i < rows.size() - 1 ? "}," : "}");
+			}
+			out.println("]");
+		} finally {
+			out.close();
+		}
+	}
+
+	private static PrintWriter newWriter(File file) throws IOException {
+		return new PrintWriter(new OutputStreamWriter(new FileOutputStream(
+				file), StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,71 @@
+package com.acertainbookstore.interfaces;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import com.acertainbookstore.business.Book;
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookRating;
+
+/**
+ * AsyncBookStore declares the methods of BookStore for clients that do not
+ * wait for the replies of the bookstore. Every method returns at once with a
+ * future of its result, which fails with the BookStoreException the
+ * synchronous method would have thrown.
+ * 
+ */
+public interface AsyncBookStore {
+
+	/**
+	 * Buy the sets of books specified.
+	 * 
+	 * @param booksToBuy
+	 * @return
+	 */
+	public CompletableFuture<Void> buyBooks(Set<BookCopy> booksToBuy);
+
+	/**
+	 * Buys numCopies copies of each of numBooks editor picks chosen at random
+	 * in a single atomic step, and returns the books bought.
+	 * 
+	 * @param numBooks
+	 * @param numCopies
+	 * @return
+	 */
+	public CompletableFuture<List<Book>> buyEditorPicks(int numBooks,
+			int numCopies);
+
+	/**
+	 * Applies the BookRatings in the set, i.e. rates each book with their
+	 * respective rating.
+	 * 
+	 * @param bookRating
+	 * @return
+	 */
+	public CompletableFuture<Void> rateBooks(Set<BookRating> bookRating);
+
+	/**
+	 * Returns the list of books corresponding to the set of ISBNs
+	 * 
+	 * @param ISBNList
+	 * @return
+	 */
+	public CompletableFuture<List<Book>> getBooks(Set<Integer> ISBNList);
+
+	/**
+	 * Return a list of top rated numBooks books.
+	 * 
+	 * @param numBooks
+	 * @return
+	 */
+	public CompletableFuture<List<Book>> getTopRatedBooks(int numBooks);
+
+	/**
+	 * Returns the list of books containing numBooks editor picks
+	 * 
+	 * @param numBooks
+	 * @return
+	 */
+	public CompletableFuture<List<Book>> getEditorPicks(int numBooks);
+}
@@ -25,6 +25,19 @@ public interface BookStore {
 	 */
 	public void buyBooks(Set<BookCopy> booksToBuy) throws BookStoreException;
 
+	/**
+	 * Buys numCopies copies of each of numBooks editor picks chosen at random
+	 * in a single atomic step, and returns the books bought. Nothing is bought
+	 * if one of the picks has too few copies.
+	 * 
+	 * @param numBooks
+	 * @param numCopies
+	 * @return
+	 * @throws BookStoreException
+	 */
+	public List<Book> buyEditorPicks(int numBooks, int numCopies)
+			throws BookStoreException;
+
 	/**
 	 * Applies the BookRatings in the set, i.e. rates each book with their
 	 * respective rating.
@@ -0,0 +1,17 @@
+package com.acertainbookstore.interfaces;
+
+/**
+ * BookStoreImportListener is told the progress of StockManager.importBooks
+ * after each batch of books is added to the store.
+ * 
+ */
+public interface BookStoreImportListener {
+
+	/**
+	 * Called after a batch of books has been added
+	 * 
+	 * @param numBooksImported
+	 *            the number of books added so far by the import
+	 */
+	public void booksImported(long numBooksImported);
+}
@@ -1,5 +1,7 @@
 package com.acertainbookstore.interfaces;
 
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.List;
 import java.util.Set;
 
@@ -87,4 +89,31 @@ public interface StockManager {
 	 */
 	public void removeBooks(Set<Integer> isbnSet) throws BookStoreException;
 
-}
\ No newline at end of file
+
+	/**
+	 * Adds the books read from a CSV stream, in the format written by
+	 * exportBooks, in batches of batchSize books, each batch being added
+	 * atomically as by addBooks. The import stops at the first batch that
+	 * fails, the books of the earlier batches staying in the store.
+	 * 
+	 * @param in
+	 * @param batchSize
+	 * @param listener
+	 *            told the number of books added after each batch, or null
+	 * @return the number of books added
+	 * @throws BookStoreException
+	 */
+	public long importBooks(InputStream in, int batchSize,
+			BookStoreImportListener listener) throws BookStoreException;
+
+	/**
+	 * Writes the books of the bookstore to the stream as CSV, in ISBN order.
+	 * The books are read a chunk at a time, so updates may happen between
+	 * two chunks.
+	 * 
+	 * @param out
+	 * @return the number of books written
+	 * @throws BookStoreException
+	 */
+	public long exportBooks(OutputStream out) throws BookStoreException;
+}
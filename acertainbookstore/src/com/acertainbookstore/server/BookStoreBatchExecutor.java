@@ -0,0 +1,216 @@
+package com.acertainbookstore.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.acertainbookstore.business.Book;
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.CertainBookStore;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreBatchOperation;
+import com.acertainbookstore.utils.BookStoreBatchReference;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreResponse;
+
+/**
+ * BookStoreBatchExecutor runs the steps of a BATCH message against the store
+ * in order. Each step is as atomic as the call it makes, but the batch as a
+ * whole is not: the steps of other clients may run between two steps.
+ * 
+ * The result of the batch has one response per step that was run. The batch
+ * stops at the first step that fails, whose response carries the exception.
+ * 
+ */
+public final class BookStoreBatchExecutor {
+	private final BookStore bookStore;
+	private final StockManager stockManager;
+
+	public BookStoreBatchExecutor(CertainBookStore bookStore) {
+		this(bookStore, bookStore);
+	}
+
+	public BookStoreBatchExecutor(BookStore bookStore,
+			StockManager stockManager) {
+		this.bookStore = bookStore;
+		this.stockManager = stockManager;
+	}
+
+	/**
+	 * Runs the steps of a batch and returns their responses
+	 * 
+	 * @param operations
+	 * @return
+	 * @throws BookStoreException
+	 *             if the batch is null
+	 */
+	public List<BookStoreResponse> execute(
+			List<BookStoreBatchOperation> operations)
+			throws BookStoreException {
+		if (operations == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		List<BookStoreResponse> responses = new ArrayList<BookStoreResponse>(
+				operations.size());
+		for (BookStoreBatchOperation operation : operations) {
+			BookStoreResponse response = new BookStoreResponse();
+			responses.add(response);
+			try {
+				response.setList(executeOperation(operation, responses));
+			} catch (BookStoreException ex) {
+				response.setException(ex);
+				break;
+			}
+		}
+		return responses;
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<?> executeOperation(BookStoreBatchOperation operation,
+			List<BookStoreResponse> responses) throws BookStoreException {
+		if (operation == null || operation.getTag() == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		Object argument = operation.getArgument();
+		if (argument instanceof BookStoreBatchReference) {
+			// The responses of the earlier steps precede the one of this step
+			argument = resolve((BookStoreBatchReference) argument,
+					responses.subList(0, responses.size() - 1));
+		}
+
+		try {
+			switch (operation.getTag()) {
+			case BUYBOOKS:
+				bookStore.buyBooks((Set<BookCopy>) argument);
+				return null;
+			case GETBOOKS:
+				return bookStore.getBooks((Set<Integer>) argument);
+			case EDITORPICKS:
+				return bookStore.getEditorPicks(toNumBooks(argument));
+			case RATEBOOKS:
+				bookStore.rateBooks((Set<BookRating>) argument);
+				return null;
+			case TOPRATEDBOOKS:
+				return bookStore.getTopRatedBooks(toNumBooks(argument));
+			case ADDBOOKS:
+				stockManager.addBooks((Set<StockBook>) argument);
+				return null;
+			case ADDCOPIES:
+				stockManager.addCopies((Set<BookCopy>) argument);
+				return null;
+			case LISTBOOKS:
+				return stockManager.getBooks();
+			case UPDATEEDITORPICKS:
+				stockManager.updateEditorPicks((Set<BookEditorPick>) argument);
+				return null;
+			case GETBOOKSINDEMAND:
+				return stockManager.getBooksInDemand();
+			case GETSTOCKBOOKSBYISBN:
+				return stockManager.getBooksByISBN((Set<Integer>) argument);
+			case REMOVEBOOKS:
+				stockManager.removeBooks((Set<Integer>) argument);
+				return null;
+			case REMOVEALLBOOKS:
+				stockManager.removeAllBooks();
+				return null;
+			default:
+				// Batches do not nest, and compound calls taking several
+				// arguments are not batched
+				throw new BookStoreException(operation.getTag()
+						+ BookStoreConstants.INVALID);
+			}
+		} catch (ClassCastException ex) {
+			// The elements of a set are checked as the call reads them
+			throw new BookStoreException("The argument of "
+					+ operation.getTag() + BookStoreConstants.INVALID, ex);
+		}
+	}
+
+	private static int toNumBooks(Object argument) throws BookStoreException {
+		if (!(argument instanceof Integer)) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+		return (Integer) argument;
+	}
+
+	/**
+	 * Computes the argument a reference refers to from the responses of the
+	 * earlier steps
+	 * 
+	 * @param reference
+	 * @param responses
+	 * @return
+	 * @throws BookStoreException
+	 */
+	private static Set<?> resolve(BookStoreBatchReference reference,
+			List<BookStoreResponse> responses) throws BookStoreException {
+		int step = reference.getStep();
+		if (step < 0 || step >= responses.size()
+				|| responses.get(step).getList() == null) {
+			throw new BookStoreException("The step: " + step
+					+ BookStoreConstants.INVALID);
+		}
+		if (reference.getSelection() == null || reference.getNumBooks() < 0
+				|| reference.getNumCopies() < 0) {
+			throw new BookStoreException("The reference to step: " + step
+					+ BookStoreConstants.INVALID);
+		}
+
+		List<Book> books = selectBooks(reference, responses.get(step)
+				.getList());
+		if (reference.getNumCopies() == 0) {
+			Set<Integer> isbns = new HashSet<Integer>();
+			for (Book book : books) {
+				isbns.add(book.getISBN());
+			}
+			return isbns;
+		}
+		Set<BookCopy> copies = new HashSet<BookCopy>();
+		for (Book book : books) {
+			copies.add(new BookCopy(book.getISBN(), reference.getNumCopies()));
+		}
+		return copies;
+	}
+
+	private static List<Book> selectBooks(BookStoreBatchReference reference,
+			List<?> result) throws BookStoreException {
+		boolean byCopies = (reference.getSelection() == BookStoreBatchReference.Selection.FEWEST_COPIES);
+		List<Book> books = new ArrayList<Book>(result.size());
+		for (Object element : result) {
+			if (!(element instanceof Book)
+					|| (byCopies && !(element instanceof StockBook))) {
+				throw new BookStoreException("The reference to step: "
+						+ reference.getStep() + BookStoreConstants.INVALID);
+			}
+			books.add((Book) element);
+		}
+
+		if (byCopies) {
+			Collections.sort(books, new Comparator<Book>() {
+				public int compare(Book book1, Book book2) {
+					int numCopies1 = ((StockBook) book1).getNumCopies();
+					int numCopies2 = ((StockBook) book2).getNumCopies();
+					if (numCopies1 != numCopies2) {
+						return (numCopies1 < numCopies2) ? -1 : 1;
+					}
+					return (book1.getISBN() < book2.getISBN()) ? -1
+							: ((book1.getISBN() == book2.getISBN()) ? 0 : 1);
+				}
+			});
+		}
+		if (books.size() > reference.getNumBooks()) {
+			return books.subList(0, reference.getNumBooks());
+		}
+		return books;
+	}
+}
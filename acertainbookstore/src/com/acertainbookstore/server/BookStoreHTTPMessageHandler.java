@@ -5,37 +5,193 @@ package com.acertainbookstore.server;
 
 import java.io.IOException;
 import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.eclipse.jetty.http.HttpHeaders;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 
 import com.acertainbookstore.business.BookCopy;
 import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookRating;
 import com.acertainbookstore.business.CertainBookStore;
 import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.utils.BookStoreBatchOperation;
+import com.acertainbookstore.utils.BookStoreBinaryCodec;
 import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
 import com.acertainbookstore.utils.BookStoreMessageTag;
 import com.acertainbookstore.utils.BookStoreResponse;
 import com.acertainbookstore.utils.BookStoreUtility;
+import com.acertainbookstore.utils.BookStoreWireFormat;
 
 /**
  * BookStoreHTTPMessageHandler implements the message handler class which is
  * invoked to handle messages received by the BookStoreHTTPServerUtility. It
  * decodes the HTTP message and invokes the CertainBookStore server API
  * 
+ * Request bodies are decoded in the wire format given by their Content-Type
+ * header and responses are encoded in the format asked for by the Accept
+ * header, XML by default.
+ * 
+ * A BATCH message carries a list of calls, which are run in order by a
+ * BookStoreBatchExecutor and answered with one response per call.
+ * 
+ * IMPORTBOOKS and EXPORTBOOKS carry the books as CSV, which is read and
+ * written as a stream whatever the size of the catalog.
+ * 
+ * PREPAREBUYBOOKS, COMMITBUYBOOKS and ABORTBUYBOOKS carry the transaction id
+ * of a buy spanning several servers as a parameter.
+ * 
+ * A server with a replication log answers the REPLICATE messages of its
+ * replicas with the calls of the log. A replica, which follows its primary
+ * with a BookStoreReplicator, rejects the calls changing the store and
+ * reports how far it lags behind in its answer to REPLICATIONSTATUS.
  * 
  */
 public class BookStoreHTTPMessageHandler extends AbstractHandler {
 	private CertainBookStore myBookStore = null;
+	private BookStoreBatchExecutor batchExecutor = null;
+	// Follows the primary when the store is a replica, null otherwise
+	private BookStoreReplicator replicator = null;
+	// The messages changing the store, which a replica rejects
+	private static final EnumSet<BookStoreMessageTag> UPDATES = EnumSet.of(
+			BookStoreMessageTag.ADDBOOKS, BookStoreMessageTag.ADDCOPIES,
+			BookStoreMessageTag.BUYBOOKS,
+			BookStoreMessageTag.UPDATEEDITORPICKS,
+			BookStoreMessageTag.REMOVEALLBOOKS,
+			BookStoreMessageTag.REMOVEBOOKS, BookStoreMessageTag.RATEBOOKS,
+			BookStoreMessageTag.BUYEDITORPICKS,
+			BookStoreMessageTag.IMPORTBOOKS,
+			BookStoreMessageTag.PREPAREBUYBOOKS,
+			BookStoreMessageTag.COMMITBUYBOOKS,
+			BookStoreMessageTag.ABORTBUYBOOKS);
+	// Larger LISTBOOKS responses are streamed instead of kept
+	private static final int MAX_CACHED_LIST_BOOKS = 10000;
+	// The last serialized LISTBOOKS response, per wire format
+	private final AtomicReferenceArray<SerializedBookList> serializedListBooksResponses = new AtomicReferenceArray<SerializedBookList>(
+			BookStoreWireFormat.values().length);
+
+	/**
+	 * The serialized LISTBOOKS response for one catalog snapshot returned by
+	 * CertainBookStore.getBooks()
+	 */
+	private static final class SerializedBookList {
+		private final List<StockBook> books;
+		private final byte[] content;
+
+		private SerializedBookList(List<StockBook> books, byte[] content) {
+			this.books = books;
+			this.content = content;
+		}
+	}
 
 	public BookStoreHTTPMessageHandler(CertainBookStore bookStore) {
+		this(bookStore, null);
+	}
+
+	/**
+	 * Creates the handler of a store that is a replica of the primary the
+	 * replicator follows, or of a primary store if replicator is null
+	 * 
+	 * @param bookStore
+	 * @param replicator
+	 */
+	public BookStoreHTTPMessageHandler(CertainBookStore bookStore,
+			BookStoreReplicator replicator) {
 		myBookStore = bookStore;
+		batchExecutor = new BookStoreBatchExecutor(bookStore);
+		this.replicator = replicator;
+	}
+
+	/**
+	 * Returns the exception answering a call changing the store of a replica
+	 * 
+	 * @return
+	 */
+	private BookStoreException newReadOnlyException() {
+		return new BookStoreException("The replica of "
+				+ replicator.getPrimaryAddress() + " is read-only");
+	}
+
+	/**
+	 * Writes the LISTBOOKS response in the given format. The store returns
+	 * the same list until it is updated, so the response for a small catalog
+	 * is serialized once per update and kept. The response for a larger
+	 * catalog is streamed to the client instead, so that memory use does not
+	 * grow with the size of the catalog.
+	 * 
+	 * @param response
+	 * @param format
+	 * @throws IOException
+	 */
+	private void writeListBooksResponse(HttpServletResponse response,
+			BookStoreWireFormat format) throws IOException {
+		List<StockBook> books = myBookStore.getBooks();
+		if (books.size() > MAX_CACHED_LIST_BOOKS) {
+			writeResponse(response, format, newListBooksResponse(books, format));
+			return;
+		}
+
+		SerializedBookList serialized = serializedListBooksResponses
+				.get(format.ordinal());
+		if (serialized == null || serialized.books != books) {
+			BookStoreResponse bookStoreResponse = newListBooksResponse(books,
+					format);
+			byte[] content;
+			if (format == BookStoreWireFormat.BINARY) {
+				content = BookStoreBinaryCodec.encode(bookStoreResponse);
+			} else {
+				content = BookStoreUtility.serializeObjectToXMLString(
+						bookStoreResponse).getBytes(Charset.forName("UTF-8"));
+			}
+			serialized = new SerializedBookList(books, content);
+			serializedListBooksResponses.set(format.ordinal(), serialized);
+		}
+		response.setContentLength(serialized.content.length);
+		response.getOutputStream().write(serialized.content);
+	}
+
+	/**
+	 * Returns the LISTBOOKS response for the books
+	 * 
+	 * @param books
+	 * @param format
+	 * @return
+	 */
+	private BookStoreResponse newListBooksResponse(List<StockBook> books,
+			BookStoreWireFormat format) {
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+		// The unmodifiable list of the store is encoded as is in binary, XML
+		// messages carry an ArrayList
+		bookStoreResponse
+				.setList((format == BookStoreWireFormat.BINARY) ? books
+						: new ArrayList<StockBook>(books));
+		return bookStoreResponse;
+	}
+
+	/**
+	 * Writes the response in the given format
+	 * 
+	 * @param response
+	 * @param format
+	 * @param bookStoreResponse
+	 * @throws IOException
+	 */
+	private void writeResponse(HttpServletResponse response,
+			BookStoreWireFormat format, BookStoreResponse bookStoreResponse)
+			throws IOException {
+		BookStoreUtility.serializeObjectToResponse(response,
+				bookStoreResponse, format);
 	}
 
 	@SuppressWarnings("unchecked")
@@ -48,7 +204,10 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 		String requestURI;
 		BookStoreResponse bookStoreResponse = null;
 
-		response.setContentType("text/html;charset=utf-8");
+		// The client asks for the format of the response in the Accept header
+		BookStoreWireFormat responseFormat = BookStoreWireFormat
+				.forHeader(request.getHeader(HttpHeaders.ACCEPT));
+		response.setContentType(responseFormat.getContentType());
 		response.setStatus(HttpServletResponse.SC_OK);
 		requestURI = request.getRequestURI();
 
@@ -67,14 +226,16 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 		// the RequestURI before the switch
 		if (messageTag == null) {
 			System.out.println("Unknown message tag");
+		} else if (replicator != null && UPDATES.contains(messageTag)) {
+			// Only the calls of the primary change the store of a replica
+			bookStoreResponse = new BookStoreResponse();
+			bookStoreResponse.setException(newReadOnlyException());
+			writeResponse(response, responseFormat, bookStoreResponse);
 		} else {
 			switch (messageTag) {
 			case REMOVEBOOKS:
-				String xml = BookStoreUtility
-						.extractPOSTDataFromRequest(request);
-
 				Set<Integer> bookSet = (Set<Integer>) BookStoreUtility
-						.deserializeXMLStringToObject(xml);
+						.deserializeObjectFromRequest(request);
 
 				bookStoreResponse = new BookStoreResponse();
 				try {
@@ -82,30 +243,22 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 				} catch (BookStoreException ex) {
 					bookStoreResponse.setException(ex);
 				}
-				String listBooksxmlString = BookStoreUtility
-						.serializeObjectToXMLString(bookStoreResponse);
-				response.getWriter().println(listBooksxmlString);
+				writeResponse(response, responseFormat, bookStoreResponse);
 				break;
 
 			case REMOVEALLBOOKS:
-				xml = BookStoreUtility.extractPOSTDataFromRequest(request);
-
 				bookStoreResponse = new BookStoreResponse();
 				try {
 					myBookStore.removeAllBooks();
 				} catch (BookStoreException ex) {
 					bookStoreResponse.setException(ex);
 				}
-				listBooksxmlString = BookStoreUtility
-						.serializeObjectToXMLString(bookStoreResponse);
-				response.getWriter().println(listBooksxmlString);
+				writeResponse(response, responseFormat, bookStoreResponse);
 				break;
 
 			case ADDBOOKS:
-				xml = BookStoreUtility.extractPOSTDataFromRequest(request);
-
 				Set<StockBook> newBooks = (Set<StockBook>) BookStoreUtility
-						.deserializeXMLStringToObject(xml);
+						.deserializeObjectFromRequest(request);
 
 				bookStoreResponse = new BookStoreResponse();
 				try {
@@ -113,33 +266,23 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 				} catch (BookStoreException ex) {
 					bookStoreResponse.setException(ex);
 				}
-				listBooksxmlString = BookStoreUtility
-						.serializeObjectToXMLString(bookStoreResponse);
-				response.getWriter().println(listBooksxmlString);
+				writeResponse(response, responseFormat, bookStoreResponse);
 				break;
 
 			case ADDCOPIES:
-				xml = BookStoreUtility.extractPOSTDataFromRequest(request);
-
 				Set<BookCopy> listBookCopies = (Set<BookCopy>) BookStoreUtility
-						.deserializeXMLStringToObject(xml);
+						.deserializeObjectFromRequest(request);
 				bookStoreResponse = new BookStoreResponse();
 				try {
 					myBookStore.addCopies(listBookCopies);
 				} catch (BookStoreException ex) {
 					bookStoreResponse.setException(ex);
 				}
-				listBooksxmlString = BookStoreUtility
-						.serializeObjectToXMLString(bookStoreResponse);
-				response.getWriter().println(listBooksxmlString);
+				writeResponse(response, responseFormat, bookStoreResponse);
 				break;
 
 			case LISTBOOKS:
-				bookStoreResponse = new BookStoreResponse();
-				bookStoreResponse.setList(myBookStore.getBooks());
-				listBooksxmlString = BookStoreUtility
-						.serializeObjectToXMLString(bookStoreResponse);
-				response.getWriter().println(listBooksxmlString);
+				writeListBooksResponse(response, responseFormat);
 				break;
 
 			case UPDATEEDITORPICKS:
@@ -147,25 +290,19 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 				bookStoreResponse = new BookStoreResponse();
 
 				try {
-					String xmlStringEditorPicksValues = BookStoreUtility
-							.extractPOSTDataFromRequest(request);
-
 					Set<BookEditorPick> mapEditorPicksValues = (Set<BookEditorPick>) BookStoreUtility
-							.deserializeXMLStringToObject(xmlStringEditorPicksValues);
+							.deserializeObjectFromRequest(request);
 
 					myBookStore.updateEditorPicks(mapEditorPicksValues);
 				} catch (BookStoreException ex) {
 					bookStoreResponse.setException(ex);
 				}
-				listBooksxmlString = BookStoreUtility
-						.serializeObjectToXMLString(bookStoreResponse);
-				response.getWriter().println(listBooksxmlString);
+				writeResponse(response, responseFormat, bookStoreResponse);
 				break;
 
 			case BUYBOOKS:
-				xml = BookStoreUtility.extractPOSTDataFromRequest(request);
 				Set<BookCopy> bookCopiesToBuy = (Set<BookCopy>) BookStoreUtility
-						.deserializeXMLStringToObject(new String(xml));
+						.deserializeObjectFromRequest(request);
 
 				// Make the purchase
 				bookStoreResponse = new BookStoreResponse();
@@ -174,15 +311,49 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 				} catch (BookStoreException ex) {
 					bookStoreResponse.setException(ex);
 				}
-				listBooksxmlString = BookStoreUtility
-						.serializeObjectToXMLString(bookStoreResponse);
-				response.getWriter().println(listBooksxmlString);
+				writeResponse(response, responseFormat, bookStoreResponse);
+				break;
+
+			case PREPAREBUYBOOKS:
+				String transactionIdString = request
+						.getParameter(BookStoreConstants.TRANSACTION_ID_PARAM);
+				Set<BookCopy> bookCopiesToPrepare = (Set<BookCopy>) BookStoreUtility
+						.deserializeObjectFromRequest(request);
+
+				bookStoreResponse = new BookStoreResponse();
+				try {
+					myBookStore.prepareBuyBooks(BookStoreUtility
+							.convertStringToLong(transactionIdString),
+							bookCopiesToPrepare);
+				} catch (BookStoreException ex) {
+					bookStoreResponse.setException(ex);
+				}
+				writeResponse(response, responseFormat, bookStoreResponse);
+				break;
+
+			case COMMITBUYBOOKS:
+			case ABORTBUYBOOKS:
+				transactionIdString = request
+						.getParameter(BookStoreConstants.TRANSACTION_ID_PARAM);
+
+				bookStoreResponse = new BookStoreResponse();
+				try {
+					long transactionId = BookStoreUtility
+							.convertStringToLong(transactionIdString);
+					if (messageTag == BookStoreMessageTag.COMMITBUYBOOKS) {
+						myBookStore.commitBuyBooks(transactionId);
+					} else {
+						myBookStore.abortBuyBooks(transactionId);
+					}
+				} catch (BookStoreException ex) {
+					bookStoreResponse.setException(ex);
+				}
+				writeResponse(response, responseFormat, bookStoreResponse);
 				break;
 
 			case GETBOOKS:
-				xml = BookStoreUtility.extractPOSTDataFromRequest(request);
 				Set<Integer> isbnSet = (Set<Integer>) BookStoreUtility
-						.deserializeXMLStringToObject(xml);
+						.deserializeObjectFromRequest(request);
 
 				bookStoreResponse = new BookStoreResponse();
 				try {
@@ -190,9 +361,7 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 				} catch (BookStoreException ex) {
 					bookStoreResponse.setException(ex);
 				}
-				listBooksxmlString = BookStoreUtility
-						.serializeObjectToXMLString(bookStoreResponse);
-				response.getWriter().println(listBooksxmlString);
+				writeResponse(response, responseFormat, bookStoreResponse);
 				break;
 
 			case EDITORPICKS:
@@ -209,15 +378,94 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 				} catch (BookStoreException ex) {
 					bookStoreResponse.setException(ex);
 				}
-				listBooksxmlString = BookStoreUtility
-						.serializeObjectToXMLString(bookStoreResponse);
-				response.getWriter().println(listBooksxmlString);
+				writeResponse(response, responseFormat, bookStoreResponse);
+				break;
+
+			case BUYEDITORPICKS:
+				numBooksString = URLDecoder
+						.decode(request
+								.getParameter(BookStoreConstants.BOOK_NUM_PARAM),
+								"UTF-8");
+				String numCopiesString = URLDecoder.decode(request
+						.getParameter(BookStoreConstants.COPIES_NUM_PARAM),
+						"UTF-8");
+				bookStoreResponse = new BookStoreResponse();
+				try {
+					numBooks = BookStoreUtility
+							.convertStringToInt(numBooksString);
+					int numCopies = BookStoreUtility
+							.convertStringToInt(numCopiesString);
+					bookStoreResponse.setList(myBookStore.buyEditorPicks(
+							numBooks, numCopies));
+				} catch (BookStoreException ex) {
+					bookStoreResponse.setException(ex);
+				}
+				writeResponse(response, responseFormat, bookStoreResponse);
+				break;
+
+			case RATEBOOKS:
+				Set<BookRating> bookRatings = (Set<BookRating>) BookStoreUtility
+						.deserializeObjectFromRequest(request);
+
+				bookStoreResponse = new BookStoreResponse();
+				try {
+					myBookStore.rateBooks(bookRatings);
+				} catch (BookStoreException ex) {
+					bookStoreResponse.setException(ex);
+				}
+				writeResponse(response, responseFormat, bookStoreResponse);
+				break;
+
+			case TOPRATEDBOOKS:
+				numBooksString = URLDecoder
+						.decode(request
+								.getParameter(BookStoreConstants.BOOK_NUM_PARAM),
+								"UTF-8");
+				bookStoreResponse = new BookStoreResponse();
+				try {
+					numBooks = BookStoreUtility
+							.convertStringToInt(numBooksString);
+					bookStoreResponse.setList(myBookStore
+							.getTopRatedBooks(numBooks));
+				} catch (BookStoreException ex) {
+					bookStoreResponse.setException(ex);
+				}
+				writeResponse(response, responseFormat, bookStoreResponse);
+				break;
+
+			case GETBOOKSINDEMAND:
+				bookStoreResponse = new BookStoreResponse();
+				try {
+					bookStoreResponse.setList(myBookStore.getBooksInDemand());
+				} catch (BookStoreException ex) {
+					bookStoreResponse.setException(ex);
+				}
+				writeResponse(response, responseFormat, bookStoreResponse);
+				break;
+
+			case BATCH:
+				List<BookStoreBatchOperation> operations = (List<BookStoreBatchOperation>) BookStoreUtility
+						.deserializeObjectFromRequest(request);
+
+				bookStoreResponse = new BookStoreResponse();
+				try {
+					if (replicator != null && operations != null) {
+						for (BookStoreBatchOperation operation : operations) {
+							if (UPDATES.contains(operation.getTag())) {
+								throw newReadOnlyException();
+							}
+						}
+					}
+					bookStoreResponse.setList(batchExecutor.execute(operations));
+				} catch (BookStoreException ex) {
+					bookStoreResponse.setException(ex);
+				}
+				writeResponse(response, responseFormat, bookStoreResponse);
 				break;
 
 			case GETSTOCKBOOKSBYISBN:
-				xml = BookStoreUtility.extractPOSTDataFromRequest(request);
 				isbnSet = (Set<Integer>) BookStoreUtility
-						.deserializeXMLStringToObject(xml);
+						.deserializeObjectFromRequest(request);
 
 				bookStoreResponse = new BookStoreResponse();
 				try {
@@ -226,11 +474,76 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 				} catch (BookStoreException ex) {
 					bookStoreResponse.setException(ex);
 				}
-				listBooksxmlString = BookStoreUtility
-						.serializeObjectToXMLString(bookStoreResponse);
-				response.getWriter().println(listBooksxmlString);
+				writeResponse(response, responseFormat, bookStoreResponse);
 				break;
 				
+			case IMPORTBOOKS:
+				// The CSV content is read and imported as it arrives
+				String batchSizeString = request
+						.getParameter(BookStoreConstants.BATCH_SIZE_PARAM);
+				bookStoreResponse = new BookStoreResponse();
+				try {
+					int batchSize = BookStoreConstants.DEFAULT_IMPORT_BATCH_SIZE;
+					if (batchSizeString != null) {
+						batchSize = BookStoreUtility
+								.convertStringToInt(batchSizeString);
+					}
+					List<Long> numBooksImported = new ArrayList<Long>(1);
+					numBooksImported.add(myBookStore.importBooks(
+							request.getInputStream(), batchSize, null));
+					bookStoreResponse.setList(numBooksImported);
+				} catch (BookStoreException ex) {
+					bookStoreResponse.setException(ex);
+				}
+				writeResponse(response, responseFormat, bookStoreResponse);
+				break;
+
+			case EXPORTBOOKS:
+				// The CSV response is streamed, so an error after the first
+				// books were sent can only cut the connection
+				response.setContentType(BookStoreConstants.CSV_CONTENT_TYPE);
+				try {
+					myBookStore.exportBooks(response.getOutputStream());
+				} catch (BookStoreException ex) {
+					if (response.isCommitted()) {
+						throw new IOException(ex);
+					}
+					response.sendError(
+							HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+							ex.getMessage());
+				}
+				break;
+
+			case REPLICATE:
+				String epochString = request
+						.getParameter(BookStoreConstants.EPOCH_PARAM);
+				String sequenceString = request
+						.getParameter(BookStoreConstants.SEQUENCE_PARAM);
+				bookStoreResponse = new BookStoreResponse();
+				try {
+					bookStoreResponse.setList(myBookStore.readReplicationLog(
+							BookStoreUtility.convertStringToLong(epochString),
+							BookStoreUtility
+									.convertStringToLong(sequenceString),
+							BookStoreConstants.MAX_REPLICATED_CALLS,
+							BookStoreConstants.REPLICATION_WAIT_MILLIS));
+				} catch (BookStoreException ex) {
+					bookStoreResponse.setException(ex);
+				}
+				writeResponse(response, responseFormat, bookStoreResponse);
+				break;
+
+			case REPLICATIONSTATUS:
+				List<Long> replicationStatus = new ArrayList<Long>(2);
+				replicationStatus.add((replicator == null) ? 0 : replicator
+						.getStalenessMillis());
+				replicationStatus.add((replicator == null) ? 0 : replicator
+						.getLagCalls());
+				bookStoreResponse = new BookStoreResponse();
+				bookStoreResponse.setList(replicationStatus);
+				writeResponse(response, responseFormat, bookStoreResponse);
+				break;
+
 			default:
 				System.out.println("Unhandled message tag");
 				break;
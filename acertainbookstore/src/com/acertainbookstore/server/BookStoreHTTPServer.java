@@ -3,22 +3,87 @@
  */
 package com.acertainbookstore.server;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.acertainbookstore.business.BookStoreBackend;
+import com.acertainbookstore.business.BookStoreConcurrencyMode;
+import com.acertainbookstore.business.BookStoreReplicationLog;
+import com.acertainbookstore.business.BookStoreWriteAheadLog;
 import com.acertainbookstore.business.CertainBookStore;
 import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreUtility;
 
 /**
  * Starts the bookstore HTTP server that the clients will communicate with.
  */
 public class BookStoreHTTPServer {
+	// Seconds between two snapshots of the store
+	private static final long DEFAULT_SNAPSHOT_INTERVAL = 60;
 
 	/**
 	 * @param args
 	 */
 	public static void main(String[] args) {
-		CertainBookStore bookStore = new CertainBookStore();
+		CertainBookStore bookStore = new CertainBookStore(
+				BookStoreConcurrencyMode.getConfiguredMode(),
+				BookStoreBackend.getConfiguredBackend());
+		// Rebuild the store from its snapshot and write-ahead log, if they
+		// are configured
+		String walFile = System
+				.getProperty(BookStoreConstants.PROPERTY_KEY_WAL_FILE);
+		String snapshotFile = System
+				.getProperty(BookStoreConstants.PROPERTY_KEY_SNAPSHOT_FILE);
+		try {
+			bookStore.recover(
+					BookStoreUtility.isEmpty(snapshotFile) ? null : new File(
+							snapshotFile),
+					BookStoreUtility.isEmpty(walFile) ? null
+							: BookStoreWriteAheadLog.open(new File(walFile)));
+		} catch (IOException ex) {
+			System.err.println(ex);
+			return;
+		}
+		if (!BookStoreUtility.isEmpty(snapshotFile)) {
+			scheduleSnapshots(bookStore, new File(snapshotFile));
+		}
+		scheduleBuyTimeouts(bookStore);
+		// A server keeping a replication log can be the primary of replicas,
+		// and a server given the address of a primary is its replica
+		String replicationLogSizeString = System
+				.getProperty(BookStoreConstants.PROPERTY_KEY_REPLICATION_LOG_SIZE);
+		if (!BookStoreUtility.isEmpty(replicationLogSizeString)) {
+			try {
+				int replicationLogSize = Integer
+						.parseInt(replicationLogSizeString);
+				if (replicationLogSize > 0) {
+					bookStore.setReplicationLog(new BookStoreReplicationLog(
+							replicationLogSize));
+				}
+			} catch (NumberFormatException ex) {
+				System.err.println(ex);
+			}
+		}
+		BookStoreReplicator replicator = null;
+		String primaryAddress = System
+				.getProperty(BookStoreConstants.PROPERTY_KEY_PRIMARY);
+		if (!BookStoreUtility.isEmpty(primaryAddress)) {
+			try {
+				replicator = new BookStoreReplicator(bookStore, primaryAddress);
+			} catch (Exception ex) {
+				System.err.println(ex);
+				return;
+			}
+			replicator.start();
+		}
 		int listen_on_port = 8081;
 		BookStoreHTTPMessageHandler handler = new BookStoreHTTPMessageHandler(
-				bookStore);
+				bookStore, replicator);
 		String server_port_string = System.getProperty(BookStoreConstants.PROPERTY_KEY_SERVER_PORT);
 		if(server_port_string != null) {
 			try {
@@ -32,4 +97,74 @@ public class BookStoreHTTPServer {
 		}
 	}
 
+	/**
+	 * Writes a snapshot of the store to the file periodically, every
+	 * DEFAULT_SNAPSHOT_INTERVAL seconds unless the snapshotinterval property
+	 * says otherwise, from a daemon thread
+	 * 
+	 * @param bookStore
+	 * @param snapshotFile
+	 */
+	private static void scheduleSnapshots(final CertainBookStore bookStore,
+			final File snapshotFile) {
+		long interval = DEFAULT_SNAPSHOT_INTERVAL;
+		String intervalString = System
+				.getProperty(BookStoreConstants.PROPERTY_KEY_SNAPSHOT_INTERVAL);
+		if (!BookStoreUtility.isEmpty(intervalString)) {
+			try {
+				interval = Long.parseLong(intervalString);
+			} catch (NumberFormatException ex) {
+				System.err.println(ex);
+			}
+		}
+
+		ScheduledExecutorService executor = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "snapshot");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					bookStore.writeSnapshot(snapshotFile);
+				} catch (IOException ex) {
+					// The next snapshot is attempted at the next interval
+					System.err.println(ex);
+				}
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Aborts the prepared buys of the store whose commit or abort did not
+	 * arrive in time, checking a few times per timeout.
+	 * 
+	 * @param bookStore
+	 */
+	private static void scheduleBuyTimeouts(final CertainBookStore bookStore) {
+		long interval = BookStoreConstants.PREPARED_BUY_TIMEOUT_MILLIS / 4;
+		ScheduledExecutorService executor = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "buy-timeout");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					bookStore.abortExpiredBuys(
+							BookStoreConstants.PREPARED_BUY_TIMEOUT_MILLIS);
+				} catch (BookStoreException ex) {
+					// The expired buys are aborted again at the next interval
+					System.err.println(ex);
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
 }
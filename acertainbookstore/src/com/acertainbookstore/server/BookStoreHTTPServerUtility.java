@@ -9,18 +9,44 @@ import java.net.UnknownHostException;
 
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.thread.ExecutorThreadPool;
+
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreThreadMode;
 
 /**
  * Utility methods to create Jetty server instances
  * 
+ * The servers handle the requests on the threads of the mode configured by
+ * the thread mode system property unless given another one. In the VIRTUAL
+ * mode, the Jetty pool of platform threads is replaced by a pool starting a
+ * virtual thread per task, so that each request is handled on its own
+ * virtual thread.
+ * 
  */
 public class BookStoreHTTPServerUtility {
 
+	/**
+	 * Sets the pool of threads handling the requests of the server for the
+	 * thread mode, keeping the default Jetty pool in the PLATFORM mode
+	 * 
+	 * @param server
+	 * @param threadMode
+	 */
+	private static void setThreadPool(Server server,
+			BookStoreThreadMode threadMode) {
+		if (threadMode == BookStoreThreadMode.VIRTUAL) {
+			server.setThreadPool(new ExecutorThreadPool(threadMode
+					.newExecutor(BookStoreConstants.DEFAULT_SERVER_THREADS)));
+		}
+	}
+
 	/**
 	 * Creates a server on the port and blocks the calling thread
 	 */
 	public static boolean createServer(int port, AbstractHandler handler) {
 		Server server = new Server(port);
+		setThreadPool(server, BookStoreThreadMode.getConfiguredMode());
 		if (handler != null) {
 			server.setHandler(handler);
 		}
@@ -34,6 +60,39 @@ public class BookStoreHTTPServerUtility {
 		return true;
 	}
 
+	/**
+	 * Creates and starts a server on the port without blocking the calling
+	 * thread, e.g. to run several servers in one process
+	 * 
+	 * @return the server, to be stopped by the caller
+	 * @throws Exception
+	 *             if the server could not be started
+	 */
+	public static Server startServer(int port, AbstractHandler handler)
+			throws Exception {
+		return startServer(port, handler,
+				BookStoreThreadMode.getConfiguredMode());
+	}
+
+	/**
+	 * Creates and starts a server on the port handling the requests on the
+	 * threads of the mode, without blocking the calling thread
+	 * 
+	 * @return the server, to be stopped by the caller
+	 * @throws Exception
+	 *             if the server could not be started
+	 */
+	public static Server startServer(int port, AbstractHandler handler,
+			BookStoreThreadMode threadMode) throws Exception {
+		Server server = new Server(port);
+		setThreadPool(server, threadMode);
+		if (handler != null) {
+			server.setHandler(handler);
+		}
+		server.start();
+		return server;
+	}
+
 	/**
 	 * Creates a server on the InetAddress and blocks the calling thread
 	 */
@@ -55,6 +114,7 @@ public class BookStoreHTTPServerUtility {
 		}
 
 		server = new Server(address);
+		setThreadPool(server, BookStoreThreadMode.getConfiguredMode());
 		if (handler != null) {
 			server.setHandler(handler);
 		}
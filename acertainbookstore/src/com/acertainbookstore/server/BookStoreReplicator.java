@@ -0,0 +1,195 @@
+package com.acertainbookstore.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.acertainbookstore.business.CertainBookStore;
+import com.acertainbookstore.client.StockManagerHTTPProxy;
+import com.acertainbookstore.utils.BookStoreBatchOperation;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreWireFormat;
+
+/**
+ * BookStoreReplicator keeps a CertainBookStore a replica of the store of a
+ * primary server. A daemon thread reads the replication log of the primary
+ * with REPLICATE messages and applies its calls to the replica in order. The
+ * primary holds a request until it has a call to send or a moment has
+ * passed, so the calls reach the replica shortly after they were made.
+ * 
+ * The staleness of the replica is the time since it sent the last request
+ * after which it had applied all the calls of the primary, so the books of
+ * the replica are at most that old.
+ * 
+ */
+public final class BookStoreReplicator implements Runnable {
+	// Milliseconds to wait before asking a primary again after a failed
+	// request
+	private static final long RETRY_MILLIS = 1000;
+
+	private final CertainBookStore bookStore;
+	private final String primaryAddress;
+	private final StockManagerHTTPProxy primary;
+	private volatile boolean stopped = false;
+	private Thread thread = null;
+	// Position of the replica in the replication log of the primary, only
+	// used by the replicating thread
+	private long epoch = 0;
+	private long nextSequence = 0;
+	// System.nanoTime() when the last request bringing the replica up to
+	// date was sent, valid once upToDate is set
+	private volatile long upToDateNanos = 0;
+	private volatile boolean upToDate = false;
+	private volatile long lagCalls = -1;
+
+	/**
+	 * Creates a replicator applying the calls of the primary server at the
+	 * address to the store, once it is started, reading the replication log
+	 * in the wire format configured by the wire format system property
+	 * 
+	 * @param bookStore
+	 * @param primaryAddress
+	 * @throws Exception
+	 *             if the client of the primary could not be started
+	 */
+	public BookStoreReplicator(CertainBookStore bookStore,
+			String primaryAddress) throws Exception {
+		this(bookStore, primaryAddress, BookStoreWireFormat
+				.getConfiguredFormat());
+	}
+
+	/**
+	 * Creates a replicator applying the calls of the primary server at the
+	 * address to the store, once it is started, reading the replication log
+	 * in the given wire format
+	 * 
+	 * @param bookStore
+	 * @param primaryAddress
+	 * @param wireFormat
+	 * @throws Exception
+	 *             if the client of the primary could not be started
+	 */
+	public BookStoreReplicator(CertainBookStore bookStore,
+			String primaryAddress, BookStoreWireFormat wireFormat)
+			throws Exception {
+		this.bookStore = bookStore;
+		this.primaryAddress = primaryAddress;
+		this.primary = new StockManagerHTTPProxy(primaryAddress + "/stock",
+				wireFormat);
+	}
+
+	public String getPrimaryAddress() {
+		return primaryAddress;
+	}
+
+	/**
+	 * Starts replicating from a daemon thread
+	 */
+	public synchronized void start() {
+		if (thread == null) {
+			thread = new Thread(this, "replicator");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Stops replicating, the replica keeping the books it has. The request
+	 * waiting for the primary, if any, is given a moment to complete.
+	 */
+	public synchronized void stop() {
+		stopped = true;
+		if (thread != null) {
+			try {
+				thread.join(RETRY_MILLIS);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			thread.interrupt();
+		}
+		primary.stop();
+	}
+
+	/**
+	 * Returns how many milliseconds the books of the replica may lag behind
+	 * the primary, Long.MAX_VALUE until the replica first caught up with it
+	 * 
+	 * @return
+	 */
+	public long getStalenessMillis() {
+		if (!upToDate) {
+			return Long.MAX_VALUE;
+		}
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+				- upToDateNanos);
+	}
+
+	/**
+	 * Returns how many calls of the primary the replica still had to apply
+	 * when it last heard from the primary, -1 until it first did
+	 * 
+	 * @return
+	 */
+	public long getLagCalls() {
+		return lagCalls;
+	}
+
+	@SuppressWarnings("unchecked")
+	public void run() {
+		while (!stopped) {
+			long sentNanos = System.nanoTime();
+			try {
+				List<Object> result = primary.readReplicationLog(epoch,
+						nextSequence);
+				List<BookStoreBatchOperation> calls = new ArrayList<BookStoreBatchOperation>(
+						result.size() - 3);
+				for (Object call : result.subList(3, result.size())) {
+					calls.add((BookStoreBatchOperation) call);
+				}
+				bookStore.applyReplicatedCalls(calls);
+
+				epoch = (Long) result.get(0);
+				nextSequence = (Long) result.get(1);
+				lagCalls = (Long) result.get(2) - nextSequence;
+				if (lagCalls == 0) {
+					upToDateNanos = sentNanos;
+					upToDate = true;
+				}
+			} catch (BookStoreException ex) {
+				if (stopped || !waitToRetry(ex)) {
+					break;
+				}
+			} catch (IOException ex) {
+				// The replica copies the whole store again, instead of
+				// applying the calls after one it could not apply
+				epoch = 0;
+				if (!waitToRetry(ex)) {
+					break;
+				}
+			} catch (ClassCastException ex) {
+				epoch = 0;
+				if (!waitToRetry(ex)) {
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reports the failure and waits RETRY_MILLIS before the next request, so
+	 * that a primary failing every request is not asked again at once
+	 * 
+	 * @param ex
+	 * @return false if the thread was interrupted while waiting
+	 */
+	private boolean waitToRetry(Exception ex) {
+		System.err.println(ex);
+		try {
+			Thread.sleep(RETRY_MILLIS);
+		} catch (InterruptedException e) {
+			return false;
+		}
+		return true;
+	}
+}
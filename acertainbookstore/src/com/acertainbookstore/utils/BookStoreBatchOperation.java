@@ -0,0 +1,37 @@
+package com.acertainbookstore.utils;
+
+/**
+ * BookStoreBatchOperation is one step of a BATCH message: the message tag of
+ * the call to make and its argument. The argument is the object the call
+ * would send on its own, the number of books for EDITORPICKS and
+ * TOPRATEDBOOKS, null for the calls without argument, or a
+ * BookStoreBatchReference to the result of an earlier step.
+ * 
+ */
+public final class BookStoreBatchOperation {
+	private final BookStoreMessageTag tag;
+	private final Object argument;
+
+	public BookStoreBatchOperation(BookStoreMessageTag tag, Object argument) {
+		this.tag = tag;
+		this.argument = argument;
+	}
+
+	/**
+	 * Returns the message tag of the call
+	 * 
+	 * @return
+	 */
+	public BookStoreMessageTag getTag() {
+		return tag;
+	}
+
+	/**
+	 * Returns the argument of the call
+	 * 
+	 * @return
+	 */
+	public Object getArgument() {
+		return argument;
+	}
+}
@@ -0,0 +1,100 @@
+package com.acertainbookstore.utils;
+
+/**
+ * BookStoreBatchReference is the argument of a batch step that is computed
+ * from the books returned by an earlier step of the same batch. Up to
+ * numBooks of those books are selected, and the argument is the set of their
+ * ISBNs, or the set of BookCopy of numCopies copies of each if numCopies is
+ * positive.
+ * 
+ */
+public final class BookStoreBatchReference {
+
+	/**
+	 * How the books of the earlier step are selected
+	 */
+	public enum Selection {
+		/**
+		 * The first books, in the order the step returned them
+		 */
+		FIRST,
+
+		/**
+		 * The books with the fewest copies in stock, the step must return
+		 * StockBooks
+		 */
+		FEWEST_COPIES;
+	}
+
+	private final int step;
+	private final Selection selection;
+	private final int numBooks;
+	private final int numCopies;
+
+	public BookStoreBatchReference(int step, Selection selection,
+			int numBooks, int numCopies) {
+		this.step = step;
+		this.selection = selection;
+		this.numBooks = numBooks;
+		this.numCopies = numCopies;
+	}
+
+	/**
+	 * Refers to the ISBNs of all the books returned by the step
+	 * 
+	 * @param step
+	 * @return
+	 */
+	public static BookStoreBatchReference isbnsOf(int step) {
+		return new BookStoreBatchReference(step, Selection.FIRST,
+				Integer.MAX_VALUE, 0);
+	}
+
+	/**
+	 * Refers to numCopies copies of each of the books returned by the step
+	 * 
+	 * @param step
+	 * @param numCopies
+	 * @return
+	 */
+	public static BookStoreBatchReference copiesOf(int step, int numCopies) {
+		return new BookStoreBatchReference(step, Selection.FIRST,
+				Integer.MAX_VALUE, numCopies);
+	}
+
+	/**
+	 * Returns the index of the step whose result is referred to
+	 * 
+	 * @return
+	 */
+	public int getStep() {
+		return step;
+	}
+
+	/**
+	 * Returns how the books of the step are selected
+	 * 
+	 * @return
+	 */
+	public Selection getSelection() {
+		return selection;
+	}
+
+	/**
+	 * Returns the maximum number of books selected
+	 * 
+	 * @return
+	 */
+	public int getNumBooks() {
+		return numBooks;
+	}
+
+	/**
+	 * Returns the number of copies of each book, zero for ISBNs
+	 * 
+	 * @return
+	 */
+	public int getNumCopies() {
+		return numCopies;
+	}
+}
@@ -0,0 +1,402 @@
+package com.acertainbookstore.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.acertainbookstore.business.Book;
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.ImmutableBook;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.StockBook;
+
+/**
+ * BookStoreBinaryCodec implements the BINARY wire format, a compact
+ * alternative to the XML messages.
+ * 
+ * Every value starts with a one byte tag giving its type. Integers and the
+ * counters of the books are written as zigzag varints, so small values such
+ * as ISBNs and numbers of copies take few bytes whatever their sign. Strings
+ * are written as their UTF-8 length followed by the UTF-8 bytes. Sets and
+ * lists are written as their size followed by their elements.
+ * 
+ * Enum constants, such as the message tags of batch operations, are written
+ * as their names.
+ * 
+ * Exceptions keep their message and cause, but unlike XML messages not the
+ * stack trace of the server.
+ * 
+ */
+public final class BookStoreBinaryCodec {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final int TAG_NULL = 0;
+	private static final int TAG_INTEGER = 1;
+	private static final int TAG_BOOK = 2;
+	private static final int TAG_STOCK_BOOK = 3;
+	private static final int TAG_BOOK_COPY = 4;
+	private static final int TAG_EDITOR_PICK = 5;
+	private static final int TAG_BOOK_RATING = 6;
+	private static final int TAG_SET = 7;
+	private static final int TAG_LIST = 8;
+	private static final int TAG_RESPONSE = 9;
+	private static final int TAG_EXCEPTION = 10;
+	private static final int TAG_BATCH_OPERATION = 11;
+	private static final int TAG_BATCH_REFERENCE = 12;
+	private static final int TAG_LONG = 13;
+
+	// Collections are presized, and strings read at once, up to this size
+	// only, so that a corrupted size does not allocate a huge collection or
+	// array before the input runs out
+	private static final int MAX_PRESIZE = 1024;
+
+	private BookStoreBinaryCodec() {
+		// Only static methods
+	}
+
+	/**
+	 * Encodes an object to a byte array
+	 * 
+	 * @param object
+	 * @return
+	 */
+	public static byte[] encode(Object object) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			writeObject(new DataOutputStream(bytes), object);
+		} catch (IOException ex) {
+			// Writing to a byte array does not fail
+			throw new IllegalStateException(ex);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decodes an object from a byte array
+	 * 
+	 * @param bytes
+	 * @return
+	 * @throws IOException
+	 *             if the bytes are not a valid encoding
+	 */
+	public static Object decode(byte[] bytes) throws IOException {
+		return readObject(new DataInputStream(new ByteArrayInputStream(bytes)));
+	}
+
+	/**
+	 * Writes an object, which must be null or one of the types exchanged
+	 * between the clients and the servers
+	 * 
+	 * @param out
+	 * @param object
+	 * @throws IOException
+	 */
+	public static void writeObject(DataOutput out, Object object)
+			throws IOException {
+		if (object == null) {
+			out.writeByte(TAG_NULL);
+		} else if (object instanceof Integer) {
+			out.writeByte(TAG_INTEGER);
+			writeVarInt(out, (Integer) object);
+		} else if (object instanceof Long) {
+			out.writeByte(TAG_LONG);
+			writeVarLong(out, (Long) object);
+		} else if (object instanceof StockBook) {
+			StockBook book = (StockBook) object;
+			out.writeByte(TAG_STOCK_BOOK);
+			writeBookAttributes(out, book);
+			writeVarInt(out, book.getNumCopies());
+			writeVarLong(out, book.getSaleMisses());
+			writeVarLong(out, book.getTimesRated());
+			writeVarLong(out, book.getTotalRating());
+			out.writeBoolean(book.isEditorPick());
+		} else if (object instanceof Book) {
+			out.writeByte(TAG_BOOK);
+			writeBookAttributes(out, (Book) object);
+		} else if (object instanceof BookCopy) {
+			BookCopy bookCopy = (BookCopy) object;
+			out.writeByte(TAG_BOOK_COPY);
+			writeVarInt(out, bookCopy.getISBN());
+			writeVarInt(out, bookCopy.getNumCopies());
+		} else if (object instanceof BookEditorPick) {
+			BookEditorPick editorPick = (BookEditorPick) object;
+			out.writeByte(TAG_EDITOR_PICK);
+			writeVarInt(out, editorPick.getISBN());
+			out.writeBoolean(editorPick.isEditorPick());
+		} else if (object instanceof BookRating) {
+			BookRating bookRating = (BookRating) object;
+			out.writeByte(TAG_BOOK_RATING);
+			writeVarInt(out, bookRating.getISBN());
+			writeVarInt(out, bookRating.getRating());
+		} else if (object instanceof Set) {
+			out.writeByte(TAG_SET);
+			writeElements(out, (Set<?>) object);
+		} else if (object instanceof List) {
+			out.writeByte(TAG_LIST);
+			writeElements(out, (List<?>) object);
+		} else if (object instanceof BookStoreResponse) {
+			BookStoreResponse response = (BookStoreResponse) object;
+			out.writeByte(TAG_RESPONSE);
+			writeObject(out, response.getException());
+			writeObject(out, response.getList());
+		} else if (object instanceof BookStoreBatchOperation) {
+			BookStoreBatchOperation operation = (BookStoreBatchOperation) object;
+			out.writeByte(TAG_BATCH_OPERATION);
+			writeString(out, nameOf(operation.getTag()));
+			writeObject(out, operation.getArgument());
+		} else if (object instanceof BookStoreBatchReference) {
+			BookStoreBatchReference reference = (BookStoreBatchReference) object;
+			out.writeByte(TAG_BATCH_REFERENCE);
+			writeVarInt(out, reference.getStep());
+			writeString(out, nameOf(reference.getSelection()));
+			writeVarInt(out, reference.getNumBooks());
+			writeVarInt(out, reference.getNumCopies());
+		} else if (object instanceof Throwable) {
+			Throwable ex = (Throwable) object;
+			out.writeByte(TAG_EXCEPTION);
+			if (ex instanceof BookStoreException) {
+				writeString(out, ex.getMessage());
+				writeObject(out, ex.getCause());
+			} else {
+				// Other causes are passed on as book store exceptions
+				writeString(out, ex.toString());
+				out.writeByte(TAG_NULL);
+			}
+		} else {
+			throw new IllegalArgumentException("Can not encode "
+					+ object.getClass().getName());
+		}
+	}
+
+	/**
+	 * Reads an object written by writeObject
+	 * 
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 *             if the input is not a valid encoding
+	 */
+	public static Object readObject(DataInput in) throws IOException {
+		int tag = in.readUnsignedByte();
+		switch (tag) {
+		case TAG_NULL:
+			return null;
+		case TAG_INTEGER:
+			return readVarInt(in);
+		case TAG_LONG:
+			return readVarLong(in);
+		case TAG_STOCK_BOOK:
+			return new ImmutableStockBook(readVarInt(in), readString(in),
+					readString(in), in.readFloat(), readVarInt(in),
+					readVarLong(in), readVarLong(in), readVarLong(in),
+					in.readBoolean());
+		case TAG_BOOK:
+			return new ImmutableBook(readVarInt(in), readString(in),
+					readString(in), in.readFloat());
+		case TAG_BOOK_COPY:
+			return new BookCopy(readVarInt(in), readVarInt(in));
+		case TAG_EDITOR_PICK:
+			return new BookEditorPick(readVarInt(in), in.readBoolean());
+		case TAG_BOOK_RATING:
+			return new BookRating(readVarInt(in), readVarInt(in));
+		case TAG_SET:
+			int setSize = readSize(in);
+			Set<Object> set = new HashSet<Object>(
+					Math.min(setSize, MAX_PRESIZE) * 2);
+			readElements(in, set, setSize);
+			return set;
+		case TAG_LIST:
+			int listSize = readSize(in);
+			List<Object> list = new ArrayList<Object>(Math.min(listSize,
+					MAX_PRESIZE));
+			readElements(in, list, listSize);
+			return list;
+		case TAG_RESPONSE:
+			BookStoreResponse response = new BookStoreResponse();
+			response.setException(readTyped(in, BookStoreException.class));
+			response.setList(readTyped(in, List.class));
+			return response;
+		case TAG_EXCEPTION:
+			String message = readString(in);
+			BookStoreException cause = readTyped(in, BookStoreException.class);
+			return (cause == null) ? new BookStoreException(message)
+					: new BookStoreException(message, cause);
+		case TAG_BATCH_OPERATION:
+			BookStoreMessageTag messageTag = readEnum(in,
+					BookStoreMessageTag.class);
+			return new BookStoreBatchOperation(messageTag, readObject(in));
+		case TAG_BATCH_REFERENCE:
+			int step = readVarInt(in);
+			BookStoreBatchReference.Selection selection = readEnum(in,
+					BookStoreBatchReference.Selection.class);
+			return new BookStoreBatchReference(step, selection,
+					readVarInt(in), readVarInt(in));
+		default:
+			throw new IOException("Unknown tag " + tag);
+		}
+	}
+
+	private static void writeBookAttributes(DataOutput out, Book book)
+			throws IOException {
+		writeVarInt(out, book.getISBN());
+		writeString(out, book.getTitle());
+		writeString(out, book.getAuthor());
+		out.writeFloat(book.getPrice());
+	}
+
+	private static void writeElements(DataOutput out, Collection<?> elements)
+			throws IOException {
+		writeVarInt(out, elements.size());
+		for (Object element : elements) {
+			writeObject(out, element);
+		}
+	}
+
+	private static void readElements(DataInput in, Collection<Object> elements,
+			int size) throws IOException {
+		for (int i = 0; i < size; i++) {
+			elements.add(readObject(in));
+		}
+	}
+
+	private static int readSize(DataInput in) throws IOException {
+		int size = readVarInt(in);
+		if (size < 0) {
+			throw new IOException("Negative size " + size);
+		}
+		return size;
+	}
+
+	private static <T> T readTyped(DataInput in, Class<T> type)
+			throws IOException {
+		Object object = readObject(in);
+		if (object != null && !type.isInstance(object)) {
+			throw new IOException("Expected " + type.getSimpleName()
+					+ " but got " + object.getClass().getSimpleName());
+		}
+		return type.cast(object);
+	}
+
+	private static String nameOf(Enum<?> constant) {
+		return (constant == null) ? null : constant.name();
+	}
+
+	private static <E extends Enum<E>> E readEnum(DataInput in, Class<E> type)
+			throws IOException {
+		String name = readString(in);
+		if (name == null) {
+			return null;
+		}
+		try {
+			return Enum.valueOf(type, name);
+		} catch (IllegalArgumentException ex) {
+			throw new IOException("Unknown " + type.getSimpleName() + " "
+					+ name);
+		}
+	}
+
+	/**
+	 * Writes a string as its UTF-8 length plus one, zero meaning null, and
+	 * its UTF-8 bytes
+	 * 
+	 * @param out
+	 * @param string
+	 * @throws IOException
+	 */
+	private static void writeString(DataOutput out, String string)
+			throws IOException {
+		if (string == null) {
+			writeVarInt(out, 0);
+			return;
+		}
+		byte[] bytes = string.getBytes(UTF_8);
+		writeVarInt(out, bytes.length + 1);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInput in) throws IOException {
+		int length = readVarInt(in) - 1;
+		if (length < 0) {
+			return null;
+		}
+		if (length <= MAX_PRESIZE) {
+			byte[] bytes = new byte[length];
+			in.readFully(bytes);
+			return new String(bytes, UTF_8);
+		}
+		// Read a long string in chunks, so that a corrupted length does not
+		// allocate a huge array before the input runs out
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(MAX_PRESIZE);
+		byte[] chunk = new byte[MAX_PRESIZE];
+		for (int remaining = length; remaining > 0; remaining -= chunk.length) {
+			int chunkLength = Math.min(remaining, chunk.length);
+			in.readFully(chunk, 0, chunkLength);
+			bytes.write(chunk, 0, chunkLength);
+		}
+		return new String(bytes.toByteArray(), UTF_8);
+	}
+
+	/**
+	 * Writes an int as a zigzag varint: 7 bits per byte, least significant
+	 * first, the high bit of a byte telling whether another byte follows
+	 * 
+	 * @param out
+	 * @param value
+	 * @throws IOException
+	 */
+	private static void writeVarInt(DataOutput out, int value)
+			throws IOException {
+		int zigzag = (value << 1) ^ (value >> 31);
+		while ((zigzag & ~0x7F) != 0) {
+			out.writeByte((zigzag & 0x7F) | 0x80);
+			zigzag >>>= 7;
+		}
+		out.writeByte(zigzag);
+	}
+
+	private static int readVarInt(DataInput in) throws IOException {
+		int zigzag = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.readUnsignedByte();
+			zigzag |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return (zigzag >>> 1) ^ -(zigzag & 1);
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	private static void writeVarLong(DataOutput out, long value)
+			throws IOException {
+		long zigzag = (value << 1) ^ (value >> 63);
+		while ((zigzag & ~0x7FL) != 0) {
+			out.writeByte((int) ((zigzag & 0x7F) | 0x80));
+			zigzag >>>= 7;
+		}
+		out.writeByte((int) zigzag);
+	}
+
+	private static long readVarLong(DataInput in) throws IOException {
+		long zigzag = 0;
+		for (int shift = 0; shift < 70; shift += 7) {
+			int b = in.readUnsignedByte();
+			zigzag |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return (zigzag >>> 1) ^ -(zigzag & 1);
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+}
@@ -0,0 +1,188 @@
+package com.acertainbookstore.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.interfaces.BookStoreImportListener;
+import com.acertainbookstore.interfaces.StockManager;
+
+/**
+ * BookStoreCSVReader reads books from a UTF-8 CSV stream in the format
+ * written by BookStoreCSVWriter, one book at a time, so that a catalog of any
+ * size is imported without being held in memory.
+ * 
+ * A line has either the nine columns of the header of BookStoreCSVWriter or
+ * only the first five, the counters of the book then being zero. The header
+ * line itself and empty lines are skipped. Fields are quoted as in RFC 4180.
+ * 
+ */
+public final class BookStoreCSVReader {
+	private static final int NUM_COLUMNS = BookStoreCSVWriter.COLUMNS.length;
+	private static final int NUM_REQUIRED_COLUMNS = 5;
+
+	private final BufferedReader in;
+	// Line of the next character, and first line of the last record
+	private long line = 1;
+	private long recordLine = 0;
+
+	public BookStoreCSVReader(InputStream in) {
+		this.in = new BufferedReader(new InputStreamReader(in,
+				StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Reads the next book of the stream
+	 * 
+	 * @return the book, or null at the end of the stream
+	 * @throws BookStoreException
+	 *             if the stream can not be read or the line is not a book
+	 */
+	public StockBook readBook() throws BookStoreException {
+		List<String> fields;
+		try {
+			fields = readRecord();
+			if (fields != null && recordLine == 1
+					&& BookStoreCSVWriter.COLUMNS[0].equals(fields.get(0))) {
+				fields = readRecord();
+			}
+		} catch (IOException ex) {
+			throw new BookStoreException("Line " + line
+					+ BookStoreConstants.INVALID, ex);
+		}
+		if (fields == null) {
+			return null;
+		}
+		if (fields.size() != NUM_COLUMNS
+				&& fields.size() != NUM_REQUIRED_COLUMNS) {
+			throw new BookStoreException("Line " + recordLine
+					+ BookStoreConstants.INVALID);
+		}
+
+		try {
+			boolean counters = (fields.size() == NUM_COLUMNS);
+			return new ImmutableStockBook(Integer.parseInt(fields.get(0)),
+					fields.get(1), fields.get(2),
+					Float.parseFloat(fields.get(3)),
+					Integer.parseInt(fields.get(4)),
+					counters ? Long.parseLong(fields.get(5)) : 0,
+					counters ? Long.parseLong(fields.get(6)) : 0,
+					counters ? Long.parseLong(fields.get(7)) : 0,
+					counters && Boolean.parseBoolean(fields.get(8)));
+		} catch (NumberFormatException ex) {
+			throw new BookStoreException("Line " + recordLine
+					+ BookStoreConstants.INVALID, ex);
+		}
+	}
+
+	/**
+	 * Reads the rest of the stream and adds its books to the store in
+	 * batches of batchSize books, each batch with a single addBooks call.
+	 * The import stops at the first batch that fails, after the books of the
+	 * earlier batches were added.
+	 * 
+	 * @param stockManager
+	 * @param batchSize
+	 * @param listener
+	 *            told the number of books added after each batch, or null
+	 * @return the number of books added
+	 * @throws BookStoreException
+	 */
+	public long addBooksTo(StockManager stockManager, int batchSize,
+			BookStoreImportListener listener) throws BookStoreException {
+		if (batchSize < 1) {
+			throw new BookStoreException("The batch size: " + batchSize
+					+ BookStoreConstants.INVALID);
+		}
+
+		long numBooksImported = 0;
+		Set<StockBook> batch = new HashSet<StockBook>();
+		// Books are equal by all their attributes, and ISBNs must be unique
+		Set<Integer> batchISBNs = new HashSet<Integer>();
+		StockBook book;
+		do {
+			book = readBook();
+			if (book != null) {
+				if (!batchISBNs.add(book.getISBN())) {
+					throw new BookStoreException(BookStoreConstants.ISBN
+							+ book.getISBN() + BookStoreConstants.DUPLICATED);
+				}
+				batch.add(book);
+			}
+			if (batch.size() == batchSize
+					|| (book == null && !batch.isEmpty())) {
+				stockManager.addBooks(batch);
+				numBooksImported += batch.size();
+				if (listener != null) {
+					listener.booksImported(numBooksImported);
+				}
+				batch = new HashSet<StockBook>();
+				batchISBNs.clear();
+			}
+		} while (book != null);
+		return numBooksImported;
+	}
+
+	/**
+	 * Reads the fields of the next non-empty line
+	 * 
+	 * @return the fields, or null at the end of the stream
+	 * @throws IOException
+	 */
+	private List<String> readRecord() throws IOException {
+		int c = in.read();
+		while (c == '\r' || c == '\n') {
+			if (c == '\n') {
+				line++;
+			}
+			c = in.read();
+		}
+		if (c == -1) {
+			return null;
+		}
+
+		recordLine = line;
+		List<String> fields = new ArrayList<String>(NUM_COLUMNS);
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		while (true) {
+			if (quoted) {
+				if (c == -1) {
+					throw new IOException("Unterminated quoted field");
+				} else if (c == '"') {
+					c = in.read();
+					// A doubled quote stands for a quote in the field
+					if (c != '"') {
+						quoted = false;
+						continue;
+					}
+				} else if (c == '\n') {
+					line++;
+				}
+				field.append((char) c);
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == ',') {
+				fields.add(field.toString());
+				field.setLength(0);
+			} else if (c == '\n' || c == -1) {
+				if (c == '\n') {
+					line++;
+				}
+				fields.add(field.toString());
+				return fields;
+			} else if (c != '\r') {
+				field.append((char) c);
+			}
+			c = in.read();
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package com.acertainbookstore.utils;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import com.acertainbookstore.business.StockBook;
+
+/**
+ * BookStoreCSVWriter writes books to a stream as UTF-8 CSV, one line per
+ * book after a header line naming the columns. Titles and authors are quoted
+ * as in RFC 4180 when they contain a comma, a quote or a line break.
+ * 
+ */
+public final class BookStoreCSVWriter {
+	static final String[] COLUMNS = { "ISBN", "title", "author", "price",
+			"numCopies", "saleMisses", "timesRated", "totalRating",
+			"editorPick" };
+
+	private final Writer out;
+
+	public BookStoreCSVWriter(OutputStream out) {
+		this.out = new BufferedWriter(new OutputStreamWriter(out,
+				StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Writes the header line
+	 * 
+	 * @throws IOException
+	 */
+	public void writeHeader() throws IOException {
+		for (int i = 0; i < COLUMNS.length; i++) {
+			if (i > 0) {
+				out.write(',');
+			}
+			out.write(COLUMNS[i]);
+		}
+		out.write('\n');
+	}
+
+	/**
+	 * Writes the line of a book
+	 * 
+	 * @param book
+	 * @throws IOException
+	 */
+	public void writeBook(StockBook book) throws IOException {
+		out.write(Integer.toString(book.getISBN()));
+		out.write(',');
+		writeString(book.getTitle());
+		out.write(',');
+		writeString(book.getAuthor());
+		out.write(',');
+		out.write(Float.toString(book.getPrice()));
+		out.write(',');
+		out.write(Integer.toString(book.getNumCopies()));
+		out.write(',');
+		out.write(Long.toString(book.getSaleMisses()));
+		out.write(',');
+		out.write(Long.toString(book.getTimesRated()));
+		out.write(',');
+		out.write(Long.toString(book.getTotalRating()));
+		out.write(',');
+		out.write(Boolean.toString(book.isEditorPick()));
+		out.write('\n');
+	}
+
+	private void writeString(String string) throws IOException {
+		if (string.indexOf(',') < 0 && string.indexOf('"') < 0
+				&& string.indexOf('\n') < 0 && string.indexOf('\r') < 0) {
+			out.write(string);
+			return;
+		}
+		out.write('"');
+		out.write(string.replace("\"", "\"\""));
+		out.write('"');
+	}
+
+	/**
+	 * Flushes the lines written so far to the stream, without closing it
+	 * 
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		out.flush();
+	}
+}
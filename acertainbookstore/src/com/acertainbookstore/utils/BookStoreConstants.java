@@ -13,11 +13,50 @@ public final class BookStoreConstants {
 	// Constants used when creating URLs	
 	public static final String BOOKISBN_PARAM = "ISBN";
 	public static final String BOOK_NUM_PARAM = "number_of_books";
+	public static final String COPIES_NUM_PARAM = "number_of_copies";
+	public static final String BATCH_SIZE_PARAM = "batch_size";
+	public static final String TRANSACTION_ID_PARAM = "transaction_id";
+	public static final String EPOCH_PARAM = "epoch";
+	public static final String SEQUENCE_PARAM = "from_sequence";
 	public static final String XMLSTRINGLEN_PARAM = "len";
 	
 	// Used as error code when converting numbers to integer
 	public static final int INVALID_PARAMS = -1;
 
+	// Constants used by the CSV import and export of the catalog
+	public static final int DEFAULT_IMPORT_BATCH_SIZE = 10000;
+	public static final String CSV_CONTENT_TYPE = "text/csv; charset=UTF-8";
+
+	// Constants used by the replicas reading the replication log
+	public static final int MAX_REPLICATED_CALLS = 1000;
+	public static final long REPLICATION_WAIT_MILLIS = 200;
+
+	// Milliseconds a prepared buy waits for its commit or abort before the
+	// server aborts it, well above the timeout of the client requests
+	public static final long PREPARED_BUY_TIMEOUT_MILLIS = 120000;
+
+	// Name of the CSV and JSON files of the workload metrics, without the
+	// extensions
+	public static final String DEFAULT_WORKLOAD_REPORT = "workload";
+
+	// Defaults of the rate steps of the open-loop workload, in interactions
+	// per second, and of the seconds each step lasts
+	public static final int DEFAULT_START_RATE = 100;
+	public static final int DEFAULT_RATE_STEP = 100;
+	public static final int DEFAULT_MAX_RATE = 10000;
+	public static final int DEFAULT_STEP_SECONDS = 10;
+	public static final int DEFAULT_OPEN_LOOP_THREADS = 200;
+	public static final String DEFAULT_OPEN_LOOP_REPORT = "openloop";
+
+	// Defaults of the numbers of clients the workload runs with
+	public static final int DEFAULT_MIN_CLIENTS = 10;
+	public static final int DEFAULT_MAX_CLIENTS = 200;
+	public static final int DEFAULT_CLIENT_STEP = 10;
+
+	// Platform threads of the server in the virtual thread mode when virtual
+	// threads are not supported, the default maximum of the Jetty pool
+	public static final int DEFAULT_SERVER_THREADS = 254;
+
 	// Constants used when creating exception messages
 	// When book has an invalid ISBN
 	public static final String INVALID = " is invalid";
@@ -25,6 +64,8 @@ public final class BookStoreConstants {
 	public static final String DUPLICATED = " is duplicated";
 	// When book is not in the store
 	public static final String NOT_AVAILABLE = " is not available";
+	// When a transaction was aborted
+	public static final String ABORTED = " was aborted";
 	public static final String BOOK = "The Book: ";
 	public static final String ISBN = "The ISBN: ";
 	public static final String NUM_COPIES = "The Number of copies: ";
@@ -33,4 +74,25 @@ public final class BookStoreConstants {
 
 	public static final String PROPERTY_KEY_LOCAL_TEST = "localtest";
 	public static final String PROPERTY_KEY_SERVER_PORT = "port";
+	public static final String PROPERTY_KEY_CONCURRENCY_MODE = "concurrencymode";
+	public static final String PROPERTY_KEY_STORAGE_BACKEND = "storagebackend";
+	public static final String PROPERTY_KEY_WIRE_FORMAT = "wireformat";
+	public static final String PROPERTY_KEY_WAL_FILE = "walfile";
+	public static final String PROPERTY_KEY_SNAPSHOT_FILE = "snapshotfile";
+	public static final String PROPERTY_KEY_SNAPSHOT_INTERVAL = "snapshotinterval";
+	public static final String PROPERTY_KEY_NUM_SHARDS = "shards";
+	public static final String PROPERTY_KEY_REPLICATION_LOG_SIZE = "replicationlogsize";
+	public static final String PROPERTY_KEY_PRIMARY = "primary";
+	public static final String PROPERTY_KEY_WORKLOAD_REPORT = "workloadreport";
+	public static final String PROPERTY_KEY_ARRIVALS = "arrivals";
+	public static final String PROPERTY_KEY_START_RATE = "startrate";
+	public static final String PROPERTY_KEY_RATE_STEP = "ratestep";
+	public static final String PROPERTY_KEY_MAX_RATE = "maxrate";
+	public static final String PROPERTY_KEY_STEP_SECONDS = "stepseconds";
+	public static final String PROPERTY_KEY_OPEN_LOOP_THREADS = "openloopthreads";
+	public static final String PROPERTY_KEY_THREAD_MODE = "threadmode";
+	public static final String PROPERTY_KEY_CLIENT_CONNECTIONS = "clientconnections";
+	public static final String PROPERTY_KEY_MIN_CLIENTS = "minclients";
+	public static final String PROPERTY_KEY_MAX_CLIENTS = "maxclients";
+	public static final String PROPERTY_KEY_CLIENT_STEP = "clientstep";
 }
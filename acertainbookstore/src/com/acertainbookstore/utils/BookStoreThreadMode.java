@@ -0,0 +1,89 @@
+package com.acertainbookstore.utils;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * BookStoreThreadMode selects the threads the workload clients and the
+ * server run their tasks on.
+ * 
+ * PLATFORM runs them on a fixed pool of operating system threads, so that a
+ * task blocked on a call holds its thread until the call returns.
+ * 
+ * VIRTUAL runs each task on a new virtual thread, which releases its carrier
+ * thread while it is blocked, so that tens of thousands of blocked clients or
+ * requests take little more than their stacks. Virtual threads are part of
+ * Java 21, and are looked up by reflection so that the store still builds and
+ * runs on older versions, where VIRTUAL falls back to PLATFORM.
+ * 
+ */
+public enum BookStoreThreadMode {
+	PLATFORM {
+		@Override
+		public ExecutorService newExecutor(int numPlatformThreads) {
+			return Executors.newFixedThreadPool(numPlatformThreads);
+		}
+	},
+	VIRTUAL {
+		@Override
+		public ExecutorService newExecutor(int numPlatformThreads) {
+			ExecutorService executor = newVirtualThreadPerTaskExecutor();
+			if (executor == null) {
+				System.err.println("Virtual threads are not supported by Java "
+						+ System.getProperty("java.version")
+						+ ", running on platform threads");
+				return PLATFORM.newExecutor(numPlatformThreads);
+			}
+			return executor;
+		}
+	};
+
+	/**
+	 * Returns an executor running the tasks submitted to it on threads of the
+	 * mode
+	 * 
+	 * @param numPlatformThreads
+	 *            the size of the pool of platform threads, unused by virtual
+	 *            threads
+	 * @return
+	 */
+	public abstract ExecutorService newExecutor(int numPlatformThreads);
+
+	/**
+	 * Returns the executor of Executors.newVirtualThreadPerTaskExecutor, or
+	 * null if the method does not exist or, as in Java 19 and 20 without
+	 * preview features, throws
+	 * 
+	 * @return
+	 */
+	private static ExecutorService newVirtualThreadPerTaskExecutor() {
+		try {
+			Method method = Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		} catch (NoSuchMethodException ex) {
+			return null;
+		} catch (IllegalAccessException ex) {
+			return null;
+		} catch (InvocationTargetException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the mode configured by the thread mode system property, or
+	 * PLATFORM if the property is not set
+	 * 
+	 * @return
+	 */
+	public static BookStoreThreadMode getConfiguredMode() {
+		String modeProperty = System
+				.getProperty(BookStoreConstants.PROPERTY_KEY_THREAD_MODE);
+		if (modeProperty == null || modeProperty.isEmpty()) {
+			return PLATFORM;
+		}
+		return BookStoreThreadMode.valueOf(modeProperty.toUpperCase());
+	}
+}
@@ -3,18 +3,23 @@
  */
 package com.acertainbookstore.utils;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.Reader;
-import java.io.UnsupportedEncodingException;
-import java.util.List;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
-import org.eclipse.jetty.client.ContentExchange;
-import org.eclipse.jetty.client.HttpClient;
-import org.eclipse.jetty.client.HttpExchange;
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.ByteArrayBuffer;
 
-import com.acertainbookstore.client.BookStoreClientConstants;
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.ImmutableBook;
+import com.acertainbookstore.business.ImmutableStockBook;
 import com.thoughtworks.xstream.XStream;
 import com.thoughtworks.xstream.io.xml.StaxDriver;
 
@@ -25,6 +30,32 @@ import com.thoughtworks.xstream.io.xml.StaxDriver;
  */
 public final class BookStoreUtility {
 
+	/**
+	 * XStream instances are thread-safe once configured, so one instance is
+	 * shared by all the requests instead of setting up its converters for
+	 * every call
+	 */
+	private static final XStream XML_STREAM = createXStream();
+
+	/**
+	 * Creates the XStream instance used to serialize the messages, with short
+	 * aliases for the classes exchanged between clients and servers
+	 * 
+	 * @return
+	 */
+	private static XStream createXStream() {
+		XStream xmlStream = new XStream(new StaxDriver());
+		xmlStream.alias("book", ImmutableBook.class);
+		xmlStream.alias("stockBook", ImmutableStockBook.class);
+		xmlStream.alias("bookCopy", BookCopy.class);
+		xmlStream.alias("editorPick", BookEditorPick.class);
+		xmlStream.alias("bookRating", BookRating.class);
+		xmlStream.alias("response", BookStoreResponse.class);
+		xmlStream.alias("batchOperation", BookStoreBatchOperation.class);
+		xmlStream.alias("batchReference", BookStoreBatchReference.class);
+		return xmlStream;
+	}
+
 	public static boolean isInvalidISBN(int isbn) {
 		return (isbn < 1);
 	}
@@ -37,6 +68,40 @@ public final class BookStoreUtility {
 		return (copies < 1);
 	}
 
+	/**
+	 * Returns the partition of the book with the ISBN among numPartitions
+	 * partitions, the same for the shards of a store and the servers of a
+	 * partitioned deployment
+	 * 
+	 * @param ISBN
+	 * @param numPartitions
+	 * @return
+	 */
+	public static int partitionOf(int ISBN, int numPartitions) {
+		// Spreads ISBNs following a pattern, e.g. all even, over the
+		// partitions
+		int hash = ISBN * 0x9E3779B9;
+		return ((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % numPartitions;
+	}
+
+	/**
+	 * Compares two rated books by decreasing average rating, ties being
+	 * broken by ascending ISBN, the order of getTopRatedBooks
+	 * 
+	 * @return a negative number if the first book comes first
+	 */
+	public static int compareRatings(int ISBN1, long totalRating1,
+			long timesRated1, int ISBN2, long totalRating2, long timesRated2) {
+		// Compares the averages 2 and 1 exactly by cross-multiplying, both
+		// times rated are positive
+		int cmp = Long.compare(totalRating2 * timesRated1, totalRating1
+				* timesRated2);
+		if (cmp != 0) {
+			return cmp;
+		}
+		return Integer.compare(ISBN1, ISBN2);
+	}
+
 	/**
 	 * Checks if a string is empty or null
 	 * 
@@ -86,6 +151,23 @@ public final class BookStoreUtility {
 		return returnValue;
 	}
 
+	/**
+	 * Converts a string to a long
+	 * 
+	 * @param str
+	 * @return
+	 * @throws BookStoreException
+	 *             if the string is not a long
+	 */
+	public static long convertStringToLong(String str)
+			throws BookStoreException {
+		try {
+			return Long.parseLong(str);
+		} catch (Exception ex) {
+			throw new BookStoreException(ex);
+		}
+	}
+
 	/**
 	 * Convert a request URI to the message tags supported in CertainBookStore
 	 * 
@@ -114,8 +196,7 @@ public final class BookStoreUtility {
 	 */
 	public static String serializeObjectToXMLString(Object object) {
 		String xmlString;
-		XStream xmlStream = new XStream(new StaxDriver());
-		xmlString = xmlStream.toXML(object);
+		xmlString = XML_STREAM.toXML(object);
 		return xmlString;
 	}
 
@@ -127,65 +208,25 @@ public final class BookStoreUtility {
 	 */
 	public static Object deserializeXMLStringToObject(String xmlObject) {
 		Object dataObject = null;
-		XStream xmlStream = new XStream(new StaxDriver());
-		dataObject = xmlStream.fromXML(xmlObject);
+		dataObject = XML_STREAM.fromXML(xmlObject);
 		return dataObject;
 	}
 
 
 	/**
-	 * Manages the sending of an exchange through the client, waits for the
-	 * response and unpacks the response
+	 * Serializes an object to the content of a request in the given wire
+	 * format
 	 * 
-	 * @param client
-	 * @param exchange
-	 * @return A List<Book> for a get function, otherwise null
-	 * @throws BookStoreException
+	 * @param object
+	 * @param format
+	 * @return
 	 */
-	public static List<?> SendAndRecv(HttpClient client,
-			ContentExchange exchange) throws BookStoreException {
-		int exchangeState;
-		try {
-			client.send(exchange);
-		} catch (IOException ex) {
-			throw new BookStoreException(
-					BookStoreClientConstants.strERR_CLIENT_REQUEST_SENDING, ex);
-		}
-
-		try {
-			exchangeState = exchange.waitForDone(); // block until the response
-													// is available
-		} catch (InterruptedException ex) {
-			throw new BookStoreException(
-					BookStoreClientConstants.strERR_CLIENT_REQUEST_SENDING, ex);
-		}
-
-		if (exchangeState == HttpExchange.STATUS_COMPLETED) {
-			try {
-				BookStoreResponse bookStoreResponse = (BookStoreResponse) BookStoreUtility
-						.deserializeXMLStringToObject(exchange
-								.getResponseContent().trim());
-				BookStoreException ex = bookStoreResponse.getException();
-				if (ex != null) {
-					throw ex;
-				}
-				return bookStoreResponse.getList();
-				
-			} catch (UnsupportedEncodingException ex) {
-				throw new BookStoreException(
-						BookStoreClientConstants.strERR_CLIENT_RESPONSE_DECODING,
-						ex);
-			}
-		} else if (exchangeState == HttpExchange.STATUS_EXCEPTED) {
-			throw new BookStoreException(
-					BookStoreClientConstants.strERR_CLIENT_REQUEST_EXCEPTION);
-		} else if (exchangeState == HttpExchange.STATUS_EXPIRED) {
-			throw new BookStoreException(
-					BookStoreClientConstants.strERR_CLIENT_REQUEST_TIMEOUT);
-		} else {
-			throw new BookStoreException(
-					BookStoreClientConstants.strERR_CLIENT_UNKNOWN);
+	public static Buffer serializeObjectToBuffer(Object object,
+			BookStoreWireFormat format) {
+		if (format == BookStoreWireFormat.BINARY) {
+			return new ByteArrayBuffer(BookStoreBinaryCodec.encode(object));
 		}
+		return new ByteArrayBuffer(serializeObjectToXMLString(object));
 	}
 
 	/**
@@ -200,10 +241,60 @@ public final class BookStoreUtility {
 		Reader reader = request.getReader();
 		int len = request.getContentLength();
 
-		// Request must be read into a char[] first
-		char res[] = new char[len];
-		reader.read(res);
+		// A single read may return only part of the body, and the length is
+		// unknown for chunked requests
+		StringBuilder res = new StringBuilder(Math.max(len, 16));
+		char buffer[] = new char[4096];
+		int numRead;
+		while ((numRead = reader.read(buffer)) != -1) {
+			res.append(buffer, 0, numRead);
+		}
+		reader.close();
+		return res.toString();
+	}
+
+	/**
+	 * Deserializes the object sent in the body of a request, in the wire
+	 * format given by its Content-Type header
+	 * 
+	 * @param request
+	 * @return
+	 * @throws IOException
+	 */
+	public static Object deserializeObjectFromRequest(HttpServletRequest request)
+			throws IOException {
+		if (BookStoreWireFormat.forHeader(request.getContentType()) == BookStoreWireFormat.BINARY) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					request.getInputStream()));
+			Object object = BookStoreBinaryCodec.readObject(in);
+			in.close();
+			return object;
+		}
+		// Parse the body as it is read instead of buffering it in a string
+		Reader reader = request.getReader();
+		Object object = XML_STREAM.fromXML(reader);
 		reader.close();
-		return new String(res);
+		return object;
+	}
+
+	/**
+	 * Serializes an object directly to the body of a response in the given
+	 * wire format. Nothing is buffered beyond the buffer of the response, so
+	 * a large response is sent in chunks while it is being serialized.
+	 * 
+	 * @param response
+	 * @param object
+	 * @param format
+	 * @throws IOException
+	 */
+	public static void serializeObjectToResponse(HttpServletResponse response,
+			Object object, BookStoreWireFormat format) throws IOException {
+		if (format == BookStoreWireFormat.BINARY) {
+			// The output stream of the response buffers the small writes
+			BookStoreBinaryCodec.writeObject(
+					new DataOutputStream(response.getOutputStream()), object);
+		} else {
+			XML_STREAM.toXML(object, response.getWriter());
+		}
 	}
 }
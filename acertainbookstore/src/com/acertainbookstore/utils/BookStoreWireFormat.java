@@ -0,0 +1,65 @@
+package com.acertainbookstore.utils;
+
+/**
+ * BookStoreWireFormat lists the encodings of the messages exchanged between
+ * the HTTP proxies and the server. The format of a request body is given by
+ * its Content-Type header and the format of the response by the Accept
+ * header of the request, so clients opt into the binary format per request
+ * and the server answers in kind.
+ * 
+ */
+public enum BookStoreWireFormat {
+	/**
+	 * XStream XML, understood by all clients and servers
+	 */
+	XML("text/html;charset=utf-8"),
+
+	/**
+	 * Compact binary encoding of BookStoreBinaryCodec
+	 */
+	BINARY("application/x-bookstore-binary");
+
+	private final String contentType;
+
+	private BookStoreWireFormat(String contentType) {
+		this.contentType = contentType;
+	}
+
+	/**
+	 * Returns the value of the Content-Type header of messages in the format
+	 * 
+	 * @return
+	 */
+	public String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * Returns the format named by a Content-Type or Accept header, anything
+	 * but the binary media type means XML
+	 * 
+	 * @param header
+	 * @return
+	 */
+	public static BookStoreWireFormat forHeader(String header) {
+		if (header != null && header.contains(BINARY.contentType)) {
+			return BINARY;
+		}
+		return XML;
+	}
+
+	/**
+	 * Returns the format configured by the wire format system property, or
+	 * XML if the property is not set
+	 * 
+	 * @return
+	 */
+	public static BookStoreWireFormat getConfiguredFormat() {
+		String formatProperty = System
+				.getProperty(BookStoreConstants.PROPERTY_KEY_WIRE_FORMAT);
+		if (formatProperty == null || formatProperty.isEmpty()) {
+			return XML;
+		}
+		return BookStoreWireFormat.valueOf(formatProperty.toUpperCase());
+	}
+}
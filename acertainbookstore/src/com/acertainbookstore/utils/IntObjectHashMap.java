@@ -0,0 +1,345 @@
+package com.acertainbookstore.utils;
+
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * IntObjectHashMap maps primitive int keys to objects without boxing the keys.
+ * It uses open addressing with linear probing and backward shift deletion, so
+ * the table consists of one array of int keys and one array of values and
+ * lookups do not allocate.
+ *
+ * Updates must be serialized by the caller. Lookups may run concurrently with
+ * an update: they never fail or loop, but they may then miss an entry or
+ * return a stale value, so the caller has to validate such reads, e.g. with
+ * a version stamp. The arrays are atomic arrays and the other fields read by
+ * lookups are volatile, so that every read of a lookup is a volatile read,
+ * which a version stamp read afterwards can not be reordered with.
+ *
+ * @param <V>
+ */
+public class IntObjectHashMap<V> {
+	private static final int FREE_KEY = 0;
+	private static final int MIN_CAPACITY = 16;
+
+	/**
+	 * The key and value arrays are published together so that a concurrent
+	 * lookup always probes a consistent pair of arrays
+	 */
+	private static final class Table {
+		private final AtomicIntegerArray keys;
+		private final AtomicReferenceArray<Object> values;
+		private final int mask;
+
+		private Table(int capacity) {
+			this.keys = new AtomicIntegerArray(capacity);
+			this.values = new AtomicReferenceArray<Object>(capacity);
+			this.mask = capacity - 1;
+		}
+	}
+
+	private volatile Table table;
+	// Key 0 marks free slots, so its value is kept outside of the table
+	private volatile boolean hasFreeKey = false;
+	private volatile V freeKeyValue = null;
+	private int size = 0;
+	private int resizeThreshold;
+
+	public IntObjectHashMap() {
+		this(MIN_CAPACITY);
+	}
+
+	/**
+	 * Creates a map that can hold expectedSize entries without resizing
+	 *
+	 * @param expectedSize
+	 */
+	public IntObjectHashMap(int expectedSize) {
+		setTable(new Table(capacityFor(expectedSize)));
+	}
+
+	/**
+	 * Returns the smallest power of two table size that keeps the load factor
+	 * at or below one half for the given number of entries
+	 *
+	 * @param expectedSize
+	 * @return
+	 */
+	private static int capacityFor(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < (long) expectedSize * 2) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	private void setTable(Table newTable) {
+		resizeThreshold = (newTable.mask + 1) / 2;
+		table = newTable;
+	}
+
+	/**
+	 * Spreads the bits of the key, ISBNs are often consecutive
+	 *
+	 * @param key
+	 * @return
+	 */
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Returns the value mapped to key, or null if there is none
+	 *
+	 * @param key
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		if (key == FREE_KEY) {
+			return hasFreeKey ? freeKeyValue : null;
+		}
+		Table t = table;
+		AtomicIntegerArray keys = t.keys;
+		int mask = t.mask;
+		int slot = hash(key) & mask;
+		// The bound on the number of probes only matters when an update runs
+		// concurrently
+		for (int probes = 0; probes <= mask; probes++) {
+			int slotKey = keys.get(slot);
+			if (slotKey == key) {
+				return (V) t.values.get(slot);
+			}
+			if (slotKey == FREE_KEY) {
+				return null;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return null;
+	}
+
+	public boolean containsKey(int key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * Maps key to value and returns the previous value, or null if there was
+	 * none. Null values are not supported.
+	 *
+	 * @param key
+	 * @param value
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(int key, V value) {
+		if (value == null) {
+			throw new NullPointerException("null values are not supported");
+		}
+		if (key == FREE_KEY) {
+			V previous = freeKeyValue;
+			if (!hasFreeKey) {
+				size++;
+			}
+			freeKeyValue = value;
+			hasFreeKey = true;
+			return previous;
+		}
+		Table t = table;
+		int slot = hash(key) & t.mask;
+		while (t.keys.get(slot) != FREE_KEY) {
+			if (t.keys.get(slot) == key) {
+				V previous = (V) t.values.get(slot);
+				t.values.set(slot, value);
+				return previous;
+			}
+			slot = (slot + 1) & t.mask;
+		}
+		// Write the value before the key so a concurrent lookup does not find
+		// the key without its value
+		t.values.set(slot, value);
+		t.keys.set(slot, key);
+		if (++size > resizeThreshold) {
+			resize((t.mask + 1) * 2);
+		}
+		return null;
+	}
+
+	/**
+	 * Removes the mapping of key and returns its value, or null if there was
+	 * none
+	 *
+	 * @param key
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(int key) {
+		if (key == FREE_KEY) {
+			if (!hasFreeKey) {
+				return null;
+			}
+			V previous = freeKeyValue;
+			hasFreeKey = false;
+			freeKeyValue = null;
+			size--;
+			return previous;
+		}
+		Table t = table;
+		int slot = hash(key) & t.mask;
+		while (t.keys.get(slot) != key) {
+			if (t.keys.get(slot) == FREE_KEY) {
+				return null;
+			}
+			slot = (slot + 1) & t.mask;
+		}
+		V previous = (V) t.values.get(slot);
+		shiftKeysBack(t, slot);
+		size--;
+		return previous;
+	}
+
+	/**
+	 * Fills the slot freed by a removal with the next entry of the probe
+	 * sequence that may move there, and repeats for the slot that entry
+	 * leaves, so lookups never need tombstones
+	 *
+	 * @param t
+	 * @param freeSlot
+	 */
+	private void shiftKeysBack(Table t, int freeSlot) {
+		int slot = freeSlot;
+		while (true) {
+			slot = (slot + 1) & t.mask;
+			int slotKey = t.keys.get(slot);
+			if (slotKey == FREE_KEY) {
+				break;
+			}
+			int home = hash(slotKey) & t.mask;
+			// Move the entry unless its home slot lies cyclically in
+			// (freeSlot, slot]
+			boolean stays = (freeSlot <= slot) ? (freeSlot < home && home <= slot)
+					: (freeSlot < home || home <= slot);
+			if (!stays) {
+				t.values.set(freeSlot, t.values.get(slot));
+				t.keys.set(freeSlot, slotKey);
+				freeSlot = slot;
+			}
+		}
+		t.keys.set(freeSlot, FREE_KEY);
+		t.values.set(freeSlot, null);
+	}
+
+	private void resize(int newCapacity) {
+		Table oldTable = table;
+		Table newTable = new Table(newCapacity);
+		for (int i = 0; i <= oldTable.mask; i++) {
+			int key = oldTable.keys.get(i);
+			if (key != FREE_KEY) {
+				int slot = hash(key) & newTable.mask;
+				while (newTable.keys.get(slot) != FREE_KEY) {
+					slot = (slot + 1) & newTable.mask;
+				}
+				// The new table is not published yet
+				newTable.values.lazySet(slot, oldTable.values.get(i));
+				newTable.keys.lazySet(slot, key);
+			}
+		}
+		setTable(newTable);
+	}
+
+	/**
+	 * Removes all the mappings and shrinks the table back to its minimum size
+	 */
+	public void clear() {
+		hasFreeKey = false;
+		freeKeyValue = null;
+		size = 0;
+		setTable(new Table(MIN_CAPACITY));
+	}
+
+	/**
+	 * Returns a new array holding all the keys of the map in ascending order
+	 *
+	 * @return
+	 */
+	public int[] sortedKeys() {
+		int[] result = new int[size];
+		int numKeys = 0;
+		if (hasFreeKey) {
+			result[numKeys++] = FREE_KEY;
+		}
+		Table t = table;
+		for (int i = 0; i <= t.mask && numKeys < result.length; i++) {
+			int key = t.keys.get(i);
+			if (key != FREE_KEY) {
+				result[numKeys++] = key;
+			}
+		}
+		Arrays.sort(result, 0, numKeys);
+		return result;
+	}
+
+	/**
+	 * Returns a view of the values of the map, which must not be updated while
+	 * the view is iterated
+	 *
+	 * @return
+	 */
+	public Collection<V> values() {
+		return new AbstractCollection<V>() {
+			public Iterator<V> iterator() {
+				return new ValueIterator();
+			}
+
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	private final class ValueIterator implements Iterator<V> {
+		private final Table iteratedTable = table;
+		private boolean freeKeyPending = hasFreeKey;
+		private int nextSlot = 0;
+
+		public boolean hasNext() {
+			if (freeKeyPending) {
+				return true;
+			}
+			while (nextSlot <= iteratedTable.mask
+					&& iteratedTable.keys.get(nextSlot) == FREE_KEY) {
+				nextSlot++;
+			}
+			return nextSlot <= iteratedTable.mask;
+		}
+
+		@SuppressWarnings("unchecked")
+		public V next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			if (freeKeyPending) {
+				freeKeyPending = false;
+				return freeKeyValue;
+			}
+			return (V) iteratedTable.values.get(nextSlot++);
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}